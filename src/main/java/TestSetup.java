@@ -13,20 +13,33 @@ import render.Window;
 import render.objLoader.ObjLoader;
 import render.render3D.Camera;
 import render.render3D.Transformation;
+import render.render3D.light.Attenuation;
+import render.render3D.light.LightClusters;
+import render.render3D.light.PointLight;
 import render.shader.Shaders;
 import render.util.BakedMesh;
+import render.util.GlState;
+import render.util.GpuTimer;
+import render.util.MeshLod;
 import util.Mathf;
 import util.MeshHandler;
+import util.trace.Trace;
+
+import java.io.IOException;
+import java.nio.file.Paths;
 
 
 import static org.lwjgl.glfw.GLFW.*;
 import static org.lwjgl.opengl.GL11.*;
 import static org.lwjgl.opengl.GL30.GL_FRAMEBUFFER;
 import static org.lwjgl.opengl.GL30.glBindFramebuffer;
+import static render.shader.Shaders.frameUniforms;
 import static render.shader.Shaders.sceneShader;
 
 public class TestSetup {
 
+    private static final int TRACE_FRAME = Trace.event("frame");
+
     private static Window window;
     private static Matrix4f projMat;
     private static Matrix4f viewMat;
@@ -55,7 +68,15 @@ public class TestSetup {
         sphereMesh = new Mesh("bullet.ob");
         cam = new Camera(window);
         particleSim = new ParticleSimulator();
+        sphereMesh.setLod(sphereMesh.createLod(particleSim.getGeometryPool(), 24, 8, 0));
+        particleSim.getColliders().addBox(-20, -4, -20, 20, -3, 20);
         particleSim.addParticle(new Particle(new Vector3f(0,0,0), new Vector3f(0,20f, 0),0.5f, sphereMesh));
+        particleSim.setParticleImpostors(Boolean.getBoolean("physics.impostors"));
+        if(Boolean.getBoolean("physics.metrics")) {
+            particleSim.getMetrics().setEnabled(true);
+            particleSim.getMetrics().registerMBean("physics:type=Metrics");
+            particleSim.getMetrics().startFileExport(Paths.get("metrics.txt"), 5000);
+        }
 
 
 
@@ -69,33 +90,50 @@ public class TestSetup {
         Shaders.loadShaders();
 
         glViewport(0, 0, window.getWidth(), window.getHeight());
-        glEnable(GL_DEPTH_TEST);
+        GlState.enable(GL_DEPTH_TEST);
         glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT | GL_STENCIL_BUFFER_BIT);
 
 
-        sceneShader.bind();
-        sceneShader.projViewMat.set(projViewMat);
-        sceneShader.lightPos.set(new Vector3f(0,2,0));
+        frameUniforms.lightPos.set(new Vector3f(0,2,0));
+        // Coloured point lights scattered over the floor, as many as asked for
+        PointLight[] lights = new PointLight[Integer.getInteger("physics.lights", 0)];
+        for(int i = 0; i < lights.length; i++) {
+            lights[i] = new PointLight(new Vector3f((float) Math.random(), (float) Math.random(), (float) Math.random()), 1);
+            lights[i].setAttenuation(new Attenuation(1, 0, 4));
+            lights[i].setPosition(new Vector3f((float) Math.random() * 40 - 20, -2.5f, (float) Math.random() * 40 - 20));
+        }
+        LightClusters lightClusters = new LightClusters(16, 9, 24);
+
 
+        GlState.enable(GL_DEPTH_TEST);
 
-        glEnable(GL_DEPTH_TEST);
 
 
+        Trace.setEnabled(Boolean.getBoolean("physics.trace"));
+        GpuTimer drawTimer = new GpuTimer("drawWorld (GPU)");
 
         float timeStep = 0;
         boolean wasPDown = false;
         boolean paused = false;
         //TODO remove this and set up a sim loop
         while (!window.shouldClose()) {
+            Trace.begin(TRACE_FRAME);
             glfwPollEvents();
             cam.doCameraMovement();
 
             glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT | GL_STENCIL_BUFFER_BIT);
 
 
+            viewMat = cam.getViewMat();
+            projMat.mul(viewMat, projViewMat);
+            lightClusters.update(viewMat, projMat, window.getWidth(), window.getHeight(), lights, lights.length);
+            frameUniforms.projViewMat.set(projViewMat);
+            frameUniforms.viewMat.set(viewMat);
+            frameUniforms.setLights(lightClusters);
+            frameUniforms.cameraPos.set(cam.getPosition());
+            frameUniforms.upload();
             sceneShader.bind();
-            projViewMat = new Matrix4f().mul(projMat).mul(cam.getViewMat());
-            sceneShader.projViewMat.set(projViewMat);
+            particleSim.setView(cam.getPosition(), projViewMat, MeshLod.pixelScale(projMat, window.getHeight()));
 
 
             //sceneShader.lightPos.set(new Vector3f(Mathf.cos(-timeStep*0.01f)*10, 5, Mathf.sin(-timeStep*0.01f)*10 - 5));
@@ -120,13 +158,16 @@ public class TestSetup {
                 particleSim.tick();
             }
 
+            drawTimer.begin();
             particleSim.drawWorld();
+            drawTimer.end();
 
             sceneShader.unbind();
 
 
 
             window.endFrame();
+            Trace.end(TRACE_FRAME);
 
 
             timeStep++;
@@ -138,6 +179,14 @@ public class TestSetup {
             }
         }
 
+        drawTimer.free();
+        if(Trace.isEnabled()) {
+            try {
+                Trace.dump(Paths.get("trace.json"));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
 
 
     }
@@ -0,0 +1,276 @@
+package physics;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Ties the vertices of a detailed mesh to a coarse closed "cage" mesh around it, so that moving the cage's vertices
+ * moves the detailed mesh smoothly along with them.
+ *
+ * <p>
+ * Each embedded point is given mean value coordinates with respect to the cage at rest: weights on the cage's
+ * vertices which reproduce the point exactly, and which vary smoothly through the inside of the cage, even for cages
+ * which aren't convex. Only the largest few weights per point are kept, so deforming costs a fixed amount per point
+ * however big the cage is. Mean value coordinates spread over the whole cage, so the kept weights are then nudged as
+ * little as possible to still sum to 1 and reproduce the point, which keeps the rest shape exact and lets affine
+ * motions of the cage carry the points along exactly. Deforming is then a weighted sum per point, which runs in
+ * parallel.
+ * </p>
+ */
+public class CageEmbedding {
+
+    private static final double EPSILON = 1e-8;
+    /**
+     * Points per parallel task
+     */
+    private static final int CHUNK = 4096;
+
+    private final int pointCount;
+    private final int weightsPerPoint;
+    private final int[] cageVertices;
+    private final float[] weights;
+
+    /**
+     * @param cagePositions The cage's vertex positions at rest, as (x, y, z) at <tt>3 * vertex</tt>
+     * @param cageTriangles The cage's triangles' vertex indices, 3 per triangle, wound consistently
+     * @param points The points to embed, in the same space as the cage, as (x, y, z) at <tt>3 * point</tt>
+     * @param weightsPerPoint How many of each point's weights to keep
+     */
+    public CageEmbedding(float[] cagePositions, int[] cageTriangles, float[] points, int weightsPerPoint) {
+        int cageSize = cagePositions.length / 3;
+        this.pointCount = points.length / 3;
+        this.weightsPerPoint = Math.min(weightsPerPoint, cageSize);
+        cageVertices = new int[pointCount * this.weightsPerPoint];
+        weights = new float[pointCount * this.weightsPerPoint];
+
+        IntStream.range(0, (pointCount + CHUNK - 1) / CHUNK).parallel().forEach(chunk -> {
+            double[] all = new double[cageSize];
+            double[] scratch = new double[cageSize * 4];
+            int end = Math.min(pointCount, (chunk + 1) * CHUNK);
+            for (int p = chunk * CHUNK; p < end; p++) {
+                meanValueCoordinates(cagePositions, cageTriangles, points[p * 3], points[p * 3 + 1], points[p * 3 + 2], all, scratch);
+                keepLargest(all, p);
+                correct(cagePositions, points, p);
+            }
+        });
+    }
+
+    public int getPointCount() {
+        return pointCount;
+    }
+
+    public int getWeightsPerPoint() {
+        return weightsPerPoint;
+    }
+
+    /**
+     * Moves the embedded points along with the cage, in parallel
+     *
+     * @param cagePositions The cage's current vertex positions
+     * @param out Receives the points' positions, as (x, y, z) at <tt>3 * point</tt>
+     */
+    public void deform(float[] cagePositions, float[] out) {
+        IntStream.range(0, (pointCount + CHUNK - 1) / CHUNK).parallel().forEach(chunk -> {
+            int end = Math.min(pointCount, (chunk + 1) * CHUNK);
+            for (int p = chunk * CHUNK; p < end; p++) {
+                float x = 0, y = 0, z = 0;
+                for (int k = p * weightsPerPoint; k < (p + 1) * weightsPerPoint; k++) {
+                    int v = cageVertices[k] * 3;
+                    float w = weights[k];
+                    x += w * cagePositions[v];
+                    y += w * cagePositions[v + 1];
+                    z += w * cagePositions[v + 2];
+                }
+                out[p * 3] = x;
+                out[p * 3 + 1] = y;
+                out[p * 3 + 2] = z;
+            }
+        });
+    }
+
+    /**
+     * Keeps the point's largest weights by magnitude, rescaled to sum to 1 again
+     */
+    private void keepLargest(double[] all, int point) {
+        int o = point * weightsPerPoint;
+        int kept = 0;
+        for (int v = 0; v < all.length; v++) {
+            double magnitude = Math.abs(all[v]);
+            if (kept < weightsPerPoint) {
+                cageVertices[o + kept] = v;
+                kept++;
+            } else if (magnitude > Math.abs(all[cageVertices[o + weightsPerPoint - 1]])) {
+                cageVertices[o + weightsPerPoint - 1] = v;
+            } else {
+                continue;
+            }
+            // Insertion sort the newcomer into place, largest first
+            for (int k = kept - 1; k > 0 && Math.abs(all[cageVertices[o + k]]) > Math.abs(all[cageVertices[o + k - 1]]); k--) {
+                int swap = cageVertices[o + k];
+                cageVertices[o + k] = cageVertices[o + k - 1];
+                cageVertices[o + k - 1] = swap;
+            }
+        }
+
+        double sum = 0;
+        for (int k = 0; k < weightsPerPoint; k++)
+            sum += all[cageVertices[o + k]];
+        for (int k = 0; k < weightsPerPoint; k++)
+            weights[o + k] = (float) (all[cageVertices[o + k]] / sum);
+    }
+
+    /**
+     * Makes the smallest change to the point's kept weights which makes them sum to 1 and reproduce the point. With
+     * <tt>A</tt> the kept vertices' positions stacked over a row of ones, that's <tt>w += A^T (A A^T)^-1 (b - A w)</tt>.
+     */
+    private void correct(float[] cage, float[] points, int point) {
+        int o = point * weightsPerPoint;
+        double[] gram = new double[16];
+        double[] residual = {points[point * 3], points[point * 3 + 1], points[point * 3 + 2], 1};
+        double[] row = new double[4];
+        for (int k = 0; k < weightsPerPoint; k++) {
+            int v = cageVertices[o + k] * 3;
+            row[0] = cage[v];
+            row[1] = cage[v + 1];
+            row[2] = cage[v + 2];
+            row[3] = 1;
+            for (int i = 0; i < 4; i++) {
+                residual[i] -= row[i] * weights[o + k];
+                for (int j = 0; j < 4; j++)
+                    gram[i * 4 + j] += row[i] * row[j];
+            }
+        }
+        if (!solve4(gram, residual))
+            // Too few or coplanar vertices to pin the point down, so keep the plain renormalised weights
+            return;
+        for (int k = 0; k < weightsPerPoint; k++) {
+            int v = cageVertices[o + k] * 3;
+            weights[o + k] += (float) (cage[v] * residual[0] + cage[v + 1] * residual[1] + cage[v + 2] * residual[2] + residual[3]);
+        }
+    }
+
+    /**
+     * Solves a 4x4 system in place by Gaussian elimination with partial pivoting, leaving the answer in <tt>b</tt>
+     *
+     * @return Whether the system was solvable
+     */
+    private static boolean solve4(double[] m, double[] b) {
+        for (int column = 0; column < 4; column++) {
+            int pivot = column;
+            for (int r = column + 1; r < 4; r++) {
+                if (Math.abs(m[r * 4 + column]) > Math.abs(m[pivot * 4 + column]))
+                    pivot = r;
+            }
+            if (Math.abs(m[pivot * 4 + column]) < 1e-12)
+                return false;
+            for (int c = 0; c < 4; c++) {
+                double swap = m[column * 4 + c];
+                m[column * 4 + c] = m[pivot * 4 + c];
+                m[pivot * 4 + c] = swap;
+            }
+            double swap = b[column];
+            b[column] = b[pivot];
+            b[pivot] = swap;
+
+            for (int r = column + 1; r < 4; r++) {
+                double factor = m[r * 4 + column] / m[column * 4 + column];
+                for (int c = column; c < 4; c++)
+                    m[r * 4 + c] -= factor * m[column * 4 + c];
+                b[r] -= factor * b[column];
+            }
+        }
+        for (int r = 3; r >= 0; r--) {
+            double sum = b[r];
+            for (int c = r + 1; c < 4; c++)
+                sum -= m[r * 4 + c] * b[c];
+            b[r] = sum / m[r * 4 + r];
+        }
+        return true;
+    }
+
+    /**
+     * Mean value coordinates for closed triangle meshes (Ju, Schaefer and Warren, 2005), normalised to sum to 1
+     *
+     * @param out Receives one weight per cage vertex
+     * @param scratch Room for 4 doubles per cage vertex
+     */
+    static void meanValueCoordinates(float[] cage, int[] triangles, double x, double y, double z, double[] out, double[] scratch) {
+        int n = out.length;
+        // Unit vectors from the point to each vertex, then the distances
+        double[] u = scratch;
+        int distances = n * 3;
+        for (int v = 0; v < n; v++) {
+            double dx = cage[v * 3] - x, dy = cage[v * 3 + 1] - y, dz = cage[v * 3 + 2] - z;
+            double d = Math.sqrt(dx * dx + dy * dy + dz * dz);
+            if (d < EPSILON) {
+                // On a vertex
+                Arrays.fill(out, 0);
+                out[v] = 1;
+                return;
+            }
+            u[v * 3] = dx / d;
+            u[v * 3 + 1] = dy / d;
+            u[v * 3 + 2] = dz / d;
+            u[distances + v] = d;
+        }
+
+        Arrays.fill(out, 0);
+        int[] corner = new int[3];
+        double[] theta = new double[3], c = new double[3], s = new double[3];
+        for (int t = 0; t < triangles.length; t += 3) {
+            corner[0] = triangles[t];
+            corner[1] = triangles[t + 1];
+            corner[2] = triangles[t + 2];
+            for (int i = 0; i < 3; i++) {
+                int a = corner[(i + 1) % 3] * 3, b = corner[(i + 2) % 3] * 3;
+                double lx = u[a] - u[b], ly = u[a + 1] - u[b + 1], lz = u[a + 2] - u[b + 2];
+                double l = Math.sqrt(lx * lx + ly * ly + lz * lz);
+                theta[i] = 2 * Math.asin(Math.min(1, l / 2));
+            }
+            double h = (theta[0] + theta[1] + theta[2]) / 2;
+
+            if (Math.PI - h < EPSILON) {
+                // On the triangle itself, so use its barycentric coordinates
+                Arrays.fill(out, 0);
+                double sum = 0;
+                for (int i = 0; i < 3; i++) {
+                    double w = Math.sin(theta[i]) * u[distances + corner[(i + 2) % 3]] * u[distances + corner[(i + 1) % 3]];
+                    out[corner[i]] = w;
+                    sum += w;
+                }
+                for (int i = 0; i < 3; i++)
+                    out[corner[i]] /= sum;
+                return;
+            }
+
+            int a = corner[0] * 3, b = corner[1] * 3, d = corner[2] * 3;
+            double det = u[a] * (u[b + 1] * u[d + 2] - u[b + 2] * u[d + 1])
+                    - u[a + 1] * (u[b] * u[d + 2] - u[b + 2] * u[d])
+                    + u[a + 2] * (u[b] * u[d + 1] - u[b + 1] * u[d]);
+            double sign = Math.signum(det);
+            boolean coplanar = false;
+            for (int i = 0; i < 3; i++) {
+                c[i] = 2 * Math.sin(h) * Math.sin(h - theta[i]) / (Math.sin(theta[(i + 1) % 3]) * Math.sin(theta[(i + 2) % 3])) - 1;
+                s[i] = sign * Math.sqrt(Math.max(0, 1 - c[i] * c[i]));
+                if (Math.abs(s[i]) <= EPSILON)
+                    coplanar = true;
+            }
+            // In the triangle's plane but outside it, where it contributes nothing
+            if (coplanar)
+                continue;
+
+            for (int i = 0; i < 3; i++) {
+                int next = (i + 1) % 3, previous = (i + 2) % 3;
+                out[corner[i]] += (theta[i] - c[next] * theta[previous] - c[previous] * theta[next])
+                        / (u[distances + corner[i]] * Math.sin(theta[next]) * s[previous]);
+            }
+        }
+
+        double sum = 0;
+        for (double w : out)
+            sum += w;
+        for (int v = 0; v < n; v++)
+            out[v] /= sum;
+    }
+
+}
@@ -0,0 +1,212 @@
+package physics;
+
+import org.joml.Matrix4f;
+import org.joml.Matrix4fc;
+import org.joml.Vector3f;
+import org.joml.Vector3fc;
+import render.util.BakedMesh;
+import render.util.MeshBuilder;
+import render.util.MeshLod;
+import render.util.StreamingBakedMesh;
+import render.util.VertexFormat;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.stream.IntStream;
+
+import static render.shader.Shaders.sceneShader;
+
+/**
+ * A detailed mesh which is drawn deformed by a coarse {@link SoftBody} around it, so the physics costs only as much as
+ * the coarse body however detailed the drawn mesh is.
+ *
+ * <p>
+ * The detailed mesh's vertices are {@link CageEmbedding embedded} in the soft body's mesh once, where they start out.
+ * Drawing then skins them from the soft body's current positions in parallel, straight into the mesh's in-memory
+ * vertices, which are streamed to the GPU without recreating the mesh. The soft body itself is stepped as usual.
+ * </p>
+ *
+ * <p>
+ * When it's small on screen, {@link #draw(Vector3fc, float)} draws the soft body's own coarse mesh instead, skipping
+ * the skinning altogether.
+ * </p>
+ */
+public class CagedSoftBody {
+
+    /**
+     * Cage weights kept per vertex
+     */
+    public static final int DEFAULT_WEIGHTS = 16;
+    /**
+     * Vertices per parallel task when skinning
+     */
+    private static final int CHUNK = 4096;
+    /**
+     * POS_NORM: 3 doubles, then 3 floats
+     */
+    private static final int VERTEX_BYTES = 36;
+
+    private final SoftBody proxy;
+    private final CageEmbedding embedding;
+    private final int vertexCount;
+    private final int[] triangles;
+    private final float[] skinned;
+    private final VertexNormals normals;
+
+    /**
+     * The vertices the mesh is first built from. Once it exists they're written into it.
+     */
+    private final ByteBuffer vertices;
+    private StreamingBakedMesh bakedMesh;
+    private final Matrix4f modelMat = new Matrix4f();
+    private float proxyPixelRadius = 0;
+
+    /**
+     * @param proxy The coarse body which is simulated, at its rest shape. Its mesh must be closed.
+     * @param detail The mesh to draw
+     * @param transform Moves the detailed mesh into the world, to sit inside the proxy
+     */
+    public CagedSoftBody(SoftBody proxy, Mesh detail, Matrix4fc transform) {
+        this(proxy, detail, transform, DEFAULT_WEIGHTS);
+    }
+
+    /**
+     * @param weightsPerVertex How many of the proxy's vertices each detailed vertex follows
+     */
+    public CagedSoftBody(SoftBody proxy, Mesh detail, Matrix4fc transform, int weightsPerVertex) {
+        this.proxy = proxy;
+        vertexCount = detail.getPositionCount();
+        float[] points = new float[vertexCount * 3];
+        Vector3f pos = new Vector3f();
+        for (int v = 0; v < vertexCount; v++) {
+            transform.transformPosition(detail.getPosition(v), pos);
+            points[v * 3] = pos.x;
+            points[v * 3 + 1] = pos.y;
+            points[v * 3 + 2] = pos.z;
+        }
+        triangles = new int[detail.getTriangleCount() * 3];
+        for (int t = 0; t < detail.getTriangleCount(); t++) {
+            for (int corner = 0; corner < 3; corner++)
+                triangles[t * 3 + corner] = detail.getTriangleVertex(t, corner);
+        }
+
+        embedding = new CageEmbedding(proxy.getPositions(), proxy.getTriangles(), points, weightsPerVertex);
+        skinned = new float[vertexCount * 3];
+        normals = new VertexNormals(vertexCount, triangles);
+        vertices = ByteBuffer.allocateDirect(vertexCount * VERTEX_BYTES).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * The simulated body, which should be stepped as any other soft body
+     */
+    public SoftBody getProxy() {
+        return proxy;
+    }
+
+    public CageEmbedding getEmbedding() {
+        return embedding;
+    }
+
+    public int getVertexCount() {
+        return vertexCount;
+    }
+
+    /**
+     * Sets the on-screen radius, in pixels, below which the coarse proxy is drawn instead of the detailed mesh. 0, the
+     * default, always draws the detailed mesh.
+     */
+    public void setProxyPixelRadius(float proxyPixelRadius) {
+        this.proxyPixelRadius = proxyPixelRadius;
+    }
+
+    /**
+     * Moves the detailed mesh's vertices to follow the proxy, and writes them with their rebuilt normals into the
+     * mesh's vertices, marking them for upload
+     */
+    public void skin() {
+        embedding.deform(proxy.getPositions(), skinned);
+
+        normals.update(skinned);
+        float[] n = normals.getNormals();
+        ByteBuffer target = bakedMesh != null ? bakedMesh.getVertices() : vertices;
+
+        IntStream.range(0, (vertexCount + CHUNK - 1) / CHUNK).parallel().forEach(chunk -> {
+            int end = Math.min(vertexCount, (chunk + 1) * CHUNK);
+            for (int v = chunk * CHUNK; v < end; v++) {
+                int i = v * 3, b = v * VERTEX_BYTES;
+                target.putDouble(b, skinned[i]);
+                target.putDouble(b + 8, skinned[i + 1]);
+                target.putDouble(b + 16, skinned[i + 2]);
+                target.putFloat(b + 24, n[i]);
+                target.putFloat(b + 28, n[i + 1]);
+                target.putFloat(b + 32, n[i + 2]);
+            }
+        });
+        if (bakedMesh != null)
+            bakedMesh.markDirty(0, vertexCount * VERTEX_BYTES);
+    }
+
+    /**
+     * Skins the detailed mesh and draws it. Doesn't bind the shader.
+     */
+    public void draw() {
+        skin();
+        if (bakedMesh == null) {
+            MeshBuilder builder = BakedMesh.builder(VertexFormat.POS_NORM);
+            for (int v = 0; v < vertexCount; v++) {
+                int b = v * VERTEX_BYTES;
+                builder.pos(vertices.getDouble(b), vertices.getDouble(b + 8), vertices.getDouble(b + 16))
+                        .norm(vertices.getFloat(b + 24), vertices.getFloat(b + 28), vertices.getFloat(b + 32));
+            }
+            builder.indices(triangles);
+            bakedMesh = builder.createStreamingMesh(StreamingBakedMesh.DEFAULT_REGIONS);
+        }
+
+        sceneShader.modelMat.set(modelMat);
+        bakedMesh.draw();
+    }
+
+    /**
+     * Draws the detailed mesh, or just the proxy if the body is too small on screen to tell the difference. Doesn't
+     * bind the shader.
+     *
+     * @param pixelScale See {@link MeshLod#pixelScale(Matrix4fc, int)}
+     * @return Whether the detailed mesh was drawn
+     */
+    public boolean draw(Vector3fc cameraPos, float pixelScale) {
+        if (proxyPixelRadius > 0) {
+            // Bounding sphere about the proxy's centroid
+            float[] p = proxy.getPositions();
+            int n = proxy.getVertexCount();
+            float cx = 0, cy = 0, cz = 0;
+            for (int i = 0; i < n * 3; i += 3) {
+                cx += p[i];
+                cy += p[i + 1];
+                cz += p[i + 2];
+            }
+            cx /= n;
+            cy /= n;
+            cz /= n;
+            float radiusSquared = 0;
+            for (int i = 0; i < n * 3; i += 3) {
+                float dx = p[i] - cx, dy = p[i + 1] - cy, dz = p[i + 2] - cz;
+                radiusSquared = Math.max(radiusSquared, dx * dx + dy * dy + dz * dz);
+            }
+            float radius = (float) Math.sqrt(radiusSquared);
+            if (MeshLod.pixelRadius(cx, cy, cz, radius, cameraPos, pixelScale) < proxyPixelRadius) {
+                proxy.draw();
+                return false;
+            }
+        }
+        draw();
+        return true;
+    }
+
+    public void free() {
+        if (bakedMesh != null) {
+            bakedMesh.free();
+            bakedMesh = null;
+        }
+    }
+
+}
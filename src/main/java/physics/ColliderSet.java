@@ -0,0 +1,383 @@
+package physics;
+
+import org.joml.Vector3f;
+
+import java.util.Arrays;
+
+/**
+ * A set of static analytic colliders (planes, spheres, axis-aligned boxes and capsules) which particles and
+ * soft body vertices are pushed out of.
+ *
+ * <p>
+ * The colliders are stored as flat primitive arrays rather than as objects, with a world-space bounding box per
+ * collider. Every collider is solid: planes are half-spaces, and the other shapes are filled. Each sphere tested
+ * against the set is first checked against all the bounding boxes in one tight loop, so the (comparatively
+ * expensive) exact test only runs for the few colliders it could actually be touching.
+ * </p><p>
+ * Queries keep their scratch state per thread, so one set can be queried from multiple threads at once as long as
+ * no colliders are being added at the same time.
+ * </p>
+ */
+public class ColliderSet {
+
+    public static final int PLANE = 0;
+    public static final int SPHERE = 1;
+    public static final int BOX = 2;
+    public static final int CAPSULE = 3;
+
+    /**
+     * The number of floats of shape parameters per collider
+     */
+    private static final int STRIDE = 7;
+    /**
+     * The number of floats {@link #getParams(int, float[], int)} writes per collider
+     */
+    public static final int PARAM_COUNT = STRIDE;
+    /**
+     * Impacts slower than this don't bounce, so particles resting on a collider settle instead of jittering
+     */
+    private static final float BOUNCE_THRESHOLD = 0.5f;
+
+    private int count = 0;
+    private int[] types = new int[8];
+    /**
+     * Plane: normal, offset. Sphere: centre, radius. Box: min corner, max corner. Capsule: end A, end B, radius.
+     */
+    private float[] params = new float[8 * STRIDE];
+    private float[] minX = new float[8], minY = new float[8], minZ = new float[8];
+    private float[] maxX = new float[8], maxY = new float[8], maxZ = new float[8];
+
+    private float restitution = 0.4f;
+    private float friction = 0.05f;
+
+    private final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+    /**
+     * Adds a solid half-space of all points x where dot(normal, x) < offset
+     *
+     * @return The index of the collider
+     */
+    public int addPlane(float nx, float ny, float nz, float offset) {
+        float len = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+        nx /= len;
+        ny /= len;
+        nz /= len;
+        offset /= len;
+        int i = add(PLANE, nx, ny, nz, offset, 0, 0, 0);
+        // A half-space is only bounded along an axis its normal is aligned with
+        float inf = Float.POSITIVE_INFINITY;
+        setBounds(i,
+                nx == 1 && ny == 0 && nz == 0 ? -inf : nx == -1 && ny == 0 && nz == 0 ? -offset : -inf,
+                ny == 1 && nx == 0 && nz == 0 ? -inf : ny == -1 && nx == 0 && nz == 0 ? -offset : -inf,
+                nz == 1 && nx == 0 && ny == 0 ? -inf : nz == -1 && nx == 0 && ny == 0 ? -offset : -inf,
+                nx == 1 && ny == 0 && nz == 0 ? offset : inf,
+                ny == 1 && nx == 0 && nz == 0 ? offset : inf,
+                nz == 1 && nx == 0 && ny == 0 ? offset : inf);
+        return i;
+    }
+
+    public int addSphere(float x, float y, float z, float radius) {
+        int i = add(SPHERE, x, y, z, radius, 0, 0, 0);
+        setBounds(i, x - radius, y - radius, z - radius, x + radius, y + radius, z + radius);
+        return i;
+    }
+
+    public int addBox(float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+        int i = add(BOX, minX, minY, minZ, maxX, maxY, maxZ, 0);
+        setBounds(i, minX, minY, minZ, maxX, maxY, maxZ);
+        return i;
+    }
+
+    public int addCapsule(float ax, float ay, float az, float bx, float by, float bz, float radius) {
+        int i = add(CAPSULE, ax, ay, az, bx, by, bz, radius);
+        setBounds(i, Math.min(ax, bx) - radius, Math.min(ay, by) - radius, Math.min(az, bz) - radius,
+                Math.max(ax, bx) + radius, Math.max(ay, by) + radius, Math.max(az, bz) + radius);
+        return i;
+    }
+
+    public void clear() {
+        count = 0;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public int getType(int collider) {
+        return types[collider];
+    }
+
+    /**
+     * Copies a collider's shape parameters, {@link #PARAM_COUNT} floats, for recreating it elsewhere with
+     * {@link #add(int, float[], int)}
+     */
+    public void getParams(int collider, float[] out, int offset) {
+        System.arraycopy(params, collider * STRIDE, out, offset, STRIDE);
+    }
+
+    /**
+     * Adds a collider from its type and {@link #getParams(int, float[], int) shape parameters}
+     *
+     * @return The index of the collider
+     */
+    public int add(int type, float[] p, int o) {
+        switch (type) {
+            case PLANE:
+                return addPlane(p[o], p[o + 1], p[o + 2], p[o + 3]);
+            case SPHERE:
+                return addSphere(p[o], p[o + 1], p[o + 2], p[o + 3]);
+            case BOX:
+                return addBox(p[o], p[o + 1], p[o + 2], p[o + 3], p[o + 4], p[o + 5]);
+            case CAPSULE:
+                return addCapsule(p[o], p[o + 1], p[o + 2], p[o + 3], p[o + 4], p[o + 5], p[o + 6]);
+            default:
+                throw new IllegalArgumentException("Unknown collider type: " + type);
+        }
+    }
+
+    /**
+     * Sets the fraction of the normal velocity kept (and reversed) on impact
+     */
+    public void setRestitution(float restitution) {
+        this.restitution = restitution;
+    }
+
+    /**
+     * Sets the fraction of the tangential velocity lost per step of contact
+     */
+    public void setFriction(float friction) {
+        this.friction = friction;
+    }
+
+    /**
+     * Pushes the particle out of every collider it overlaps, and bounces its velocity off them
+     */
+    public void collide(Particle p) {
+        Vector3f pos = p.position;
+        Vector3f vel = p.velocity;
+        float r = p.getRadius();
+        float px = pos.x, py = pos.y, pz = pos.z;
+        float vx = vel.x, vy = vel.y, vz = vel.z;
+
+        Scratch s = scratch.get();
+        int hits = cull(s, px, py, pz, r);
+        for (int c = 0; c < hits; c++) {
+            if (!penetration(s, s.candidates[c], px, py, pz, r))
+                continue;
+            px += s.pushX;
+            py += s.pushY;
+            pz += s.pushZ;
+            float len = (float) Math.sqrt(s.pushX * s.pushX + s.pushY * s.pushY + s.pushZ * s.pushZ);
+            float nx = s.pushX / len, ny = s.pushY / len, nz = s.pushZ / len;
+            float vn = vx * nx + vy * ny + vz * nz;
+            if (vn < 0) {
+                float tx = vx - vn * nx, ty = vy - vn * ny, tz = vz - vn * nz;
+                float keep = 1 - friction;
+                float bounce = vn < -BOUNCE_THRESHOLD ? restitution : 0;
+                vx = tx * keep - bounce * vn * nx;
+                vy = ty * keep - bounce * vn * ny;
+                vz = tz * keep - bounce * vn * nz;
+            }
+        }
+
+        pos.set(px, py, pz);
+        vel.set(vx, vy, vz);
+    }
+
+    /**
+     * Finds every collider a sphere overlaps without resolving anything, for solvers which handle the contacts
+     * themselves. Both arrays must have room for {@link #size()} contacts.
+     *
+     * @param colliders Receives the index of each overlapping collider
+     * @param pushes Receives the shortest vector moving the sphere out of each collider, as (x, y, z)
+     * @return The number of contacts
+     */
+    public int findContacts(float px, float py, float pz, float r, int[] colliders, float[] pushes) {
+        Scratch s = scratch.get();
+        int hits = cull(s, px, py, pz, r);
+        int contacts = 0;
+        for (int c = 0; c < hits; c++) {
+            if (!penetration(s, s.candidates[c], px, py, pz, r))
+                continue;
+            colliders[contacts] = s.candidates[c];
+            pushes[contacts * 3] = s.pushX;
+            pushes[contacts * 3 + 1] = s.pushY;
+            pushes[contacts * 3 + 2] = s.pushZ;
+            contacts++;
+        }
+        return contacts;
+    }
+
+    /**
+     * Pushes every vertex of an interleaved (x, y, z) position array out of the colliders, zeroing the velocity into
+     * the surface. Velocities may be null for position-based bodies, which derive them from the positions anyway.
+     */
+    public void collide(float[] positions, float[] velocities, int vertexCount, float radius) {
+        Scratch s = scratch.get();
+        for (int v = 0; v < vertexCount; v++) {
+            int o = v * 3;
+            float px = positions[o], py = positions[o + 1], pz = positions[o + 2];
+            int hits = cull(s, px, py, pz, radius);
+            for (int c = 0; c < hits; c++) {
+                if (!penetration(s, s.candidates[c], px, py, pz, radius))
+                    continue;
+                px += s.pushX;
+                py += s.pushY;
+                pz += s.pushZ;
+                if (velocities != null) {
+                    float len = (float) Math.sqrt(s.pushX * s.pushX + s.pushY * s.pushY + s.pushZ * s.pushZ);
+                    float nx = s.pushX / len, ny = s.pushY / len, nz = s.pushZ / len;
+                    float vn = velocities[o] * nx + velocities[o + 1] * ny + velocities[o + 2] * nz;
+                    if (vn < 0) {
+                        velocities[o] -= vn * nx;
+                        velocities[o + 1] -= vn * ny;
+                        velocities[o + 2] -= vn * nz;
+                    }
+                }
+            }
+            positions[o] = px;
+            positions[o + 1] = py;
+            positions[o + 2] = pz;
+        }
+    }
+
+    /**
+     * Bounding box pre-test of a sphere against every collider, leaving the ones it overlaps in candidates
+     *
+     * @return The number of candidates
+     */
+    private int cull(Scratch s, float px, float py, float pz, float r) {
+        if (s.candidates.length < count)
+            s.candidates = new int[types.length];
+        int[] candidates = s.candidates;
+        int hits = 0;
+        for (int c = 0; c < count; c++) {
+            boolean overlaps = px + r >= minX[c] & px - r <= maxX[c]
+                    & py + r >= minY[c] & py - r <= maxY[c]
+                    & pz + r >= minZ[c] & pz - r <= maxZ[c];
+            candidates[hits] = c;
+            hits += overlaps ? 1 : 0;
+        }
+        return hits;
+    }
+
+    /**
+     * Exact test of a sphere against one collider.
+     *
+     * @return Whether they overlap, in which case the shortest vector moving the sphere out is left in push
+     */
+    private boolean penetration(Scratch s, int c, float px, float py, float pz, float r) {
+        int o = c * STRIDE;
+        float[] k = params;
+        switch (types[c]) {
+            case PLANE: {
+                float dist = px * k[o] + py * k[o + 1] + pz * k[o + 2] - k[o + 3];
+                if (dist >= r)
+                    return false;
+                float depth = r - dist;
+                return setPush(s, k[o] * depth, k[o + 1] * depth, k[o + 2] * depth);
+            }
+            case SPHERE:
+                return pushFromPoint(s, px, py, pz, k[o], k[o + 1], k[o + 2], r + k[o + 3]);
+            case BOX: {
+                float qx = Math.max(k[o], Math.min(px, k[o + 3]));
+                float qy = Math.max(k[o + 1], Math.min(py, k[o + 4]));
+                float qz = Math.max(k[o + 2], Math.min(pz, k[o + 5]));
+                if (qx != px || qy != py || qz != pz)
+                    return pushFromPoint(s, px, py, pz, qx, qy, qz, r);
+
+                // The centre is inside the box, so leave through the nearest face
+                float toMinX = px - k[o], toMaxX = k[o + 3] - px;
+                float toMinY = py - k[o + 1], toMaxY = k[o + 4] - py;
+                float toMinZ = pz - k[o + 2], toMaxZ = k[o + 5] - pz;
+                float best = Math.min(Math.min(Math.min(toMinX, toMaxX), Math.min(toMinY, toMaxY)), Math.min(toMinZ, toMaxZ));
+                if (best == toMaxY) return setPush(s, 0, toMaxY + r, 0);
+                if (best == toMinY) return setPush(s, 0, -toMinY - r, 0);
+                if (best == toMaxX) return setPush(s, toMaxX + r, 0, 0);
+                if (best == toMinX) return setPush(s, -toMinX - r, 0, 0);
+                if (best == toMaxZ) return setPush(s, 0, 0, toMaxZ + r);
+                return setPush(s, 0, 0, -toMinZ - r);
+            }
+            case CAPSULE: {
+                float ex = k[o + 3] - k[o], ey = k[o + 4] - k[o + 1], ez = k[o + 5] - k[o + 2];
+                float ee = ex * ex + ey * ey + ez * ez;
+                float t = ee == 0 ? 0 : ((px - k[o]) * ex + (py - k[o + 1]) * ey + (pz - k[o + 2]) * ez) / ee;
+                t = Math.max(0, Math.min(1, t));
+                return pushFromPoint(s, px, py, pz, k[o] + ex * t, k[o + 1] + ey * t, k[o + 2] + ez * t, r + k[o + 6]);
+            }
+            default:
+                throw new AssertionError("Unknown collider type: " + types[c]);
+        }
+    }
+
+    /**
+     * Pushes p directly away from q until they're at least the given distance apart
+     */
+    private boolean pushFromPoint(Scratch s, float px, float py, float pz, float qx, float qy, float qz, float minDist) {
+        float dx = px - qx, dy = py - qy, dz = pz - qz;
+        float distSq = dx * dx + dy * dy + dz * dz;
+        if (distSq >= minDist * minDist)
+            return false;
+        if (distSq == 0)
+            return setPush(s, 0, minDist, 0);
+        float dist = (float) Math.sqrt(distSq);
+        float scale = (minDist - dist) / dist;
+        return setPush(s, dx * scale, dy * scale, dz * scale);
+    }
+
+    private boolean setPush(Scratch s, float x, float y, float z) {
+        s.pushX = x;
+        s.pushY = y;
+        s.pushZ = z;
+        return true;
+    }
+
+    private int add(int type, float p0, float p1, float p2, float p3, float p4, float p5, float p6) {
+        if (count == types.length) {
+            int capacity = count * 2;
+            types = Arrays.copyOf(types, capacity);
+            params = Arrays.copyOf(params, capacity * STRIDE);
+            minX = Arrays.copyOf(minX, capacity);
+            minY = Arrays.copyOf(minY, capacity);
+            minZ = Arrays.copyOf(minZ, capacity);
+            maxX = Arrays.copyOf(maxX, capacity);
+            maxY = Arrays.copyOf(maxY, capacity);
+            maxZ = Arrays.copyOf(maxZ, capacity);
+        }
+        int i = count++;
+        types[i] = type;
+        int o = i * STRIDE;
+        params[o] = p0;
+        params[o + 1] = p1;
+        params[o + 2] = p2;
+        params[o + 3] = p3;
+        params[o + 4] = p4;
+        params[o + 5] = p5;
+        params[o + 6] = p6;
+        return i;
+    }
+
+    private void setBounds(int i, float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+        this.minX[i] = minX;
+        this.minY[i] = minY;
+        this.minZ[i] = minZ;
+        this.maxX[i] = maxX;
+        this.maxY[i] = maxY;
+        this.maxZ[i] = maxZ;
+    }
+
+    /**
+     * Per-thread state of a query
+     */
+    private static class Scratch {
+        /**
+         * Indices of the colliders which passed the bounding box test
+         */
+        int[] candidates = new int[8];
+        /**
+         * Output of the exact tests
+         */
+        float pushX, pushY, pushZ;
+    }
+
+}
@@ -0,0 +1,198 @@
+package physics;
+
+import java.util.Arrays;
+
+/**
+ * Remembers the impulse each contact ended the last tick with, so the solver can start from there (warm starting)
+ * instead of from zero, which is what lets resting stacks and piles settle in a few iterations.
+ *
+ * <p>
+ * Contacts are keyed by a pair ID (see {@link #pairKey(int, int)}) in an open-addressing hash table with linear
+ * probing, stored in primitive arrays. Entries aren't removed one at a time; instead every entry remembers the tick
+ * it was last touched in, and {@link #evictStale(int)} drops every pair which wasn't touched in one rehashing pass.
+ * The table counts how many pairs were touched in the latest tick, so when that's all of them (as it is while
+ * everything stays at rest) eviction knows there's nothing to drop without looking, and when it can't tell it only
+ * rehashes if it finds something stale.
+ * </p>
+ */
+public class ContactCache {
+
+    /**
+     * Key value marking an empty slot. Never a valid pair key, since a pair never contains the same ID twice.
+     */
+    private static final long EMPTY = 0;
+
+    private long[] keys;
+    private float[] impulses;
+    private int[] lastTouched;
+    private int size = 0;
+    private int mask;
+
+    /**
+     * The latest tick anything was acquired in, and how many distinct pairs were
+     */
+    private int latestTick = Integer.MIN_VALUE;
+    private int touchedInLatestTick = 0;
+
+    // Spare arrays swapped in when evicting, so bulk eviction doesn't allocate
+    private long[] spareKeys;
+    private float[] spareImpulses;
+    private int[] spareLastTouched;
+
+    public ContactCache() {
+        this(1024);
+    }
+
+    public ContactCache(int initialCapacity) {
+        allocate(Integer.highestOneBit(Math.max(initialCapacity, 16) - 1) << 1);
+    }
+
+    /**
+     * The key of the contact between two particles, independent of their order
+     */
+    public static long pairKey(int idA, int idB) {
+        int lo = Math.min(idA, idB), hi = Math.max(idA, idB);
+        return ((long) lo << 32) | (hi & 0xffffffffL);
+    }
+
+    /**
+     * The key of the contact between a particle and a static shape, such as a collider. These never clash with
+     * {@link #pairKey(int, int) particle pair keys}, since those never have the top bit set.
+     */
+    public static long staticKey(int particleId, int shape) {
+        return Long.MIN_VALUE | ((long) shape << 32) | (particleId & 0xffffffffL);
+    }
+
+    /**
+     * Makes room for the given number of pairs, so acquiring that many won't rehash (and move) the existing slots
+     */
+    public void ensureCapacity(int pairs) {
+        if (pairs * 2 > keys.length)
+            rehash(Integer.highestOneBit(pairs * 2 - 1) << 1, Integer.MIN_VALUE);
+    }
+
+    /**
+     * Finds the slot for the given pair, creating it with zero impulse if it's new, and marks it as touched this tick.
+     * Slots stay valid until the table is rehashed, which won't happen within the capacity given to
+     * {@link #ensureCapacity(int)}, or until {@link #evictStale(int)}.
+     */
+    public int acquire(long key, int tick) {
+        if ((size + 1) * 2 > keys.length)
+            rehash(keys.length * 2, Integer.MIN_VALUE);
+
+        if (tick != latestTick) {
+            latestTick = tick;
+            touchedInLatestTick = 0;
+        }
+        int slot = find(keys, key);
+        if (keys[slot] == EMPTY) {
+            keys[slot] = key;
+            impulses[slot] = 0;
+            size++;
+            touchedInLatestTick++;
+        } else if (lastTouched[slot] != tick) {
+            touchedInLatestTick++;
+        }
+        lastTouched[slot] = tick;
+        return slot;
+    }
+
+    public float getImpulse(int slot) {
+        return impulses[slot];
+    }
+
+    public void setImpulse(int slot, float impulse) {
+        impulses[slot] = impulse;
+    }
+
+    /**
+     * Drops every pair not touched since the given tick
+     *
+     * @return The number of pairs dropped
+     */
+    public int evictStale(int oldestTick) {
+        // Everything was touched in the latest tick, which is recent enough
+        if (size == 0 || touchedInLatestTick == size && latestTick >= oldestTick)
+            return 0;
+        int stale = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY && lastTouched[i] < oldestTick)
+                stale++;
+        }
+        if (stale > 0)
+            rehash(keys.length, oldestTick);
+        if (latestTick < oldestTick)
+            touchedInLatestTick = 0;
+        return stale;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, EMPTY);
+        size = 0;
+        touchedInLatestTick = 0;
+    }
+
+    private int find(long[] table, long key) {
+        int slot = hash(key) & mask;
+        while (table[slot] != EMPTY && table[slot] != key)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Moves every entry touched since oldestTick into a (possibly resized) fresh table
+     */
+    private void rehash(int capacity, int oldestTick) {
+        long[] oldKeys = keys;
+        float[] oldImpulses = impulses;
+        int[] oldLastTouched = lastTouched;
+
+        if (spareKeys != null && spareKeys.length == capacity) {
+            keys = spareKeys;
+            impulses = spareImpulses;
+            lastTouched = spareLastTouched;
+            Arrays.fill(keys, EMPTY);
+            mask = capacity - 1;
+        } else {
+            allocate(capacity);
+        }
+
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == EMPTY || oldLastTouched[i] < oldestTick)
+                continue;
+            int slot = find(keys, oldKeys[i]);
+            keys[slot] = oldKeys[i];
+            impulses[slot] = oldImpulses[i];
+            lastTouched[slot] = oldLastTouched[i];
+            size++;
+        }
+
+        if (oldKeys.length == capacity) {
+            spareKeys = oldKeys;
+            spareImpulses = oldImpulses;
+            spareLastTouched = oldLastTouched;
+        } else {
+            spareKeys = null;
+            spareImpulses = null;
+            spareLastTouched = null;
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        impulses = new float[capacity];
+        lastTouched = new int[capacity];
+        mask = capacity - 1;
+    }
+
+}
@@ -0,0 +1,257 @@
+package physics;
+
+import org.joml.Vector3f;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Finds overlapping pairs of particles, and particles overlapping static colliders, and resolves them with
+ * sequential impulses.
+ *
+ * <p>
+ * Contacts are found speculatively, within a small margin of touching, and only stop the particles closing more
+ * than the remaining gap this step, so resting particles are held up before they sink in rather than after. Each
+ * contact's accumulated impulse is clamped to be non-negative (contacts can only push), and any penetration is
+ * corrected afterwards by moving particles directly. With warm starting on, every contact which already existed
+ * last tick starts from the impulse it finished with (see {@link ContactCache}), so a resting pile only needs to
+ * correct for what changed since last tick rather than re-converge from zero.
+ * </p>
+ */
+public class ContactSolver {
+
+    private final ContactCache cache = new ContactCache();
+
+    private int iterations = 4;
+    private boolean warmStarting = true;
+    /**
+     * How far apart particles can be and still get a (speculative) contact
+     */
+    private float margin = 0.05f;
+    /**
+     * Fraction of the penetration (beyond the slop) corrected per step
+     */
+    private float baumgarte = 0.2f;
+    private float slop = 0.005f;
+    private int tick = 0;
+
+    // Contacts found this tick, as parallel arrays
+    private int contactCount = 0;
+    private int[] contactA = new int[64], contactB = new int[64], contactSlot = new int[64];
+    private float[] normalX = new float[64], normalY = new float[64], normalZ = new float[64];
+    private float[] separation = new float[64], impulse = new float[64];
+
+    private final int[] visitedBuckets = new int[27];
+    private int[] colliderHits = new int[8];
+    private float[] colliderPushes = new float[24];
+
+    public void setIterations(int iterations) {
+        this.iterations = iterations;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    public void setWarmStarting(boolean warmStarting) {
+        this.warmStarting = warmStarting;
+    }
+
+    public boolean isWarmStarting() {
+        return warmStarting;
+    }
+
+    public float getMargin() {
+        return margin;
+    }
+
+    public int getContactCount() {
+        return contactCount;
+    }
+
+    public ContactCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Narrowphase: tests each particle against the particles in its own and neighbouring grid cells, and against
+     * the colliders. The grid must have been built with this solver's {@link #getMargin() margin}.
+     */
+    public void findContacts(List<Particle> particles, ParticleGrid grid, ColliderSet colliders) {
+        contactCount = 0;
+        if (colliderHits.length < colliders.size()) {
+            colliderHits = new int[colliders.size()];
+            colliderPushes = new float[colliders.size() * 3];
+        }
+
+        int[] entries = grid.getEntries();
+        for (int i = 0; i < grid.getParticleCount(); i++) {
+            Particle a = particles.get(i);
+            findColliderContacts(i, a, colliders);
+            int cx = grid.getCellX(i), cy = grid.getCellY(i), cz = grid.getCellZ(i);
+            int visited = 0;
+            for (int dz = -1; dz <= 1; dz++) {
+                for (int dy = -1; dy <= 1; dy++) {
+                    for (int dx = -1; dx <= 1; dx++) {
+                        int bucket = grid.bucket(cx + dx, cy + dy, cz + dz);
+                        if (contains(visitedBuckets, visited, bucket))
+                            continue;
+                        visitedBuckets[visited++] = bucket;
+
+                        for (int k = grid.getBucketStart(bucket); k < grid.getBucketStart(bucket + 1); k++) {
+                            int j = entries[k];
+                            if (j > i)
+                                testPair(i, a, j, particles.get(j));
+                        }
+                    }
+                }
+            }
+        }
+
+        cache.ensureCapacity(cache.size() + contactCount);
+        for (int c = 0; c < contactCount; c++) {
+            int idA = particles.get(contactA[c]).id;
+            long key = contactB[c] >= 0
+                    ? ContactCache.pairKey(idA, particles.get(contactB[c]).id)
+                    : ContactCache.staticKey(idA, -contactB[c] - 1);
+            contactSlot[c] = cache.acquire(key, tick);
+        }
+    }
+
+    /**
+     * Solves the contacts found by the last {@link #findContacts(List, ParticleGrid, ColliderSet)} by changing particle velocities,
+     * then pushes apart any particles which are still overlapping
+     */
+    public void solve(List<Particle> particles, float dt) {
+        for (int c = 0; c < contactCount; c++) {
+            impulse[c] = warmStarting ? cache.getImpulse(contactSlot[c]) : 0;
+            if (impulse[c] != 0)
+                applyImpulse(particles.get(contactA[c]), other(particles, c), c, impulse[c]);
+        }
+
+        for (int iteration = 0; iteration < iterations; iteration++) {
+            for (int c = 0; c < contactCount; c++) {
+                Particle a = particles.get(contactA[c]);
+                Particle b = other(particles, c);
+                float invMassSum = inverseMass(a) + inverseMass(b);
+                if (invMassSum == 0)
+                    continue;
+
+                Vector3f va = a.velocity;
+                float vn = va.x * normalX[c] + va.y * normalY[c] + va.z * normalZ[c];
+                if (b != null)
+                    vn -= b.velocity.x * normalX[c] + b.velocity.y * normalY[c] + b.velocity.z * normalZ[c];
+                // Contacts which aren't touching yet may still close the gap between them this step
+                float allowed = Math.max(separation[c], 0) / dt;
+                float newImpulse = Math.max(impulse[c] - (vn + allowed) / invMassSum, 0);
+                float delta = newImpulse - impulse[c];
+                impulse[c] = newImpulse;
+                applyImpulse(a, b, c, delta);
+            }
+        }
+
+        for (int c = 0; c < contactCount; c++)
+            cache.setImpulse(contactSlot[c], impulse[c]);
+        cache.evictStale(tick);
+        tick++;
+
+        // Penetration is corrected by moving the particles directly, rather than with extra velocity, so the
+        // correction doesn't end up in the cached impulses and get re-applied by warm starting
+        for (int c = 0; c < contactCount; c++) {
+            Particle a = particles.get(contactA[c]);
+            Particle b = other(particles, c);
+            float invA = inverseMass(a), invB = inverseMass(b);
+            float depth = -separation[c] - slop;
+            if (invA + invB == 0 || depth <= 0)
+                continue;
+            float correction = baumgarte * depth / (invA + invB);
+            a.position.add(normalX[c] * correction * invA, normalY[c] * correction * invA, normalZ[c] * correction * invA);
+            if (b != null)
+                b.position.sub(normalX[c] * correction * invB, normalY[c] * correction * invB, normalZ[c] * correction * invB);
+        }
+    }
+
+    private void testPair(int i, Particle a, int j, Particle b) {
+        float dx = a.position.x - b.position.x;
+        float dy = a.position.y - b.position.y;
+        float dz = a.position.z - b.position.z;
+        float minDist = a.getRadius() + b.getRadius();
+        float maxDist = minDist + margin;
+        float distSq = dx * dx + dy * dy + dz * dz;
+        if (distSq >= maxDist * maxDist)
+            return;
+
+        float dist = (float) Math.sqrt(distSq);
+        if (dist > 0)
+            addContact(i, j, dx / dist, dy / dist, dz / dist, dist - minDist);
+        else
+            addContact(i, j, 0, 1, 0, -minDist);
+    }
+
+    private void findColliderContacts(int i, Particle a, ColliderSet colliders) {
+        int hits = colliders.findContacts(a.position.x, a.position.y, a.position.z, a.getRadius() + margin, colliderHits, colliderPushes);
+        for (int h = 0; h < hits; h++) {
+            float px = colliderPushes[h * 3], py = colliderPushes[h * 3 + 1], pz = colliderPushes[h * 3 + 2];
+            float push = (float) Math.sqrt(px * px + py * py + pz * pz);
+            if (push > 0)
+                addContact(i, -colliderHits[h] - 1, px / push, py / push, pz / push, margin - push);
+        }
+    }
+
+    /**
+     * Adds a contact pushing particle a along the normal. Contacts with static colliders have b = -(collider + 1).
+     * The separation is the gap between the two surfaces, which is negative when they overlap.
+     */
+    private void addContact(int a, int b, float nx, float ny, float nz, float gap) {
+        if (contactCount == contactA.length)
+            grow();
+        int c = contactCount++;
+        contactA[c] = a;
+        contactB[c] = b;
+        normalX[c] = nx;
+        normalY[c] = ny;
+        normalZ[c] = nz;
+        separation[c] = gap;
+    }
+
+    /**
+     * The second particle of a contact, or null if it's a static collider
+     */
+    private Particle other(List<Particle> particles, int c) {
+        return contactB[c] >= 0 ? particles.get(contactB[c]) : null;
+    }
+
+    private void applyImpulse(Particle a, Particle b, int c, float amount) {
+        float ia = inverseMass(a) * amount;
+        a.velocity.add(normalX[c] * ia, normalY[c] * ia, normalZ[c] * ia);
+        if (b != null) {
+            float ib = inverseMass(b) * amount;
+            b.velocity.sub(normalX[c] * ib, normalY[c] * ib, normalZ[c] * ib);
+        }
+    }
+
+    private static float inverseMass(Particle p) {
+        return p != null && p.mass > 0 ? 1 / p.mass : 0;
+    }
+
+    private static boolean contains(int[] array, int length, int value) {
+        for (int i = 0; i < length; i++) {
+            if (array[i] == value)
+                return true;
+        }
+        return false;
+    }
+
+    private void grow() {
+        int capacity = contactA.length * 2;
+        contactA = Arrays.copyOf(contactA, capacity);
+        contactB = Arrays.copyOf(contactB, capacity);
+        contactSlot = Arrays.copyOf(contactSlot, capacity);
+        normalX = Arrays.copyOf(normalX, capacity);
+        normalY = Arrays.copyOf(normalY, capacity);
+        normalZ = Arrays.copyOf(normalZ, capacity);
+        separation = Arrays.copyOf(separation, capacity);
+        impulse = Arrays.copyOf(impulse, capacity);
+    }
+
+}
@@ -1,26 +1,41 @@
 package physics;
 
 import org.joml.Vector3f;
+import render.objLoader.ObjParser;
 import render.util.BakedMesh;
+import render.util.GeometryPool;
 import render.util.MeshBuilder;
+import render.util.MeshDecimator;
+import render.util.MeshLod;
+import render.util.PooledMesh;
 import render.util.VertexFormat;
-import sun.security.provider.certpath.Vertex;
+import util.FloatArrayList;
+import util.IntArrayList;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.util.ArrayList;
-import java.util.Scanner;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.HashMap;
 
 public class Mesh {
 
 
 
-    private ArrayList<Vector3f> positions = new ArrayList<>();
-    private ArrayList<Vector3f> normals = new ArrayList<>();
+    /**
+     * As (x, y, z) at <tt>3 * index</tt>
+     */
+    private FloatArrayList positions = new FloatArrayList();
+    private FloatArrayList normals = new FloatArrayList();
 
-    private ArrayList<Triangle> primitives = new ArrayList<>();
+    /**
+     * The (0-based) position and normal index of each triangle corner, 3 per triangle
+     */
+    private IntArrayList positionInds = new IntArrayList();
+    private IntArrayList normalInds = new IntArrayList();
 
     private BakedMesh bakedMesh;
+    private PooledMesh pooledMesh;
+    private MeshLod lod;
 
 
     public final String location;
@@ -37,111 +52,234 @@ public class Mesh {
     }
 
 
+    /**
+     * Makes a mesh from flat arrays, with each position having its own normal
+     *
+     * @param location A name for the mesh, as it wasn't loaded from anywhere
+     * @param positions The positions, as (x, y, z) at <tt>3 * vertex</tt>
+     * @param normals The normals, as (x, y, z) at <tt>3 * vertex</tt>
+     * @param triangles The triangles' vertex indices, 3 per triangle
+     */
+    public Mesh(String location, float[] positions, float[] normals, int[] triangles) {
+        this.location = location;
+        this.positions.ensureCapacity(positions.length);
+        for (float value : positions)
+            this.positions.add(value);
+        this.normals.ensureCapacity(normals.length);
+        for (float value : normals)
+            this.normals.add(value);
+        positionInds.ensureCapacity(triangles.length);
+        normalInds.ensureCapacity(triangles.length);
+        for (int index : triangles) {
+            positionInds.add(index);
+            normalInds.add(index);
+        }
+    }
+
+
     private void loadMesh(String location) throws IOException {
-        InputStream is = Mesh.class.getResourceAsStream("/models/" + location);
+        URL url = Mesh.class.getResource("/models/" + location);
 
-        if (is == null) {
+        if (url == null) {
             throw new IllegalStateException("Model not found: " + location);
         }
 
-        Scanner scan = new Scanner(is);
-        int lineNo = 1;
-
-        while(scan.hasNextLine()) {
-            parseLine(lineNo, scan.nextLine());
+        ObjParser obj = ObjParser.parse(url);
+        positions = obj.getPositions();
+        normals = obj.getNormals();
+
+        // Corners come as (pos, tex, norm) triples, of which only pos and norm are wanted
+        int[] corners = obj.getTriangles().elements();
+        int cornerCount = obj.getTriangles().size() / 3;
+        positionInds.ensureCapacity(cornerCount);
+        normalInds.ensureCapacity(cornerCount);
+        for (int i = 0; i < cornerCount; i++) {
+            if (corners[i * 3 + 2] == ObjParser.NONE)
+                throw new IllegalStateException("Model has faces without normals: " + location);
+            positionInds.add(corners[i * 3]);
+            normalInds.add(corners[i * 3 + 2]);
         }
+    }
 
-        lineNo++;
 
+    public void reBakeMesh() {
+        if(bakedMesh != null) bakedMesh.free();
+        bakedMesh = build().createMesh();
+        if(pooledMesh != null) {
+            GeometryPool pool = pooledMesh.getPool();
+            pooledMesh.free();
+            pooledMesh = build().createPooledMesh(pool);
+        }
     }
 
+    private MeshBuilder build() {
+        MeshBuilder builder = BakedMesh.builder(VertexFormat.POS_NORM);
 
-    private void parseLine(int lineNo, String line) throws IOException {
+        float[] pos = positions.elements();
+        float[] norm = normals.elements();
+        for(int i = 0; i < positionInds.size(); i++) {
+            int p = positionInds.get(i) * 3;
+            int n = normalInds.get(i) * 3;
+            builder.pos(pos[p], pos[p + 1], pos[p + 2])
+                    .norm(norm[n], norm[n + 1], norm[n + 2]);
+        }
+        return builder;
+    }
 
-        if(line.startsWith("#"))
-            return;
+    public BakedMesh getMesh() {
+        if(bakedMesh == null) reBakeMesh();
+        return bakedMesh;
+    }
 
-        String[] parts = line.split(" ");
+    /**
+     * This mesh copied into a pool (the first one asked for), to draw alongside other pooled meshes in one call
+     */
+    public PooledMesh getPooledMesh(GeometryPool pool) {
+        if(pooledMesh == null) pooledMesh = build().createPooledMesh(pool);
+        else if(pooledMesh.getPool() != pool) throw new IllegalArgumentException("Mesh is already pooled elsewhere");
+        return pooledMesh;
+    }
 
-        switch(parts[0]) {
-            case "v" : {
-                if(parts.length != 4) {
-                    throw new IOException("Invalid position data at line " + lineNo);
-                } else {
-                    positions.add(new Vector3f(Float.parseFloat(parts[1]), Float.parseFloat(parts[2]), Float.parseFloat(parts[3])));
-                }
-                break;
-            }
-            case "vn" : {
-                if(parts.length != 4) {
-                    throw new IOException("Invalid normal data at line " + lineNo);
-                } else {
-                    normals.add(new Vector3f(Float.parseFloat(parts[1]), Float.parseFloat(parts[2]), Float.parseFloat(parts[3])));
-                }
-                break;
-            }
-            case "f" : {
-                if (parts.length != 4) {
-                    throw new IOException("Invalid face data at line " + lineNo);
-                } else {
-                    String[] vert1 = parts[1].split("/");
-                    String[] vert2 = parts[2].split("/");
-                    String[] vert3 = parts[3].split("/");
-
-                    primitives.add(new Triangle(Integer.parseInt(vert1[0]), Integer.parseInt(vert2[0]), Integer.parseInt(vert3[0]),
-                            Integer.parseInt(vert1[2]), Integer.parseInt(vert2[2]), Integer.parseInt(vert3[2])));
-                break;
-                }
+    /**
+     * A simpler copy of this mesh with at most (about) this many triangles, for a coarse physics proxy such as a
+     * {@link SoftBody} or the cage of a {@link CagedSoftBody}. Vertices which share a position are welded, with their
+     * normals averaged, so the result is in one piece wherever this mesh is.
+     */
+    public Mesh decimate(int targetTriangles) {
+        // Each position's welded vertex, with -0 and 0 treated alike
+        int positionCount = getPositionCount();
+        int[] weldedOf = new int[positionCount];
+        HashMap<Vector3f, Integer> welded = new HashMap<>();
+        FloatArrayList flatPositions = new FloatArrayList(positions.size());
+        float[] p = positions.elements();
+        for (int i = 0; i < positionCount; i++) {
+            Vector3f key = new Vector3f(p[i * 3] + 0f, p[i * 3 + 1] + 0f, p[i * 3 + 2] + 0f);
+            Integer v = welded.get(key);
+            if (v == null) {
+                v = welded.size();
+                welded.put(key, v);
+                flatPositions.add(key.x, key.y, key.z);
             }
+            weldedOf[i] = v;
+        }
 
-            default: {
+        float[] flatNormals = new float[flatPositions.size()];
+        float[] norms = normals.elements();
+        int[] triangles = new int[positionInds.size()];
+        for (int i = 0; i < triangles.length; i++) {
+            int v = weldedOf[positionInds.get(i)];
+            triangles[i] = v;
+            int n = normalInds.get(i) * 3;
+            flatNormals[v * 3] += norms[n];
+            flatNormals[v * 3 + 1] += norms[n + 1];
+            flatNormals[v * 3 + 2] += norms[n + 2];
+        }
 
+        MeshDecimator decimator = new MeshDecimator(flatPositions.toArray(), triangles);
+        decimator.decimate(targetTriangles);
+        int[] map = decimator.getVertexMap();
+        float[] keptPositions = new float[map.length * 3];
+        float[] keptNormals = new float[map.length * 3];
+        float[] source = flatPositions.elements();
+        for (int v = 0; v < map.length; v++) {
+            int o = map[v] * 3;
+            float x = flatNormals[o], y = flatNormals[o + 1], z = flatNormals[o + 2];
+            float length = (float) Math.sqrt(x * x + y * y + z * z);
+            float scale = length > 0 ? 1 / length : 0;
+            for (int i = 0; i < 3; i++) {
+                keptPositions[v * 3 + i] = source[o + i];
+                keptNormals[v * 3 + i] = flatNormals[o + i] * scale;
             }
-
         }
+        return new Mesh(location + "#" + decimator.getTriangleCount(), keptPositions, keptNormals, decimator.getTriangles());
     }
 
+    /**
+     * Builds levels of detail for this mesh, each with half the triangles of the one before. Wherever a position has
+     * several normals the edges between them are kept as seams.
+     *
+     * @param minPixelRadius The smallest on-screen radius, in pixels, each level is used at, one per level
+     */
+    public MeshLod createLod(float... minPixelRadius) {
+        return createLod(null, minPixelRadius);
+    }
 
-    public void reBakeMesh() {
-        MeshBuilder builder = BakedMesh.builder(VertexFormat.POS_NORM);
-
-        for(Triangle tri : primitives) {
-            builder.pos(positions.get(tri.posInds[0] - 1))
-                    .norm(normals.get(tri.normInds[0] - 1))
-                    .pos(positions.get(tri.posInds[1] - 1))
-                    .norm(normals.get(tri.normInds[1] - 1))
-                    .pos(positions.get(tri.posInds[2] - 1))
-                    .norm(normals.get(tri.normInds[2] - 1));
+    /**
+     * Builds levels of detail as {@link #createLod(float...)} does, with each level also copied into a pool
+     *
+     * @param pool The pool for the levels, or null for none
+     */
+    public MeshLod createLod(GeometryPool pool, float... minPixelRadius) {
+        // One vertex per distinct position and normal pair, as they're drawn
+        HashMap<Long, Integer> vertices = new HashMap<>();
+        int[] triangles = new int[positionInds.size()];
+        float[] flatPositions = new float[positionInds.size() * 3];
+        float[] flatNormals = new float[positionInds.size() * 3];
+        float[] pos = positions.elements();
+        float[] norm = normals.elements();
+        for (int i = 0; i < triangles.length; i++) {
+            long key = ((long) positionInds.get(i) << 32) | normalInds.get(i);
+            Integer v = vertices.get(key);
+            if (v == null) {
+                v = vertices.size();
+                vertices.put(key, v);
+                System.arraycopy(pos, positionInds.get(i) * 3, flatPositions, v * 3, 3);
+                System.arraycopy(norm, normalInds.get(i) * 3, flatNormals, v * 3, 3);
+            }
+            triangles[i] = v;
         }
 
-        if(bakedMesh != null) bakedMesh.free();
-        bakedMesh =  builder.createMesh();
+        MeshDecimator decimator = new MeshDecimator(Arrays.copyOf(flatPositions, vertices.size() * 3), triangles)
+                .setNormals(Arrays.copyOf(flatNormals, vertices.size() * 3));
+        BakedMesh[] levels = new BakedMesh[minPixelRadius.length];
+        PooledMesh[] pooledLevels = pool == null ? null : new PooledMesh[minPixelRadius.length];
+        for (int level = 0; level < levels.length; level++) {
+            // Carries on from the last level, rather than starting again
+            decimator.decimate(getTriangleCount() >> level);
+            MeshBuilder builder = decimator.build(VertexFormat.POS_NORM);
+            levels[level] = builder.createMesh();
+            if (pool != null)
+                pooledLevels[level] = builder.createPooledMesh(pool);
+        }
+        return new MeshLod(levels, pooledLevels, minPixelRadius);
     }
 
-    public BakedMesh getMesh() {
-        if(bakedMesh == null) reBakeMesh();
-        return bakedMesh;
+    /**
+     * Sets simpler versions of this mesh for instanced drawing to pick between by size on screen, or null to always
+     * draw it in full
+     */
+    public void setLod(MeshLod lod) {
+        this.lod = lod;
     }
 
+    public MeshLod getLod() {
+        return lod;
+    }
 
+    public int getPositionCount() {
+        return positions.size() / 3;
+    }
 
+    /**
+     * A copy of a position. {@link #getPosition(int, Vector3f)} avoids making a new vector.
+     */
+    public Vector3f getPosition(int index) {
+        return getPosition(index, new Vector3f());
+    }
 
+    public Vector3f getPosition(int index, Vector3f dest) {
+        float[] pos = positions.elements();
+        return dest.set(pos[index * 3], pos[index * 3 + 1], pos[index * 3 + 2]);
+    }
 
+    public int getTriangleCount() {
+        return positionInds.size() / 3;
+    }
 
-    private class Triangle {
-
-        private int[] posInds = new int[3];
-        private int[] normInds = new int[3];
-
-        Triangle(int pos1, int pos2, int pos3, int norm1, int norm2, int norm3) {
-            posInds[0] = pos1;
-            posInds[1] = pos2;
-            posInds[2] = pos3;
-
-
-            normInds[0] = norm1;
-            normInds[1] = norm2;
-            normInds[2] = norm3;
-        }
+    /**
+     * Gets the (0-based) position index of one corner of a triangle
+     */
+    public int getTriangleVertex(int triangle, int corner) {
+        return positionInds.get(triangle * 3 + corner);
     }
 }
@@ -0,0 +1,618 @@
+package physics;
+
+import org.joml.Matrix4f;
+import org.joml.Matrix4fc;
+import org.joml.Vector3f;
+import render.util.BakedMesh;
+import render.util.MeshBuilder;
+import render.util.StreamingBakedMesh;
+import render.util.VertexFormat;
+import util.IntArrayList;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import static render.shader.Shaders.sceneShader;
+
+/**
+ * A deformable body filled with material points, stepped with the moving least squares material point method
+ * (MLS-MPM), which copes with much larger deformations than springs can.
+ *
+ * <p>
+ * Each substep scatters the particles' mass and momentum, with their elastic stress folded in, onto a
+ * {@link SparseBlockGrid sparse grid} around them, updates the grid's velocities, then gathers the new velocities
+ * and their gradients back into the particles. The material is fixed corotated elastic.
+ * </p><p>
+ * Both transfers run in parallel. Particles are sorted by the grid block they scatter from, and a particle only
+ * touches its own block and the next one along each axis, so blocks an even number of blocks apart on some axis never
+ * touch the same cells. The blocks are split into 8 colours by the parity of their coordinates, and all the blocks
+ * of one colour are scattered at once without any locking.
+ * </p><p>
+ * The mesh's vertices are particles too, the first {@link #getVertexCount()} of them, so the mesh follows the
+ * material for drawing. It's built once, indexed, and each draw only writes the new positions and whichever smooth
+ * normals changed into it.
+ * </p>
+ */
+public class MpmBody {
+
+    private final int vertexCount;
+    private final int particleCount;
+    private final float[] positions;
+    private final float[] velocities;
+    /**
+     * Each particle's velocity gradient (the APIC affine matrix), 9 floats each, row major
+     */
+    private final float[] affine;
+    /**
+     * Each particle's deformation gradient, 9 floats each, row major
+     */
+    private final float[] deformation;
+    private final int[] triangles;
+
+    private final float cellSize;
+    private final float particleVolume;
+    private float particleMass;
+    private float mu, lambda;
+    private int substeps = 10;
+    private float radius = 0.05f;
+
+    private final SparseBlockGrid grid = new SparseBlockGrid();
+    private final int[] particleBlock;
+    /**
+     * Particle indices sorted by block, with each block's particles at <tt>order[blockStart[b]] ..</tt>
+     */
+    private final int[] order;
+    private int[] blockStart = new int[1];
+    private final IntArrayList[] colours = new IntArrayList[8];
+
+    private final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+    private final VertexNormals normals;
+    private StreamingBakedMesh bakedMesh;
+    private final Matrix4f modelMat = new Matrix4f();
+
+    /**
+     * @param mesh The rest shape, which must be closed
+     * @param transform Moves the rest shape into the world
+     * @param spacing The distance between material points filling the mesh. Grid cells are twice this.
+     */
+    public MpmBody(Mesh mesh, Matrix4fc transform, float spacing) {
+        vertexCount = mesh.getPositionCount();
+        triangles = new int[mesh.getTriangleCount() * 3];
+        for (int t = 0; t < mesh.getTriangleCount(); t++)
+            for (int corner = 0; corner < 3; corner++)
+                triangles[t * 3 + corner] = mesh.getTriangleVertex(t, corner);
+        normals = new VertexNormals(vertexCount, triangles);
+
+        float[] vertices = new float[vertexCount * 3];
+        Vector3f pos = new Vector3f();
+        Vector3f min = new Vector3f(Float.POSITIVE_INFINITY), max = new Vector3f(Float.NEGATIVE_INFINITY);
+        for (int v = 0; v < vertexCount; v++) {
+            transform.transformPosition(mesh.getPosition(v), pos);
+            vertices[v * 3] = pos.x;
+            vertices[v * 3 + 1] = pos.y;
+            vertices[v * 3 + 2] = pos.z;
+            min.min(pos);
+            max.max(pos);
+        }
+
+        // The mesh's vertices, then a lattice of points inside it
+        float[] samples = Arrays.copyOf(vertices, vertexCount * 3 * 2);
+        int count = vertexCount;
+        for (float z = min.z + spacing / 2; z < max.z; z += spacing) {
+            for (float y = min.y + spacing / 2; y < max.y; y += spacing) {
+                for (float x = min.x + spacing / 2; x < max.x; x += spacing) {
+                    if (Math.abs(windingNumber(vertices, triangles, x, y, z)) < 0.5f)
+                        continue;
+                    if (samples.length < (count + 1) * 3)
+                        samples = Arrays.copyOf(samples, samples.length * 2);
+                    samples[count * 3] = x;
+                    samples[count * 3 + 1] = y;
+                    samples[count * 3 + 2] = z;
+                    count++;
+                }
+            }
+        }
+
+        particleCount = count;
+        positions = Arrays.copyOf(samples, count * 3);
+        velocities = new float[count * 3];
+        affine = new float[count * 9];
+        deformation = new float[count * 9];
+        for (int i = 0; i < count; i++) {
+            deformation[i * 9] = 1;
+            deformation[i * 9 + 4] = 1;
+            deformation[i * 9 + 8] = 1;
+        }
+        particleBlock = new int[count];
+        order = new int[count];
+        for (int i = 0; i < colours.length; i++)
+            colours[i] = new IntArrayList();
+
+        cellSize = spacing * 2;
+        particleVolume = spacing * spacing * spacing;
+        setMaterial(2e5f, 0.3f, 1000);
+    }
+
+    /**
+     * @param youngsModulus Stiffness, in pascals
+     * @param poissonRatio How much the material resists changing volume, from 0 to (not including) 0.5
+     * @param density In kilograms per cubic metre
+     */
+    public void setMaterial(float youngsModulus, float poissonRatio, float density) {
+        mu = youngsModulus / (2 * (1 + poissonRatio));
+        lambda = youngsModulus * poissonRatio / ((1 + poissonRatio) * (1 - 2 * poissonRatio));
+        particleMass = density * particleVolume;
+    }
+
+    /**
+     * Sets the number of substeps per step. Stiffer materials and finer spacings need more to stay stable.
+     */
+    public void setSubsteps(int substeps) {
+        this.substeps = substeps;
+    }
+
+    /**
+     * Sets the collision radius of each particle
+     */
+    public void setRadius(float radius) {
+        this.radius = radius;
+    }
+
+    public int getParticleCount() {
+        return particleCount;
+    }
+
+    /**
+     * The number of particles which are the mesh's vertices
+     */
+    public int getVertexCount() {
+        return vertexCount;
+    }
+
+    /**
+     * The particle positions, as (x, y, z) at <tt>3 * particle</tt>
+     */
+    public float[] getPositions() {
+        return positions;
+    }
+
+    public float[] getVelocities() {
+        return velocities;
+    }
+
+    public int[] getTriangles() {
+        return triangles;
+    }
+
+    /**
+     * The number of grid blocks active in the last substep
+     */
+    public int getBlockCount() {
+        return grid.getBlockCount();
+    }
+
+    public void step(float dt, float g, ColliderSet colliders) {
+        float h = dt / substeps;
+        for (int s = 0; s < substeps; s++) {
+            partition();
+            for (IntArrayList colour : colours) {
+                int[] blocks = colour.elements();
+                IntStream.range(0, colour.size()).parallel().forEach(k -> transferToGrid(blocks[k], h));
+            }
+            IntStream.range(0, grid.getBlockCount()).parallel().forEach(b -> updateGrid(b, h, g, colliders));
+            IntStream.range(0, grid.getBlockCount()).parallel().forEach(b -> transferToParticles(b, h));
+            // The grid keeps the material out of the colliders; this just catches any particle which slips through
+            colliders.collide(positions, velocities, particleCount, radius);
+        }
+    }
+
+    /**
+     * Activates the blocks every particle scatters to, and sorts the particles by the block they're in
+     */
+    private void partition() {
+        grid.clear();
+        float inv = 1 / cellSize;
+        for (int i = 0; i < particleCount; i++) {
+            int cx = baseCell(positions[i * 3], inv);
+            int cy = baseCell(positions[i * 3 + 1], inv);
+            int cz = baseCell(positions[i * 3 + 2], inv);
+            int bx = cx >> SparseBlockGrid.BLOCK_BITS, by = cy >> SparseBlockGrid.BLOCK_BITS, bz = cz >> SparseBlockGrid.BLOCK_BITS;
+            particleBlock[i] = grid.activate(bx, by, bz);
+
+            // The 3 cell stencil spills into the next block along any axis it starts in the last 2 cells of
+            int ex = reachesNext(cx), ey = reachesNext(cy), ez = reachesNext(cz);
+            for (int dz = 0; dz <= ez; dz++)
+                for (int dy = 0; dy <= ey; dy++)
+                    for (int dx = 0; dx <= ex; dx++)
+                        if ((dx | dy | dz) != 0)
+                            grid.activate(bx + dx, by + dy, bz + dz);
+        }
+
+        int blockCount = grid.getBlockCount();
+        if (blockStart.length < blockCount + 1)
+            blockStart = new int[Math.max(blockCount + 1, blockStart.length * 2)];
+        Arrays.fill(blockStart, 0, blockCount + 1, 0);
+        for (int i = 0; i < particleCount; i++)
+            blockStart[particleBlock[i] + 1]++;
+        for (int b = 0; b < blockCount; b++)
+            blockStart[b + 1] += blockStart[b];
+        int[] cursor = scratch.get().cursor(blockCount);
+        System.arraycopy(blockStart, 0, cursor, 0, blockCount);
+        for (int i = 0; i < particleCount; i++)
+            order[cursor[particleBlock[i]]++] = i;
+
+        for (IntArrayList colour : colours)
+            colour.clear();
+        for (int b = 0; b < blockCount; b++) {
+            if (blockStart[b + 1] == blockStart[b])
+                continue;
+            int colour = (grid.getBlockX(b) & 1) | (grid.getBlockY(b) & 1) << 1 | (grid.getBlockZ(b) & 1) << 2;
+            colours[colour].add(b);
+        }
+    }
+
+    /**
+     * Scatters the mass and momentum of one block's particles, including the impulse from their stress
+     */
+    private void transferToGrid(int block, float h) {
+        Scratch s = scratch.get();
+        float inv = 1 / cellSize;
+        float stressScale = -h * particleVolume * 4 * inv * inv;
+        float[] mass = grid.getMass();
+        float[] mx = grid.getMomentumX(), my = grid.getMomentumY(), mz = grid.getMomentumZ();
+        float[] a = s.matrix;
+
+        for (int k = blockStart[block]; k < blockStart[block + 1]; k++) {
+            int i = order[k];
+            s.stencil(positions, i, inv);
+            findBlocks(s);
+
+            // Affine momentum, m * C, plus the stress impulse, -dt * volume * 4 / dx^2 * P * F^T
+            stress(deformation, i * 9, s);
+            for (int e = 0; e < 9; e++)
+                a[e] = stressScale * s.stress[e] + particleMass * affine[i * 9 + e];
+            float pvx = particleMass * velocities[i * 3];
+            float pvy = particleMass * velocities[i * 3 + 1];
+            float pvz = particleMass * velocities[i * 3 + 2];
+
+            for (int gz = 0; gz < 3; gz++) {
+                float dz = (gz - s.fz) * cellSize;
+                for (int gy = 0; gy < 3; gy++) {
+                    float dy = (gy - s.fy) * cellSize;
+                    for (int gx = 0; gx < 3; gx++) {
+                        float dx = (gx - s.fx) * cellSize;
+                        float w = s.wx[gx] * s.wy[gy] * s.wz[gz];
+                        int cell = s.cell(gx, gy, gz);
+                        mass[cell] += w * particleMass;
+                        mx[cell] += w * (pvx + a[0] * dx + a[1] * dy + a[2] * dz);
+                        my[cell] += w * (pvy + a[3] * dx + a[4] * dy + a[5] * dz);
+                        mz[cell] += w * (pvz + a[6] * dx + a[7] * dy + a[8] * dz);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Turns a block's momentum into velocity, applies gravity, and stops nodes inside colliders moving any further in
+     */
+    private void updateGrid(int block, float h, float g, ColliderSet colliders) {
+        Scratch s = scratch.get();
+        s.ensureContacts(colliders.size());
+        float[] mass = grid.getMass();
+        float[] vx = grid.getMomentumX(), vy = grid.getMomentumY(), vz = grid.getMomentumZ();
+        int start = block * SparseBlockGrid.CELLS;
+        for (int c = start; c < start + SparseBlockGrid.CELLS; c++) {
+            if (mass[c] <= 0)
+                continue;
+            float invMass = 1 / mass[c];
+            vx[c] *= invMass;
+            vy[c] = vy[c] * invMass + h * g;
+            vz[c] *= invMass;
+
+            int local = c - start;
+            float nodeX = (grid.getBlockX(block) * SparseBlockGrid.BLOCK + (local & SparseBlockGrid.BLOCK_MASK)) * cellSize;
+            float nodeY = (grid.getBlockY(block) * SparseBlockGrid.BLOCK + (local >> SparseBlockGrid.BLOCK_BITS & SparseBlockGrid.BLOCK_MASK)) * cellSize;
+            float nodeZ = (grid.getBlockZ(block) * SparseBlockGrid.BLOCK + (local >> 2 * SparseBlockGrid.BLOCK_BITS)) * cellSize;
+            int contacts = colliders.findContacts(nodeX, nodeY, nodeZ, radius, s.contactColliders, s.contactPushes);
+            for (int k = 0; k < contacts; k++) {
+                float nx = s.contactPushes[k * 3], ny = s.contactPushes[k * 3 + 1], nz = s.contactPushes[k * 3 + 2];
+                float len = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+                if (len == 0)
+                    continue;
+                float vn = (vx[c] * nx + vy[c] * ny + vz[c] * nz) / len;
+                if (vn < 0) {
+                    vx[c] -= vn * nx / len;
+                    vy[c] -= vn * ny / len;
+                    vz[c] -= vn * nz / len;
+                }
+            }
+        }
+    }
+
+    /**
+     * Gathers new velocities and velocity gradients for one block's particles, and moves and deforms them
+     */
+    private void transferToParticles(int block, float h) {
+        Scratch s = scratch.get();
+        float inv = 1 / cellSize;
+        float[] vx = grid.getMomentumX(), vy = grid.getMomentumY(), vz = grid.getMomentumZ();
+        float[] c = s.matrix;
+
+        for (int k = blockStart[block]; k < blockStart[block + 1]; k++) {
+            int i = order[k];
+            s.stencil(positions, i, inv);
+            findBlocks(s);
+
+            float nvx = 0, nvy = 0, nvz = 0;
+            Arrays.fill(c, 0);
+            for (int gz = 0; gz < 3; gz++) {
+                float dz = (gz - s.fz) * cellSize;
+                for (int gy = 0; gy < 3; gy++) {
+                    float dy = (gy - s.fy) * cellSize;
+                    for (int gx = 0; gx < 3; gx++) {
+                        float dx = (gx - s.fx) * cellSize;
+                        float w = s.wx[gx] * s.wy[gy] * s.wz[gz];
+                        int cell = s.cell(gx, gy, gz);
+                        float wvx = w * vx[cell], wvy = w * vy[cell], wvz = w * vz[cell];
+                        nvx += wvx;
+                        nvy += wvy;
+                        nvz += wvz;
+                        c[0] += wvx * dx; c[1] += wvx * dy; c[2] += wvx * dz;
+                        c[3] += wvy * dx; c[4] += wvy * dy; c[5] += wvy * dz;
+                        c[6] += wvz * dx; c[7] += wvz * dy; c[8] += wvz * dz;
+                    }
+                }
+            }
+
+            int o = i * 3, m = i * 9;
+            velocities[o] = nvx;
+            velocities[o + 1] = nvy;
+            velocities[o + 2] = nvz;
+            positions[o] += h * nvx;
+            positions[o + 1] += h * nvy;
+            positions[o + 2] += h * nvz;
+            float scale = 4 * inv * inv;
+            for (int e = 0; e < 9; e++)
+                affine[m + e] = c[e] * scale;
+
+            // F = (I + dt * C) * F
+            float[] f = deformation;
+            float[] t = s.stress;
+            for (int r = 0; r < 3; r++) {
+                for (int col = 0; col < 3; col++) {
+                    float sum = f[m + r * 3 + col];
+                    for (int j = 0; j < 3; j++)
+                        sum += h * affine[m + r * 3 + j] * f[m + j * 3 + col];
+                    t[r * 3 + col] = sum;
+                }
+            }
+            System.arraycopy(t, 0, f, m, 9);
+        }
+    }
+
+    /**
+     * Looks up the (up to) 8 blocks the particle's stencil covers
+     */
+    private void findBlocks(Scratch s) {
+        int bx = s.baseX >> SparseBlockGrid.BLOCK_BITS, by = s.baseY >> SparseBlockGrid.BLOCK_BITS, bz = s.baseZ >> SparseBlockGrid.BLOCK_BITS;
+        int ex = reachesNext(s.baseX), ey = reachesNext(s.baseY), ez = reachesNext(s.baseZ);
+        for (int dz = 0; dz <= ez; dz++)
+            for (int dy = 0; dy <= ey; dy++)
+                for (int dx = 0; dx <= ex; dx++)
+                    s.blocks[dz * 4 + dy * 2 + dx] = grid.find(bx + dx, by + dy, bz + dz);
+    }
+
+    /**
+     * Computes P * F^T for the fixed corotated model into <tt>s.stress</tt>:
+     * <tt>2 mu (F - R) F^T + lambda (J - 1) J I</tt>, where R is the rotation of F
+     */
+    private void stress(float[] f, int m, Scratch s) {
+        float[] r = s.rotation;
+        float j = polarRotation(f, m, r, s.cofactor);
+        float[] p = s.stress;
+        for (int row = 0; row < 3; row++) {
+            for (int col = 0; col < 3; col++) {
+                float sum = 0;
+                for (int k = 0; k < 3; k++)
+                    sum += (f[m + row * 3 + k] - r[row * 3 + k]) * f[m + col * 3 + k];
+                p[row * 3 + col] = 2 * mu * sum;
+            }
+        }
+        float volumetric = lambda * (j - 1) * j;
+        p[0] += volumetric;
+        p[4] += volumetric;
+        p[8] += volumetric;
+    }
+
+    /**
+     * Finds the rotation part of F's polar decomposition by Newton's iteration, R = (R + R^-T) / 2, which converges
+     * quadratically
+     *
+     * @return The determinant of F
+     */
+    private static float polarRotation(float[] f, int m, float[] r, float[] cof) {
+        System.arraycopy(f, m, r, 0, 9);
+        float j = cofactor(r, cof);
+        if (j <= 1e-6f) {
+            // Inverted or crushed flat, which has no sensible rotation, so treat it all as stretch
+            Arrays.fill(r, 0);
+            r[0] = r[4] = r[8] = 1;
+            return j;
+        }
+        float det = j;
+        for (int iteration = 0; iteration < 6; iteration++) {
+            // R^-T = cofactor(R) / det(R)
+            for (int e = 0; e < 9; e++)
+                r[e] = 0.5f * (r[e] + cof[e] / det);
+            det = cofactor(r, cof);
+        }
+        return j;
+    }
+
+    /**
+     * @return The determinant of the matrix
+     */
+    private static float cofactor(float[] a, float[] c) {
+        c[0] = a[4] * a[8] - a[5] * a[7];
+        c[1] = a[5] * a[6] - a[3] * a[8];
+        c[2] = a[3] * a[7] - a[4] * a[6];
+        c[3] = a[2] * a[7] - a[1] * a[8];
+        c[4] = a[0] * a[8] - a[2] * a[6];
+        c[5] = a[1] * a[6] - a[0] * a[7];
+        c[6] = a[1] * a[5] - a[2] * a[4];
+        c[7] = a[2] * a[3] - a[0] * a[5];
+        c[8] = a[0] * a[4] - a[1] * a[3];
+        return a[0] * c[0] + a[1] * c[1] + a[2] * c[2];
+    }
+
+    private static int baseCell(float coord, float inv) {
+        return (int) Math.floor(coord * inv - 0.5f);
+    }
+
+    private static int reachesNext(int cell) {
+        return (cell & SparseBlockGrid.BLOCK_MASK) >= SparseBlockGrid.BLOCK - 2 ? 1 : 0;
+    }
+
+    /**
+     * The winding number of a closed mesh around a point: about 1 inside and 0 outside, however badly the mesh is
+     * made. Sums the solid angle of each triangle as seen from the point.
+     */
+    private static float windingNumber(float[] v, int[] triangles, float px, float py, float pz) {
+        double total = 0;
+        for (int t = 0; t < triangles.length; t += 3) {
+            int a = triangles[t] * 3, b = triangles[t + 1] * 3, c = triangles[t + 2] * 3;
+            double ax = v[a] - px, ay = v[a + 1] - py, az = v[a + 2] - pz;
+            double bx = v[b] - px, by = v[b + 1] - py, bz = v[b + 2] - pz;
+            double cx = v[c] - px, cy = v[c + 1] - py, cz = v[c + 2] - pz;
+            double la = Math.sqrt(ax * ax + ay * ay + az * az);
+            double lb = Math.sqrt(bx * bx + by * by + bz * bz);
+            double lc = Math.sqrt(cx * cx + cy * cy + cz * cz);
+            double triple = ax * (by * cz - bz * cy) + ay * (bz * cx - bx * cz) + az * (bx * cy - by * cx);
+            double denominator = la * lb * lc + (ax * bx + ay * by + az * bz) * lc
+                    + (bx * cx + by * cy + bz * cz) * la + (cx * ax + cy * ay + cz * az) * lb;
+            total += 2 * Math.atan2(triple, denominator);
+        }
+        return (float) (total / (4 * Math.PI));
+    }
+
+    /**
+     * Writes the current vertex positions, and any normals which changed, into the mesh, and draws it. Doesn't bind
+     * the shader.
+     */
+    public void draw() {
+        float[] p = positions;
+        boolean normalsChanged = normals.update(p);
+        float[] n = normals.getNormals();
+        if (bakedMesh == null) {
+            MeshBuilder builder = BakedMesh.builder(VertexFormat.POS_NORM_STREAMS);
+            for (int v = 0; v < vertexCount; v++) {
+                int i = v * 3;
+                builder.pos(p[i], p[i + 1], p[i + 2]).norm(n[i], n[i + 1], n[i + 2]);
+            }
+            builder.indices(triangles);
+            bakedMesh = builder.createStreamingMesh(StreamingBakedMesh.DEFAULT_REGIONS);
+        } else {
+            ByteBuffer positionStream = bakedMesh.getStreamVertices(0);
+            for (int v = 0; v < vertexCount; v++) {
+                int i = v * 3;
+                positionStream.putDouble(v * 24, p[i]).putDouble(v * 24 + 8, p[i + 1]).putDouble(v * 24 + 16, p[i + 2]);
+            }
+            bakedMesh.markDirty(0, 0, vertexCount * 24);
+
+            if (normalsChanged) {
+                boolean[] changed = normals.getChanged();
+                int first = 0, last = vertexCount - 1;
+                while (!changed[first])
+                    first++;
+                while (!changed[last])
+                    last--;
+                ByteBuffer normalStream = bakedMesh.getStreamVertices(1);
+                for (int v = first; v <= last; v++) {
+                    int i = v * 3;
+                    normalStream.putFloat(v * 12, n[i]).putFloat(v * 12 + 4, n[i + 1]).putFloat(v * 12 + 8, n[i + 2]);
+                }
+                bakedMesh.markDirty(1, first * 12, (last - first + 1) * 12);
+            }
+        }
+
+        sceneShader.modelMat.set(modelMat);
+        bakedMesh.draw();
+    }
+
+    public void free() {
+        if (bakedMesh != null) {
+            bakedMesh.free();
+            bakedMesh = null;
+        }
+    }
+
+    /**
+     * Per-thread working space for the transfers
+     */
+    private static class Scratch {
+        int baseX, baseY, baseZ;
+        // The particle's position relative to its base cell, in cells
+        float fx, fy, fz;
+        final float[] wx = new float[3], wy = new float[3], wz = new float[3];
+        /**
+         * The blocks covered by the stencil, indexed by (dz * 4 + dy * 2 + dx) from the base cell's block
+         */
+        final int[] blocks = new int[8];
+        final float[] matrix = new float[9], stress = new float[9], rotation = new float[9], cofactor = new float[9];
+        private int[] cursor = new int[0];
+        int[] contactColliders = new int[0];
+        float[] contactPushes = new float[0];
+
+        void ensureContacts(int colliders) {
+            if (contactColliders.length < colliders) {
+                contactColliders = new int[colliders];
+                contactPushes = new float[colliders * 3];
+            }
+        }
+
+        int[] cursor(int size) {
+            if (cursor.length < size)
+                cursor = new int[Math.max(size, cursor.length * 2)];
+            return cursor;
+        }
+
+        /**
+         * Finds the particle's base cell and quadratic B-spline weights for the 3 cells along each axis
+         */
+        void stencil(float[] positions, int i, float inv) {
+            float x = positions[i * 3] * inv, y = positions[i * 3 + 1] * inv, z = positions[i * 3 + 2] * inv;
+            baseX = (int) Math.floor(x - 0.5f);
+            baseY = (int) Math.floor(y - 0.5f);
+            baseZ = (int) Math.floor(z - 0.5f);
+            fx = x - baseX;
+            fy = y - baseY;
+            fz = z - baseZ;
+            weights(fx, wx);
+            weights(fy, wy);
+            weights(fz, wz);
+        }
+
+        private static void weights(float f, float[] w) {
+            w[0] = 0.5f * (1.5f - f) * (1.5f - f);
+            w[1] = 0.75f - (f - 1) * (f - 1);
+            w[2] = 0.5f * (f - 0.5f) * (f - 0.5f);
+        }
+
+        /**
+         * The grid index of a cell of the stencil
+         */
+        int cell(int gx, int gy, int gz) {
+            int cx = baseX + gx, cy = baseY + gy, cz = baseZ + gz;
+            int dx = (cx >> SparseBlockGrid.BLOCK_BITS) - (baseX >> SparseBlockGrid.BLOCK_BITS);
+            int dy = (cy >> SparseBlockGrid.BLOCK_BITS) - (baseY >> SparseBlockGrid.BLOCK_BITS);
+            int dz = (cz >> SparseBlockGrid.BLOCK_BITS) - (baseZ >> SparseBlockGrid.BLOCK_BITS);
+            int block = blocks[dz * 4 + dy * 2 + dx];
+            return block * SparseBlockGrid.CELLS + SparseBlockGrid.cellIndex(
+                    cx & SparseBlockGrid.BLOCK_MASK, cy & SparseBlockGrid.BLOCK_MASK, cz & SparseBlockGrid.BLOCK_MASK);
+        }
+    }
+
+}
@@ -3,10 +3,18 @@ package physics;
 import org.joml.Matrix4f;
 import org.joml.Vector3f;
 import org.lwjgl.system.CallbackI;
+import render.util.RenderQueue;
 
 import static render.shader.Shaders.sceneShader;
 
 public class Particle {
+
+    private static int nextId;
+
+    /**
+     * Unique for the lifetime of the program, unlike the particle's index in the simulator, which shifts as particles are removed
+     */
+    public final int id = nextId++;
     public float mass;
     public Vector3f position;
     public Vector3f velocity;
@@ -39,6 +47,21 @@ public class Particle {
         mesh.getMesh().draw();
     }
 
+    /**
+     * Queues the particle to be drawn with the scene shader
+     */
+    public void queue(RenderQueue queue) {
+        modelMat.setTranslation(position);
+        queue.submit(sceneShader, 0, mesh.getMesh(), sceneShader.modelMat, modelMat);
+    }
+
+    /**
+     * The radius of the particle's collision sphere. The particle mesh has unit radius and is drawn scaled by the mass.
+     */
+    public float getRadius() {
+        return mass;
+    }
+
     public Particle randVelocity() {
         velocity.set( -10f + (float) Math.random() * 20f, (float) Math.random() * 20f, -10f + (float) Math.random() * 20f);
         return this;
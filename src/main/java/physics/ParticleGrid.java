@@ -0,0 +1,186 @@
+package physics;
+
+import org.joml.FrustumIntersection;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A spatial hash over particle positions, rebuilt from scratch each tick, used to find which particles are near
+ * each other without testing every pair.
+ *
+ * <p>
+ * Space is divided into cubic cells at least as wide as the largest particle, so overlapping particles are always
+ * in the same or adjacent cells. Cells are hashed into a power-of-two number of buckets, and the particle indices
+ * are counting-sorted by bucket so each bucket's particles are contiguous:
+ * <tt>getEntries()[getBucketStart(b)] .. getEntries()[getBucketStart(b + 1) - 1]</tt>. Multiple cells may share a
+ * bucket, so callers must still check actual distances. Each bucket also keeps the bounds of the particles in it,
+ * which lets whole buckets be culled against the view at once.
+ * </p>
+ */
+public class ParticleGrid {
+
+    private float cellSize = 1;
+    private int bucketMask;
+
+    private int particleCount;
+    private int[] bucketStart = new int[1];
+    private int[] cursor = new int[0];
+    private int[] entries = new int[0];
+    private int[] cellX = new int[0], cellY = new int[0], cellZ = new int[0];
+    private float[] boundsMin = new float[0], boundsMax = new float[0];
+
+    /**
+     * Re-sorts all the particles into the grid at their current positions. Cells are made big enough that any two
+     * particles within the given margin of touching are in the same or adjacent cells.
+     */
+    public void build(List<Particle> particles, float margin) {
+        int n = particles.size();
+        float maxRadius = 0;
+        for (int i = 0; i < n; i++)
+            maxRadius = Math.max(maxRadius, particles.get(i).getRadius());
+
+        prepare(n, maxRadius * 2 + margin);
+        for (int i = 0; i < n; i++) {
+            Particle p = particles.get(i);
+            place(i, p.position.x, p.position.y, p.position.z, p.getRadius());
+        }
+        sort(n);
+    }
+
+    /**
+     * Re-sorts particles which all have the same radius, given as an interleaved (x, y, z) position array, into the
+     * grid. Indices in the grid are then indices into that array.
+     */
+    public void build(float[] positions, int count, float radius, float margin) {
+        prepare(count, radius * 2 + margin);
+        for (int i = 0; i < count; i++)
+            place(i, positions[i * 3], positions[i * 3 + 1], positions[i * 3 + 2], radius);
+        sort(count);
+    }
+
+    private void prepare(int n, float minCellSize) {
+        particleCount = n;
+        cellSize = Math.max(minCellSize, 1e-3f);
+
+        int buckets = Integer.highestOneBit(Math.max(n, 8) * 2 - 1) << 1;
+        bucketMask = buckets - 1;
+        if (bucketStart.length != buckets + 1) {
+            bucketStart = new int[buckets + 1];
+            cursor = new int[buckets];
+            boundsMin = new float[buckets * 3];
+            boundsMax = new float[buckets * 3];
+        } else {
+            Arrays.fill(bucketStart, 0);
+        }
+        if (entries.length < n) {
+            int capacity = Math.max(n, entries.length * 2);
+            entries = new int[capacity];
+            cellX = new int[capacity];
+            cellY = new int[capacity];
+            cellZ = new int[capacity];
+        }
+        Arrays.fill(boundsMin, Float.POSITIVE_INFINITY);
+        Arrays.fill(boundsMax, Float.NEGATIVE_INFINITY);
+    }
+
+    /**
+     * Counts one particle into its bucket
+     */
+    private void place(int i, float x, float y, float z, float r) {
+        cellX[i] = cell(x);
+        cellY[i] = cell(y);
+        cellZ[i] = cell(z);
+        int bucket = bucket(cellX[i], cellY[i], cellZ[i]);
+        bucketStart[bucket + 1]++;
+
+        int b = bucket * 3;
+        boundsMin[b] = Math.min(boundsMin[b], x - r);
+        boundsMin[b + 1] = Math.min(boundsMin[b + 1], y - r);
+        boundsMin[b + 2] = Math.min(boundsMin[b + 2], z - r);
+        boundsMax[b] = Math.max(boundsMax[b], x + r);
+        boundsMax[b + 1] = Math.max(boundsMax[b + 1], y + r);
+        boundsMax[b + 2] = Math.max(boundsMax[b + 2], z + r);
+    }
+
+    /**
+     * Prefix sums the bucket counts into bucket starts, then places the particles
+     */
+    private void sort(int n) {
+        int buckets = bucketMask + 1;
+        for (int b = 0; b < buckets; b++)
+            bucketStart[b + 1] += bucketStart[b];
+        System.arraycopy(bucketStart, 0, cursor, 0, buckets);
+        for (int i = 0; i < n; i++)
+            entries[cursor[bucket(cellX[i], cellY[i], cellZ[i])]++] = i;
+    }
+
+    public int getParticleCount() {
+        return particleCount;
+    }
+
+    public float getCellSize() {
+        return cellSize;
+    }
+
+    public int getBucketCount() {
+        return bucketMask + 1;
+    }
+
+    public int getBucketStart(int bucket) {
+        return bucketStart[bucket];
+    }
+
+    /**
+     * Particle indices sorted by bucket
+     */
+    public int[] getEntries() {
+        return entries;
+    }
+
+    public int getCellX(int particle) {
+        return cellX[particle];
+    }
+
+    public int getCellY(int particle) {
+        return cellY[particle];
+    }
+
+    public int getCellZ(int particle) {
+        return cellZ[particle];
+    }
+
+    /**
+     * The bounds of all the particles in a bucket, as (x, y, z) at <tt>3 * bucket</tt>. Empty buckets have inverted bounds.
+     */
+    public float[] getBoundsMin() {
+        return boundsMin;
+    }
+
+    public float[] getBoundsMax() {
+        return boundsMax;
+    }
+
+    /**
+     * Where a bucket's particles lie against a view frustum
+     *
+     * @return {@link FrustumIntersection#INSIDE} if they're all in view, {@link FrustumIntersection#INTERSECT} if
+     *         they might be partly in view, and otherwise the plane they're all outside, or
+     *         {@link FrustumIntersection#OUTSIDE} for an empty bucket
+     */
+    public int intersectBucket(int bucket, FrustumIntersection frustum) {
+        int b = bucket * 3;
+        if (boundsMin[b] > boundsMax[b])
+            return FrustumIntersection.OUTSIDE;
+        return frustum.intersectAab(boundsMin[b], boundsMin[b + 1], boundsMin[b + 2], boundsMax[b], boundsMax[b + 1], boundsMax[b + 2]);
+    }
+
+    public int cell(float coord) {
+        return (int) Math.floor(coord / cellSize);
+    }
+
+    public int bucket(int x, int y, int z) {
+        return ((x * 73856093) ^ (y * 19349663) ^ (z * 83492791)) & bucketMask;
+    }
+
+}
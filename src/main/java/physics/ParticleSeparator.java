@@ -0,0 +1,89 @@
+package physics;
+
+/**
+ * Pushes apart overlapping particles of equal radius, given as flat (x, y, z) arrays, for simulators which keep
+ * their particles in arrays rather than as {@link Particle} objects.
+ *
+ * <p>
+ * Only the first particles in the arrays ("own" particles) are moved. The rest are read-only ghosts, such as
+ * particles just across a boundary which belong to someone else, who will push their side of the contact
+ * themselves. Each own particle is pushed half way out of every particle it overlaps, and loses half of its velocity
+ * towards it; the other half is the other particle's share. All the pushes are found before any are applied, so the
+ * order of the particles doesn't matter.
+ * </p>
+ */
+public class ParticleSeparator {
+
+    private final ParticleGrid grid = new ParticleGrid();
+    private final int[] visitedBuckets = new int[27];
+    private float[] corrections = new float[0];
+
+    /**
+     * @param positions Own particles then ghosts, 3 floats each
+     * @param velocities Own particles' velocities, 3 floats each
+     * @param own The number of own particles
+     * @param total The number of own particles plus ghosts
+     */
+    public void separate(float[] positions, float[] velocities, int own, int total, float radius) {
+        if (corrections.length < own * 3)
+            corrections = new float[Math.max(own * 3, corrections.length * 2)];
+
+        grid.build(positions, total, radius, 0);
+        int[] entries = grid.getEntries();
+        float minDist = radius * 2;
+        for (int i = 0; i < own; i++) {
+            int o = i * 3;
+            float px = positions[o], py = positions[o + 1], pz = positions[o + 2];
+            float cx = 0, cy = 0, cz = 0;
+
+            int visited = 0;
+            for (int dz = -1; dz <= 1; dz++) {
+                for (int dy = -1; dy <= 1; dy++) {
+                    for (int dx = -1; dx <= 1; dx++) {
+                        int bucket = grid.bucket(grid.getCellX(i) + dx, grid.getCellY(i) + dy, grid.getCellZ(i) + dz);
+                        if (contains(visitedBuckets, visited, bucket))
+                            continue;
+                        visitedBuckets[visited++] = bucket;
+
+                        for (int k = grid.getBucketStart(bucket); k < grid.getBucketStart(bucket + 1); k++) {
+                            int j = entries[k];
+                            if (j == i)
+                                continue;
+                            float ddx = px - positions[j * 3], ddy = py - positions[j * 3 + 1], ddz = pz - positions[j * 3 + 2];
+                            float distSq = ddx * ddx + ddy * ddy + ddz * ddz;
+                            if (distSq >= minDist * minDist || distSq == 0)
+                                continue;
+                            float dist = (float) Math.sqrt(distSq);
+                            float push = 0.5f * (minDist - dist) / dist;
+                            cx += ddx * push;
+                            cy += ddy * push;
+                            cz += ddz * push;
+
+                            float vn = (velocities[o] * ddx + velocities[o + 1] * ddy + velocities[o + 2] * ddz) / dist;
+                            if (vn < 0) {
+                                float scale = 0.5f * vn / dist;
+                                velocities[o] -= ddx * scale;
+                                velocities[o + 1] -= ddy * scale;
+                                velocities[o + 2] -= ddz * scale;
+                            }
+                        }
+                    }
+                }
+            }
+            corrections[o] = cx;
+            corrections[o + 1] = cy;
+            corrections[o + 2] = cz;
+        }
+        for (int i = 0; i < own * 3; i++)
+            positions[i] += corrections[i];
+    }
+
+    private static boolean contains(int[] array, int length, int value) {
+        for (int i = 0; i < length; i++) {
+            if (array[i] == value)
+                return true;
+        }
+        return false;
+    }
+
+}
@@ -1,36 +1,403 @@
 package physics;
 
 
+import org.joml.FrustumIntersection;
+import org.joml.Matrix4fc;
 import org.joml.Vector3f;
+import org.joml.Vector3fc;
+import physics.job.Job;
+import physics.job.JobGraph;
+import physics.modal.ModalBody;
+import render.shader.ShaderProgram;
+import render.shader.Shaders.ImpostorShader;
+import render.shader.Shaders.InstancedSceneShader;
+import render.util.BakedMesh;
+import render.util.GeometryPool;
+import render.util.GlState;
+import render.util.InstanceBuffer;
+import render.util.MeshLod;
+import render.util.RenderQueue;
+import render.util.VertexFormat;
+import util.IntArrayList;
 import util.Mathf;
+import util.metrics.Histogram;
+import util.metrics.MetricsRegistry;
+import util.trace.Trace;
 
+import java.nio.FloatBuffer;
 import java.util.ArrayList;
 
+import static render.shader.Shaders.impostorShader;
+import static render.shader.Shaders.instancedSceneShader;
+
 
 public class ParticleSimulator {
 
+    private static final int TRACE_TICK = Trace.event("ParticleSimulator.tick");
+    private static final int TRACE_DRAW = Trace.event("ParticleSimulator.drawWorld");
+
     private ArrayList<Particle> particles = new ArrayList<>();
+    private ArrayList<SoftBody> softBodies = new ArrayList<>();
+    private ArrayList<CagedSoftBody> cagedBodies = new ArrayList<>();
+    private ArrayList<MpmBody> mpmBodies = new ArrayList<>();
+    private ArrayList<ModalBody> modalBodies = new ArrayList<>();
     private float g = -9.8f;
     private final float TPS = 60f;
 
+    private final TriangleGrid staticTriangles = new TriangleGrid();
+    private final TriangleCollision triangleCollision = new TriangleCollision(staticTriangles);
+    private final ColliderSet colliders = new ColliderSet();
+    private final ParticleGrid particleGrid = new ParticleGrid();
+    /**
+     * Whether the grid holds every particle up to its count, where they are now. Set once it's been built after the
+     * last particles were removed, as particles are only ever added on the end.
+     */
+    private boolean gridCurrent = false;
+    private final ContactSolver contactSolver = new ContactSolver();
+    private boolean particleCollisions = true;
+    private final Vector3f displacement = new Vector3f();
+
+    /**
+     * The stages of a tick. Rebuilt whenever a body is added, since each body has its own chain of stages.
+     */
+    private final JobGraph jobs = new JobGraph();
+    private boolean jobsDirty = true;
+
+    /**
+     * Whether particles are drawn with one instanced draw call per mesh, when supported, rather than one each
+     */
+    private boolean instancedParticles = true;
+    /**
+     * Whether instanced particles are drawn as ray cast sphere impostors rather than with their meshes
+     */
+    private boolean particleImpostors = false;
+    private InstanceBuffer particleInstances;
+    private BakedMesh impostorQuad;
+    private final ArrayList<Mesh> particleMeshes = new ArrayList<>();
+    /**
+     * Whether instanced particles of every mesh and level of detail are drawn together in one multi draw indirect
+     * call, when supported, rather than one instanced call each
+     */
+    private boolean pooledParticles = true;
+    private GeometryPool geometryPool;
+    /**
+     * Where the scene is seen from, for picking levels of detail
+     */
+    private final Vector3f cameraPos = new Vector3f();
+    private float pixelScale = 0;
+    private final FrustumIntersection frustum = new FrustumIntersection();
+    private boolean frustumCulling = true;
+    /**
+     * Indices of the particles to draw this frame
+     */
+    private final IntArrayList visibleParticles = new IntArrayList();
+    /**
+     * Particles drawn one at a time, sorted to share binds
+     */
+    private final RenderQueue renderQueue = new RenderQueue();
+
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    /**
+     * Each job's timing histogram, in the same order as the jobs
+     */
+    private Histogram[] jobTimers = new Histogram[0];
+
     public ParticleSimulator() {
 
     }
 
 
     public void tick(){
-        for(Particle p: particles) {
-            p.velocity.add(0, g/TPS, 0);
-            p.position.add(p.velocity.div(TPS, new Vector3f()));
+        if(jobsDirty) {
+            buildJobs();
+            jobsDirty = false;
         }
 
-        cleanUp();
+        boolean measure = metrics.isEnabled();
+        jobs.setMeasuringAllocations(measure);
+        long start = measure ? System.nanoTime() : 0;
+        Trace.begin(TRACE_TICK);
+        jobs.run();
+        Trace.end(TRACE_TICK);
+        if(measure) recordMetrics(System.nanoTime() - start);
+    }
+
+    private void recordMetrics(long tickNanos) {
+        metrics.histogram("tick.nanos").record(tickNanos);
+
+        long allocated = 0;
+        for(int i = 0; i < jobTimers.length; i++) {
+            Job job = jobs.getJobs().get(i);
+            jobTimers[i].record(job.getLastNanos());
+            allocated += Math.max(job.getLastAllocatedBytes(), 0);
+        }
+        metrics.histogram("tick.allocatedBytes").record(allocated);
+
+        int constraints = 0;
+        for(SoftBody body: softBodies) constraints += body.getConstraintCount();
+        for(CagedSoftBody body: cagedBodies) constraints += body.getProxy().getConstraintCount();
+        metrics.histogram("count.particles").record(particles.size());
+        metrics.histogram("count.contacts").record(particleCollisions ? contactSolver.getContactCount() : 0);
+        metrics.histogram("count.cachedContacts").record(contactSolver.getCache().size());
+        metrics.histogram("count.constraints").record(constraints);
+        int mpmParticles = 0, mpmBlocks = 0;
+        for(MpmBody body: mpmBodies) {
+            mpmParticles += body.getParticleCount();
+            mpmBlocks += body.getBlockCount();
+        }
+        metrics.histogram("count.mpmParticles").record(mpmParticles);
+        metrics.histogram("count.mpmBlocks").record(mpmBlocks);
+        metrics.histogram("count.sweptParticles").record(triangleCollision.pollSweptCount());
     }
 
     public void drawWorld() {
-        for(Particle p: particles) {
-            p.draw();
+        Trace.begin(TRACE_DRAW);
+        findVisibleParticles();
+        if(instancedParticles && particleImpostors && impostorShader != null) {
+            drawParticleImpostors();
+        } else if(instancedParticles && instancedSceneShader != null) {
+            if(pooledParticles && getGeometryPool() != null) drawParticlesPooled();
+            else drawParticlesInstanced();
+        } else {
+            int[] visible = visibleParticles.elements();
+            for(int i = 0; i < visibleParticles.size(); i++) {
+                particles.get(visible[i]).queue(renderQueue);
+            }
+            renderQueue.flush();
+        }
+        for(SoftBody body: softBodies) {
+            body.draw();
+        }
+        for(CagedSoftBody body: cagedBodies) {
+            if(pixelScale > 0) body.draw(cameraPos, pixelScale);
+            else body.draw();
+        }
+        for(MpmBody body: mpmBodies) {
+            body.draw();
         }
+        for(ModalBody body: modalBodies) {
+            body.draw();
+        }
+        if(metrics.isEnabled()) {
+            metrics.histogram("gl.drawCalls").record(GlState.getDrawCalls());
+            metrics.histogram("gl.stateChanges").record(GlState.getStateChanges());
+            metrics.histogram("gl.skippedStateChanges").record(GlState.getSkippedChanges());
+        }
+        GlState.resetCounters();
+        Trace.end(TRACE_DRAW);
+    }
+
+    /**
+     * Finds which particles are in view, a whole grid bucket at a time where possible, so buckets which are entirely
+     * off screen cost one test, and buckets entirely on screen need no more tests. Particles added since the grid was
+     * built are tested one by one.
+     */
+    private void findVisibleParticles() {
+        visibleParticles.clear();
+        visibleParticles.ensureCapacity(particles.size());
+        int[] visible = visibleParticles.elements();
+        int count = 0;
+        if(!frustumCulling || pixelScale == 0) {
+            for(int i = 0; i < particles.size(); i++) visible[count++] = i;
+            visibleParticles.setSize(count);
+            return;
+        }
+
+        int gridded = 0;
+        if(gridCurrent) {
+            gridded = particleGrid.getParticleCount();
+            int[] entries = particleGrid.getEntries();
+            for(int b = 0; b < particleGrid.getBucketCount(); b++) {
+                int start = particleGrid.getBucketStart(b), end = particleGrid.getBucketStart(b + 1);
+                if(start == end) continue;
+                int result = particleGrid.intersectBucket(b, frustum);
+                if(result == FrustumIntersection.INSIDE) {
+                    for(int e = start; e < end; e++) visible[count++] = entries[e];
+                } else if(result == FrustumIntersection.INTERSECT) {
+                    for(int e = start; e < end; e++) {
+                        Particle p = particles.get(entries[e]);
+                        if(frustum.testSphere(p.position.x, p.position.y, p.position.z, p.getRadius())) visible[count++] = entries[e];
+                    }
+                }
+            }
+        }
+        for(int i = gridded; i < particles.size(); i++) {
+            Particle p = particles.get(i);
+            if(frustum.testSphere(p.position.x, p.position.y, p.position.z, p.getRadius())) visible[count++] = i;
+        }
+        visibleParticles.setSize(count);
+        if(metrics.isEnabled()) metrics.histogram("count.visibleParticles").record(count);
+    }
+
+    /**
+     * Draws all the particles sharing a mesh in one call, with their positions and sizes in an instance buffer, then
+     * rebinds whichever shader was bound before. Meshes with a {@link MeshLod} are drawn in one call per level
+     * instead, each particle going in the level its size on screen calls for.
+     */
+    private void drawParticlesPooled() {
+        int[] visible = visibleParticles.elements();
+        int visibleCount = visibleParticles.size();
+        geometryPool.begin();
+        for(int i = 0; i < visibleCount; i++) {
+            Particle p = particles.get(visible[i]);
+            MeshLod lod = p.mesh.getLod();
+            if(lod != null && lod.isPooled() && lod.getPooledLevel(0).getPool() == geometryPool && pixelScale > 0) {
+                int level = lod.select(p.position.x, p.position.y, p.position.z, p.getRadius(), cameraPos, pixelScale);
+                geometryPool.add(lod.getPooledLevel(level), p.position.x, p.position.y, p.position.z, p.getRadius());
+            } else {
+                geometryPool.add(p.mesh.getPooledMesh(geometryPool), p.position.x, p.position.y, p.position.z, p.getRadius());
+            }
+        }
+        if(metrics.isEnabled()) metrics.histogram("count.pooledDrawCommands").record(geometryPool.getCommandCount());
+
+        ShaderProgram previous = ShaderProgram.getBoundShader();
+        instancedSceneShader.bind();
+        geometryPool.draw(InstancedSceneShader.INSTANCE_ATTRIBUTE);
+        if(previous != null) previous.bind();
+    }
+
+    private void drawParticlesInstanced() {
+        if(particleInstances == null) particleInstances = new InstanceBuffer(4);
+        int[] visible = visibleParticles.elements();
+        int visibleCount = visibleParticles.size();
+        // Nearly always just the one mesh
+        particleMeshes.clear();
+        for(int i = 0; i < visibleCount; i++) {
+            Mesh mesh = particles.get(visible[i]).mesh;
+            if(!particleMeshes.contains(mesh)) particleMeshes.add(mesh);
+        }
+
+        ShaderProgram previous = ShaderProgram.getBoundShader();
+        instancedSceneShader.bind();
+        for(Mesh mesh: particleMeshes) {
+            MeshLod lod = mesh.getLod();
+            if(lod != null && pixelScale > 0) {
+                lod.begin(cameraPos, pixelScale);
+                for(int i = 0; i < visibleCount; i++) {
+                    Particle p = particles.get(visible[i]);
+                    if(p.mesh == mesh) lod.add(p.position.x, p.position.y, p.position.z, p.getRadius());
+                }
+                lod.draw(InstancedSceneShader.INSTANCE_ATTRIBUTE);
+                continue;
+            }
+            particleInstances.clear();
+            particleInstances.ensureCapacity(visibleCount);
+            FloatBuffer instances = particleInstances.getInstances();
+            int count = 0;
+            for(int i = 0; i < visibleCount; i++) {
+                Particle p = particles.get(visible[i]);
+                if(p.mesh != mesh) continue;
+                instances.put(p.position.x).put(p.position.y).put(p.position.z).put(p.getRadius());
+                count++;
+            }
+            particleInstances.setCount(count);
+            particleInstances.draw(mesh.getMesh(), InstancedSceneShader.INSTANCE_ATTRIBUTE);
+        }
+        if(previous != null) previous.bind();
+    }
+
+    /**
+     * Draws every particle as a sphere impostor in one call, then rebinds whichever shader was bound before
+     */
+    private void drawParticleImpostors() {
+        if(particleInstances == null) particleInstances = new InstanceBuffer(4);
+        if(impostorQuad == null) {
+            impostorQuad = BakedMesh.builder(VertexFormat.POS2)
+                    .pos(-1, -1).pos(1, -1).pos(1, 1)
+                    .pos(-1, -1).pos(1, 1).pos(-1, 1)
+                    .createMesh();
+        }
+
+        int[] visible = visibleParticles.elements();
+        int visibleCount = visibleParticles.size();
+        particleInstances.clear();
+        particleInstances.ensureCapacity(visibleCount);
+        FloatBuffer instances = particleInstances.getInstances();
+        for(int i = 0; i < visibleCount; i++) {
+            Particle p = particles.get(visible[i]);
+            instances.put(p.position.x).put(p.position.y).put(p.position.z).put(p.getRadius());
+        }
+        particleInstances.setCount(visibleCount);
+
+        ShaderProgram previous = ShaderProgram.getBoundShader();
+        impostorShader.bind();
+        particleInstances.draw(impostorQuad, ImpostorShader.INSTANCE_ATTRIBUTE);
+        if(previous != null) previous.bind();
+    }
+
+    /**
+     * The particles go through one chain of stages, and each soft body through its own chain (or single stage, for
+     * material point and modal bodies), with nothing shared
+     * between the chains but the (read-only) colliders, so they all run alongside each other.
+     */
+    private void buildJobs() {
+        jobs.clear();
+        float dt = 1 / TPS;
+
+        Job forces = jobs.add("particles.forces", () -> {
+            for(Particle p: particles) {
+                p.velocity.add(0, g*dt, 0);
+            }
+        });
+        Job broadphase = jobs.add("particles.broadphase", () -> {
+            // Usually still current from the end of the last tick, as forces don't move anything
+            if(particleCollisions && (!gridCurrent || particleGrid.getParticleCount() != particles.size())) {
+                particleGrid.build(particles, contactSolver.getMargin());
+            }
+        }).after(forces);
+        Job narrowphase = jobs.add("particles.narrowphase", () -> {
+            if(particleCollisions) contactSolver.findContacts(particles, particleGrid, colliders);
+        }).after(broadphase);
+        Job solve = jobs.add("particles.solve", () -> {
+            if(particleCollisions) contactSolver.solve(particles, dt);
+        }).after(narrowphase);
+        Job integrate = jobs.add("particles.integrate", () -> {
+            for(Particle p: particles) {
+                triangleCollision.move(p, p.velocity.mul(dt, displacement));
+                colliders.collide(p);
+            }
+        }).after(solve);
+        Job cleanup = jobs.add("particles.cleanup", this::cleanUp).after(integrate);
+        jobs.add("particles.grid", () -> {
+            // Ready for culling what's drawn, and for the next tick's broadphase
+            gridCurrent = false;
+            if(particleCollisions || frustumCulling) {
+                particleGrid.build(particles, contactSolver.getMargin());
+                gridCurrent = true;
+            }
+        }).after(cleanup);
+
+        for(int i = 0; i < softBodies.size(); i++) {
+            addSoftBodyJobs("softbody" + i, softBodies.get(i), dt);
+        }
+        for(int i = 0; i < cagedBodies.size(); i++) {
+            // Only the proxy is stepped; the detailed mesh is skinned when drawn
+            addSoftBodyJobs("caged" + i, cagedBodies.get(i).getProxy(), dt);
+        }
+        for(int i = 0; i < mpmBodies.size(); i++) {
+            MpmBody body = mpmBodies.get(i);
+            // Parallel inside, over its grid blocks
+            jobs.add("mpm" + i + ".step", () -> body.step(dt, g, colliders));
+        }
+        for(int i = 0; i < modalBodies.size(); i++) {
+            ModalBody body = modalBodies.get(i);
+            jobs.add("modal" + i + ".step", () -> body.step(dt, g, colliders));
+        }
+
+        jobTimers = new Histogram[jobs.getJobs().size()];
+        for(int i = 0; i < jobTimers.length; i++) {
+            jobTimers[i] = metrics.histogram("job." + jobs.getJobs().get(i).getName() + ".nanos");
+        }
+    }
+
+
+
+    private void addSoftBodyJobs(String name, SoftBody body, float dt) {
+        Job predict = jobs.add(name + ".predict", () -> body.predict(dt, g));
+        Job constrain = jobs.add(name + ".constrain", body::solveConstraints).after(predict);
+        Job collide = jobs.add(name + ".collide", () -> body.collide(colliders)).after(constrain);
+        Job finish = jobs.add(name + ".finish", () -> body.finish(dt)).after(collide);
+        jobs.add(name + ".normals", body::updateNormals).after(finish);
     }
 
 
@@ -39,6 +406,114 @@ public class ParticleSimulator {
         particles.add(particle);
     }
 
+    public void addSoftBody(SoftBody body) {
+        softBodies.add(body);
+        jobsDirty = true;
+    }
+
+    /**
+     * Adds a detailed mesh driven by a coarse soft body. The soft body shouldn't also be added on its own.
+     */
+    public void addCagedBody(CagedSoftBody body) {
+        cagedBodies.add(body);
+        jobsDirty = true;
+    }
+
+    public void addMpmBody(MpmBody body) {
+        mpmBodies.add(body);
+        jobsDirty = true;
+    }
+
+    public void addModalBody(ModalBody body) {
+        modalBodies.add(body);
+        jobsDirty = true;
+    }
+
+    /**
+     * Adds a mesh which particles collide with but which never moves itself
+     */
+    public void addStaticMesh(Mesh mesh, Matrix4fc transform) {
+        staticTriangles.addMesh(mesh, transform);
+    }
+
+    public void setInstancedParticles(boolean instancedParticles) {
+        this.instancedParticles = instancedParticles;
+    }
+
+    /**
+     * Sets whether instanced particles are all drawn in one call from the geometry pool, when it's supported
+     */
+    public void setPooledParticles(boolean pooledParticles) {
+        this.pooledParticles = pooledParticles;
+    }
+
+    /**
+     * The pool particle meshes are copied into to be drawn together, made on first use, or null if multi draw
+     * indirect isn't supported. Needs a GL context current.
+     */
+    public GeometryPool getGeometryPool() {
+        if(geometryPool == null && GeometryPool.isSupported()) geometryPool = new GeometryPool(VertexFormat.POS_NORM);
+        return geometryPool;
+    }
+
+    /**
+     * Sets whether particles are drawn as perfect spheres ray cast on camera-facing quads, rather than with their
+     * meshes. Needs instancing, and the impostor shader's camera position kept up to date.
+     */
+    public void setParticleImpostors(boolean particleImpostors) {
+        this.particleImpostors = particleImpostors;
+    }
+
+    /**
+     * Sets where the scene is seen from, for culling particles which are out of view and for picking each mesh's
+     * level of detail by its size on screen. Until this is called everything is drawn, in full detail.
+     *
+     * @param projViewMat The projection matrix times the view matrix
+     * @param pixelScale See {@link MeshLod#pixelScale(Matrix4fc, int)}
+     */
+    public void setView(Vector3fc cameraPos, Matrix4fc projViewMat, float pixelScale) {
+        this.cameraPos.set(cameraPos);
+        frustum.set(projViewMat);
+        this.pixelScale = pixelScale;
+    }
+
+    /**
+     * Sets whether particles out of view are skipped when drawing, once the view has been set
+     */
+    public void setFrustumCulling(boolean frustumCulling) {
+        this.frustumCulling = frustumCulling;
+    }
+
+    public void setParticleCollisions(boolean particleCollisions) {
+        this.particleCollisions = particleCollisions;
+    }
+
+    public ContactSolver getContactSolver() {
+        return contactSolver;
+    }
+
+    /**
+     * The stages of the last tick, with their timings
+     */
+    public JobGraph getJobs() {
+        return jobs;
+    }
+
+    /**
+     * Per-tick timings and counts, which are only recorded while the registry is enabled
+     */
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    public ColliderSet getColliders() {
+        return colliders;
+    }
+
+    public TriangleCollision getTriangleCollision() {
+        return triangleCollision;
+    }
+
     public Particle getParticle(int id) {
         if(particles.get(id) == null){
             throw new AssertionError("Particle does not exist");
@@ -0,0 +1,271 @@
+package physics;
+
+import org.joml.Matrix4f;
+import org.joml.Matrix4fc;
+import org.joml.Vector3f;
+import render.util.BakedMesh;
+import render.util.MeshBuilder;
+import render.util.StreamingBakedMesh;
+import render.util.VertexFormat;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+
+import static render.shader.Shaders.sceneShader;
+
+/**
+ * A deformable body made of equal point masses at the vertices of a mesh, held together by distance constraints
+ * along the mesh's edges, and stepped with position-based dynamics.
+ *
+ * <p>
+ * A step is split into stages ({@link #predict(float, float)}, {@link #solveConstraints()},
+ * {@link #collide(ColliderSet)}, {@link #finish(float)} and {@link #updateNormals()}) which must run in that order,
+ * but only touch this body's own state, so the stages of separate bodies can run in parallel. The state is kept in
+ * flat arrays of interleaved (x, y, z) values.
+ * </p>
+ */
+public class SoftBody {
+
+    private final int vertexCount;
+    private final float[] positions;
+    private final float[] predicted;
+    private final float[] velocities;
+
+    private final int[] edgeA, edgeB;
+    private final float[] restLength;
+    private final int[] triangles;
+
+    private float stiffness = 0.5f;
+    private int iterations = 8;
+    private float radius = 0.05f;
+
+    private final VertexNormals normals;
+    /**
+     * The range of vertices whose normals changed since the mesh was last drawn
+     */
+    private int firstChangedNormal, lastChangedNormal = -1;
+    /**
+     * Positions and normals in separate streams, so normals are only uploaded where they changed
+     */
+    private StreamingBakedMesh bakedMesh;
+    private final Matrix4f modelMat = new Matrix4f();
+
+    /**
+     * @param mesh The rest shape
+     * @param transform Moves the rest shape into the world
+     */
+    public SoftBody(Mesh mesh, Matrix4fc transform) {
+        vertexCount = mesh.getPositionCount();
+        positions = new float[vertexCount * 3];
+        predicted = new float[vertexCount * 3];
+        velocities = new float[vertexCount * 3];
+
+        Vector3f pos = new Vector3f();
+        for (int v = 0; v < vertexCount; v++) {
+            transform.transformPosition(mesh.getPosition(v), pos);
+            positions[v * 3] = pos.x;
+            positions[v * 3 + 1] = pos.y;
+            positions[v * 3 + 2] = pos.z;
+        }
+
+        int triCount = mesh.getTriangleCount();
+        triangles = new int[triCount * 3];
+        Set<Long> edges = new HashSet<>();
+        for (int t = 0; t < triCount; t++) {
+            for (int corner = 0; corner < 3; corner++) {
+                int a = mesh.getTriangleVertex(t, corner);
+                int b = mesh.getTriangleVertex(t, (corner + 1) % 3);
+                triangles[t * 3 + corner] = a;
+                edges.add(((long) Math.min(a, b) << 32) | Math.max(a, b));
+            }
+        }
+
+        edgeA = new int[edges.size()];
+        edgeB = new int[edges.size()];
+        restLength = new float[edges.size()];
+        int e = 0;
+        for (long edge : edges) {
+            edgeA[e] = (int) (edge >>> 32);
+            edgeB[e] = (int) edge;
+            restLength[e] = distance(positions, edgeA[e], edgeB[e]);
+            e++;
+        }
+
+        normals = new VertexNormals(vertexCount, triangles);
+        normals.update(positions);
+    }
+
+    /**
+     * Sets the fraction of each constraint's error corrected per iteration, from 0 to 1
+     */
+    public void setStiffness(float stiffness) {
+        this.stiffness = stiffness;
+    }
+
+    public void setIterations(int iterations) {
+        this.iterations = iterations;
+    }
+
+    /**
+     * Sets the collision radius of each vertex
+     */
+    public void setRadius(float radius) {
+        this.radius = radius;
+    }
+
+    /**
+     * Sets how far a triangle has to turn, relative to its size, before the normals around it are recomputed
+     */
+    public void setNormalTolerance(float tolerance) {
+        normals.setTolerance(tolerance);
+    }
+
+    public int getConstraintCount() {
+        return edgeA.length;
+    }
+
+    public int getVertexCount() {
+        return vertexCount;
+    }
+
+    /**
+     * The vertex positions, as (x, y, z) at <tt>3 * vertex</tt>
+     */
+    public float[] getPositions() {
+        return positions;
+    }
+
+    public float[] getVelocities() {
+        return velocities;
+    }
+
+    /**
+     * The triangles' vertex indices, 3 per triangle
+     */
+    public int[] getTriangles() {
+        return triangles;
+    }
+
+    /**
+     * Applies gravity, and predicts where each vertex will move to with its current velocity
+     */
+    public void predict(float dt, float g) {
+        for (int v = 0; v < vertexCount; v++) {
+            int o = v * 3;
+            velocities[o + 1] += g * dt;
+            predicted[o] = positions[o] + velocities[o] * dt;
+            predicted[o + 1] = positions[o + 1] + velocities[o + 1] * dt;
+            predicted[o + 2] = positions[o + 2] + velocities[o + 2] * dt;
+        }
+    }
+
+    /**
+     * Moves the predicted positions towards satisfying the edge length constraints
+     */
+    public void solveConstraints() {
+        float[] p = predicted;
+        for (int iteration = 0; iteration < iterations; iteration++) {
+            for (int e = 0; e < edgeA.length; e++) {
+                int a = edgeA[e] * 3, b = edgeB[e] * 3;
+                float dx = p[a] - p[b], dy = p[a + 1] - p[b + 1], dz = p[a + 2] - p[b + 2];
+                float dist = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+                if (dist == 0)
+                    continue;
+                // Equal masses, so each end moves half the way
+                float scale = 0.5f * stiffness * (dist - restLength[e]) / dist;
+                p[a] -= dx * scale;
+                p[a + 1] -= dy * scale;
+                p[a + 2] -= dz * scale;
+                p[b] += dx * scale;
+                p[b + 1] += dy * scale;
+                p[b + 2] += dz * scale;
+            }
+        }
+    }
+
+    /**
+     * Pushes the predicted positions out of the colliders
+     */
+    public void collide(ColliderSet colliders) {
+        colliders.collide(predicted, null, vertexCount, radius);
+    }
+
+    /**
+     * Moves the vertices to their predicted positions, and derives the new velocities from how far they moved
+     */
+    public void finish(float dt) {
+        for (int i = 0; i < vertexCount * 3; i++) {
+            velocities[i] = (predicted[i] - positions[i]) / dt;
+            positions[i] = predicted[i];
+        }
+    }
+
+    /**
+     * Brings the vertex normals up to date with the positions. Only needs to run before drawing, after
+     * {@link #finish(float)}.
+     */
+    public void updateNormals() {
+        if (!normals.update(positions))
+            return;
+        boolean[] changed = normals.getChanged();
+        for (int v = 0; v < vertexCount; v++) {
+            if (changed[v]) {
+                firstChangedNormal = Math.min(firstChangedNormal, v);
+                lastChangedNormal = Math.max(lastChangedNormal, v);
+            }
+        }
+    }
+
+    /**
+     * Writes the current vertex positions, and any normals which changed, into the mesh, and draws it. Doesn't bind
+     * the shader.
+     */
+    public void draw() {
+        float[] p = positions;
+        float[] n = normals.getNormals();
+        if (bakedMesh == null) {
+            MeshBuilder builder = BakedMesh.builder(VertexFormat.POS_NORM_STREAMS);
+            for (int v = 0; v < vertexCount; v++) {
+                int i = v * 3;
+                builder.pos(p[i], p[i + 1], p[i + 2]).norm(n[i], n[i + 1], n[i + 2]);
+            }
+            builder.indices(triangles);
+            bakedMesh = builder.createStreamingMesh(StreamingBakedMesh.DEFAULT_REGIONS);
+        } else {
+            ByteBuffer positionStream = bakedMesh.getStreamVertices(0);
+            for (int v = 0; v < vertexCount; v++) {
+                int i = v * 3;
+                positionStream.putDouble(v * 24, p[i]).putDouble(v * 24 + 8, p[i + 1]).putDouble(v * 24 + 16, p[i + 2]);
+            }
+            bakedMesh.markDirty(0, 0, vertexCount * 24);
+
+            if (firstChangedNormal <= lastChangedNormal) {
+                ByteBuffer normalStream = bakedMesh.getStreamVertices(1);
+                for (int v = firstChangedNormal; v <= lastChangedNormal; v++) {
+                    int i = v * 3;
+                    normalStream.putFloat(v * 12, n[i]).putFloat(v * 12 + 4, n[i + 1]).putFloat(v * 12 + 8, n[i + 2]);
+                }
+                bakedMesh.markDirty(1, firstChangedNormal * 12, (lastChangedNormal - firstChangedNormal + 1) * 12);
+            }
+        }
+        firstChangedNormal = vertexCount;
+        lastChangedNormal = -1;
+
+        sceneShader.modelMat.set(modelMat);
+        bakedMesh.draw();
+    }
+
+    public void free() {
+        if (bakedMesh != null) {
+            bakedMesh.free();
+            bakedMesh = null;
+        }
+    }
+
+    private static float distance(float[] p, int a, int b) {
+        float dx = p[a * 3] - p[b * 3], dy = p[a * 3 + 1] - p[b * 3 + 1], dz = p[a * 3 + 2] - p[b * 3 + 2];
+        return (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+    }
+
+}
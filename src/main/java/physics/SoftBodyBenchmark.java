@@ -0,0 +1,73 @@
+package physics;
+
+import org.joml.Matrix4f;
+import util.metrics.Histogram;
+
+/**
+ * Runs the same scenes with mass-spring {@link SoftBody soft bodies} and with {@link MpmBody material point bodies},
+ * headless, and prints how long a tick takes and how the bodies end up.
+ *
+ * <p>
+ * Arguments (all optional): ticks to time, material point spacing. Each scene drops unit spheres onto a floor, so
+ * they squash and bounce: one in the drop scene, and a row of separate ones in the row scene, for how the cost scales
+ * with the number of bodies.
+ * </p>
+ */
+public class SoftBodyBenchmark {
+
+    private static final int WARMUP_TICKS = 60;
+
+    public static void main(String[] args) {
+        int ticks = args.length > 0 ? Integer.parseInt(args[0]) : 300;
+        float spacing = args.length > 1 ? Float.parseFloat(args[1]) : 0.1f;
+        Mesh mesh = new Mesh("bullet.ob");
+
+        System.out.printf("%-8s %-6s %10s %10s %10s %12s %10s%n",
+                "scene", "method", "particles", "p50 ms", "p99 ms", "lowest y", "height");
+        for (int bodies = 1; bodies <= 4; bodies += 3) {
+            String scene = bodies == 1 ? "drop" : "row";
+            run(scene, mesh, bodies, ticks, false, spacing);
+            run(scene, mesh, bodies, ticks, true, spacing);
+        }
+    }
+
+    private static void run(String scene, Mesh mesh, int bodies, int ticks, boolean mpm, float spacing) {
+        ParticleSimulator sim = new ParticleSimulator();
+        sim.getColliders().addPlane(0, 1, 0, 0);
+
+        float[][] positions = new float[bodies][];
+        int particles = 0;
+        for (int i = 0; i < bodies; i++) {
+            Matrix4f transform = new Matrix4f().translate(3 * i, 1.5f, 0);
+            if (mpm) {
+                MpmBody body = new MpmBody(mesh, transform, spacing);
+                sim.addMpmBody(body);
+                positions[i] = body.getPositions();
+                particles += body.getParticleCount();
+            } else {
+                SoftBody body = new SoftBody(mesh, transform);
+                sim.addSoftBody(body);
+                positions[i] = body.getPositions();
+                particles += body.getVertexCount();
+            }
+        }
+
+        for (int t = 0; t < WARMUP_TICKS; t++)
+            sim.tick();
+        sim.getMetrics().setEnabled(true);
+        for (int t = 0; t < ticks; t++)
+            sim.tick();
+
+        float lowest = Float.POSITIVE_INFINITY, highest = Float.NEGATIVE_INFINITY;
+        for (float[] p : positions) {
+            for (int i = 1; i < p.length; i += 3) {
+                lowest = Math.min(lowest, p[i]);
+                highest = Math.max(highest, p[i]);
+            }
+        }
+        Histogram tick = sim.getMetrics().histogram("tick.nanos");
+        System.out.printf("%-8s %-6s %10d %10.3f %10.3f %12.3f %10.3f%n", scene, mpm ? "mpm" : "spring", particles,
+                tick.getPercentile(0.5) / 1e6, tick.getPercentile(0.99) / 1e6, lowest, highest - lowest);
+    }
+
+}
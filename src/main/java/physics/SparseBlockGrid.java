@@ -0,0 +1,154 @@
+package physics;
+
+import java.util.Arrays;
+
+/**
+ * A grid of mass and momentum over only the parts of space something is in, for particle-in-cell methods.
+ *
+ * <p>
+ * Cells are allocated in blocks of 4x4x4, found by block coordinates through an open-addressing hash table. Each
+ * block's cells are contiguous, <tt>block * CELLS + cellIndex(x, y, z)</tt>, in the {@link #getMass() mass} and
+ * {@link #getMomentumX() momentum} arrays. Blocks are zeroed when they're activated, and all of them are dropped by
+ * {@link #clear()}, so a grid is rebuilt from scratch every step around wherever the particles are.
+ * </p>
+ */
+public class SparseBlockGrid {
+
+    public static final int BLOCK_BITS = 2;
+    public static final int BLOCK = 1 << BLOCK_BITS;
+    public static final int BLOCK_MASK = BLOCK - 1;
+    public static final int CELLS = BLOCK * BLOCK * BLOCK;
+
+    private int blockCount = 0;
+    private int[] blockX = new int[16], blockY = new int[16], blockZ = new int[16];
+    private long[] keys = new long[64];
+    private int[] slots = new int[64];
+    private float[] mass = new float[0];
+    private float[] momentumX = new float[0], momentumY = new float[0], momentumZ = new float[0];
+
+    public SparseBlockGrid() {
+        Arrays.fill(slots, -1);
+    }
+
+    public static int cellIndex(int localX, int localY, int localZ) {
+        return (localZ << (2 * BLOCK_BITS)) | (localY << BLOCK_BITS) | localX;
+    }
+
+    public void clear() {
+        blockCount = 0;
+        Arrays.fill(slots, -1);
+    }
+
+    /**
+     * Finds a block, allocating and zeroing it if it isn't active yet
+     *
+     * @return The block's index
+     */
+    public int activate(int bx, int by, int bz) {
+        long key = key(bx, by, bz);
+        int slot = slotOf(key);
+        if (slots[slot] >= 0)
+            return slots[slot];
+
+        if (blockCount == blockX.length) {
+            int capacity = blockCount * 2;
+            blockX = Arrays.copyOf(blockX, capacity);
+            blockY = Arrays.copyOf(blockY, capacity);
+            blockZ = Arrays.copyOf(blockZ, capacity);
+        }
+        if (mass.length < (blockCount + 1) * CELLS) {
+            int capacity = blockX.length * CELLS;
+            mass = Arrays.copyOf(mass, capacity);
+            momentumX = Arrays.copyOf(momentumX, capacity);
+            momentumY = Arrays.copyOf(momentumY, capacity);
+            momentumZ = Arrays.copyOf(momentumZ, capacity);
+        }
+        int block = blockCount++;
+        blockX[block] = bx;
+        blockY[block] = by;
+        blockZ[block] = bz;
+        int start = block * CELLS;
+        Arrays.fill(mass, start, start + CELLS, 0);
+        Arrays.fill(momentumX, start, start + CELLS, 0);
+        Arrays.fill(momentumY, start, start + CELLS, 0);
+        Arrays.fill(momentumZ, start, start + CELLS, 0);
+
+        keys[slot] = key;
+        slots[slot] = block;
+        // Keep the table at most half full
+        if (blockCount * 2 > slots.length)
+            rehash(slots.length * 2);
+        return block;
+    }
+
+    /**
+     * @return The index of an active block, or -1 if it isn't active
+     */
+    public int find(int bx, int by, int bz) {
+        return slots[slotOf(key(bx, by, bz))];
+    }
+
+    public int getBlockCount() {
+        return blockCount;
+    }
+
+    public int getBlockX(int block) {
+        return blockX[block];
+    }
+
+    public int getBlockY(int block) {
+        return blockY[block];
+    }
+
+    public int getBlockZ(int block) {
+        return blockZ[block];
+    }
+
+    public float[] getMass() {
+        return mass;
+    }
+
+    public float[] getMomentumX() {
+        return momentumX;
+    }
+
+    public float[] getMomentumY() {
+        return momentumY;
+    }
+
+    public float[] getMomentumZ() {
+        return momentumZ;
+    }
+
+    private static long key(int bx, int by, int bz) {
+        return ((long) (bx + (1 << 20)) << 42) | ((long) (by + (1 << 20)) << 21) | (bz + (1 << 20));
+    }
+
+    /**
+     * The slot holding the key, or the empty slot it would go in
+     */
+    private int slotOf(long key) {
+        int mask = slots.length - 1;
+        long h = key * 0x9E3779B97F4A7C15L;
+        int slot = (int) (h >>> 40) & mask;
+        while (slots[slot] >= 0 && keys[slot] != key)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldSlots = slots;
+        keys = new long[capacity];
+        slots = new int[capacity];
+        Arrays.fill(slots, -1);
+        for (int i = 0; i < oldSlots.length; i++) {
+            if (oldSlots[i] >= 0) {
+                int slot = slotOf(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                slots[slot] = oldSlots[i];
+            }
+        }
+    }
+
+}
@@ -0,0 +1,376 @@
+package physics;
+
+import org.joml.Vector3f;
+import util.IntArrayList;
+
+/**
+ * Collides particles against the triangles in a {@link TriangleGrid}.
+ *
+ * <p>
+ * Particles which move less than {@link #setCcdThreshold(float) a fraction of their radius} in a step can't
+ * skip over a triangle, so they just get a discrete overlap test at their new position. Faster particles are
+ * swept against the triangles instead (continuous collision detection), so they can't tunnel through thin
+ * geometry. Either way, the grid culls the candidate triangles to the cells overlapping the particle's (swept)
+ * bounds, so CCD only costs anything for the fast-moving particles.
+ * </p>
+ */
+public class TriangleCollision {
+
+    /**
+     * How many times a swept particle may hit something and slide along it in a single step
+     */
+    private static final int MAX_SWEEPS = 3;
+    /**
+     * How far particles are kept from the surface after a swept hit, to stop them starting the next step in contact
+     */
+    private static final float SKIN = 1e-4f;
+
+    private final TriangleGrid grid;
+    private final IntArrayList candidates = new IntArrayList();
+
+    private float ccdThreshold = 0.5f;
+    private float restitution = 0.4f;
+
+    private int sweptCount = 0;
+
+    // Scratch output of the geometric queries, to avoid allocating per triangle
+    private float hitNx, hitNy, hitNz;
+    private float closestX, closestY, closestZ;
+
+    public TriangleCollision(TriangleGrid grid) {
+        this.grid = grid;
+    }
+
+    /**
+     * Sets the displacement per step, as a fraction of the particle's radius, above which the particle is swept
+     */
+    public void setCcdThreshold(float ccdThreshold) {
+        this.ccdThreshold = ccdThreshold;
+    }
+
+    public float getCcdThreshold() {
+        return ccdThreshold;
+    }
+
+    /**
+     * Sets the fraction of the normal velocity kept (and reversed) on impact
+     */
+    public void setRestitution(float restitution) {
+        this.restitution = restitution;
+    }
+
+    /**
+     * The number of particles which were swept since the last call to this method
+     */
+    public int pollSweptCount() {
+        int count = sweptCount;
+        sweptCount = 0;
+        return count;
+    }
+
+    /**
+     * Moves the particle by the given displacement, stopping it at (and bouncing it off) any triangles in the way
+     */
+    public void move(Particle p, Vector3f displacement) {
+        float r = p.getRadius();
+        float threshold = ccdThreshold * r;
+        if (grid.getTriangleCount() == 0) {
+            p.position.add(displacement);
+            return;
+        }
+
+        if (displacement.lengthSquared() > threshold * threshold) {
+            sweptCount++;
+            float dx = displacement.x, dy = displacement.y, dz = displacement.z;
+            for (int sweep = 0; sweep < MAX_SWEEPS && (dx != 0 || dy != 0 || dz != 0); sweep++) {
+                float t = sweep(p.position.x, p.position.y, p.position.z, dx, dy, dz, r);
+                if (t > 1) {
+                    p.position.add(dx, dy, dz);
+                    break;
+                }
+
+                // Move up to the contact, then carry on with what's left of the displacement, minus the part into the surface
+                p.position.add(dx * t + hitNx * SKIN, dy * t + hitNy * SKIN, dz * t + hitNz * SKIN);
+                bounce(p.velocity, hitNx, hitNy, hitNz);
+                float rest = 1 - t;
+                dx *= rest;
+                dy *= rest;
+                dz *= rest;
+                float into = dx * hitNx + dy * hitNy + dz * hitNz;
+                if (into < 0) {
+                    dx -= into * hitNx;
+                    dy -= into * hitNy;
+                    dz -= into * hitNz;
+                }
+            }
+        } else {
+            p.position.add(displacement);
+        }
+
+        resolveOverlaps(p, r);
+    }
+
+    /**
+     * Pushes the particle out of any triangles it overlaps at its current position
+     */
+    private void resolveOverlaps(Particle p, float r) {
+        Vector3f pos = p.position;
+        candidates.clear();
+        int count = grid.query(pos.x - r, pos.y - r, pos.z - r, pos.x + r, pos.y + r, pos.z + r, candidates);
+        float[] v = grid.getVertices();
+        int[] tris = candidates.elements();
+        for (int i = 0; i < count; i++) {
+            closestPoint(pos.x, pos.y, pos.z, v, tris[i] * 9);
+            float nx = pos.x - closestX, ny = pos.y - closestY, nz = pos.z - closestZ;
+            float distSq = nx * nx + ny * ny + nz * nz;
+            if (distSq >= r * r || distSq == 0)
+                continue;
+            float dist = (float) Math.sqrt(distSq);
+            nx /= dist;
+            ny /= dist;
+            nz /= dist;
+            pos.add(nx * (r - dist), ny * (r - dist), nz * (r - dist));
+            bounce(p.velocity, nx, ny, nz);
+        }
+    }
+
+    private void bounce(Vector3f velocity, float nx, float ny, float nz) {
+        float vn = velocity.x * nx + velocity.y * ny + velocity.z * nz;
+        if (vn < 0) {
+            float impulse = -(1 + restitution) * vn;
+            velocity.add(nx * impulse, ny * impulse, nz * impulse);
+        }
+    }
+
+    /**
+     * Sweeps a sphere against every candidate triangle along its path.
+     *
+     * @return The earliest time of impact in [0, 1], or infinity if nothing is hit. The contact normal is left in hitN.
+     */
+    private float sweep(float px, float py, float pz, float dx, float dy, float dz, float r) {
+        candidates.clear();
+        int count = grid.query(
+                Math.min(px, px + dx) - r, Math.min(py, py + dy) - r, Math.min(pz, pz + dz) - r,
+                Math.max(px, px + dx) + r, Math.max(py, py + dy) + r, Math.max(pz, pz + dz) + r,
+                candidates);
+
+        float[] v = grid.getVertices();
+        int[] tris = candidates.elements();
+        float best = Float.POSITIVE_INFINITY;
+        float nx = 0, ny = 0, nz = 0;
+        for (int i = 0; i < count; i++) {
+            float t = sweepTriangle(px, py, pz, dx, dy, dz, r, v, tris[i] * 9);
+            if (t < best) {
+                best = t;
+                nx = hitNx;
+                ny = hitNy;
+                nz = hitNz;
+            }
+        }
+        hitNx = nx;
+        hitNy = ny;
+        hitNz = nz;
+        return best;
+    }
+
+    /**
+     * Sweeps a sphere with centre p and radius r along d against the triangle starting at offset o in v. Equivalently,
+     * casts the ray p + td against the triangle inflated by r: first its offset face, then the cylinders around its
+     * edges and the spheres around its corners.
+     *
+     * @return The time of impact in [0, 1], or infinity if there is none. The contact normal is left in hitN.
+     */
+    private float sweepTriangle(float px, float py, float pz, float dx, float dy, float dz, float r, float[] v, int o) {
+        float ax = v[o], ay = v[o + 1], az = v[o + 2];
+        float bx = v[o + 3], by = v[o + 4], bz = v[o + 5];
+        float cx = v[o + 6], cy = v[o + 7], cz = v[o + 8];
+
+        float e1x = bx - ax, e1y = by - ay, e1z = bz - az;
+        float e2x = cx - ax, e2y = cy - ay, e2z = cz - az;
+        float nx = e1y * e2z - e1z * e2y;
+        float ny = e1z * e2x - e1x * e2z;
+        float nz = e1x * e2y - e1y * e2x;
+        float nLen = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+
+        if (nLen > 1e-12f) {
+            nx /= nLen;
+            ny /= nLen;
+            nz /= nLen;
+            float dist = (px - ax) * nx + (py - ay) * ny + (pz - az) * nz;
+            float side = dist < 0 ? -1 : 1;
+            dist *= side;
+            float dn = (dx * nx + dy * ny + dz * nz) * side;
+
+            if (dist >= r) {
+                // Not touching the plane yet, so the first contact (if any) is with the plane, within reach this step
+                if (dn >= 0 || dist - r > -dn)
+                    return Float.POSITIVE_INFINITY;
+                float t = (dist - r) / -dn;
+                float qx = px + dx * t - nx * side * r;
+                float qy = py + dy * t - ny * side * r;
+                float qz = pz + dz * t - nz * side * r;
+                if (insideTriangle(qx, qy, qz, ax, ay, az, bx, by, bz, cx, cy, cz, nx, ny, nz)) {
+                    hitNx = nx * side;
+                    hitNy = ny * side;
+                    hitNz = nz * side;
+                    return t;
+                }
+            }
+            // Otherwise an existing face overlap is left to the discrete pass, and only edges and corners can be hit
+        }
+
+        float best = Float.POSITIVE_INFINITY;
+        best = Math.min(best, sweepEdge(px, py, pz, dx, dy, dz, r, ax, ay, az, bx, by, bz));
+        best = Math.min(best, sweepEdge(px, py, pz, dx, dy, dz, r, bx, by, bz, cx, cy, cz));
+        best = Math.min(best, sweepEdge(px, py, pz, dx, dy, dz, r, cx, cy, cz, ax, ay, az));
+        best = Math.min(best, sweepPoint(px, py, pz, dx, dy, dz, r, ax, ay, az));
+        best = Math.min(best, sweepPoint(px, py, pz, dx, dy, dz, r, bx, by, bz));
+        best = Math.min(best, sweepPoint(px, py, pz, dx, dy, dz, r, cx, cy, cz));
+        if (best > 1)
+            return Float.POSITIVE_INFINITY;
+
+        float hx = px + dx * best, hy = py + dy * best, hz = pz + dz * best;
+        closestPoint(hx, hy, hz, v, o);
+        float hnx = hx - closestX, hny = hy - closestY, hnz = hz - closestZ;
+        float hnLen = (float) Math.sqrt(hnx * hnx + hny * hny + hnz * hnz);
+        if (hnLen == 0)
+            return Float.POSITIVE_INFINITY;
+        hitNx = hnx / hnLen;
+        hitNy = hny / hnLen;
+        hitNz = hnz / hnLen;
+        return best;
+    }
+
+    /**
+     * Ray p + td against the sphere of radius r around point a. Rays starting inside are ignored.
+     */
+    private static float sweepPoint(float px, float py, float pz, float dx, float dy, float dz, float r, float ax, float ay, float az) {
+        float mx = px - ax, my = py - ay, mz = pz - az;
+        float a = dx * dx + dy * dy + dz * dz;
+        float b = mx * dx + my * dy + mz * dz;
+        float c = mx * mx + my * my + mz * mz - r * r;
+        if (c < 0 || b >= 0 || a == 0)
+            return Float.POSITIVE_INFINITY;
+        float disc = b * b - a * c;
+        if (disc < 0)
+            return Float.POSITIVE_INFINITY;
+        float t = (-b - (float) Math.sqrt(disc)) / a;
+        return t >= 0 ? t : Float.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Ray p + td against the infinite cylinder of radius r around the edge ab, only accepting hits alongside the
+     * segment itself. Rays starting inside, or running parallel to the edge, are ignored (the corners catch those).
+     */
+    private static float sweepEdge(float px, float py, float pz, float dx, float dy, float dz, float r,
+                                   float ax, float ay, float az, float bx, float by, float bz) {
+        float ex = bx - ax, ey = by - ay, ez = bz - az;
+        float mx = px - ax, my = py - ay, mz = pz - az;
+        float ee = ex * ex + ey * ey + ez * ez;
+        float ed = ex * dx + ey * dy + ez * dz;
+        float em = ex * mx + ey * my + ez * mz;
+        float dd = dx * dx + dy * dy + dz * dz;
+        float dm = dx * mx + dy * my + dz * mz;
+        float mm = mx * mx + my * my + mz * mz;
+
+        float a = ee * dd - ed * ed;
+        float b = ee * dm - ed * em;
+        float c = ee * (mm - r * r) - em * em;
+        if (ee == 0 || c < 0 || b >= 0 || a <= 1e-12f * ee * dd)
+            return Float.POSITIVE_INFINITY;
+        float disc = b * b - a * c;
+        if (disc < 0)
+            return Float.POSITIVE_INFINITY;
+        float t = (-b - (float) Math.sqrt(disc)) / a;
+        if (t < 0)
+            return Float.POSITIVE_INFINITY;
+        float s = (em + t * ed) / ee;
+        return s >= 0 && s <= 1 ? t : Float.POSITIVE_INFINITY;
+    }
+
+    private static boolean insideTriangle(float qx, float qy, float qz,
+                                          float ax, float ay, float az, float bx, float by, float bz, float cx, float cy, float cz,
+                                          float nx, float ny, float nz) {
+        return edgeSide(qx, qy, qz, ax, ay, az, bx, by, bz, nx, ny, nz) >= 0
+                && edgeSide(qx, qy, qz, bx, by, bz, cx, cy, cz, nx, ny, nz) >= 0
+                && edgeSide(qx, qy, qz, cx, cy, cz, ax, ay, az, nx, ny, nz) >= 0;
+    }
+
+    /**
+     * ((b - a) x (q - a)) . n, which is non-negative when q is on the inside of the edge ab
+     */
+    private static float edgeSide(float qx, float qy, float qz, float ax, float ay, float az, float bx, float by, float bz,
+                                  float nx, float ny, float nz) {
+        float ex = bx - ax, ey = by - ay, ez = bz - az;
+        float wx = qx - ax, wy = qy - ay, wz = qz - az;
+        return (ey * wz - ez * wy) * nx + (ez * wx - ex * wz) * ny + (ex * wy - ey * wx) * nz;
+    }
+
+    /**
+     * Finds the closest point to p on the triangle starting at offset o in v, leaving it in closest.
+     * This is the region-based method from Ericson's Real-Time Collision Detection.
+     */
+    private void closestPoint(float px, float py, float pz, float[] v, int o) {
+        float ax = v[o], ay = v[o + 1], az = v[o + 2];
+        float abx = v[o + 3] - ax, aby = v[o + 4] - ay, abz = v[o + 5] - az;
+        float acx = v[o + 6] - ax, acy = v[o + 7] - ay, acz = v[o + 8] - az;
+        float apx = px - ax, apy = py - ay, apz = pz - az;
+
+        float d1 = abx * apx + aby * apy + abz * apz;
+        float d2 = acx * apx + acy * apy + acz * apz;
+        if (d1 <= 0 && d2 <= 0) {
+            setClosest(ax, ay, az);
+            return;
+        }
+
+        float bpx = px - v[o + 3], bpy = py - v[o + 4], bpz = pz - v[o + 5];
+        float d3 = abx * bpx + aby * bpy + abz * bpz;
+        float d4 = acx * bpx + acy * bpy + acz * bpz;
+        if (d3 >= 0 && d4 <= d3) {
+            setClosest(v[o + 3], v[o + 4], v[o + 5]);
+            return;
+        }
+
+        float vc = d1 * d4 - d3 * d2;
+        if (vc <= 0 && d1 >= 0 && d3 <= 0) {
+            float t = d1 / (d1 - d3);
+            setClosest(ax + abx * t, ay + aby * t, az + abz * t);
+            return;
+        }
+
+        float cpx = px - v[o + 6], cpy = py - v[o + 7], cpz = pz - v[o + 8];
+        float d5 = abx * cpx + aby * cpy + abz * cpz;
+        float d6 = acx * cpx + acy * cpy + acz * cpz;
+        if (d6 >= 0 && d5 <= d6) {
+            setClosest(v[o + 6], v[o + 7], v[o + 8]);
+            return;
+        }
+
+        float vb = d5 * d2 - d1 * d6;
+        if (vb <= 0 && d2 >= 0 && d6 <= 0) {
+            float t = d2 / (d2 - d6);
+            setClosest(ax + acx * t, ay + acy * t, az + acz * t);
+            return;
+        }
+
+        float va = d3 * d6 - d5 * d4;
+        if (va <= 0 && (d4 - d3) >= 0 && (d5 - d6) >= 0) {
+            float t = (d4 - d3) / ((d4 - d3) + (d5 - d6));
+            float bx = v[o + 3], by = v[o + 4], bz = v[o + 5];
+            setClosest(bx + (v[o + 6] - bx) * t, by + (v[o + 7] - by) * t, bz + (v[o + 8] - bz) * t);
+            return;
+        }
+
+        float denom = 1 / (va + vb + vc);
+        float s = vb * denom;
+        float t = vc * denom;
+        setClosest(ax + abx * s + acx * t, ay + aby * s + acy * t, az + abz * s + acz * t);
+    }
+
+    private void setClosest(float x, float y, float z) {
+        closestX = x;
+        closestY = y;
+        closestZ = z;
+    }
+
+}
@@ -0,0 +1,220 @@
+package physics;
+
+import org.joml.Matrix4fc;
+import org.joml.Vector3f;
+import util.FloatArrayList;
+import util.IntArrayList;
+
+import java.util.Arrays;
+
+/**
+ * A uniform grid over a soup of world-space triangles, used to cull the triangles a particle could
+ * possibly touch down to the handful in the cells it overlaps.
+ *
+ * <p>
+ * Triangles are stored flat, 9 floats (3 corners of x, y, z) per triangle, and the cells are stored
+ * in CSR form: the triangles of cell <tt>c</tt> are <tt>cellTris[cellStart[c]] .. cellTris[cellStart[c + 1] - 1]</tt>.
+ * The grid is rebuilt lazily on the next query after triangles were added, so a deforming mesh can call
+ * {@link #clear()} and re-add its triangles every tick.
+ * </p><p>
+ * Queries reuse internal scratch state, so one grid must not be queried from multiple threads at once.
+ * </p>
+ */
+public class TriangleGrid {
+
+    /**
+     * Upper bound on the number of cells, so a few huge triangles can't make the grid explode in size
+     */
+    private static final int MAX_CELLS = 1 << 21;
+
+    private final FloatArrayList vertices = new FloatArrayList(9 * 64);
+    private boolean dirty = false;
+
+    private float cellSize;
+    private float originX, originY, originZ;
+    private int dimX, dimY, dimZ;
+    private int[] cellStart = new int[1];
+    private int[] cellTris = new int[0];
+
+    /**
+     * Stamp per triangle of the last query that returned it, so triangles spanning multiple cells are only returned once
+     */
+    private int[] visited = new int[0];
+    private int queryStamp = 0;
+
+    /**
+     * Adds every triangle of the given mesh, transformed into world space
+     */
+    public void addMesh(Mesh mesh, Matrix4fc transform) {
+        Vector3f a = new Vector3f();
+        Vector3f b = new Vector3f();
+        Vector3f c = new Vector3f();
+        for (int i = 0; i < mesh.getTriangleCount(); i++) {
+            transform.transformPosition(mesh.getPosition(mesh.getTriangleVertex(i, 0)), a);
+            transform.transformPosition(mesh.getPosition(mesh.getTriangleVertex(i, 1)), b);
+            transform.transformPosition(mesh.getPosition(mesh.getTriangleVertex(i, 2)), c);
+            addTriangle(a.x, a.y, a.z, b.x, b.y, b.z, c.x, c.y, c.z);
+        }
+    }
+
+    public void addTriangle(float ax, float ay, float az, float bx, float by, float bz, float cx, float cy, float cz) {
+        vertices.add(ax, ay, az);
+        vertices.add(bx, by, bz);
+        vertices.add(cx, cy, cz);
+        dirty = true;
+    }
+
+    public void clear() {
+        vertices.clear();
+        dirty = true;
+    }
+
+    public int getTriangleCount() {
+        return vertices.size() / 9;
+    }
+
+    /**
+     * The flat triangle data, 9 floats per triangle. Triangle <tt>i</tt> starts at <tt>9 * i</tt>.
+     */
+    public float[] getVertices() {
+        return vertices.elements();
+    }
+
+    /**
+     * Adds the index of every triangle in the cells overlapping the given box to <tt>out</tt>, each at most once.
+     * The triangles are only candidates, they don't necessarily overlap the box themselves.
+     *
+     * @return The number of triangles added
+     */
+    public int query(float minX, float minY, float minZ, float maxX, float maxY, float maxZ, IntArrayList out) {
+        if (dirty)
+            build();
+        if (getTriangleCount() == 0)
+            return 0;
+
+        int x0 = cellX(minX), x1 = cellX(maxX);
+        int y0 = cellY(minY), y1 = cellY(maxY);
+        int z0 = cellZ(minZ), z1 = cellZ(maxZ);
+
+        // the box is entirely outside the grid on some axis
+        if (x1 < 0 || y1 < 0 || z1 < 0 || x0 >= dimX || y0 >= dimY || z0 >= dimZ)
+            return 0;
+
+        x0 = Math.max(x0, 0); x1 = Math.min(x1, dimX - 1);
+        y0 = Math.max(y0, 0); y1 = Math.min(y1, dimY - 1);
+        z0 = Math.max(z0, 0); z1 = Math.min(z1, dimZ - 1);
+
+        if (++queryStamp == 0) {
+            Arrays.fill(visited, 0);
+            queryStamp = 1;
+        }
+
+        int added = 0;
+        for (int z = z0; z <= z1; z++) {
+            for (int y = y0; y <= y1; y++) {
+                int row = (z * dimY + y) * dimX;
+                for (int x = x0; x <= x1; x++) {
+                    int cell = row + x;
+                    for (int i = cellStart[cell]; i < cellStart[cell + 1]; i++) {
+                        int tri = cellTris[i];
+                        if (visited[tri] != queryStamp) {
+                            visited[tri] = queryStamp;
+                            out.add(tri);
+                            added++;
+                        }
+                    }
+                }
+            }
+        }
+        return added;
+    }
+
+    private int cellX(float x) {
+        return (int) Math.floor((x - originX) / cellSize);
+    }
+
+    private int cellY(float y) {
+        return (int) Math.floor((y - originY) / cellSize);
+    }
+
+    private int cellZ(float z) {
+        return (int) Math.floor((z - originZ) / cellSize);
+    }
+
+    private void build() {
+        dirty = false;
+        int triCount = getTriangleCount();
+        if (visited.length < triCount)
+            visited = new int[triCount];
+        if (triCount == 0) {
+            cellStart = new int[1];
+            cellTris = new int[0];
+            dimX = dimY = dimZ = 0;
+            return;
+        }
+
+        float[] v = vertices.elements();
+        float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY, minZ = Float.POSITIVE_INFINITY;
+        float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY, maxZ = Float.NEGATIVE_INFINITY;
+        double extentSum = 0;
+        for (int t = 0; t < triCount; t++) {
+            int o = t * 9;
+            float tMinX = Math.min(v[o], Math.min(v[o + 3], v[o + 6])), tMaxX = Math.max(v[o], Math.max(v[o + 3], v[o + 6]));
+            float tMinY = Math.min(v[o + 1], Math.min(v[o + 4], v[o + 7])), tMaxY = Math.max(v[o + 1], Math.max(v[o + 4], v[o + 7]));
+            float tMinZ = Math.min(v[o + 2], Math.min(v[o + 5], v[o + 8])), tMaxZ = Math.max(v[o + 2], Math.max(v[o + 5], v[o + 8]));
+            minX = Math.min(minX, tMinX); maxX = Math.max(maxX, tMaxX);
+            minY = Math.min(minY, tMinY); maxY = Math.max(maxY, tMaxY);
+            minZ = Math.min(minZ, tMinZ); maxZ = Math.max(maxZ, tMaxZ);
+            extentSum += Math.max(tMaxX - tMinX, Math.max(tMaxY - tMinY, tMaxZ - tMinZ));
+        }
+
+        // cells roughly the size of an average triangle, but never so small that we exceed the cell budget
+        float sizeX = maxX - minX, sizeY = maxY - minY, sizeZ = maxZ - minZ;
+        cellSize = Math.max((float) (extentSum / triCount), 1e-3f);
+        float minCellSize = (float) Math.cbrt((double) Math.max(sizeX, 1e-3f) * Math.max(sizeY, 1e-3f) * Math.max(sizeZ, 1e-3f) / MAX_CELLS);
+        cellSize = Math.max(cellSize, minCellSize);
+        originX = minX;
+        originY = minY;
+        originZ = minZ;
+        dimX = Math.min((int) (sizeX / cellSize) + 1, MAX_CELLS);
+        dimY = Math.min((int) (sizeY / cellSize) + 1, MAX_CELLS / dimX);
+        dimZ = Math.max(Math.min((int) (sizeZ / cellSize) + 1, MAX_CELLS / (dimX * dimY)), 1);
+
+        // count, prefix sum, then fill
+        int cellCount = dimX * dimY * dimZ;
+        int[] counts = new int[cellCount + 1];
+        for (int pass = 0; pass < 2; pass++) {
+            for (int t = 0; t < triCount; t++) {
+                int o = t * 9;
+                int x0 = clampCell(cellX(Math.min(v[o], Math.min(v[o + 3], v[o + 6]))), dimX);
+                int x1 = clampCell(cellX(Math.max(v[o], Math.max(v[o + 3], v[o + 6]))), dimX);
+                int y0 = clampCell(cellY(Math.min(v[o + 1], Math.min(v[o + 4], v[o + 7]))), dimY);
+                int y1 = clampCell(cellY(Math.max(v[o + 1], Math.max(v[o + 4], v[o + 7]))), dimY);
+                int z0 = clampCell(cellZ(Math.min(v[o + 2], Math.min(v[o + 5], v[o + 8]))), dimZ);
+                int z1 = clampCell(cellZ(Math.max(v[o + 2], Math.max(v[o + 5], v[o + 8]))), dimZ);
+                for (int z = z0; z <= z1; z++) {
+                    for (int y = y0; y <= y1; y++) {
+                        for (int x = x0; x <= x1; x++) {
+                            int cell = (z * dimY + y) * dimX + x;
+                            if (pass == 0)
+                                counts[cell + 1]++;
+                            else
+                                cellTris[counts[cell]++] = t;
+                        }
+                    }
+                }
+            }
+            if (pass == 0) {
+                for (int c = 0; c < cellCount; c++)
+                    counts[c + 1] += counts[c];
+                cellStart = counts.clone();
+                cellTris = new int[counts[cellCount]];
+            }
+        }
+    }
+
+    private static int clampCell(int cell, int dim) {
+        return cell < 0 ? 0 : cell >= dim ? dim - 1 : cell;
+    }
+
+}
@@ -0,0 +1,151 @@
+package physics;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Keeps smooth vertex normals up to date as a triangle mesh deforms, recomputing only around the triangles which
+ * actually turned.
+ *
+ * <p>
+ * Which triangles touch each vertex is worked out once, in compressed sparse row form: vertex <tt>v</tt>'s triangles
+ * are <tt>faces[offsets[v]]</tt> up to <tt>faces[offsets[v + 1]]</tt>. An update first finds every triangle's
+ * area-weighted normal in parallel, marking the ones which changed by more than the tolerance since they were last
+ * used. Then each vertex with a marked triangle sums its own triangles' normals, again in parallel. Each vertex only
+ * reads its triangles and writes itself, so nothing needs atomics or locks.
+ * </p>
+ */
+public class VertexNormals {
+
+    /**
+     * Triangles or vertices per parallel task
+     */
+    private static final int CHUNK = 2048;
+
+    private final int vertexCount;
+    private final int[] triangles;
+    private final int[] offsets;
+    private final int[] faces;
+
+    private final float[] faceNormals;
+    private final boolean[] faceMoved;
+    private final boolean[] vertexChanged;
+    private final float[] normals;
+    private float tolerance = 1e-3f;
+    private boolean first = true;
+
+    /**
+     * @param triangles The triangles' vertex indices, 3 per triangle
+     */
+    public VertexNormals(int vertexCount, int[] triangles) {
+        this.vertexCount = vertexCount;
+        this.triangles = triangles;
+        int triangleCount = triangles.length / 3;
+
+        offsets = new int[vertexCount + 1];
+        for (int index : triangles)
+            offsets[index + 1]++;
+        for (int v = 0; v < vertexCount; v++)
+            offsets[v + 1] += offsets[v];
+        faces = new int[triangles.length];
+        int[] next = new int[vertexCount];
+        System.arraycopy(offsets, 0, next, 0, vertexCount);
+        for (int i = 0; i < triangles.length; i++)
+            faces[next[triangles[i]]++] = i / 3;
+
+        faceNormals = new float[triangleCount * 3];
+        faceMoved = new boolean[triangleCount];
+        vertexChanged = new boolean[vertexCount];
+        normals = new float[vertexCount * 3];
+    }
+
+    /**
+     * Sets how far a triangle's normal has to turn, relative to its length, before its vertices are recomputed
+     */
+    public void setTolerance(float tolerance) {
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * The unit vertex normals, as (x, y, z) at <tt>3 * vertex</tt>
+     */
+    public float[] getNormals() {
+        return normals;
+    }
+
+    /**
+     * Whether each vertex's normal changed in the last {@link #update(float[])}
+     */
+    public boolean[] getChanged() {
+        return vertexChanged;
+    }
+
+    /**
+     * Recomputes the normals of the vertices around any triangle which turned more than the tolerance
+     *
+     * @param positions The vertex positions, as (x, y, z) at <tt>3 * vertex</tt>
+     * @return Whether any normal changed
+     */
+    public boolean update(float[] positions) {
+        boolean all = first;
+        first = false;
+        float toleranceSquared = tolerance * tolerance;
+
+        int triangleCount = faceMoved.length;
+        boolean anyMoved = IntStream.range(0, (triangleCount + CHUNK - 1) / CHUNK).parallel().map(chunk -> {
+            int moved = 0;
+            int end = Math.min(triangleCount, (chunk + 1) * CHUNK);
+            for (int t = chunk * CHUNK; t < end; t++) {
+                int a = triangles[t * 3] * 3, b = triangles[t * 3 + 1] * 3, c = triangles[t * 3 + 2] * 3;
+                float ux = positions[b] - positions[a], uy = positions[b + 1] - positions[a + 1], uz = positions[b + 2] - positions[a + 2];
+                float vx = positions[c] - positions[a], vy = positions[c + 1] - positions[a + 1], vz = positions[c + 2] - positions[a + 2];
+                float nx = uy * vz - uz * vy, ny = uz * vx - ux * vz, nz = ux * vy - uy * vx;
+
+                int f = t * 3;
+                float ox = faceNormals[f], oy = faceNormals[f + 1], oz = faceNormals[f + 2];
+                float dx = nx - ox, dy = ny - oy, dz = nz - oz;
+                boolean turned = all || dx * dx + dy * dy + dz * dz > toleranceSquared * (ox * ox + oy * oy + oz * oz);
+                faceMoved[t] = turned;
+                if (turned) {
+                    // Only replaced once it's used, so slow drift still adds up to a change eventually
+                    faceNormals[f] = nx;
+                    faceNormals[f + 1] = ny;
+                    faceNormals[f + 2] = nz;
+                    moved++;
+                }
+            }
+            return moved;
+        }).sum() > 0;
+        if (!anyMoved) {
+            Arrays.fill(vertexChanged, false);
+            return false;
+        }
+
+        IntStream.range(0, (vertexCount + CHUNK - 1) / CHUNK).parallel().forEach(chunk -> {
+            int end = Math.min(vertexCount, (chunk + 1) * CHUNK);
+            for (int v = chunk * CHUNK; v < end; v++) {
+                boolean changed = false;
+                for (int i = offsets[v]; i < offsets[v + 1] && !changed; i++)
+                    changed = faceMoved[faces[i]];
+                vertexChanged[v] = changed;
+                if (!changed)
+                    continue;
+
+                float x = 0, y = 0, z = 0;
+                for (int i = offsets[v]; i < offsets[v + 1]; i++) {
+                    int f = faces[i] * 3;
+                    x += faceNormals[f];
+                    y += faceNormals[f + 1];
+                    z += faceNormals[f + 2];
+                }
+                float length = (float) Math.sqrt(x * x + y * y + z * z);
+                float scale = length > 0 ? 1 / length : 0;
+                normals[v * 3] = x * scale;
+                normals[v * 3 + 1] = y * scale;
+                normals[v * 3 + 2] = z * scale;
+            }
+        });
+        return true;
+    }
+
+}
@@ -0,0 +1,340 @@
+package physics.domain;
+
+import physics.ColliderSet;
+import util.FloatArrayList;
+import util.metrics.MetricsRegistry;
+import util.trace.Trace;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a particle simulation split across several local {@link DomainWorker worker} processes, for scenes too big
+ * for one JVM's heap or garbage collector.
+ *
+ * <p>
+ * Space is cut into slabs along x, one per worker, and each worker owns the particles in its slab. Workers exchange
+ * migrants and ghosts with their neighbours directly through {@link SharedRing rings} in shared memory, so nothing
+ * goes over a network and everything runs on one machine. The coordinator sends each tick's command and new
+ * particles, and gets back each worker's particle count and a histogram of its particles' x coordinates, from which
+ * it moves the boundaries towards equal counts per slab.
+ * </p><p>
+ * All particles have the same radius. The ring directory should be on a memory-backed file system, such as
+ * <tt>/dev/shm</tt> on Linux, or the rings will be written back to disk for no reason.
+ * </p>
+ */
+public class DomainCoordinator implements AutoCloseable {
+
+    private static final int TRACE_TICK = Trace.event("DomainCoordinator.tick");
+
+    /**
+     * How long to wait for a worker before deciding it's died
+     */
+    private static final long WORKER_TIMEOUT = 60_000;
+    /**
+     * The fraction of the way boundaries move towards balance each tick, so they don't oscillate
+     */
+    private static final float REBALANCE_RATE = 0.5f;
+
+    private final Path directory;
+    private final int workers;
+    private final ColliderSet colliders = new ColliderSet();
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private final List<String> jvmArgs = new ArrayList<>();
+
+    private float radius = 0.05f;
+    private float worldRadius = 50;
+
+    /**
+     * Worker i owns particles with boundaries[i] <= x < boundaries[i + 1]. The outermost are infinite.
+     */
+    private final float[] boundaries;
+    private final FloatArrayList[] pending;
+    private final int[] counts;
+    private final float[] histogram = new float[DomainWorker.HISTOGRAM_BINS];
+
+    private final List<Process> processes = new ArrayList<>();
+    private final List<SharedRing> rings = new ArrayList<>();
+    private SharedRing[] commands, reports;
+    private int tick = 0;
+
+    private boolean collectingPositions = false;
+    private final FloatArrayList positions = new FloatArrayList();
+    private final FloatArrayList report = new FloatArrayList();
+
+    /**
+     * @param directory Where the ring files go
+     * @param workers The number of worker processes
+     */
+    public DomainCoordinator(Path directory, int workers) {
+        if (workers < 1)
+            throw new IllegalArgumentException("Need at least one worker");
+        this.directory = directory;
+        this.workers = workers;
+        boundaries = new float[workers + 1];
+        pending = new FloatArrayList[workers];
+        for (int i = 0; i < workers; i++)
+            pending[i] = new FloatArrayList();
+        counts = new int[workers];
+    }
+
+    /**
+     * Colliders to send to the workers when they {@link #start() start}
+     */
+    public ColliderSet getColliders() {
+        return colliders;
+    }
+
+    /**
+     * Tick timings, particle counts and load imbalance, recorded while enabled
+     */
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    public void setRadius(float radius) {
+        this.radius = radius;
+    }
+
+    /**
+     * Particles further than this from the origin are removed
+     */
+    public void setWorldRadius(float worldRadius) {
+        this.worldRadius = worldRadius;
+    }
+
+    /**
+     * Extra arguments for the workers' JVMs, such as a heap size
+     */
+    public void addJvmArgs(String... args) {
+        Collections.addAll(jvmArgs, args);
+    }
+
+    /**
+     * Whether each tick fetches every particle's position into {@link #getPositions()}, which is slow
+     */
+    public void setCollectingPositions(boolean collectingPositions) {
+        this.collectingPositions = collectingPositions;
+    }
+
+    /**
+     * Every particle's position as of the last tick, 3 floats each, if collecting positions
+     */
+    public FloatArrayList getPositions() {
+        return positions;
+    }
+
+    /**
+     * The number of particles as of the last tick, not counting any added since
+     */
+    public long getParticleCount() {
+        long total = 0;
+        for (int count : counts)
+            total += count;
+        return total;
+    }
+
+    public int[] getParticleCounts() {
+        return counts.clone();
+    }
+
+    /**
+     * The x coordinates between the slabs, starting with -infinity and ending with infinity
+     */
+    public float[] getBoundaries() {
+        return boundaries.clone();
+    }
+
+    /**
+     * Creates the rings and launches the workers, which start with slabs of equal width across the world
+     */
+    public void start() throws IOException {
+        if (commands != null)
+            throw new IllegalStateException("Already started");
+        Files.createDirectories(directory);
+        commands = new SharedRing[workers];
+        reports = new SharedRing[workers];
+        for (int i = 0; i < workers; i++) {
+            commands[i] = createRing(DomainWorker.commandRing(directory, i));
+            reports[i] = createRing(DomainWorker.reportRing(directory, i));
+            // Neighbour rings are only used by the workers, but are created here so they exist before anyone opens them
+            if (i < workers - 1) {
+                createRing(DomainWorker.eastRing(directory, i));
+                createRing(DomainWorker.westRing(directory, i + 1));
+            }
+        }
+
+        boundaries[0] = Float.NEGATIVE_INFINITY;
+        boundaries[workers] = Float.POSITIVE_INFINITY;
+        for (int i = 1; i < workers; i++)
+            boundaries[i] = -worldRadius + 2 * worldRadius * i / workers;
+
+        FloatArrayList init = new FloatArrayList();
+        init.add(radius);
+        init.add(worldRadius);
+        init.add(colliders.size());
+        float[] params = new float[ColliderSet.PARAM_COUNT];
+        for (int c = 0; c < colliders.size(); c++) {
+            init.add(colliders.getType(c));
+            colliders.getParams(c, params, 0);
+            for (float param : params)
+                init.add(param);
+        }
+
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        for (int i = 0; i < workers; i++) {
+            List<String> command = new ArrayList<>();
+            command.add(java);
+            command.addAll(jvmArgs);
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(DomainWorker.class.getName());
+            command.add(directory.toString());
+            command.add(Integer.toString(i));
+            command.add(Integer.toString(workers));
+            // Standard input stays a pipe, which closes if this process dies, so the worker knows to exit
+            processes.add(new ProcessBuilder(command)
+                    .redirectOutput(ProcessBuilder.Redirect.INHERIT)
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start());
+            commands[i].write(DomainWorker.INIT, tick, init.elements(), 0, init.size(), WORKER_TIMEOUT);
+        }
+    }
+
+    private SharedRing createRing(Path file) throws IOException {
+        SharedRing ring = SharedRing.create(file, DomainWorker.RING_BYTES);
+        rings.add(ring);
+        return ring;
+    }
+
+    /**
+     * Queues a particle to be sent to the worker whose slab it's in at the start of the next tick
+     */
+    public void addParticle(float x, float y, float z, float vx, float vy, float vz) {
+        if (commands == null)
+            throw new IllegalStateException("Not started");
+        int owner = 0;
+        while (x >= boundaries[owner + 1])
+            owner++;
+        pending[owner].add(x, y, z);
+        pending[owner].add(vx, vy, vz);
+    }
+
+    public void tick() {
+        if (commands == null)
+            throw new IllegalStateException("Not started");
+        Trace.begin(TRACE_TICK);
+        long start = System.nanoTime();
+
+        float collect = collectingPositions ? 1 : 0;
+        for (int i = 0; i < workers; i++) {
+            checkAlive(i);
+            if (!pending[i].isEmpty()) {
+                commands[i].writeAll(DomainWorker.PARTICLES, tick, pending[i], WORKER_TIMEOUT);
+                pending[i].clear();
+            }
+            float[] command = {boundaries[i], boundaries[i + 1], collect};
+            commands[i].write(DomainWorker.TICK, tick, command, 0, command.length, WORKER_TIMEOUT);
+        }
+
+        positions.clear();
+        Arrays.fill(histogram, 0);
+        long maxWorkerNanos = 0, migrants = 0, ghosts = 0;
+        for (int i = 0; i < workers; i++) {
+            if (collectingPositions)
+                reports[i].readAll(DomainWorker.POSITIONS, tick, positions, WORKER_TIMEOUT);
+            report.clear();
+            reports[i].read(DomainWorker.REPORT, tick, report, WORKER_TIMEOUT);
+            counts[i] = (int) report.get(0);
+            maxWorkerNanos = Math.max(maxWorkerNanos, (long) report.get(1));
+            migrants += (long) report.get(2);
+            ghosts += (long) report.get(3);
+            for (int b = 0; b < histogram.length; b++)
+                histogram[b] += report.get(DomainWorker.REPORT_HEADER + b);
+        }
+        rebalance();
+        tick++;
+
+        Trace.end(TRACE_TICK);
+        if (metrics.isEnabled()) {
+            long particles = getParticleCount();
+            int maxCount = 0;
+            for (int count : counts)
+                maxCount = Math.max(maxCount, count);
+            metrics.histogram("domain.tick.nanos").record(System.nanoTime() - start);
+            metrics.histogram("domain.worker.maxNanos").record(maxWorkerNanos);
+            metrics.histogram("domain.imbalancePercent").record(particles == 0 ? 100 : maxCount * 100L * workers / particles);
+            metrics.histogram("count.particles").record(particles);
+            metrics.histogram("count.migrants").record(migrants);
+            metrics.histogram("count.ghosts").record(ghosts);
+        }
+    }
+
+    private void checkAlive(int worker) {
+        if (!processes.get(worker).isAlive())
+            throw new IllegalStateException("Worker " + worker + " exited with " + processes.get(worker).exitValue());
+    }
+
+    /**
+     * Moves each inner boundary part of the way towards where the histogram says it would split the particles evenly
+     */
+    private void rebalance() {
+        long total = getParticleCount();
+        if (total == 0 || workers == 1)
+            return;
+        float binWidth = 2 * worldRadius / histogram.length;
+        // Slabs narrower than the ghost reach would need ghosts from more than one neighbour
+        float minWidth = radius * 4;
+
+        int bin = 0;
+        float below = 0;
+        for (int i = 1; i < workers; i++) {
+            float target = (float) total * i / workers;
+            while (bin < histogram.length - 1 && below + histogram[bin] < target)
+                below += histogram[bin++];
+            float fraction = histogram[bin] == 0 ? 0 : Math.min(1, (target - below) / histogram[bin]);
+            float balanced = -worldRadius + (bin + fraction) * binWidth;
+
+            float moved = boundaries[i] + (balanced - boundaries[i]) * REBALANCE_RATE;
+            if (i > 1)
+                moved = Math.max(moved, boundaries[i - 1] + minWidth);
+            boundaries[i] = moved;
+        }
+    }
+
+    /**
+     * Tells the workers to quit, waits for them, and deletes the rings
+     */
+    @Override
+    public void close() throws IOException {
+        if (commands != null) {
+            for (int i = 0; i < workers; i++) {
+                if (processes.size() > i && processes.get(i).isAlive())
+                    commands[i].write(DomainWorker.QUIT, tick, new float[0], 0, 0, WORKER_TIMEOUT);
+            }
+        }
+        for (Process process : processes) {
+            try {
+                if (!process.waitFor(10, TimeUnit.SECONDS))
+                    process.destroyForcibly();
+            } catch (InterruptedException e) {
+                process.destroyForcibly();
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (SharedRing ring : rings) {
+            ring.close();
+            Files.deleteIfExists(ring.getFile());
+        }
+        processes.clear();
+        rings.clear();
+    }
+
+}
@@ -0,0 +1,344 @@
+package physics.domain;
+
+import physics.ColliderSet;
+import physics.ParticleSeparator;
+import util.FloatArrayList;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * One process of a {@link DomainCoordinator domain-decomposed} particle simulation, owning the particles in a slab
+ * of space between two x boundaries.
+ *
+ * <p>
+ * Each tick the worker integrates its particles, hands any which have crossed a boundary to the neighbouring worker
+ * on that side, swaps ghost copies of the particles close enough to the boundaries to touch across them, pushes its
+ * own particles apart from each other and the ghosts, and reports back to the coordinator. Neighbours talk directly
+ * through {@link SharedRing rings}, one per direction, and every exchange goes eastwards (increasing x) in one pass
+ * then westwards in another, so a worker waiting on a full ring is always waiting on a neighbour which will get to it,
+ * and the exchange can't deadlock.
+ * </p><p>
+ * A particle moves at most one slab per tick, so one which lands further away, after a big rebalance say, catches up
+ * over the next few ticks.
+ * </p>
+ */
+public class DomainWorker {
+
+    // Message types
+    static final int INIT = 1;
+    static final int PARTICLES = 2;
+    static final int TICK = 3;
+    static final int QUIT = 4;
+    static final int POSITIONS = 5;
+    static final int REPORT = 6;
+    static final int MIGRANTS = 7;
+    static final int GHOSTS = 8;
+
+    static final int RING_BYTES = 1 << 24;
+    /**
+     * The number of bins in the reported histogram of particle x coordinates
+     */
+    static final int HISTOGRAM_BINS = 64;
+    /**
+     * Floats in a report before the histogram: particle count, step nanoseconds, migrants sent, ghosts received
+     */
+    static final int REPORT_HEADER = 4;
+
+    /**
+     * How long to wait on a neighbour before deciding something has gone wrong
+     */
+    private static final long NEIGHBOUR_TIMEOUT = 30_000;
+
+    private final int rank;
+    private final SharedRing commands, reports;
+    /**
+     * Rings to and from the neighbour on each side, or null at the ends
+     */
+    private final SharedRing toWest, fromWest, toEast, fromEast;
+
+    private final ColliderSet colliders = new ColliderSet();
+    private final ParticleSeparator separator = new ParticleSeparator();
+    private float g = -9.8f;
+    private final float TPS = 60f;
+    private float radius;
+    private float worldRadius;
+    private float westBound, eastBound;
+
+    // Own particles, then ghosts after them in positions only
+    private int count = 0;
+    private float[] positions = new float[0];
+    private float[] velocities = new float[0];
+
+    private final FloatArrayList message = new FloatArrayList();
+    private final FloatArrayList westGoing = new FloatArrayList();
+    private final FloatArrayList eastGoing = new FloatArrayList();
+
+    DomainWorker(Path directory, int rank, int workers) throws IOException {
+        this.rank = rank;
+        commands = SharedRing.open(commandRing(directory, rank));
+        reports = SharedRing.open(reportRing(directory, rank));
+        toWest = rank > 0 ? SharedRing.open(westRing(directory, rank)) : null;
+        fromWest = rank > 0 ? SharedRing.open(eastRing(directory, rank - 1)) : null;
+        toEast = rank < workers - 1 ? SharedRing.open(eastRing(directory, rank)) : null;
+        fromEast = rank < workers - 1 ? SharedRing.open(westRing(directory, rank + 1)) : null;
+    }
+
+    static Path commandRing(Path directory, int rank) {
+        return directory.resolve("commands-" + rank + ".ring");
+    }
+
+    static Path reportRing(Path directory, int rank) {
+        return directory.resolve("reports-" + rank + ".ring");
+    }
+
+    /**
+     * The ring from a worker to the worker on its east
+     */
+    static Path eastRing(Path directory, int rank) {
+        return directory.resolve("east-" + rank + ".ring");
+    }
+
+    /**
+     * The ring from a worker to the worker on its west
+     */
+    static Path westRing(Path directory, int rank) {
+        return directory.resolve("west-" + rank + ".ring");
+    }
+
+    /**
+     * Arguments: the directory of rings, this worker's rank, the number of workers
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3)
+            throw new IllegalArgumentException("Usage: DomainWorker <directory> <rank> <workers>");
+        watchParent();
+        DomainWorker worker = new DomainWorker(Paths.get(args[0]), Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+        try {
+            worker.run();
+        } finally {
+            worker.close();
+        }
+    }
+
+    /**
+     * Exits once standard input closes, which happens when the coordinator's process dies, so workers are never left
+     * behind waiting for commands which won't come
+     */
+    private static void watchParent() {
+        Thread watcher = new Thread(() -> {
+            try {
+                InputStream in = System.in;
+                while (in.read() != -1) ;
+            } catch (IOException ignored) {
+            }
+            System.exit(1);
+        }, "Parent watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    void run() {
+        while (true) {
+            message.clear();
+            int type = commands.read(message, Long.MAX_VALUE);
+            int tick = commands.getLastTick();
+            switch (type) {
+                case INIT:
+                    init(message);
+                    break;
+                case PARTICLES:
+                    // A full chunk means the run carries on
+                    if (message.size() >= commands.getMaxChunk())
+                        commands.readAll(PARTICLES, tick, message, Long.MAX_VALUE);
+                    append(message, 0, message.size());
+                    break;
+                case TICK:
+                    westBound = message.get(0);
+                    eastBound = message.get(1);
+                    step(tick, message.get(2) != 0);
+                    break;
+                case QUIT:
+                    return;
+                default:
+                    throw new IllegalStateException("Worker " + rank + " got unknown command " + type);
+            }
+        }
+    }
+
+    /**
+     * Message: radius, world radius, collider count, then each collider's type and parameters
+     */
+    private void init(FloatArrayList message) {
+        radius = message.get(0);
+        worldRadius = message.get(1);
+        int colliderCount = (int) message.get(2);
+        float[] m = message.elements();
+        colliders.clear();
+        for (int i = 0, o = 3; i < colliderCount; i++, o += 1 + ColliderSet.PARAM_COUNT)
+            colliders.add((int) m[o], m, o + 1);
+    }
+
+    private void step(int tick, boolean collect) {
+        long start = System.nanoTime();
+        integrate();
+        int migrants = migrate(tick);
+        int ghosts = exchangeGhosts(tick);
+        separator.separate(positions, velocities, count, count + ghosts, radius);
+        colliders.collide(positions, velocities, count, radius);
+
+        if (collect) {
+            message.clear();
+            message.ensureCapacity(count * 3);
+            for (int i = 0; i < count * 3; i++)
+                message.add(positions[i]);
+            reports.writeAll(POSITIONS, tick, message, Long.MAX_VALUE);
+        }
+
+        float[] report = new float[REPORT_HEADER + HISTOGRAM_BINS];
+        report[0] = count;
+        report[1] = System.nanoTime() - start;
+        report[2] = migrants;
+        report[3] = ghosts;
+        float binWidth = 2 * worldRadius / HISTOGRAM_BINS;
+        for (int i = 0; i < count; i++) {
+            int bin = (int) ((positions[i * 3] + worldRadius) / binWidth);
+            report[REPORT_HEADER + Math.max(0, Math.min(HISTOGRAM_BINS - 1, bin))]++;
+        }
+        reports.write(REPORT, tick, report, 0, report.length, Long.MAX_VALUE);
+    }
+
+    private void integrate() {
+        float dt = 1 / TPS;
+        for (int i = 0; i < count; i++) {
+            int o = i * 3;
+            velocities[o + 1] += g * dt;
+            positions[o] += velocities[o] * dt;
+            positions[o + 1] += velocities[o + 1] * dt;
+            positions[o + 2] += velocities[o + 2] * dt;
+        }
+    }
+
+    /**
+     * Sends particles which have left the slab to the neighbour on that side, drops any which have left the world,
+     * and takes in the neighbours' migrants
+     *
+     * @return The number of particles sent
+     */
+    private int migrate(int tick) {
+        westGoing.clear();
+        eastGoing.clear();
+        float limitSq = worldRadius * worldRadius;
+        // Backwards, since removing swaps the last particle into the removed one's place
+        for (int i = count - 1; i >= 0; i--) {
+            int o = i * 3;
+            float x = positions[o], y = positions[o + 1], z = positions[o + 2];
+            boolean inWorld = x * x + y * y + z * z <= limitSq;
+            if (inWorld && x >= westBound && x < eastBound)
+                continue;
+            if (inWorld) {
+                FloatArrayList out = x < westBound ? westGoing : eastGoing;
+                if (out == westGoing ? toWest == null : toEast == null)
+                    continue; // the bounds at the ends are infinite, but stay put if not
+                out.add(x, y, z);
+                out.add(velocities[o], velocities[o + 1], velocities[o + 2]);
+            }
+            remove(i);
+        }
+        int sent = (westGoing.size() + eastGoing.size()) / 6;
+
+        exchange(MIGRANTS, tick);
+        append(eastGoing, 0, eastGoing.size()); // now holds what came in, see exchange
+        append(westGoing, 0, westGoing.size());
+        return sent;
+    }
+
+    /**
+     * Sends copies of the particles within reach of each boundary to the neighbour across it, and puts the ones it
+     * sends back after the own particles as ghosts
+     *
+     * @return The number of ghosts
+     */
+    private int exchangeGhosts(int tick) {
+        westGoing.clear();
+        eastGoing.clear();
+        float reach = radius * 2;
+        for (int i = 0; i < count; i++) {
+            int o = i * 3;
+            float x = positions[o];
+            if (toWest != null && x < westBound + reach)
+                westGoing.add(x, positions[o + 1], positions[o + 2]);
+            if (toEast != null && x >= eastBound - reach)
+                eastGoing.add(x, positions[o + 1], positions[o + 2]);
+        }
+
+        exchange(GHOSTS, tick);
+        int ghosts = (westGoing.size() + eastGoing.size()) / 3;
+        ensureCapacity(count + ghosts);
+        System.arraycopy(westGoing.elements(), 0, positions, count * 3, westGoing.size());
+        System.arraycopy(eastGoing.elements(), 0, positions, count * 3 + westGoing.size(), eastGoing.size());
+        return ghosts;
+    }
+
+    /**
+     * Sends {@link #eastGoing} east and {@link #westGoing} west, replacing each with what came in from that side
+     */
+    private void exchange(int type, int tick) {
+        // Eastwards pass: the last worker only receives, so the chain of waits always ends
+        if (toEast != null)
+            toEast.writeAll(type, tick, eastGoing, NEIGHBOUR_TIMEOUT);
+        eastGoing.clear();
+        if (fromWest != null)
+            fromWest.readAll(type, tick, eastGoing, NEIGHBOUR_TIMEOUT);
+        // Westwards pass, likewise ending at the first worker
+        if (toWest != null)
+            toWest.writeAll(type, tick, westGoing, NEIGHBOUR_TIMEOUT);
+        westGoing.clear();
+        if (fromEast != null)
+            fromEast.readAll(type, tick, westGoing, NEIGHBOUR_TIMEOUT);
+    }
+
+    /**
+     * Adds particles given as (x, y, z, vx, vy, vz) runs
+     */
+    private void append(FloatArrayList particles, int from, int to) {
+        float[] p = particles.elements();
+        int added = (to - from) / 6;
+        ensureCapacity(count + added);
+        for (int i = from; i < to; i += 6) {
+            int o = count * 3;
+            positions[o] = p[i];
+            positions[o + 1] = p[i + 1];
+            positions[o + 2] = p[i + 2];
+            velocities[o] = p[i + 3];
+            velocities[o + 1] = p[i + 4];
+            velocities[o + 2] = p[i + 5];
+            count++;
+        }
+    }
+
+    private void remove(int i) {
+        count--;
+        System.arraycopy(positions, count * 3, positions, i * 3, 3);
+        System.arraycopy(velocities, count * 3, velocities, i * 3, 3);
+    }
+
+    private void ensureCapacity(int particles) {
+        if (positions.length >= particles * 3)
+            return;
+        int capacity = Math.max(particles * 3, positions.length * 2);
+        positions = Arrays.copyOf(positions, capacity);
+        velocities = Arrays.copyOf(velocities, capacity);
+    }
+
+    private void close() throws IOException {
+        for (SharedRing ring : new SharedRing[]{commands, reports, toWest, fromWest, toEast, fromEast}) {
+            if (ring != null)
+                ring.close();
+        }
+    }
+
+}
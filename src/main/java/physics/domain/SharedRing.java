@@ -0,0 +1,233 @@
+package physics.domain;
+
+import util.BufferUtil;
+import util.FloatArrayList;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A single-producer single-consumer queue of float messages in a memory-mapped file, for passing data between
+ * processes on the same machine without a network or any copying through the kernel.
+ *
+ * <p>
+ * The file holds the total number of bytes ever written and ever read, each on its own cache line, followed by the
+ * ring itself. The writer fills in a message and then publishes it by advancing the written count with a release
+ * store; the reader reads that count with an acquire load, consumes the message, and then frees the space by
+ * advancing the read count the same way. Each message is a type, a
+ * tick and a length, followed by that many floats, all 4-byte aligned so nothing is ever split by the wrap-around.
+ * </p><p>
+ * Exactly one process (or thread) may write to a ring, and exactly one may read from it. Data too big for the ring
+ * can be sent with {@link #writeAll(int, int, FloatArrayList, long)}, which splits it into several messages, as long
+ * as the reader is reading meanwhile.
+ * </p>
+ */
+public class SharedRing implements AutoCloseable {
+
+    private static final int WRITTEN = 0;
+    private static final int READ = 64;
+    private static final int HEADER_BYTES = 128;
+    private static final int MESSAGE_HEADER_BYTES = 12;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final int mask;
+
+    /**
+     * The header of the last message {@link #read(FloatArrayList, long) read}
+     */
+    private int lastType, lastTick;
+
+    private SharedRing(Path file, FileChannel channel, int capacity) throws IOException {
+        this.file = file;
+        this.channel = channel;
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + capacity);
+        buffer.order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Creates an empty ring, replacing any file already there
+     *
+     * @param capacity The size of the ring in bytes, which must be a power of two
+     */
+    public static SharedRing create(Path file, int capacity) throws IOException {
+        if (Integer.bitCount(capacity) != 1 || capacity < 64)
+            throw new IllegalArgumentException("Ring capacity must be a power of two: " + capacity);
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        SharedRing ring = new SharedRing(file, channel, capacity);
+        ring.buffer.putLong(WRITTEN, 0);
+        ring.buffer.putLong(READ, 0);
+        return ring;
+    }
+
+    /**
+     * Opens a ring {@link #create(Path, int) created} by another process
+     */
+    public static SharedRing open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = channel.size();
+        return new SharedRing(file, channel, (int) (size - HEADER_BYTES));
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Writes a message, waiting for the reader to make space if the ring is too full
+     */
+    public void write(int type, int tick, float[] data, int offset, int count, long timeoutMillis) {
+        int bytes = MESSAGE_HEADER_BYTES + count * 4;
+        if (bytes > capacity)
+            throw new IllegalArgumentException("Message of " + bytes + " bytes doesn't fit in a ring of " + capacity);
+
+        long written = buffer.getLong(WRITTEN);
+        long deadline = deadline(timeoutMillis);
+        for (int spins = 0; capacity - (written - readCount()) < bytes; spins++)
+            backOff(spins, deadline, "space to write");
+
+        putInt(written, type);
+        putInt(written + 4, tick);
+        putInt(written + 8, count);
+        long pos = written + MESSAGE_HEADER_BYTES;
+        for (int i = 0; i < count; i++, pos += 4)
+            buffer.putFloat((int) (pos & mask) + HEADER_BYTES, data[offset + i]);
+
+        // Released, so the reader sees the message before the count that includes it
+        BufferUtil.putLongOrdered(buffer, WRITTEN, written + bytes);
+    }
+
+    /**
+     * Waits for the next message and appends its data to <tt>out</tt>
+     *
+     * @return The message's type. Its tick is then available from {@link #getLastTick()}.
+     */
+    public int read(FloatArrayList out, long timeoutMillis) {
+        long read = buffer.getLong(READ);
+        long deadline = deadline(timeoutMillis);
+        for (int spins = 0; writtenCount() == read; spins++)
+            backOff(spins, deadline, "a message");
+
+        lastType = getInt(read);
+        lastTick = getInt(read + 4);
+        int count = getInt(read + 8);
+        out.ensureCapacity(out.size() + count);
+        long pos = read + MESSAGE_HEADER_BYTES;
+        for (int i = 0; i < count; i++, pos += 4)
+            out.add(buffer.getFloat((int) (pos & mask) + HEADER_BYTES));
+
+        // Released, so the message is read before the writer is allowed to overwrite it
+        BufferUtil.putLongOrdered(buffer, READ, read + MESSAGE_HEADER_BYTES + count * 4L);
+        return lastType;
+    }
+
+    /**
+     * Reads the next message, which must have the given type and tick
+     */
+    public void read(int type, int tick, FloatArrayList out, long timeoutMillis) {
+        if (read(out, timeoutMillis) != type || lastTick != tick)
+            throw new IllegalStateException("Expected message " + type + " for tick " + tick + " in " + file
+                    + " but got " + lastType + " for tick " + lastTick);
+    }
+
+    /**
+     * Writes any amount of data as a run of messages of the given type, each small enough to fit in the ring
+     */
+    public void writeAll(int type, int tick, FloatArrayList data, long timeoutMillis) {
+        int chunk = getMaxChunk();
+        int offset = 0;
+        // A chunk shorter than the maximum, even an empty one, marks the end of the run
+        while (true) {
+            int count = Math.min(chunk, data.size() - offset);
+            write(type, tick, data.elements(), offset, count, timeoutMillis);
+            offset += count;
+            if (count < chunk)
+                return;
+        }
+    }
+
+    /**
+     * Reads a run of messages sent with {@link #writeAll(int, int, FloatArrayList, long)}, appending their data to
+     * <tt>out</tt>
+     */
+    public void readAll(int type, int tick, FloatArrayList out, long timeoutMillis) {
+        int chunk = getMaxChunk();
+        while (true) {
+            int before = out.size();
+            read(type, tick, out, timeoutMillis);
+            if (out.size() - before < chunk)
+                return;
+        }
+    }
+
+    /**
+     * The most floats {@link #writeAll(int, int, FloatArrayList, long)} puts in one message, a quarter of the ring so
+     * the writer can carry on while the reader catches up
+     */
+    public int getMaxChunk() {
+        return (capacity / 4 - MESSAGE_HEADER_BYTES) / 4;
+    }
+
+    public int getLastTick() {
+        return lastTick;
+    }
+
+    /**
+     * The other side's count, read with acquire semantics so each spin sees it afresh, and whatever it covers is
+     * read after it
+     */
+    private long readCount() {
+        return BufferUtil.getLongVolatile(buffer, READ);
+    }
+
+    private long writtenCount() {
+        return BufferUtil.getLongVolatile(buffer, WRITTEN);
+    }
+
+    private void putInt(long pos, int value) {
+        buffer.putInt((int) (pos & mask) + HEADER_BYTES, value);
+    }
+
+    private int getInt(long pos) {
+        return buffer.getInt((int) (pos & mask) + HEADER_BYTES);
+    }
+
+    private static long deadline(long timeoutMillis) {
+        long now = System.currentTimeMillis();
+        return timeoutMillis > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + timeoutMillis;
+    }
+
+    /**
+     * Spins briefly, then yields, then sleeps, so a short wait is fast but a long one doesn't burn a core
+     */
+    private void backOff(int spins, long deadline, String waitingFor) {
+        if (spins < 1000)
+            return;
+        if (spins < 2000) {
+            Thread.yield();
+            return;
+        }
+        if (System.currentTimeMillis() > deadline)
+            throw new IllegalStateException("Timed out waiting for " + waitingFor + " in " + file);
+        LockSupport.parkNanos(100_000);
+        if (Thread.currentThread().isInterrupted())
+            throw new IllegalStateException("Interrupted waiting for " + waitingFor + " in " + file);
+    }
+
+    @Override
+    public void close() throws IOException {
+        BufferUtil.unmap(buffer);
+        channel.close();
+    }
+
+}
@@ -0,0 +1,112 @@
+package physics.job;
+
+import util.metrics.MetricsRegistry;
+import util.trace.Trace;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One stage of work in a {@link JobGraph}, which runs once every job it depends on has finished.
+ * Created by {@link JobGraph#add(String, Runnable)}.
+ */
+public class Job {
+
+    private final JobGraph graph;
+    private final String name;
+    private final Runnable task;
+    private final int traceEvent;
+
+    final List<Job> dependents = new ArrayList<>();
+    int dependencyCount = 0;
+    /**
+     * The number of dependencies which haven't finished yet in the current run
+     */
+    final AtomicInteger remaining = new AtomicInteger();
+
+    private volatile long lastStart;
+    private volatile long lastNanos;
+    private volatile long lastAllocatedBytes = -1;
+    private volatile String lastThread;
+
+    Job(JobGraph graph, String name, Runnable task) {
+        this.graph = graph;
+        this.name = name;
+        this.task = task;
+        this.traceEvent = Trace.event(name);
+    }
+
+    /**
+     * Makes this job wait for the given jobs, which must be in the same graph
+     *
+     * @return This job
+     */
+    public Job after(Job... dependencies) {
+        for (Job dependency : dependencies) {
+            if (dependency == this)
+                throw new IllegalArgumentException("Job " + name + " can't depend on itself");
+            if (dependency.graph != graph)
+                throw new IllegalArgumentException("Job " + dependency.name + " is in a different graph");
+            dependency.dependents.add(this);
+            dependencyCount++;
+        }
+        graph.invalidate();
+        return this;
+    }
+
+    void run(boolean measureAllocations) {
+        lastThread = Thread.currentThread().getName();
+        long allocatedBefore = measureAllocations ? MetricsRegistry.threadAllocatedBytes() : -1;
+        long start = System.nanoTime();
+        lastStart = start;
+        Trace.begin(traceEvent);
+        try {
+            task.run();
+        } finally {
+            Trace.end(traceEvent);
+        }
+        lastNanos = System.nanoTime() - start;
+        if (allocatedBefore >= 0)
+            lastAllocatedBytes = MetricsRegistry.threadAllocatedBytes() - allocatedBefore;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * The {@link System#nanoTime()} at which this job last started
+     */
+    public long getLastStart() {
+        return lastStart;
+    }
+
+    /**
+     * How long this job took to run last time, in nanoseconds
+     */
+    public long getLastNanos() {
+        return lastNanos;
+    }
+
+    /**
+     * How many bytes this job allocated the last time it was measured, or -1 if it never has been.
+     * See {@link JobGraph#setMeasuringAllocations(boolean)}.
+     */
+    public long getLastAllocatedBytes() {
+        return lastAllocatedBytes;
+    }
+
+    /**
+     * The name of the thread which last ran this job
+     */
+    public String getLastThread() {
+        return lastThread;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %.3fms", name, lastNanos / 1e6);
+    }
+
+}
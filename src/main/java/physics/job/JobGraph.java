@@ -0,0 +1,198 @@
+package physics.job;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A set of {@link Job jobs} with dependencies between them, run on a work-stealing {@link ForkJoinPool}.
+ *
+ * <p>
+ * The graph is built once and run every tick. Rather than every stage waiting for the whole of the previous stage,
+ * each job waits only for the jobs it actually depends on, so independent chains (such as the stages of two
+ * separate bodies) overlap. When a job finishes, the worker which ran it pushes any jobs that became ready onto its
+ * own queue and carries on with one of them itself, so a chain tends to stay on one thread while idle threads
+ * steal the rest.
+ * </p><p>
+ * If a job throws, no more jobs are started, and {@link #run()} rethrows once the ones already running have finished.
+ * </p>
+ */
+public class JobGraph {
+
+    private final ForkJoinPool pool;
+    private final List<Job> jobs = new ArrayList<>();
+    private boolean checked = false;
+    private volatile boolean measuringAllocations = false;
+
+    private long lastNanos;
+
+    // State of the current run
+    private final AtomicInteger unfinished = new AtomicInteger();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private volatile Job failedJob;
+    private CountDownLatch done;
+
+    public JobGraph() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public JobGraph(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Adds a job with no dependencies. Use {@link Job#after(Job...)} to add them.
+     */
+    public Job add(String name, Runnable task) {
+        Job job = new Job(this, name, task);
+        jobs.add(job);
+        checked = false;
+        return job;
+    }
+
+    public void clear() {
+        jobs.clear();
+    }
+
+    /**
+     * Sets whether each job measures how much its thread allocates while it runs, which costs a little per job
+     */
+    public void setMeasuringAllocations(boolean measuringAllocations) {
+        this.measuringAllocations = measuringAllocations;
+    }
+
+    /**
+     * Marks the dependencies as changed, so they're checked again before the next run
+     */
+    void invalidate() {
+        checked = false;
+    }
+
+    public List<Job> getJobs() {
+        return Collections.unmodifiableList(jobs);
+    }
+
+    /**
+     * How long the last {@link #run()} took from start to finish, in nanoseconds
+     */
+    public long getLastNanos() {
+        return lastNanos;
+    }
+
+    /**
+     * Runs every job once, in dependency order, and waits for them all to finish
+     */
+    public void run() {
+        if (jobs.isEmpty())
+            return;
+        if (!checked) {
+            checkAcyclic();
+            checked = true;
+        }
+
+        long start = System.nanoTime();
+        for (Job job : jobs)
+            job.remaining.set(job.dependencyCount);
+        unfinished.set(jobs.size());
+        failure.set(null);
+        done = new CountDownLatch(1);
+
+        for (Job job : jobs) {
+            if (job.dependencyCount == 0)
+                pool.execute(new JobTask(job));
+        }
+
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for jobs", e);
+        }
+        lastNanos = System.nanoTime() - start;
+
+        Throwable cause = failure.get();
+        if (cause != null)
+            throw new IllegalStateException("Job " + failedJob.getName() + " failed", cause);
+    }
+
+    /**
+     * Every job's timings from the last run, slowest first
+     */
+    public String timingReport() {
+        List<Job> sorted = new ArrayList<>(jobs);
+        sorted.sort((a, b) -> Long.compare(b.getLastNanos(), a.getLastNanos()));
+        StringBuilder sb = new StringBuilder(String.format("%d jobs in %.3fms", jobs.size(), lastNanos / 1e6));
+        for (Job job : sorted)
+            sb.append("\n  ").append(job).append(" (").append(job.getLastThread()).append(")");
+        return sb.toString();
+    }
+
+    /**
+     * Kahn's algorithm, just to check a run won't wait forever
+     */
+    private void checkAcyclic() {
+        ArrayDeque<Job> ready = new ArrayDeque<>();
+        for (Job job : jobs) {
+            job.remaining.set(job.dependencyCount);
+            if (job.dependencyCount == 0)
+                ready.add(job);
+        }
+        int visited = 0;
+        while (!ready.isEmpty()) {
+            Job job = ready.poll();
+            visited++;
+            for (Job dependent : job.dependents) {
+                if (dependent.remaining.decrementAndGet() == 0)
+                    ready.add(dependent);
+            }
+        }
+        if (visited != jobs.size())
+            throw new IllegalStateException("Job graph has a dependency cycle");
+    }
+
+    private class JobTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private Job job;
+
+        JobTask(Job job) {
+            this.job = job;
+        }
+
+        @Override
+        protected void compute() {
+            while (job != null) {
+                if (failure.get() == null) {
+                    try {
+                        job.run(measuringAllocations);
+                    } catch (Throwable t) {
+                        if (failure.compareAndSet(null, t))
+                            failedJob = job;
+                    }
+                }
+
+                // Continue with the first dependent that became ready, and leave the rest for other workers
+                Job next = null;
+                for (Job dependent : job.dependents) {
+                    if (dependent.remaining.decrementAndGet() == 0) {
+                        if (next == null)
+                            next = dependent;
+                        else
+                            new JobTask(dependent).fork();
+                    }
+                }
+                if (unfinished.decrementAndGet() == 0)
+                    done.countDown();
+                job = next;
+            }
+        }
+    }
+
+}
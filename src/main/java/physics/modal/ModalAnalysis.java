@@ -0,0 +1,397 @@
+package physics.modal;
+
+import physics.Mesh;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Finds the lowest vibration modes of a mesh treated as equal point masses joined by springs along its edges, as
+ * an offline step whose result is saved as a {@link ModalBasis}.
+ *
+ * <p>
+ * The springs are linearised about the rest shape into a sparse stiffness matrix K, which is only ever multiplied
+ * by, never built. The lowest modes are found by subspace iteration: a block of vectors is repeatedly multiplied by
+ * the inverse of K (by conjugate gradients, with a Jacobi preconditioner and a small shift so K is invertible), then
+ * reduced to the best approximate modes within its span by Rayleigh-Ritz, with the small dense eigenproblem solved
+ * by Jacobi rotations. The 6 rigid motions, which have zero frequency, are projected out throughout, since a
+ * {@link ModalBody} moves rigidly by itself.
+ * </p><p>
+ * Spring stiffness is <tt>stiffness / restLength</tt>, like a rod of uniform material, and squared frequencies are
+ * per unit vertex mass, so scale them by <tt>1 / mass</tt> at runtime.
+ * </p>
+ */
+public class ModalAnalysis {
+
+    private static final int MAX_ITERATIONS = 100;
+    private static final double TOLERANCE = 1e-4;
+    private static final int CG_MAX_ITERATIONS = 2000;
+    private static final double CG_TOLERANCE = 1e-5;
+
+    private final int n;
+    private final int[] edgeA, edgeB;
+    /**
+     * Each edge's spring stiffness times its unit rest direction's outer product, 6 unique entries per edge
+     */
+    private final double[] edgeStiffness;
+    private final double[] diagonal;
+    private final double[][] rigid;
+    private final double shift;
+
+    /**
+     * Arguments: model name (under /models), number of modes, output file
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3)
+            throw new IllegalArgumentException("Usage: ModalAnalysis <model> <modes> <output>");
+        Mesh mesh = new Mesh(args[0]);
+        long start = System.nanoTime();
+        ModalBasis basis = analyse(mesh, Integer.parseInt(args[1]), 1);
+        basis.write(Paths.get(args[2]));
+        System.out.printf("%d modes of %d vertices in %.1f s, frequencies %s%n", basis.getModeCount(),
+                basis.getVertexCount(), (System.nanoTime() - start) / 1e9, Arrays.toString(basis.getFrequenciesSquared()));
+    }
+
+    public static ModalBasis analyse(Mesh mesh, int modeCount, float stiffness) {
+        float[] positions = new float[mesh.getPositionCount() * 3];
+        for (int v = 0; v < mesh.getPositionCount(); v++) {
+            positions[v * 3] = mesh.getPosition(v).x;
+            positions[v * 3 + 1] = mesh.getPosition(v).y;
+            positions[v * 3 + 2] = mesh.getPosition(v).z;
+        }
+        int[] triangles = new int[mesh.getTriangleCount() * 3];
+        for (int t = 0; t < mesh.getTriangleCount(); t++)
+            for (int corner = 0; corner < 3; corner++)
+                triangles[t * 3 + corner] = mesh.getTriangleVertex(t, corner);
+        return analyse(positions, triangles, modeCount, stiffness);
+    }
+
+    /**
+     * @param positions The rest positions, as (x, y, z) at <tt>3 * vertex</tt>
+     * @param triangles The triangles' vertex indices, 3 per triangle
+     */
+    public static ModalBasis analyse(float[] positions, int[] triangles, int modeCount, float stiffness) {
+        ModalAnalysis analysis = new ModalAnalysis(positions, triangles, stiffness);
+        if (modeCount > analysis.n * 3 - 6)
+            throw new IllegalArgumentException("A mesh of " + analysis.n + " vertices only has " + (analysis.n * 3 - 6) + " modes");
+        return analysis.solve(positions, triangles, modeCount);
+    }
+
+    private ModalAnalysis(float[] positions, int[] triangles, float stiffness) {
+        n = positions.length / 3;
+        Set<Long> edges = new HashSet<>();
+        for (int t = 0; t < triangles.length; t += 3) {
+            for (int corner = 0; corner < 3; corner++) {
+                int a = triangles[t + corner], b = triangles[t + (corner + 1) % 3];
+                edges.add(((long) Math.min(a, b) << 32) | Math.max(a, b));
+            }
+        }
+
+        edgeA = new int[edges.size()];
+        edgeB = new int[edges.size()];
+        edgeStiffness = new double[edges.size() * 6];
+        diagonal = new double[n * 3];
+        int e = 0;
+        for (long edge : edges) {
+            int a = (int) (edge >>> 32), b = (int) edge;
+            double dx = positions[a * 3] - positions[b * 3];
+            double dy = positions[a * 3 + 1] - positions[b * 3 + 1];
+            double dz = positions[a * 3 + 2] - positions[b * 3 + 2];
+            double length = Math.sqrt(dx * dx + dy * dy + dz * dz);
+            if (length == 0)
+                continue;
+            double k = stiffness / length;
+            dx /= length;
+            dy /= length;
+            dz /= length;
+            edgeA[e] = a;
+            edgeB[e] = b;
+            int o = e * 6;
+            edgeStiffness[o] = k * dx * dx;
+            edgeStiffness[o + 1] = k * dy * dy;
+            edgeStiffness[o + 2] = k * dz * dz;
+            edgeStiffness[o + 3] = k * dx * dy;
+            edgeStiffness[o + 4] = k * dy * dz;
+            edgeStiffness[o + 5] = k * dz * dx;
+            for (int axis = 0; axis < 3; axis++) {
+                diagonal[a * 3 + axis] += edgeStiffness[o + axis];
+                diagonal[b * 3 + axis] += edgeStiffness[o + axis];
+            }
+            e++;
+        }
+
+        double meanDiagonal = 0;
+        for (double d : diagonal)
+            meanDiagonal += d;
+        meanDiagonal /= diagonal.length;
+        shift = meanDiagonal * 1e-4;
+        for (int i = 0; i < diagonal.length; i++)
+            diagonal[i] += shift;
+
+        rigid = rigidMotions(positions);
+    }
+
+    /**
+     * The translations and infinitesimal rotations about the centroid, orthonormalised
+     */
+    private double[][] rigidMotions(float[] positions) {
+        double cx = 0, cy = 0, cz = 0;
+        for (int v = 0; v < n; v++) {
+            cx += positions[v * 3];
+            cy += positions[v * 3 + 1];
+            cz += positions[v * 3 + 2];
+        }
+        cx /= n;
+        cy /= n;
+        cz /= n;
+
+        double[][] motions = new double[6][n * 3];
+        for (int v = 0; v < n; v++) {
+            double x = positions[v * 3] - cx, y = positions[v * 3 + 1] - cy, z = positions[v * 3 + 2] - cz;
+            for (int axis = 0; axis < 3; axis++)
+                motions[axis][v * 3 + axis] = 1;
+            // Rotations about x, y and z: axis cross (x, y, z)
+            motions[3][v * 3 + 1] = -z;
+            motions[3][v * 3 + 2] = y;
+            motions[4][v * 3] = z;
+            motions[4][v * 3 + 2] = -x;
+            motions[5][v * 3] = -y;
+            motions[5][v * 3 + 1] = x;
+        }
+        for (int i = 0; i < 6; i++) {
+            for (int j = 0; j < i; j++)
+                axpy(-dot(motions[j], motions[i]), motions[j], motions[i]);
+            scale(motions[i], 1 / Math.sqrt(dot(motions[i], motions[i])));
+        }
+        return motions;
+    }
+
+    private ModalBasis solve(float[] positions, int[] triangles, int modeCount) {
+        // A few extra vectors speed up convergence of the highest wanted modes
+        int blockSize = Math.min(n * 3 - 6, Math.max(modeCount * 2, modeCount + 8));
+        double[][] block = new double[blockSize][n * 3];
+        Random random = new Random(1);
+        for (double[] vector : block) {
+            for (int i = 0; i < vector.length; i++)
+                vector[i] = random.nextGaussian();
+        }
+        orthonormalise(block);
+
+        double[] values = new double[blockSize];
+        double[] ritzValues = new double[blockSize];
+        double[] previous = new double[modeCount];
+        double[] product = new double[n * 3];
+        double[][] reduced = new double[blockSize][blockSize];
+        double[][] vectors = new double[blockSize][blockSize];
+        double[][] next = new double[blockSize][n * 3];
+
+        for (int iteration = 0; iteration < MAX_ITERATIONS; iteration++) {
+            for (int j = 0; j < blockSize; j++) {
+                // Once the block is near the modes, each solution is near the mode scaled by 1 / its value
+                double guess = iteration == 0 ? 0 : 1 / (ritzValues[j] + shift);
+                solveShifted(block[j], next[j], guess);
+            }
+            double[][] swap = block;
+            block = next;
+            next = swap;
+            orthonormalise(block);
+
+            // Rayleigh-Ritz: the best modes in the block's span are the eigenvectors of K projected into it
+            for (int j = 0; j < blockSize; j++) {
+                multiply(block[j], product);
+                for (int i = 0; i <= j; i++)
+                    reduced[i][j] = reduced[j][i] = dot(block[i], product);
+            }
+            jacobiEigen(reduced, values, vectors);
+            Integer[] order = sortedOrder(values);
+            for (int j = 0; j < blockSize; j++) {
+                double[] mode = next[j];
+                Arrays.fill(mode, 0);
+                for (int i = 0; i < blockSize; i++)
+                    axpy(vectors[i][order[j]], block[i], mode);
+            }
+            swap = block;
+            block = next;
+            next = swap;
+
+            for (int j = 0; j < blockSize; j++)
+                ritzValues[j] = values[order[j]];
+            double change = 0;
+            for (int j = 0; j < modeCount; j++) {
+                double value = ritzValues[j];
+                change = Math.max(change, Math.abs(value - previous[j]) / Math.max(Math.abs(value), 1e-12));
+                previous[j] = value;
+            }
+            if (change < TOLERANCE)
+                break;
+        }
+
+        float[] frequenciesSquared = new float[modeCount];
+        float[] modes = new float[n * 3 * modeCount];
+        for (int m = 0; m < modeCount; m++) {
+            frequenciesSquared[m] = (float) previous[m];
+            for (int i = 0; i < n * 3; i++)
+                modes[i * modeCount + m] = (float) block[m][i];
+        }
+        return new ModalBasis(positions.clone(), triangles.clone(), frequenciesSquared, modes);
+    }
+
+    /**
+     * Solves (K + shift) x = b by preconditioned conjugate gradients, outside the rigid motions
+     *
+     * @param guess The first guess at x, as a multiple of b
+     */
+    private void solveShifted(double[] b, double[] x, double guess) {
+        double[] q = new double[b.length];
+        for (int i = 0; i < x.length; i++)
+            x[i] = b[i] * guess;
+        project(x);
+        multiply(x, q);
+        axpy(shift, x, q);
+        double[] r = b.clone();
+        axpy(-1, q, r);
+        project(r);
+        double[] z = new double[r.length], p = new double[r.length];
+        for (int i = 0; i < r.length; i++)
+            z[i] = r[i] / diagonal[i];
+        System.arraycopy(z, 0, p, 0, p.length);
+        double rz = dot(r, z);
+        double threshold = CG_TOLERANCE * CG_TOLERANCE * dot(b, b);
+
+        for (int iteration = 0; iteration < CG_MAX_ITERATIONS && dot(r, r) > threshold; iteration++) {
+            multiply(p, q);
+            axpy(shift, p, q);
+            double alpha = rz / dot(p, q);
+            axpy(alpha, p, x);
+            axpy(-alpha, q, r);
+            for (int i = 0; i < r.length; i++)
+                z[i] = r[i] / diagonal[i];
+            double rzNext = dot(r, z);
+            for (int i = 0; i < p.length; i++)
+                p[i] = z[i] + rzNext / rz * p[i];
+            rz = rzNext;
+        }
+        project(x);
+    }
+
+    /**
+     * out = K x
+     */
+    private void multiply(double[] x, double[] out) {
+        Arrays.fill(out, 0);
+        for (int e = 0; e < edgeA.length; e++) {
+            int a = edgeA[e] * 3, b = edgeB[e] * 3, o = e * 6;
+            double dx = x[a] - x[b], dy = x[a + 1] - x[b + 1], dz = x[a + 2] - x[b + 2];
+            double[] k = edgeStiffness;
+            double fx = k[o] * dx + k[o + 3] * dy + k[o + 5] * dz;
+            double fy = k[o + 3] * dx + k[o + 1] * dy + k[o + 4] * dz;
+            double fz = k[o + 5] * dx + k[o + 4] * dy + k[o + 2] * dz;
+            out[a] += fx;
+            out[a + 1] += fy;
+            out[a + 2] += fz;
+            out[b] -= fx;
+            out[b + 1] -= fy;
+            out[b + 2] -= fz;
+        }
+    }
+
+    private void project(double[] v) {
+        for (double[] motion : rigid)
+            axpy(-dot(motion, v), motion, v);
+    }
+
+    private void orthonormalise(double[][] vectors) {
+        for (int i = 0; i < vectors.length; i++) {
+            project(vectors[i]);
+            // Twice, since once loses orthogonality when the vectors are nearly parallel
+            for (int pass = 0; pass < 2; pass++)
+                for (int j = 0; j < i; j++)
+                    axpy(-dot(vectors[j], vectors[i]), vectors[j], vectors[i]);
+            scale(vectors[i], 1 / Math.sqrt(dot(vectors[i], vectors[i])));
+        }
+    }
+
+    /**
+     * Diagonalises a small symmetric matrix in place by cyclic Jacobi rotations
+     *
+     * @param values Receives the eigenvalues
+     * @param vectors Receives the eigenvectors, as columns
+     */
+    private static void jacobiEigen(double[][] a, double[] values, double[][] vectors) {
+        int size = values.length;
+        for (int i = 0; i < size; i++) {
+            Arrays.fill(vectors[i], 0);
+            vectors[i][i] = 1;
+        }
+        for (int sweep = 0; sweep < 50; sweep++) {
+            double offDiagonal = 0;
+            for (int p = 0; p < size; p++)
+                for (int q = p + 1; q < size; q++)
+                    offDiagonal += a[p][q] * a[p][q];
+            if (offDiagonal < 1e-30)
+                break;
+
+            for (int p = 0; p < size; p++) {
+                for (int q = p + 1; q < size; q++) {
+                    if (a[p][q] == 0)
+                        continue;
+                    double theta = (a[q][q] - a[p][p]) / (2 * a[p][q]);
+                    double t = Math.signum(theta) / (Math.abs(theta) + Math.sqrt(theta * theta + 1));
+                    if (theta == 0)
+                        t = 1;
+                    double c = 1 / Math.sqrt(t * t + 1), s = t * c;
+                    for (int k = 0; k < size; k++) {
+                        double akp = a[k][p], akq = a[k][q];
+                        a[k][p] = c * akp - s * akq;
+                        a[k][q] = s * akp + c * akq;
+                    }
+                    for (int k = 0; k < size; k++) {
+                        double apk = a[p][k], aqk = a[q][k];
+                        a[p][k] = c * apk - s * aqk;
+                        a[q][k] = s * apk + c * aqk;
+                    }
+                    for (int k = 0; k < size; k++) {
+                        double vkp = vectors[k][p], vkq = vectors[k][q];
+                        vectors[k][p] = c * vkp - s * vkq;
+                        vectors[k][q] = s * vkp + c * vkq;
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < size; i++)
+            values[i] = a[i][i];
+    }
+
+    private static Integer[] sortedOrder(double[] values) {
+        Integer[] order = new Integer[values.length];
+        for (int i = 0; i < order.length; i++)
+            order[i] = i;
+        Arrays.sort(order, (x, y) -> Double.compare(values[x], values[y]));
+        return order;
+    }
+
+    private static double dot(double[] a, double[] b) {
+        double sum = 0;
+        for (int i = 0; i < a.length; i++)
+            sum += a[i] * b[i];
+        return sum;
+    }
+
+    /**
+     * y += alpha * x
+     */
+    private static void axpy(double alpha, double[] x, double[] y) {
+        for (int i = 0; i < x.length; i++)
+            y[i] += alpha * x[i];
+    }
+
+    private static void scale(double[] v, double factor) {
+        for (int i = 0; i < v.length; i++)
+            v[i] *= factor;
+    }
+
+}
@@ -0,0 +1,159 @@
+package physics.modal;
+
+import util.BufferUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The lowest vibration modes of a mesh at rest, as found by {@link ModalAnalysis}, along with the mesh itself, so a
+ * {@link ModalBody} can be made from it without the original model.
+ *
+ * <p>
+ * Each mode is a displacement of every vertex, normalised to unit length, with its squared angular frequency. Modes
+ * are stored vertex-major, <tt>modes[(vertex * 3 + axis) * modeCount + mode]</tt>, so rebuilding one vertex reads
+ * one contiguous run.
+ * </p><p>
+ * The file is little-endian: a header (magic, version, vertex count, mode count, triangle count), the rest
+ * positions as floats, the triangles as ints, the squared frequencies and per-mode scales as floats, then the modes
+ * quantised to shorts relative to each mode's largest component, which halves the size at well under a percent of
+ * error.
+ * </p>
+ */
+public class ModalBasis {
+
+    private static final int MAGIC = 0x4d4f4445;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 20;
+
+    private final int vertexCount;
+    private final int modeCount;
+    private final float[] restPositions;
+    private final int[] triangles;
+    private final float[] frequenciesSquared;
+    private final float[] modes;
+
+    public ModalBasis(float[] restPositions, int[] triangles, float[] frequenciesSquared, float[] modes) {
+        this.vertexCount = restPositions.length / 3;
+        this.modeCount = frequenciesSquared.length;
+        if (modes.length != vertexCount * 3 * modeCount)
+            throw new IllegalArgumentException("Expected " + vertexCount * 3 * modeCount + " mode components, got " + modes.length);
+        this.restPositions = restPositions;
+        this.triangles = triangles;
+        this.frequenciesSquared = frequenciesSquared;
+        this.modes = modes;
+    }
+
+    public int getVertexCount() {
+        return vertexCount;
+    }
+
+    public int getModeCount() {
+        return modeCount;
+    }
+
+    /**
+     * The vertex positions at rest, as (x, y, z) at <tt>3 * vertex</tt>
+     */
+    public float[] getRestPositions() {
+        return restPositions;
+    }
+
+    public int[] getTriangles() {
+        return triangles;
+    }
+
+    /**
+     * Each mode's squared angular frequency, lowest first
+     */
+    public float[] getFrequenciesSquared() {
+        return frequenciesSquared;
+    }
+
+    /**
+     * @see ModalBasis
+     */
+    public float[] getModes() {
+        return modes;
+    }
+
+    public float getMode(int mode, int vertex, int axis) {
+        return modes[(vertex * 3 + axis) * modeCount + mode];
+    }
+
+    /**
+     * Writes the basis, replacing the file atomically
+     */
+    public void write(Path file) throws IOException {
+        float[] scales = new float[modeCount];
+        for (int i = 0; i < modes.length; i++)
+            scales[i % modeCount] = Math.max(scales[i % modeCount], Math.abs(modes[i]));
+
+        long size = HEADER_BYTES + (restPositions.length + triangles.length + modeCount * 2) * 4L + modes.length * 2L;
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(vertexCount).putInt(modeCount).putInt(triangles.length / 3);
+            for (float p : restPositions)
+                buffer.putFloat(p);
+            for (int index : triangles)
+                buffer.putInt(index);
+            for (float f : frequenciesSquared)
+                buffer.putFloat(f);
+            for (float scale : scales)
+                buffer.putFloat(scale);
+            for (int i = 0; i < modes.length; i++) {
+                float scale = scales[i % modeCount];
+                buffer.putShort(scale == 0 ? 0 : (short) Math.round(modes[i] / scale * Short.MAX_VALUE));
+            }
+            buffer.force();
+            BufferUtil.unmap(buffer);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static ModalBasis read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            try {
+                ByteBuffer buffer = mapped.order(ByteOrder.LITTLE_ENDIAN);
+                if (buffer.getInt() != MAGIC)
+                    throw new IOException("Not a modal basis: " + file);
+                int version = buffer.getInt();
+                if (version != VERSION)
+                    throw new IOException("Unsupported modal basis version " + version + ": " + file);
+                int vertexCount = buffer.getInt();
+                int modeCount = buffer.getInt();
+                int triangleCount = buffer.getInt();
+
+                float[] restPositions = new float[vertexCount * 3];
+                buffer.asFloatBuffer().get(restPositions);
+                buffer.position(buffer.position() + restPositions.length * 4);
+                int[] triangles = new int[triangleCount * 3];
+                buffer.asIntBuffer().get(triangles);
+                buffer.position(buffer.position() + triangles.length * 4);
+                float[] frequenciesSquared = new float[modeCount];
+                float[] scales = new float[modeCount];
+                buffer.asFloatBuffer().get(frequenciesSquared).get(scales);
+                buffer.position(buffer.position() + modeCount * 8);
+
+                float[] modes = new float[vertexCount * 3 * modeCount];
+                for (int i = 0; i < modes.length; i++)
+                    modes[i] = buffer.getShort() * scales[i % modeCount] / Short.MAX_VALUE;
+                return new ModalBasis(restPositions, triangles, frequenciesSquared, modes);
+            } finally {
+                BufferUtil.unmap(mapped);
+            }
+        }
+    }
+
+}
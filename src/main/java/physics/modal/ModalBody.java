@@ -0,0 +1,320 @@
+package physics.modal;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.joml.Vector3fc;
+import physics.ColliderSet;
+import render.util.BakedMesh;
+import render.util.MeshBuilder;
+import render.util.StreamingBakedMesh;
+import render.util.VertexFormat;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.stream.IntStream;
+
+import static render.shader.Shaders.sceneShader;
+
+/**
+ * A soft body which can only deform along a few precomputed {@link ModalBasis vibration modes}, so stepping it costs
+ * the same however detailed its mesh is.
+ *
+ * <p>
+ * The state is a translation and its velocity, plus one amplitude and velocity per mode. Each mode is an independent
+ * damped oscillator, integrated implicitly so stiff modes stay stable at any time step. Collisions are found at a
+ * fixed set of sample vertices and resolved with impulses in the reduced space, which both stop the body and set off
+ * the modes the impact excites. Rigid rotation isn't modelled, so this suits bodies which wobble rather than tumble.
+ * </p><p>
+ * Vertex positions only exist on demand: {@link #reconstruct()} rebuilds them in parallel straight into the mesh's
+ * in-memory vertices, which {@link #draw()} then uploads without recreating the mesh.
+ * </p>
+ */
+public class ModalBody {
+
+    private static final int MAX_SAMPLES = 256;
+    private static final int CONTACT_ITERATIONS = 4;
+    /**
+     * Vertices per parallel task when reconstructing
+     */
+    private static final int CHUNK = 4096;
+    /**
+     * POS_NORM: 3 doubles, then 3 floats
+     */
+    private static final int VERTEX_BYTES = 36;
+
+    private final ModalBasis basis;
+    private final int modeCount;
+    private final float[] frequenciesSquared;
+    private final float[] amplitudes, modeVelocities;
+    private final Vector3f translation = new Vector3f();
+    private final Vector3f velocity = new Vector3f();
+
+    private float vertexMass = 1;
+    private float damping = 0.05f;
+    private float radius = 0.05f;
+
+    /**
+     * The vertices collisions are tested at
+     */
+    private final int[] samples;
+    private final int[] contactSample;
+    private final float[] contactNormal;
+    private final float[] contactDepth;
+    private int[] hitColliders = new int[0];
+    private float[] pushes = new float[0];
+    private final float[] samplePosition = new float[3];
+
+    /**
+     * The vertices the mesh is first built from, with the normals it keeps. Once it exists they're written into it.
+     */
+    private final ByteBuffer vertices;
+    private StreamingBakedMesh bakedMesh;
+    private final Matrix4f modelMat = new Matrix4f();
+
+    /**
+     * @param position Where the basis's rest shape is moved to
+     */
+    public ModalBody(ModalBasis basis, Vector3fc position) {
+        this.basis = basis;
+        modeCount = basis.getModeCount();
+        frequenciesSquared = basis.getFrequenciesSquared().clone();
+        amplitudes = new float[modeCount];
+        modeVelocities = new float[modeCount];
+        translation.set(position);
+
+        int n = basis.getVertexCount();
+        int sampleCount = Math.min(n, MAX_SAMPLES);
+        samples = new int[sampleCount];
+        // Evenly spread through the vertices, but always including the extremes along each axis
+        for (int i = 0; i < sampleCount; i++)
+            samples[i] = (int) ((long) i * n / sampleCount);
+        float[] rest = basis.getRestPositions();
+        for (int axis = 0; axis < 3 && sampleCount >= 6; axis++) {
+            int min = 0, max = 0;
+            for (int v = 0; v < n; v++) {
+                if (rest[v * 3 + axis] < rest[min * 3 + axis]) min = v;
+                if (rest[v * 3 + axis] > rest[max * 3 + axis]) max = v;
+            }
+            samples[axis * 2] = min;
+            samples[axis * 2 + 1] = max;
+        }
+        contactSample = new int[sampleCount];
+        contactNormal = new float[sampleCount * 3];
+        contactDepth = new float[sampleCount];
+
+        vertices = ByteBuffer.allocateDirect(n * VERTEX_BYTES).order(ByteOrder.nativeOrder());
+        writeRestNormals();
+    }
+
+    /**
+     * Sets the mass of each vertex, which scales every mode's frequency by <tt>1 / sqrt(mass)</tt>
+     */
+    public void setVertexMass(float vertexMass) {
+        for (int m = 0; m < modeCount; m++)
+            frequenciesSquared[m] = basis.getFrequenciesSquared()[m] / vertexMass;
+        this.vertexMass = vertexMass;
+    }
+
+    /**
+     * Sets each mode's damping ratio, from 0 (rings forever) to 1 (critically damped)
+     */
+    public void setDamping(float damping) {
+        this.damping = damping;
+    }
+
+    /**
+     * Sets the collision radius of each sample vertex
+     */
+    public void setRadius(float radius) {
+        this.radius = radius;
+    }
+
+    public ModalBasis getBasis() {
+        return basis;
+    }
+
+    public Vector3f getTranslation() {
+        return translation;
+    }
+
+    public Vector3f getVelocity() {
+        return velocity;
+    }
+
+    /**
+     * Each mode's current amplitude
+     */
+    public float[] getAmplitudes() {
+        return amplitudes;
+    }
+
+    public void step(float dt, float g, ColliderSet colliders) {
+        velocity.y += g * dt;
+        resolveContacts(dt, colliders);
+
+        for (int m = 0; m < modeCount; m++) {
+            // Implicit Euler for q'' = -w^2 q - 2 zeta w q'
+            float w2 = frequenciesSquared[m];
+            float w = (float) Math.sqrt(w2);
+            float v = (modeVelocities[m] - dt * w2 * amplitudes[m]) / (1 + 2 * damping * w * dt + w2 * dt * dt);
+            modeVelocities[m] = v;
+            amplitudes[m] += dt * v;
+        }
+        translation.fma(dt, velocity);
+    }
+
+    /**
+     * Finds the sample vertices touching a collider, then applies impulses at them until they're all moving out
+     */
+    private void resolveContacts(float dt, ColliderSet colliders) {
+        if (hitColliders.length < colliders.size()) {
+            hitColliders = new int[colliders.size()];
+            pushes = new float[colliders.size() * 3];
+        }
+        float[] p = samplePosition;
+        int contacts = 0;
+        for (int sample : samples) {
+            vertexPosition(sample, p);
+            int hits = colliders.findContacts(p[0], p[1], p[2], radius, hitColliders, pushes);
+            for (int h = 0; h < hits && contacts < contactSample.length; h++) {
+                float nx = pushes[h * 3], ny = pushes[h * 3 + 1], nz = pushes[h * 3 + 2];
+                float depth = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+                if (depth == 0)
+                    continue;
+                contactSample[contacts] = sample;
+                contactNormal[contacts * 3] = nx / depth;
+                contactNormal[contacts * 3 + 1] = ny / depth;
+                contactNormal[contacts * 3 + 2] = nz / depth;
+                contactDepth[contacts] = depth;
+                contacts++;
+            }
+        }
+
+        float totalMass = vertexMass * basis.getVertexCount();
+        for (int iteration = 0; iteration < CONTACT_ITERATIONS; iteration++) {
+            for (int c = 0; c < contacts; c++) {
+                int v = contactSample[c];
+                float nx = contactNormal[c * 3], ny = contactNormal[c * 3 + 1], nz = contactNormal[c * 3 + 2];
+
+                // Velocity of the vertex along the normal, and how much a unit impulse there changes it
+                float vn = velocity.x * nx + velocity.y * ny + velocity.z * nz;
+                float inverseMass = 1 / totalMass;
+                for (int m = 0; m < modeCount; m++) {
+                    float along = basis.getMode(m, v, 0) * nx + basis.getMode(m, v, 1) * ny + basis.getMode(m, v, 2) * nz;
+                    vn += modeVelocities[m] * along;
+                    inverseMass += along * along / vertexMass;
+                }
+                // Aim to leave the collider over the next step
+                float target = contactDepth[c] / dt * 0.2f;
+                if (vn >= target)
+                    continue;
+                float impulse = (target - vn) / inverseMass;
+                velocity.add(nx * impulse / totalMass, ny * impulse / totalMass, nz * impulse / totalMass);
+                for (int m = 0; m < modeCount; m++) {
+                    float along = basis.getMode(m, v, 0) * nx + basis.getMode(m, v, 1) * ny + basis.getMode(m, v, 2) * nz;
+                    modeVelocities[m] += impulse * along / vertexMass;
+                }
+            }
+        }
+    }
+
+    private void vertexPosition(int v, float[] out) {
+        float[] rest = basis.getRestPositions();
+        float[] modes = basis.getModes();
+        for (int axis = 0; axis < 3; axis++) {
+            int o = (v * 3 + axis) * modeCount;
+            float sum = rest[v * 3 + axis] + translation.get(axis);
+            for (int m = 0; m < modeCount; m++)
+                sum += amplitudes[m] * modes[o + m];
+            out[axis] = sum;
+        }
+    }
+
+    /**
+     * Rebuilds every vertex's position into the mesh, in parallel
+     */
+    public void reconstruct() {
+        int n = basis.getVertexCount();
+        ByteBuffer target = bakedMesh != null ? bakedMesh.getVertices() : vertices;
+        float tx = translation.x, ty = translation.y, tz = translation.z;
+        float[] q = amplitudes.clone();
+        float[] rest = basis.getRestPositions();
+        float[] modes = basis.getModes();
+        int chunks = (n + CHUNK - 1) / CHUNK;
+        IntStream.range(0, chunks).parallel().forEach(chunk -> {
+            int end = Math.min(n, (chunk + 1) * CHUNK);
+            for (int v = chunk * CHUNK; v < end; v++) {
+                int o = v * 3 * modeCount;
+                float x = rest[v * 3] + tx, y = rest[v * 3 + 1] + ty, z = rest[v * 3 + 2] + tz;
+                for (int m = 0; m < modeCount; m++) {
+                    x += q[m] * modes[o + m];
+                    y += q[m] * modes[o + modeCount + m];
+                    z += q[m] * modes[o + 2 * modeCount + m];
+                }
+                int b = v * VERTEX_BYTES;
+                target.putDouble(b, x);
+                target.putDouble(b + 8, y);
+                target.putDouble(b + 16, z);
+            }
+        });
+        if (bakedMesh != null)
+            bakedMesh.markDirty(0, n * VERTEX_BYTES);
+    }
+
+    /**
+     * Area-weighted vertex normals of the rest shape, which are close enough for the mild deformations this is for
+     */
+    private void writeRestNormals() {
+        int n = basis.getVertexCount();
+        float[] rest = basis.getRestPositions();
+        int[] triangles = basis.getTriangles();
+        float[] normals = new float[n * 3];
+        Vector3f normal = new Vector3f();
+        for (int t = 0; t < triangles.length; t += 3) {
+            int a = triangles[t] * 3, b = triangles[t + 1] * 3, c = triangles[t + 2] * 3;
+            normal.set(rest[b] - rest[a], rest[b + 1] - rest[a + 1], rest[b + 2] - rest[a + 2])
+                    .cross(rest[c] - rest[a], rest[c + 1] - rest[a + 1], rest[c + 2] - rest[a + 2]);
+            for (int corner : new int[]{a, b, c}) {
+                normals[corner] += normal.x;
+                normals[corner + 1] += normal.y;
+                normals[corner + 2] += normal.z;
+            }
+        }
+        for (int v = 0; v < n; v++) {
+            normal.set(normals[v * 3], normals[v * 3 + 1], normals[v * 3 + 2]);
+            if (normal.lengthSquared() > 0)
+                normal.normalize();
+            vertices.putFloat(v * VERTEX_BYTES + 24, normal.x);
+            vertices.putFloat(v * VERTEX_BYTES + 28, normal.y);
+            vertices.putFloat(v * VERTEX_BYTES + 32, normal.z);
+        }
+    }
+
+    /**
+     * Reconstructs the vertices and draws them. Doesn't bind the shader.
+     */
+    public void draw() {
+        reconstruct();
+        if (bakedMesh == null) {
+            MeshBuilder builder = BakedMesh.builder(VertexFormat.POS_NORM);
+            for (int v = 0; v < basis.getVertexCount(); v++) {
+                int b = v * VERTEX_BYTES;
+                builder.pos(vertices.getDouble(b), vertices.getDouble(b + 8), vertices.getDouble(b + 16))
+                        .norm(vertices.getFloat(b + 24), vertices.getFloat(b + 28), vertices.getFloat(b + 32));
+            }
+            builder.indices(basis.getTriangles());
+            bakedMesh = builder.createStreamingMesh(StreamingBakedMesh.DEFAULT_REGIONS);
+        }
+
+        sceneShader.modelMat.set(modelMat);
+        bakedMesh.draw();
+    }
+
+    public void free() {
+        if (bakedMesh != null) {
+            bakedMesh.free();
+            bakedMesh = null;
+        }
+    }
+
+}
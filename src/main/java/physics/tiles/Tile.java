@@ -0,0 +1,216 @@
+package physics.tiles;
+
+import util.BufferUtil;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The particles in one cube of space, stored in a memory-mapped file.
+ *
+ * <p>
+ * The file is a header followed by one block of floats per particle field (x, y, z, vx, vy, vz), each
+ * {@link #getCapacity() capacity} floats long, so a pass over one field reads contiguous pages. Tiles are only
+ * accessed through a {@link TileStore}, which decides when they're mapped and unmapped.
+ * </p>
+ */
+public class Tile {
+
+    public static final int X = 0, Y = 1, Z = 2, VX = 3, VY = 4, VZ = 5;
+    public static final int FIELDS = 6;
+
+    private static final int MAGIC = 0x54494c45;
+    private static final int HEADER_BYTES = 16;
+    private static final int MIN_CAPACITY = 256;
+
+    private final long key;
+    private final Path file;
+    private FileChannel channel;
+    /**
+     * Volatile, as the prefetch thread pages it in while the simulation thread may be remapping it
+     */
+    private volatile MappedByteBuffer mapped;
+    private final FloatBuffer[] fields = new FloatBuffer[FIELDS];
+    private int count;
+    private int capacity;
+
+    /**
+     * Pin count, guarded by the store
+     */
+    int pins = 0;
+
+    Tile(long key, Path file) {
+        this.key = key;
+        this.file = file;
+    }
+
+    /**
+     * Maps the tile's file, creating it if it doesn't exist
+     */
+    void map() throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (channel.size() < HEADER_BYTES) {
+            remap(MIN_CAPACITY);
+            mapped.putInt(0, MAGIC);
+            setCount(0);
+            return;
+        }
+
+        MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+        header.order(ByteOrder.nativeOrder());
+        if (header.getInt(0) != MAGIC)
+            throw new IOException("Not a particle tile: " + file);
+        int fileCount = header.getInt(4);
+        int fileCapacity = header.getInt(8);
+        BufferUtil.unmap(header);
+
+        remap(fileCapacity);
+        count = fileCount;
+    }
+
+    /**
+     * Unmaps the tile. The OS writes any changes back to the file in its own time.
+     */
+    void unmap() throws IOException {
+        if (mapped == null)
+            return;
+        for (int f = 0; f < FIELDS; f++)
+            fields[f] = null;
+        BufferUtil.unmap(mapped);
+        mapped = null;
+        channel.close();
+        channel = null;
+    }
+
+    boolean isMapped() {
+        return mapped != null;
+    }
+
+    /**
+     * Touches every page of the tile, so later accesses don't have to wait for the disk. The caller pins the tile so
+     * the store can't unmap it meanwhile, and {@link #grow(int)} waits for this to finish before remapping it.
+     */
+    synchronized void load() {
+        MappedByteBuffer buffer = mapped;
+        if (buffer != null)
+            buffer.load();
+    }
+
+    public long getKey() {
+        return key;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * The size of the mapping, in bytes
+     */
+    public long getMappedBytes() {
+        return bytesFor(capacity);
+    }
+
+    public float get(int field, int particle) {
+        return fields[field].get(particle);
+    }
+
+    public void set(int field, int particle, float value) {
+        fields[field].put(particle, value);
+    }
+
+    /**
+     * Reads a whole field into an array
+     */
+    public void read(int field, float[] out, int offset) {
+        FloatBuffer buffer = fields[field].duplicate();
+        buffer.position(0);
+        buffer.get(out, offset, count);
+    }
+
+    /**
+     * Overwrites a whole field from an array
+     */
+    public void write(int field, float[] in, int offset) {
+        FloatBuffer buffer = fields[field].duplicate();
+        buffer.position(0);
+        buffer.put(in, offset, count);
+    }
+
+    public int add(float x, float y, float z, float vx, float vy, float vz) throws IOException {
+        if (count == capacity)
+            grow(capacity * 2);
+        int i = count;
+        fields[X].put(i, x);
+        fields[Y].put(i, y);
+        fields[Z].put(i, z);
+        fields[VX].put(i, vx);
+        fields[VY].put(i, vy);
+        fields[VZ].put(i, vz);
+        setCount(count + 1);
+        return i;
+    }
+
+    /**
+     * Removes a particle by moving the last particle into its place
+     */
+    public void remove(int particle) {
+        int last = count - 1;
+        if (particle != last) {
+            for (int f = 0; f < FIELDS; f++)
+                fields[f].put(particle, fields[f].get(last));
+        }
+        setCount(last);
+    }
+
+    private void setCount(int count) {
+        this.count = count;
+        mapped.putInt(4, count);
+    }
+
+    /**
+     * Increases the capacity, moving each field block to its new offset. Waits for any {@link #load()} in progress,
+     * since the old mapping mustn't be unmapped while another thread is reading it.
+     */
+    private void grow(int newCapacity) throws IOException {
+        float[][] saved = new float[FIELDS][count];
+        for (int f = 0; f < FIELDS; f++)
+            read(f, saved[f], 0);
+
+        synchronized (this) {
+            BufferUtil.unmap(mapped);
+            remap(newCapacity);
+        }
+        for (int f = 0; f < FIELDS; f++)
+            write(f, saved[f], 0);
+        mapped.putInt(4, count);
+    }
+
+    private void remap(int newCapacity) throws IOException {
+        capacity = newCapacity;
+        mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, bytesFor(newCapacity));
+        mapped.order(ByteOrder.nativeOrder());
+        mapped.putInt(0, MAGIC);
+        mapped.putInt(8, newCapacity);
+        for (int f = 0; f < FIELDS; f++) {
+            mapped.position(HEADER_BYTES + f * newCapacity * 4);
+            mapped.limit(HEADER_BYTES + (f + 1) * newCapacity * 4);
+            fields[f] = mapped.slice().order(ByteOrder.nativeOrder()).asFloatBuffer();
+            mapped.clear();
+        }
+    }
+
+    private static long bytesFor(int capacity) {
+        return HEADER_BYTES + (long) FIELDS * capacity * 4;
+    }
+
+}
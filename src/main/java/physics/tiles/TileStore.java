@@ -0,0 +1,248 @@
+package physics.tiles;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A directory of {@link Tile tiles} covering a grid of cubes in space, of which at most a fixed number are mapped
+ * into memory at once.
+ *
+ * <p>
+ * Tiles are {@link #acquire(int, int, int) acquired} (pinned) while in use and {@link #release(Tile) released}
+ * afterwards. Mapped tiles which aren't pinned are unmapped least recently used first once there are more than the
+ * budget allows. Pinned tiles are never unmapped, so the budget can be exceeded if more than that many are pinned
+ * at once. {@link #prefetch(int, int, int)} maps a tile and pages it in on a background thread, so that it's ready
+ * by the time it's needed.
+ * </p>
+ */
+public class TileStore implements AutoCloseable {
+
+    private final Path directory;
+    private final float tileSize;
+    private final int maxResident;
+
+    /**
+     * Every tile which has a file, by key
+     */
+    private final Map<Long, Tile> tiles = new HashMap<>();
+    /**
+     * Mapped tiles, least recently used first
+     */
+    private final LinkedHashMap<Long, Tile> resident = new LinkedHashMap<>(16, 0.75f, true);
+    private final ExecutorService prefetcher;
+
+    // Stats since the last poll
+    private long maps, evictions, prefetches, hits, misses;
+
+    /**
+     * @param directory Where the tile files go. Existing tiles in it are picked up again.
+     * @param tileSize The edge length of each tile
+     * @param maxResident The maximum number of tiles mapped at once, when they aren't pinned
+     */
+    public TileStore(Path directory, float tileSize, int maxResident) throws IOException {
+        this.directory = directory;
+        this.tileSize = tileSize;
+        this.maxResident = maxResident;
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.tile")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                long key = Long.parseLong(name.substring(0, name.length() - ".tile".length()), 16);
+                tiles.put(key, new Tile(key, file));
+            }
+        }
+        prefetcher = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "Tile prefetch");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Packs tile coordinates, each within +-2^20, into one key
+     */
+    public static long key(int tx, int ty, int tz) {
+        return ((long) (tx + (1 << 20)) << 42) | ((long) (ty + (1 << 20)) << 21) | (tz + (1 << 20));
+    }
+
+    public static int keyX(long key) {
+        return (int) (key >>> 42) - (1 << 20);
+    }
+
+    public static int keyY(long key) {
+        return (int) ((key >>> 21) & 0x1fffff) - (1 << 20);
+    }
+
+    public static int keyZ(long key) {
+        return (int) (key & 0x1fffff) - (1 << 20);
+    }
+
+    public int tileCoord(float coord) {
+        return (int) Math.floor(coord / tileSize);
+    }
+
+    public float getTileSize() {
+        return tileSize;
+    }
+
+    public synchronized boolean exists(int tx, int ty, int tz) {
+        return tiles.containsKey(key(tx, ty, tz));
+    }
+
+    /**
+     * Every tile with a file, sorted by z, then y, then x
+     */
+    public synchronized List<Long> getTileKeys() {
+        List<Long> keys = new ArrayList<>(tiles.keySet());
+        Collections.sort(keys, (a, b) -> {
+            int c = Integer.compare(keyZ(a), keyZ(b));
+            if (c == 0) c = Integer.compare(keyY(a), keyY(b));
+            if (c == 0) c = Integer.compare(keyX(a), keyX(b));
+            return c;
+        });
+        return keys;
+    }
+
+    /**
+     * Maps a tile, creating it if it doesn't exist, and pins it until it's {@link #release(Tile) released}
+     */
+    public synchronized Tile acquire(int tx, int ty, int tz) {
+        long key = key(tx, ty, tz);
+        Tile tile = tiles.get(key);
+        if (tile == null) {
+            tile = new Tile(key, directory.resolve(Long.toHexString(key) + ".tile"));
+            tiles.put(key, tile);
+        }
+        tile.pins++;
+        if (tile.isMapped()) {
+            hits++;
+            resident.get(key); // marks it as recently used
+        } else {
+            misses++;
+            try {
+                tile.map();
+            } catch (IOException e) {
+                tile.pins--;
+                throw new UncheckedIOException("Could not map tile " + tx + ", " + ty + ", " + tz, e);
+            }
+            maps++;
+            resident.put(key, tile);
+            evict();
+        }
+        return tile;
+    }
+
+    /**
+     * Acquires a tile only if it already exists
+     *
+     * @return The tile, or null if it doesn't exist
+     */
+    public synchronized Tile acquireExisting(int tx, int ty, int tz) {
+        return tiles.containsKey(key(tx, ty, tz)) ? acquire(tx, ty, tz) : null;
+    }
+
+    public synchronized void release(Tile tile) {
+        if (tile.pins <= 0)
+            throw new IllegalStateException("Tile released more times than it was acquired");
+        tile.pins--;
+        if (tile.pins == 0)
+            evict();
+    }
+
+    /**
+     * Maps an existing tile and pages it in on the background thread, if it isn't mapped already. The tile stays
+     * pinned while it's paged in, so it can't be evicted meanwhile.
+     */
+    public void prefetch(int tx, int ty, int tz) {
+        synchronized (this) {
+            Tile tile = tiles.get(key(tx, ty, tz));
+            if (tile == null || tile.isMapped())
+                return;
+            prefetches++;
+        }
+        prefetcher.execute(() -> {
+            Tile tile = acquireExisting(tx, ty, tz);
+            if (tile != null) {
+                tile.load();
+                release(tile);
+            }
+        });
+    }
+
+    public synchronized int getResidentCount() {
+        return resident.size();
+    }
+
+    public synchronized long getResidentBytes() {
+        long bytes = 0;
+        for (Tile tile : resident.values())
+            bytes += tile.getMappedBytes();
+        return bytes;
+    }
+
+    public synchronized int getTileCount() {
+        return tiles.size();
+    }
+
+    /**
+     * Gets the stats since the last poll, and resets them
+     *
+     * @return Tiles mapped, tiles evicted, prefetches started, acquires of mapped tiles, acquires of unmapped tiles
+     */
+    public synchronized long[] pollStats() {
+        long[] stats = {maps, evictions, prefetches, hits, misses};
+        maps = evictions = prefetches = hits = misses = 0;
+        return stats;
+    }
+
+    /**
+     * Unmaps least recently used tiles which aren't pinned until the budget is met
+     */
+    private void evict() {
+        Iterator<Tile> it = resident.values().iterator();
+        while (resident.size() > maxResident && it.hasNext()) {
+            Tile tile = it.next();
+            if (tile.pins > 0)
+                continue;
+            try {
+                tile.unmap();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not unmap tile " + tile.getKey(), e);
+            }
+            it.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Waits for any prefetches to finish, then unmaps every tile
+     */
+    @Override
+    public void close() throws IOException {
+        prefetcher.shutdown();
+        try {
+            prefetcher.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            for (Tile tile : resident.values())
+                tile.unmap();
+            resident.clear();
+        }
+    }
+
+}
@@ -0,0 +1,105 @@
+package physics.tiles;
+
+import util.metrics.Histogram;
+import util.metrics.MetricsRegistry;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Fills a {@link TiledParticleSimulator} with a cube of particles dropping onto a floor, headless, and prints how long
+ * a step takes and how the tiles are paged in and out.
+ *
+ * <p>
+ * Arguments (all optional): particles, the most tiles mapped at once, steps to time, and a directory for the tile
+ * files. Without a directory, the tiles go in a temporary one which is deleted afterwards. The default tile budget
+ * holds three z-slices of the cube, which is enough for every tile to be mapped once per step; a smaller budget shows
+ * how throughput degrades once tiles are evicted and mapped again within a step. The out-of-core target is
+ * <tt>100000000</tt> particles, which needs a few GB of disk but only the budget's worth of memory.
+ * </p>
+ */
+public class TiledBenchmark {
+
+    private static final int WARMUP_STEPS = 2;
+    private static final float RADIUS = 0.05f;
+    private static final float SPACING = RADIUS * 2.2f;
+    private static final float TILE_SIZE = 1;
+
+    public static void main(String[] args) throws IOException {
+        long particles = args.length > 0 ? Long.parseLong(args[0]) : 1_000_000;
+        int side = (int) Math.ceil(Math.cbrt(particles));
+        // Centred on the origin, so it can straddle one more tile than it spans
+        int tilesPerSide = (int) Math.ceil(side * SPACING / TILE_SIZE) + 1;
+        int budget = args.length > 1 ? Integer.parseInt(args[1]) : 3 * tilesPerSide * tilesPerSide + 9;
+        int steps = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        boolean temporary = args.length <= 3;
+        Path directory = temporary ? Files.createTempDirectory("tiles") : Paths.get(args[3]);
+
+        try (TiledParticleSimulator sim = new TiledParticleSimulator(new TileStore(directory, TILE_SIZE, budget))) {
+            sim.setRadius(RADIUS);
+            sim.setWorldRadius(tilesPerSide * TILE_SIZE * 2);
+            sim.getColliders().addPlane(0, 1, 0, 0);
+
+            long start = System.nanoTime();
+            if (sim.getStore().getTileCount() == 0)
+                fill(sim, particles, side);
+            System.out.printf("%d particles in %d tiles, %d mapped at most, filled in %.1f s%n",
+                    sim.getParticleCount(), sim.getStore().getTileCount(), budget, (System.nanoTime() - start) / 1e9);
+
+            for (int s = 0; s < WARMUP_STEPS; s++)
+                sim.step();
+            // Stats only reset when they're recorded, so drop what filling and warming up built up
+            sim.getStore().pollStats();
+            MetricsRegistry metrics = sim.getMetrics();
+            metrics.setEnabled(true);
+            for (int s = 0; s < steps; s++)
+                sim.step();
+
+            Histogram step = metrics.histogram("step.nanos");
+            System.out.printf("%10s %10s %10s %12s %12s %10s %12s %12s%n", "particles", "p50 ms", "p99 ms",
+                    "mapped/step", "evicted/step", "hit %", "resident MB", "MB/s");
+            System.out.printf("%10d %10.1f %10.1f %12.0f %12.0f %10.0f %12.1f %12.0f%n", sim.getParticleCount(),
+                    step.getPercentile(0.5) / 1e6, step.getPercentile(0.99) / 1e6,
+                    metrics.histogram("tiles.mapped").getMean(), metrics.histogram("tiles.evicted").getMean(),
+                    metrics.histogram("tiles.hitPercent").getMean(),
+                    metrics.histogram("tiles.residentBytes").getMax() / 1e6,
+                    metrics.histogram("io.bytesPerSecond").getPercentile(0.5) / 1e6);
+        } finally {
+            if (temporary)
+                delete(directory);
+        }
+    }
+
+    /**
+     * Lays the particles out in a cube resting just above the floor, a block about a tile across at a time, so the
+     * tiles being filled stay mapped
+     */
+    private static void fill(TiledParticleSimulator sim, long particles, int side) {
+        int perTile = (int) Math.ceil(TILE_SIZE / SPACING);
+        int tilesPerSide = (side + perTile - 1) / perTile;
+        float half = side * SPACING / 2;
+        long added = 0;
+        for (int tz = 0; tz < tilesPerSide; tz++)
+            for (int ty = 0; ty < tilesPerSide; ty++)
+                for (int tx = 0; tx < tilesPerSide; tx++)
+                    for (int z = tz * perTile; z < Math.min(side, (tz + 1) * perTile); z++)
+                        for (int y = ty * perTile; y < Math.min(side, (ty + 1) * perTile); y++)
+                            for (int x = tx * perTile; x < Math.min(side, (tx + 1) * perTile); x++) {
+                                if (added++ == particles)
+                                    return;
+                                sim.addParticle(x * SPACING - half, RADIUS + y * SPACING, z * SPACING - half, 0, 0, 0);
+                            }
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.tile")) {
+            for (Path file : files)
+                Files.delete(file);
+        }
+        Files.delete(directory);
+    }
+
+}
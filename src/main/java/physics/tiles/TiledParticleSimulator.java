@@ -0,0 +1,292 @@
+package physics.tiles;
+
+import physics.ColliderSet;
+import physics.ParticleSeparator;
+import util.FloatArrayList;
+import util.metrics.MetricsRegistry;
+import util.trace.Trace;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A particle simulation whose state lives in memory-mapped {@link Tile tiles} on disk rather than on the heap, for
+ * more particles than fit in memory.
+ *
+ * <p>
+ * All particles have the same radius. Each step sweeps through the tiles in z, y, x order. A tile is stepped with
+ * its 26 neighbours pinned, so particles can be pushed apart from particles just across the tile boundary, and the
+ * neighbourhood of the next tile is prefetched meanwhile. Particles which leave their tile are moved to their new
+ * tile after the sweep, so nothing is stepped twice. Neighbouring tiles earlier in the sweep have already been
+ * stepped, so interactions across a boundary see the neighbour's new positions rather than the old ones.
+ * </p><p>
+ * Every tile is mapped once per step if the store can keep at least three z-slices of tiles resident, as stepping a
+ * slice touches the slices either side of it; with less, tiles are mapped more than once, so throughput degrades with
+ * the budget but never fails.
+ * </p>
+ */
+public class TiledParticleSimulator implements AutoCloseable {
+
+    private static final int TRACE_STEP = Trace.event("TiledParticleSimulator.step");
+    private static final int TRACE_TILE = Trace.event("TiledParticleSimulator.stepTile");
+
+    private final TileStore store;
+    private final ColliderSet colliders = new ColliderSet();
+    private final ParticleSeparator separator = new ParticleSeparator();
+    private final MetricsRegistry metrics = new MetricsRegistry();
+
+    private float g = -9.8f;
+    private final float TPS = 60f;
+    private float radius = 0.05f;
+    private float worldRadius = 50;
+
+    // Scratch state for the tile being stepped: its own particles first, then the ones in its neighbours' halo
+    private float[] positions = new float[0];
+    private float[] velocities = new float[0];
+    private final Tile[] neighbours = new Tile[27];
+
+    /**
+     * Particles moving to another tile, 6 floats each
+     */
+    private final FloatArrayList migrations = new FloatArrayList();
+
+    private long particleCount = 0;
+    private long bytesTouched = 0;
+
+    public TiledParticleSimulator(TileStore store) {
+        this.store = store;
+    }
+
+    public TileStore getStore() {
+        return store;
+    }
+
+    public ColliderSet getColliders() {
+        return colliders;
+    }
+
+    /**
+     * Tile residency, I/O and step timings, recorded while enabled
+     */
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    public void setRadius(float radius) {
+        this.radius = radius;
+    }
+
+    /**
+     * Particles further than this from the origin are removed
+     */
+    public void setWorldRadius(float worldRadius) {
+        this.worldRadius = worldRadius;
+    }
+
+    /**
+     * The number of particles as of the last step, plus any added since
+     */
+    public long getParticleCount() {
+        return particleCount;
+    }
+
+    public void addParticle(float x, float y, float z, float vx, float vy, float vz) {
+        Tile tile = store.acquire(store.tileCoord(x), store.tileCoord(y), store.tileCoord(z));
+        try {
+            tile.add(x, y, z, vx, vy, vz);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not grow tile", e);
+        } finally {
+            store.release(tile);
+        }
+        particleCount++;
+    }
+
+    public void step() {
+        Trace.begin(TRACE_STEP);
+        long start = System.nanoTime();
+        bytesTouched = 0;
+        particleCount = 0;
+
+        List<Long> keys = store.getTileKeys();
+        for (int k = 0; k < keys.size(); k++) {
+            if (k + 1 < keys.size())
+                prefetchAround(keys.get(k + 1));
+            long key = keys.get(k);
+            stepTile(TileStore.keyX(key), TileStore.keyY(key), TileStore.keyZ(key));
+        }
+        applyMigrations();
+
+        Trace.end(TRACE_STEP);
+        if (metrics.isEnabled())
+            recordMetrics(System.nanoTime() - start);
+    }
+
+    private void recordMetrics(long stepNanos) {
+        long[] stats = store.pollStats();
+        metrics.histogram("step.nanos").record(stepNanos);
+        metrics.histogram("count.particles").record(particleCount);
+        metrics.histogram("tiles.total").record(store.getTileCount());
+        metrics.histogram("tiles.resident").record(store.getResidentCount());
+        metrics.histogram("tiles.residentBytes").record(store.getResidentBytes());
+        metrics.histogram("tiles.mapped").record(stats[0]);
+        metrics.histogram("tiles.evicted").record(stats[1]);
+        metrics.histogram("tiles.prefetched").record(stats[2]);
+        long acquires = stats[3] + stats[4];
+        metrics.histogram("tiles.hitPercent").record(acquires == 0 ? 100 : stats[3] * 100 / acquires);
+        metrics.histogram("io.bytesTouched").record(bytesTouched);
+        metrics.histogram("io.bytesPerSecond").record(stepNanos == 0 ? 0 : bytesTouched * 1_000_000_000L / stepNanos);
+    }
+
+    private void prefetchAround(long key) {
+        int tx = TileStore.keyX(key), ty = TileStore.keyY(key), tz = TileStore.keyZ(key);
+        for (int dz = -1; dz <= 1; dz++)
+            for (int dy = -1; dy <= 1; dy++)
+                for (int dx = -1; dx <= 1; dx++)
+                    store.prefetch(tx + dx, ty + dy, tz + dz);
+    }
+
+    private void stepTile(int tx, int ty, int tz) {
+        Trace.begin(TRACE_TILE);
+        int neighbourCount = 0;
+        for (int dz = -1; dz <= 1; dz++)
+            for (int dy = -1; dy <= 1; dy++)
+                for (int dx = -1; dx <= 1; dx++)
+                    neighbours[neighbourCount++] = store.acquireExisting(tx + dx, ty + dy, tz + dz);
+        Tile tile = neighbours[13];
+
+        try {
+            int n = tile.getCount();
+            particleCount += n;
+            if (n > 0) {
+                loadOwn(tile, n);
+                int total = n + loadHalo(tile, tx, ty, tz, n);
+                separator.separate(positions, velocities, n, total, radius);
+                colliders.collide(positions, velocities, n, radius);
+                storeOwn(tile, n);
+                findMigrations(tile, tx, ty, tz);
+            }
+        } finally {
+            for (int i = 0; i < neighbours.length; i++) {
+                if (neighbours[i] != null) {
+                    store.release(neighbours[i]);
+                    neighbours[i] = null;
+                }
+            }
+            Trace.end(TRACE_TILE);
+        }
+    }
+
+    /**
+     * Copies the tile's particles into the scratch arrays, integrating them as it goes
+     */
+    private void loadOwn(Tile tile, int n) {
+        ensureCapacity(n);
+        float dt = 1 / TPS;
+        for (int i = 0; i < n; i++) {
+            int o = i * 3;
+            float vx = tile.get(Tile.VX, i), vy = tile.get(Tile.VY, i) + g * dt, vz = tile.get(Tile.VZ, i);
+            velocities[o] = vx;
+            velocities[o + 1] = vy;
+            velocities[o + 2] = vz;
+            positions[o] = tile.get(Tile.X, i) + vx * dt;
+            positions[o + 1] = tile.get(Tile.Y, i) + vy * dt;
+            positions[o + 2] = tile.get(Tile.Z, i) + vz * dt;
+        }
+        bytesTouched += (long) n * Tile.FIELDS * 4;
+    }
+
+    /**
+     * Appends the neighbouring particles close enough to the tile to touch its particles
+     *
+     * @return The number of halo particles
+     */
+    private int loadHalo(Tile tile, int tx, int ty, int tz, int n) {
+        float size = store.getTileSize();
+        float reach = radius * 2;
+        float minX = tx * size - reach, minY = ty * size - reach, minZ = tz * size - reach;
+        float maxX = (tx + 1) * size + reach, maxY = (ty + 1) * size + reach, maxZ = (tz + 1) * size + reach;
+
+        int count = n;
+        for (Tile neighbour : neighbours) {
+            if (neighbour == null || neighbour == tile)
+                continue;
+            int m = neighbour.getCount();
+            bytesTouched += (long) m * 3 * 4;
+            for (int i = 0; i < m; i++) {
+                float x = neighbour.get(Tile.X, i), y = neighbour.get(Tile.Y, i), z = neighbour.get(Tile.Z, i);
+                if (x < minX || x > maxX || y < minY || y > maxY || z < minZ || z > maxZ)
+                    continue;
+                ensureCapacity(count + 1);
+                positions[count * 3] = x;
+                positions[count * 3 + 1] = y;
+                positions[count * 3 + 2] = z;
+                count++;
+            }
+        }
+        return count - n;
+    }
+
+    private void storeOwn(Tile tile, int n) {
+        for (int i = 0; i < n; i++) {
+            int o = i * 3;
+            tile.set(Tile.X, i, positions[o]);
+            tile.set(Tile.Y, i, positions[o + 1]);
+            tile.set(Tile.Z, i, positions[o + 2]);
+            tile.set(Tile.VX, i, velocities[o]);
+            tile.set(Tile.VY, i, velocities[o + 1]);
+            tile.set(Tile.VZ, i, velocities[o + 2]);
+        }
+        bytesTouched += (long) n * Tile.FIELDS * 4;
+    }
+
+    /**
+     * Takes every particle which has left the tile out of it, queueing it to be added to its new tile (or dropped,
+     * if it's left the world)
+     */
+    private void findMigrations(Tile tile, int tx, int ty, int tz) {
+        float limitSq = worldRadius * worldRadius;
+        // Backwards, since removing swaps the last particle into the removed one's place
+        for (int i = tile.getCount() - 1; i >= 0; i--) {
+            float x = tile.get(Tile.X, i), y = tile.get(Tile.Y, i), z = tile.get(Tile.Z, i);
+            boolean inWorld = x * x + y * y + z * z <= limitSq;
+            if (inWorld && store.tileCoord(x) == tx && store.tileCoord(y) == ty && store.tileCoord(z) == tz)
+                continue;
+            if (inWorld) {
+                migrations.add(x);
+                migrations.add(y);
+                migrations.add(z);
+                migrations.add(tile.get(Tile.VX, i));
+                migrations.add(tile.get(Tile.VY, i));
+                migrations.add(tile.get(Tile.VZ, i));
+            } else {
+                particleCount--;
+            }
+            tile.remove(i);
+        }
+    }
+
+    private void applyMigrations() {
+        float[] m = migrations.elements();
+        for (int i = 0; i < migrations.size(); i += 6) {
+            addParticle(m[i], m[i + 1], m[i + 2], m[i + 3], m[i + 4], m[i + 5]);
+            particleCount--; // already counted in its old tile
+        }
+        migrations.clear();
+    }
+
+    private void ensureCapacity(int particles) {
+        if (positions.length >= particles * 3)
+            return;
+        int capacity = Math.max(particles * 3, positions.length * 2);
+        positions = Arrays.copyOf(positions, capacity);
+        velocities = Arrays.copyOf(velocities, capacity);
+    }
+
+    @Override
+    public void close() throws IOException {
+        store.close();
+    }
+
+}
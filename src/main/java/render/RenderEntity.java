@@ -2,6 +2,7 @@ package render;
 
 import render.util.BakedMesh;
 import render.util.Drawable;
+import render.util.GlState;
 import org.joml.*;
 
 import java.io.IOException;
@@ -136,9 +137,9 @@ public abstract class RenderEntity implements Drawable {
     }
 
     /*public void drawOutline(Vector4f colour, float width) {
-        glEnable(GL_STENCIL_TEST);
+        GlState.enable(GL_STENCIL_TEST);
 
-        glDisable(GL_DEPTH_TEST);
+        GlState.disable(GL_DEPTH_TEST);
 
 
         glStencilOp(GL_KEEP,GL_KEEP,GL_REPLACE);
@@ -163,8 +164,8 @@ public abstract class RenderEntity implements Drawable {
         postDrawOutline(width);
 
         glStencilMask(0xFF);
-        glDisable(GL_STENCIL_TEST);
-        glEnable(GL_DEPTH_TEST);
+        GlState.disable(GL_STENCIL_TEST);
+        GlState.enable(GL_DEPTH_TEST);
 
     }*/
 
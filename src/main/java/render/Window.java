@@ -4,6 +4,7 @@ import org.lwjgl.glfw.Callbacks;
 import org.lwjgl.glfw.GLFWVidMode;
 import org.lwjgl.system.MemoryStack;
 import render.util.OS;
+import util.trace.Trace;
 
 import java.awt.*;
 import java.nio.IntBuffer;
@@ -16,6 +17,8 @@ import static org.lwjgl.system.MemoryUtil.*;
 
 public class Window {
 
+    private static final int TRACE_END_FRAME = Trace.event("Window.endFrame");
+
     private static final int[][] ACCEPTABLE_RESOLUTIONS = {
             {1024, 576},
             {1152, 648},
@@ -330,7 +333,9 @@ public class Window {
     }
 
     public void endFrame() {
+        Trace.begin(TRACE_END_FRAME);
         glfwSwapBuffers(pointer);
+        Trace.end(TRACE_END_FRAME);
     }
 
 
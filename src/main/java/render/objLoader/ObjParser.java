@@ -0,0 +1,289 @@
+package render.objLoader;
+
+import util.FloatArrayList;
+import util.IntArrayList;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+/**
+ * Reads the geometry from an OBJ file into flat primitive arrays, without a string or vector for every line or value.
+ *
+ * <p>
+ * Positions and normals are kept as (x, y, z) at <tt>3 * index</tt>, texture coordinates as (u, v) at
+ * <tt>2 * index</tt>, and vertex colours (if the file gives any) as (r, g, b, a) at <tt>4 * index</tt>. Each face
+ * and line corner is three (0-based) indices into those: position, texture coordinates and normal, with {@link #NONE}
+ * for any the corner doesn't have. Negative (relative) indices are resolved, polygons are split into fans of
+ * triangles, and polylines into their segments. Anything other than <tt>v</tt>, <tt>vt</tt>, <tt>vn</tt>, <tt>f</tt>
+ * and <tt>l</tt> is ignored.
+ * </p>
+ *
+ * <p>
+ * Example usage:
+ * <blockquote><pre>
+ *     ObjParser obj = ObjParser.parse(Paths.get("my_obj.ob"));
+ *     float[] positions = obj.getPositions().elements();
+ * </pre></blockquote>
+ * </p>
+ */
+public final class ObjParser {
+
+    /**
+     * The index of an attribute a corner doesn't have
+     */
+    public static final int NONE = -1;
+
+    private final FloatArrayList positions = new FloatArrayList(1024);
+    private FloatArrayList colours = null;
+    private final FloatArrayList textures = new FloatArrayList(1024);
+    private final FloatArrayList normals = new FloatArrayList(1024);
+    private final IntArrayList triangles = new IntArrayList(1024);
+    private final IntArrayList lines = new IntArrayList();
+    private int firstFaceLineNo = 0;
+    private int firstLineLineNo = 0;
+
+    /**
+     * The first corner of the face or line being read, and the last, for fanning and chaining the rest from
+     */
+    private final int[] first = new int[3];
+    private final int[] previous = new int[3];
+    private final int[] corner = new int[3];
+    private final float[] rgba = new float[4];
+
+    private ObjParser() {
+    }
+
+    /**
+     * Parses the bytes from the buffer's position to its limit
+     */
+    public static ObjParser parse(ByteBuffer bytes) throws ObjFormatException {
+        ObjParser parser = new ObjParser();
+        ObjTokenizer tokenizer = new ObjTokenizer(bytes);
+        while (tokenizer.nextLine())
+            parser.parseLine(tokenizer);
+        return parser;
+    }
+
+    /**
+     * Parses a file, mapped into memory
+     */
+    public static ObjParser parse(Path file) throws IOException {
+        return parse(ObjTokenizer.map(file));
+    }
+
+    public static ObjParser parse(URL url) throws IOException {
+        return parse(ObjTokenizer.read(url));
+    }
+
+    public static ObjParser parse(InputStream in) throws IOException {
+        return parse(ObjTokenizer.read(in));
+    }
+
+    private void parseLine(ObjTokenizer tokenizer) throws ObjFormatException {
+        if (!tokenizer.next())
+            return;
+        int lineNo = tokenizer.getLineNo();
+
+        if (tokenizer.is("v")) {
+            float x = tokenizer.nextFloat(), y = tokenizer.nextFloat(), z = tokenizer.nextFloat();
+            positions.add(x, y, z);
+            // Either nothing, w, r g b, or r g b a follows
+            int extra = 0;
+            while (tokenizer.next()) {
+                if (extra == 4)
+                    throw new ObjFormatException(lineNo, "vertex contains wrong number of parameters");
+                rgba[extra++] = readFloat(tokenizer);
+            }
+            if (extra == 2)
+                throw new ObjFormatException(lineNo, "vertex contains wrong number of parameters");
+            if (extra >= 3 && colours == null) {
+                // The first coloured vertex, so every one before it is white
+                colours = new FloatArrayList(positions.size() / 3 * 4);
+                for (int i = 0; i < positions.size() / 3 - 1; i++) {
+                    colours.add(1, 1, 1);
+                    colours.add(1);
+                }
+            }
+            if (colours != null) {
+                if (extra < 3)
+                    rgba[0] = rgba[1] = rgba[2] = 1;
+                if (extra < 4)
+                    rgba[3] = 1;
+                colours.add(rgba[0], rgba[1], rgba[2]);
+                colours.add(rgba[3]);
+            }
+        } else if (tokenizer.is("vn")) {
+            float x = tokenizer.nextFloat(), y = tokenizer.nextFloat(), z = tokenizer.nextFloat();
+            if (tokenizer.next())
+                throw new ObjFormatException(lineNo, "normal vector doesn't contain 3 coordinates");
+            normals.add(x, y, z);
+        } else if (tokenizer.is("vt")) {
+            // v and w are optional, and w is dropped
+            float u = tokenizer.nextFloat();
+            float v = tokenizer.next() ? readFloat(tokenizer) : 0;
+            if (tokenizer.next())
+                readFloat(tokenizer);
+            if (tokenizer.next())
+                throw new ObjFormatException(lineNo, "texture coordinate contains more than 3 coordinates");
+            textures.add(u);
+            textures.add(v);
+        } else if (tokenizer.is("f")) {
+            if (firstFaceLineNo == 0)
+                firstFaceLineNo = lineNo;
+            int count = 0;
+            while (tokenizer.next()) {
+                readCorner(tokenizer, lineNo);
+                if (count == 0) {
+                    copy(corner, first);
+                } else if (count >= 2) {
+                    add(triangles, first);
+                    add(triangles, previous);
+                    add(triangles, corner);
+                }
+                copy(corner, previous);
+                count++;
+            }
+            if (count < 3)
+                throw new ObjFormatException(lineNo, "face doesn't contain 3 vertices");
+        } else if (tokenizer.is("l")) {
+            if (firstLineLineNo == 0)
+                firstLineLineNo = lineNo;
+            int count = 0;
+            while (tokenizer.next()) {
+                readCorner(tokenizer, lineNo);
+                if (count >= 1) {
+                    add(lines, previous);
+                    add(lines, corner);
+                }
+                copy(corner, previous);
+                count++;
+            }
+            if (count < 2)
+                throw new ObjFormatException(lineNo, "line doesn't contain 2 vertices");
+        }
+    }
+
+    private static float readFloat(ObjTokenizer tokenizer) throws ObjFormatException {
+        float value = tokenizer.readFloat();
+        if (!tokenizer.atEnd())
+            throw new ObjFormatException(tokenizer.getLineNo(), "invalid float: " + tokenizer.word());
+        return value;
+    }
+
+    /**
+     * Reads a <tt>v</tt>, <tt>v/t</tt>, <tt>v//n</tt> or <tt>v/t/n</tt> corner into {@link #corner}
+     */
+    private void readCorner(ObjTokenizer tokenizer, int lineNo) throws ObjFormatException {
+        corner[0] = resolve(tokenizer.readInt(), positions.size() / 3, lineNo, "vertex pos");
+        corner[1] = NONE;
+        corner[2] = NONE;
+        if (tokenizer.skip('/')) {
+            if (!tokenizer.at('/') && !tokenizer.atEnd())
+                corner[1] = resolve(tokenizer.readInt(), textures.size() / 2, lineNo, "texture");
+            if (tokenizer.skip('/'))
+                corner[2] = resolve(tokenizer.readInt(), normals.size() / 3, lineNo, "normal");
+        }
+        if (!tokenizer.atEnd())
+            throw new ObjFormatException(lineNo, "invalid vertex: " + tokenizer.word());
+    }
+
+    /**
+     * Turns a 1-based (or, if negative, relative to the end) index into a 0-based one
+     */
+    private static int resolve(int index, int count, int lineNo, String name) throws ObjFormatException {
+        int resolved = index < 0 ? count + index : index - 1;
+        if (index == 0 || resolved < 0 || resolved >= count)
+            throw new ObjFormatException(lineNo, "out of bounds " + name + " index: " + index);
+        return resolved;
+    }
+
+    private static void copy(int[] from, int[] to) {
+        to[0] = from[0];
+        to[1] = from[1];
+        to[2] = from[2];
+    }
+
+    private static void add(IntArrayList list, int[] corner) {
+        list.add(corner[0], corner[1], corner[2]);
+    }
+
+    /**
+     * Positions, as (x, y, z) at <tt>3 * index</tt>
+     */
+    public FloatArrayList getPositions() {
+        return positions;
+    }
+
+    public int getPositionCount() {
+        return positions.size() / 3;
+    }
+
+    /**
+     * Vertex colours, as (r, g, b, a) at <tt>4 * index</tt> of the position they're for, or null if the file has none
+     */
+    public FloatArrayList getColours() {
+        return colours;
+    }
+
+    /**
+     * Texture coordinates, as (u, v) at <tt>2 * index</tt>
+     */
+    public FloatArrayList getTextures() {
+        return textures;
+    }
+
+    public int getTextureCount() {
+        return textures.size() / 2;
+    }
+
+    /**
+     * Normals, as (x, y, z) at <tt>3 * index</tt>
+     */
+    public FloatArrayList getNormals() {
+        return normals;
+    }
+
+    public int getNormalCount() {
+        return normals.size() / 3;
+    }
+
+    /**
+     * Triangle corners, each as its (position, texture, normal) indices, so 9 ints per triangle
+     */
+    public IntArrayList getTriangles() {
+        return triangles;
+    }
+
+    public int getTriangleCount() {
+        return triangles.size() / 9;
+    }
+
+    /**
+     * Line segment corners, each as its (position, texture, normal) indices, so 6 ints per segment
+     */
+    public IntArrayList getLines() {
+        return lines;
+    }
+
+    public int getLineCount() {
+        return lines.size() / 6;
+    }
+
+    /**
+     * The line the first face is on, or 0 if there are none
+     */
+    public int getFirstFaceLineNo() {
+        return firstFaceLineNo;
+    }
+
+    /**
+     * The line the first line element is on, or 0 if there are none
+     */
+    public int getFirstLineLineNo() {
+        return firstLineLineNo;
+    }
+
+}
@@ -0,0 +1,348 @@
+package render.objLoader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Splits an OBJ file's bytes into lines and blank separated words where they lie, without making a string for each
+ * line or word, and reads numbers straight from them.
+ *
+ * <p>
+ * Each line is started with {@link #nextLine()}, then its words read in turn with {@link #next()}. Within the current
+ * word there's a cursor, which {@link #readFloat()}, {@link #readInt()} and {@link #skip(char)} move along, so
+ * words such as <tt>1/2/3</tt> can be picked apart in place. A <tt>#</tt> ends a line early.
+ * </p>
+ */
+public final class ObjTokenizer {
+
+    /**
+     * Powers of ten a double holds exactly, so a mantissa of at most 53 bits scaled by one is correctly rounded
+     */
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    private final ByteBuffer bytes;
+    private final int end;
+    private int pos;
+    private int lineNo = 0;
+
+    private int wordStart;
+    private int wordEnd;
+    private int cursor;
+
+    /**
+     * Reads from the buffer's position to its limit. The buffer itself isn't moved.
+     */
+    public ObjTokenizer(ByteBuffer bytes) {
+        this.bytes = bytes;
+        this.pos = bytes.position();
+        this.end = bytes.limit();
+    }
+
+    /**
+     * Maps a file into memory, so the OS pages it in as it's read rather than it being copied onto the heap
+     */
+    public static ByteBuffer map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("Too large to map: " + file + " (" + size + " bytes)");
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+    }
+
+    /**
+     * Reads the whole of a stream into one buffer
+     */
+    public static ByteBuffer read(InputStream in) throws IOException {
+        byte[] data = new byte[Math.max(in.available(), 8192)];
+        int size = 0;
+        int read;
+        while ((read = in.read(data, size, data.length - size)) != -1) {
+            size += read;
+            if (size == data.length)
+                data = Arrays.copyOf(data, data.length * 2);
+        }
+        return ByteBuffer.wrap(data, 0, size);
+    }
+
+    /**
+     * Maps the file the URL points to, or reads it if it isn't a file (in a jar, say)
+     */
+    public static ByteBuffer read(URL url) throws IOException {
+        if ("file".equals(url.getProtocol())) {
+            try {
+                return map(Paths.get(url.toURI()));
+            } catch (URISyntaxException | IllegalArgumentException ignored) {
+                // Not a path we can map after all, so read it as a stream
+            }
+        }
+        try (InputStream in = url.openStream()) {
+            return read(in);
+        }
+    }
+
+    /**
+     * The (1-based) number of the current line
+     */
+    public int getLineNo() {
+        return lineNo;
+    }
+
+    /**
+     * Moves to the start of the next line, skipping whatever's left of this one
+     *
+     * @return False if there are no more lines
+     */
+    public boolean nextLine() {
+        if (lineNo > 0) {
+            while (pos < end && bytes.get(pos) != '\n')
+                pos++;
+            if (pos == end)
+                return false;
+            pos++;
+        } else if (pos == end) {
+            return false;
+        }
+        lineNo++;
+        wordStart = wordEnd = cursor = pos;
+        return true;
+    }
+
+    /**
+     * Moves to the next word on this line
+     *
+     * @return False if the line has no more words
+     */
+    public boolean next() {
+        byte b = 0;
+        while (pos < end && isBlank(b = bytes.get(pos)))
+            pos++;
+        if (pos == end || isLineEnd(b)) {
+            wordStart = wordEnd = cursor = pos;
+            return false;
+        }
+        wordStart = cursor = pos;
+        // Everything printable ends a word only if it's a #, so most bytes take one comparison
+        while (++pos < end && ((b = bytes.get(pos)) > ' ' ? b != '#' : !isBlank(b) && b != '\n')) {
+        }
+        wordEnd = pos;
+        return true;
+    }
+
+    private static boolean isBlank(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\f';
+    }
+
+    private static boolean isLineEnd(byte b) {
+        return b == '\n' || b == '#';
+    }
+
+    /**
+     * Whether the current word is exactly this (ASCII) text
+     */
+    public boolean is(String word) {
+        if (wordEnd - wordStart != word.length())
+            return false;
+        for (int i = 0; i < word.length(); i++) {
+            if (bytes.get(wordStart + i) != word.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * The current word as a string, for error messages
+     */
+    public String word() {
+        byte[] text = new byte[wordEnd - wordStart];
+        for (int i = 0; i < text.length; i++)
+            text[i] = bytes.get(wordStart + i);
+        return new String(text, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Whether the cursor has reached the end of the current word
+     */
+    public boolean atEnd() {
+        return cursor == wordEnd;
+    }
+
+    /**
+     * Whether the cursor is on this character
+     */
+    public boolean at(char c) {
+        return cursor < wordEnd && bytes.get(cursor) == c;
+    }
+
+    /**
+     * Moves the cursor past this character if it's on it
+     *
+     * @return Whether it was
+     */
+    public boolean skip(char c) {
+        if (!at(c))
+            return false;
+        cursor++;
+        return true;
+    }
+
+    /**
+     * Reads the next word as a float, which must be the whole word
+     *
+     * @throws ObjFormatException If there's no next word on this line, or it isn't a float
+     */
+    public float nextFloat() throws ObjFormatException {
+        if (!next())
+            throw new ObjFormatException(lineNo, "expected a float");
+        float value = readFloat();
+        if (!atEnd())
+            throw new ObjFormatException(lineNo, "invalid float: " + word());
+        return value;
+    }
+
+    /**
+     * Reads a float at the cursor, in any form {@link Float#parseFloat(String)} reads, and rounded exactly as it
+     * would be. Most are read straight from the bytes, keeping the first 15 or so significant digits (far more than a
+     * float holds). The rest are handed to {@link Float#parseFloat(String)}: very large or small exponents, hex
+     * floats, the odd forms such as <tt>NaN</tt>, and the rare numbers so close to halfway between two floats that
+     * the digits kept can't settle which it rounds to.
+     *
+     * @throws ObjFormatException If there isn't one
+     */
+    public float readFloat() throws ObjFormatException {
+        int start = cursor;
+        int i = cursor;
+        boolean negative = false;
+        if (i < wordEnd && (bytes.get(i) == '-' || bytes.get(i) == '+'))
+            negative = bytes.get(i++) == '-';
+
+        long mantissa = 0;
+        int exponent = 0;
+        int digits = 0;
+        // Whether any non-zero digits were dropped, so the true value is somewhere below mantissa + 1
+        boolean truncated = false;
+        int b;
+        for (; i < wordEnd && (b = bytes.get(i) - '0') >= 0 && b <= 9; i++, digits++) {
+            if (mantissa < MAX_EXACT_MANTISSA / 10) {
+                mantissa = mantissa * 10 + b;
+            } else {
+                exponent++;
+                truncated |= b != 0;
+            }
+        }
+        if (i < wordEnd && (bytes.get(i) == 'x' || bytes.get(i) == 'X'))
+            return parseSlowly(start);
+        if (i < wordEnd && bytes.get(i) == '.') {
+            i++;
+            for (; i < wordEnd && (b = bytes.get(i) - '0') >= 0 && b <= 9; i++, digits++) {
+                if (mantissa < MAX_EXACT_MANTISSA / 10) {
+                    mantissa = mantissa * 10 + b;
+                    exponent--;
+                } else {
+                    truncated |= b != 0;
+                }
+            }
+        }
+        if (digits == 0)
+            return parseSlowly(start);
+
+        if (i < wordEnd && (bytes.get(i) == 'e' || bytes.get(i) == 'E')) {
+            i++;
+            boolean negativeExponent = false;
+            if (i < wordEnd && (bytes.get(i) == '-' || bytes.get(i) == '+'))
+                negativeExponent = bytes.get(i++) == '-';
+            int e = 0;
+            int expDigits = 0;
+            for (; i < wordEnd && (b = bytes.get(i) - '0') >= 0 && b <= 9; i++, expDigits++)
+                e = Math.min(e * 10 + b, 100000);
+            if (expDigits == 0)
+                throw new ObjFormatException(lineNo, "invalid float: " + word());
+            exponent += negativeExponent ? -e : e;
+        }
+        // A trailing f or d, which Float.parseFloat takes too
+        if (i < wordEnd && "fFdD".indexOf(bytes.get(i)) >= 0)
+            i++;
+
+        if (exponent < -22 || exponent > 22)
+            return parseSlowly(start);
+        float value = round(mantissa, exponent);
+        // Anything dropped could only have pushed it up to the next mantissa, so if that rounds the same it's settled
+        if (truncated && Float.floatToRawIntBits(round(mantissa + 1, exponent)) != Float.floatToRawIntBits(value))
+            value = Float.NaN;
+        if (Float.isNaN(value))
+            return parseSlowly(start);
+        cursor = i;
+        return negative ? -value : value;
+    }
+
+    /**
+     * Rounds <tt>mantissa * 10^exponent</tt> to the nearest float, with a mantissa of at most 53 bits and an exponent
+     * of at most 22 either way
+     *
+     * @return The float, or NaN if it can't be sure of it
+     */
+    private static float round(long mantissa, int exponent) {
+        // Both exact as doubles, so this is the double nearest the true value
+        double value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+        // Rounding that to a float again is only wrong if it landed exactly halfway between two floats, which the
+        // true value needn't be. A float keeps 29 fewer mantissa bits than a double, and the results here are never
+        // small enough to be subnormal.
+        if ((Double.doubleToRawLongBits(value) & 0x1FFFFFFFL) == 0x10000000L)
+            return Float.NaN;
+        return (float) value;
+    }
+
+    /**
+     * Parses from the start to the end of the word with {@link Float#parseFloat(String)}
+     */
+    private float parseSlowly(int start) throws ObjFormatException {
+        byte[] text = new byte[wordEnd - start];
+        for (int i = 0; i < text.length; i++)
+            text[i] = bytes.get(start + i);
+        try {
+            float value = Float.parseFloat(new String(text, StandardCharsets.US_ASCII));
+            cursor = wordEnd;
+            return value;
+        } catch (NumberFormatException e) {
+            throw new ObjFormatException(lineNo, "invalid float: " + word());
+        }
+    }
+
+    /**
+     * Reads an integer at the cursor, stopping at the first character which isn't part of it
+     *
+     * @throws ObjFormatException If there isn't one, or it doesn't fit in an int
+     */
+    public int readInt() throws ObjFormatException {
+        int i = cursor;
+        boolean negative = false;
+        if (i < wordEnd && (bytes.get(i) == '-' || bytes.get(i) == '+'))
+            negative = bytes.get(i++) == '-';
+        int start = i;
+        long value = 0;
+        int b;
+        for (; i < wordEnd && (b = bytes.get(i) - '0') >= 0 && b <= 9; i++) {
+            value = value * 10 + b;
+            if (value > Integer.MAX_VALUE)
+                throw new ObjFormatException(lineNo, "integer too large: " + word());
+        }
+        if (i == start)
+            throw new ObjFormatException(lineNo, "invalid integer: " + word());
+        cursor = i;
+        return (int) (negative ? -value : value);
+    }
+
+}
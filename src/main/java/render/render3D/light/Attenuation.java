@@ -26,6 +26,23 @@ public class Attenuation {
         this(attenuation.getConstant(),attenuation.getLinear(),attenuation.getExponent());
     }
 
+    /**
+     * How far a light of this intensity reaches before its brightness falls below the minimum
+     *
+     * @return The distance, 0 if it's never that bright, or infinity if it never gets that dim
+     */
+    public float getRange(float intensity, float minBrightness) {
+        // Where intensity / (constant + linear * d + exponent * d^2) = minBrightness
+        float c = constant - intensity / minBrightness;
+        if (c >= 0)
+            return 0;
+        if (exponent > 0)
+            return (float) ((-linear + Math.sqrt(linear * linear - 4 * exponent * c)) / (2 * exponent));
+        if (linear > 0)
+            return -c / linear;
+        return Float.POSITIVE_INFINITY;
+    }
+
     public float getConstant() {
         return constant;
     }
@@ -0,0 +1,369 @@
+package render.render3D.light;
+
+import org.joml.Matrix4fc;
+import org.joml.Vector3f;
+import org.joml.Vector4f;
+import render.util.Freeable;
+import util.IntArrayList;
+import util.trace.Trace;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import static org.lwjgl.opengl.GL11.glBindTexture;
+import static org.lwjgl.opengl.GL11.glDeleteTextures;
+import static org.lwjgl.opengl.GL11.glGenTextures;
+import static org.lwjgl.opengl.GL13.GL_TEXTURE0;
+import static org.lwjgl.opengl.GL13.glActiveTexture;
+import static org.lwjgl.opengl.GL15.GL_STREAM_DRAW;
+import static org.lwjgl.opengl.GL15.glBindBuffer;
+import static org.lwjgl.opengl.GL15.glBufferData;
+import static org.lwjgl.opengl.GL15.glDeleteBuffers;
+import static org.lwjgl.opengl.GL15.glGenBuffers;
+import static org.lwjgl.opengl.GL30.GL_R32UI;
+import static org.lwjgl.opengl.GL30.GL_RG32UI;
+import static org.lwjgl.opengl.GL30.GL_RGBA32F;
+import static org.lwjgl.opengl.GL31.GL_TEXTURE_BUFFER;
+import static org.lwjgl.opengl.GL31.glTexBuffer;
+
+/**
+ * Sorts point lights into clusters of the view frustum, so each fragment only lights itself with the lights which can
+ * reach its cluster, however many lights there are in all.
+ *
+ * <p>
+ * The frustum is cut into a grid of screen tiles, and each tile into slices by view depth, spaced exponentially so
+ * clusters far away are about as deep as they are wide. Each light reaches as far as its attenuation keeps it brighter
+ * than {@link #MIN_BRIGHTNESS}, and goes into every cluster that sphere touches. Lights are first bucketed by the slices
+ * they span, then each slice finds its clusters' lights in parallel, testing each light's sphere against the boxes of
+ * the clusters under its outline on screen.
+ * </p>
+ *
+ * <p>
+ * The result goes to the GPU as three buffer textures, bound from {@link #TEXTURE_UNIT} on: the lights, three
+ * <tt>RGBA32F</tt> texels each (position and range, colour and intensity, attenuation); one <tt>RG32UI</tt> texel per
+ * cluster with the offset and count of its lights; and the <tt>R32UI</tt> light indices those point into.
+ * </p>
+ */
+public class LightClusters implements Freeable {
+
+    private static final int TRACE_UPDATE = Trace.event("LightClusters.update");
+
+    /**
+     * The dimmest a light gets before it's taken to have no effect
+     */
+    public static final float MIN_BRIGHTNESS = 1 / 256f;
+    /**
+     * The first of the three texture units the buffers are bound to
+     */
+    public static final int TEXTURE_UNIT = 1;
+    private static final int LIGHT_TEXELS = 3;
+
+    private final int tilesX;
+    private final int tilesY;
+    private final int slices;
+    private final int clusterCount;
+
+    // The projection the cluster bounds were made for
+    private float m00 = Float.NaN;
+    private float m11 = Float.NaN;
+    private float near;
+    private float far;
+    private float sliceScale;
+    private float sliceBias;
+    private final float[] sliceDepths;
+    /**
+     * Each cluster's view space box: min x, y, z then max x, y, z
+     */
+    private final float[] bounds;
+    private int viewportWidth = 1;
+    private int viewportHeight = 1;
+
+    /**
+     * Each light's view space position and range, by light index
+     */
+    private float[] viewLights = new float[64];
+    private int[] lightSlices = new int[32];
+    private final int[] sliceLightOffsets;
+    private int[] sliceLights = new int[64];
+    /**
+     * Pairs of cluster and light, found by each slice
+     */
+    private final IntArrayList[] sliceHits;
+    private final int[] clusterData;
+    private int[] lightIndices = new int[256];
+    private float[] lightData = new float[64 * LIGHT_TEXELS * 4];
+    private int lightCount = 0;
+
+    private final int[] bufferIds = new int[3];
+    private final int[] textureIds = new int[3];
+    private final Vector3f viewPos = new Vector3f();
+
+    public LightClusters(int tilesX, int tilesY, int slices) {
+        if (tilesX <= 0 || tilesY <= 0 || slices <= 0)
+            throw new IllegalArgumentException("Cluster grid must have a positive size, got " + tilesX + "x" + tilesY + "x" + slices);
+        this.tilesX = tilesX;
+        this.tilesY = tilesY;
+        this.slices = slices;
+        clusterCount = tilesX * tilesY * slices;
+        sliceDepths = new float[slices + 1];
+        bounds = new float[clusterCount * 6];
+        sliceLightOffsets = new int[slices + 1];
+        sliceHits = new IntArrayList[slices];
+        for (int s = 0; s < slices; s++)
+            sliceHits[s] = new IntArrayList();
+        clusterData = new int[clusterCount * 2];
+    }
+
+    private void createTextures() {
+        int[] formats = {GL_RGBA32F, GL_RG32UI, GL_R32UI};
+        for (int i = 0; i < 3; i++) {
+            bufferIds[i] = glGenBuffers();
+            glBindBuffer(GL_TEXTURE_BUFFER, bufferIds[i]);
+            textureIds[i] = glGenTextures();
+            glBindTexture(GL_TEXTURE_BUFFER, textureIds[i]);
+            glTexBuffer(GL_TEXTURE_BUFFER, formats[i], bufferIds[i]);
+        }
+        glBindTexture(GL_TEXTURE_BUFFER, 0);
+        glBindBuffer(GL_TEXTURE_BUFFER, 0);
+    }
+
+    /**
+     * Sorts the lights into clusters and uploads them, leaving the buffer textures bound. Needs a GL context current.
+     *
+     * @param projMat A symmetric perspective projection
+     * @param lights The lights, of which the first <tt>count</tt> are used
+     */
+    public void update(Matrix4fc viewMat, Matrix4fc projMat, int viewportWidth, int viewportHeight, PointLight[] lights, int count) {
+        Trace.begin(TRACE_UPDATE);
+        assign(viewMat, projMat, viewportWidth, viewportHeight, lights, count);
+        upload();
+        Trace.end(TRACE_UPDATE);
+    }
+
+    private void assign(Matrix4fc viewMat, Matrix4fc projMat, int viewportWidth, int viewportHeight, PointLight[] lights, int count) {
+        this.viewportWidth = viewportWidth;
+        this.viewportHeight = viewportHeight;
+        if (projMat.m00() != m00 || projMat.m11() != m11)
+            buildBounds(projMat);
+
+        lightCount = count;
+        if (viewLights.length < count * 4)
+            viewLights = new float[count * 8];
+        if (lightSlices.length < count * 2)
+            lightSlices = new int[count * 4];
+        if (lightData.length < count * LIGHT_TEXELS * 4)
+            lightData = new float[count * LIGHT_TEXELS * 8];
+
+        // Where each light is and which slices it spans, and how many lights each slice has
+        Arrays.fill(sliceLightOffsets, 0);
+        for (int l = 0; l < count; l++) {
+            PointLight light = lights[l];
+            Vector3f pos = light.getPosition();
+            float range = Math.min(light.getAttenuation().getRange(light.getIntensity(), MIN_BRIGHTNESS), far);
+            putLightData(l, light, range);
+
+            viewMat.transformPosition(pos, viewPos);
+            float depth = -viewPos.z;
+            viewLights[l * 4] = viewPos.x;
+            viewLights[l * 4 + 1] = viewPos.y;
+            viewLights[l * 4 + 2] = viewPos.z;
+            viewLights[l * 4 + 3] = range;
+            if (range <= 0 || depth + range < near || depth - range > far) {
+                lightSlices[l * 2] = 0;
+                lightSlices[l * 2 + 1] = -1;
+                continue;
+            }
+            int first = slice(Math.max(depth - range, near));
+            int last = slice(Math.min(depth + range, far));
+            lightSlices[l * 2] = first;
+            lightSlices[l * 2 + 1] = last;
+            for (int s = first; s <= last; s++)
+                sliceLightOffsets[s + 1]++;
+        }
+        for (int s = 0; s < slices; s++)
+            sliceLightOffsets[s + 1] += sliceLightOffsets[s];
+        if (sliceLights.length < sliceLightOffsets[slices])
+            sliceLights = new int[sliceLightOffsets[slices] * 2];
+        int[] cursor = Arrays.copyOf(sliceLightOffsets, slices);
+        for (int l = 0; l < count; l++) {
+            for (int s = lightSlices[l * 2]; s <= lightSlices[l * 2 + 1]; s++)
+                sliceLights[cursor[s]++] = l;
+        }
+
+        // Each slice only touches its own clusters, so they can all go at once
+        IntStream.range(0, slices).parallel().forEach(this::findSliceLights);
+
+        int total = 0;
+        for (int c = 0; c < clusterCount; c++) {
+            clusterData[c * 2] = total;
+            total += clusterData[c * 2 + 1];
+        }
+        if (lightIndices.length < total)
+            lightIndices = new int[total * 2];
+        IntStream.range(0, slices).parallel().forEach(this::writeSliceLights);
+    }
+
+    private void putLightData(int l, PointLight light, float range) {
+        int o = l * LIGHT_TEXELS * 4;
+        Vector3f pos = light.getPosition();
+        Vector3f colour = light.getColor();
+        Attenuation att = light.getAttenuation();
+        lightData[o] = pos.x;
+        lightData[o + 1] = pos.y;
+        lightData[o + 2] = pos.z;
+        lightData[o + 3] = range;
+        lightData[o + 4] = colour.x;
+        lightData[o + 5] = colour.y;
+        lightData[o + 6] = colour.z;
+        lightData[o + 7] = light.getIntensity();
+        lightData[o + 8] = att.getConstant();
+        lightData[o + 9] = att.getLinear();
+        lightData[o + 10] = att.getExponent();
+        lightData[o + 11] = 0;
+    }
+
+    private int slice(float depth) {
+        int s = (int) Math.floor(Math.log(depth) * sliceScale + sliceBias);
+        return Math.max(0, Math.min(slices - 1, s));
+    }
+
+    private void buildBounds(Matrix4fc projMat) {
+        m00 = projMat.m00();
+        m11 = projMat.m11();
+        // From how a perspective matrix maps view depth to clip space
+        near = projMat.m32() / (projMat.m22() - 1);
+        far = projMat.m32() / (projMat.m22() + 1);
+        float logRatio = (float) Math.log(far / near);
+        sliceScale = slices / logRatio;
+        sliceBias = (float) (-slices * Math.log(near) / logRatio);
+        for (int s = 0; s <= slices; s++)
+            sliceDepths[s] = (float) (near * Math.pow(far / near, (double) s / slices));
+
+        for (int s = 0; s < slices; s++) {
+            float d0 = sliceDepths[s], d1 = sliceDepths[s + 1];
+            for (int ty = 0; ty < tilesY; ty++) {
+                float y0 = -1 + 2f * ty / tilesY, y1 = -1 + 2f * (ty + 1) / tilesY;
+                for (int tx = 0; tx < tilesX; tx++) {
+                    float x0 = -1 + 2f * tx / tilesX, x1 = -1 + 2f * (tx + 1) / tilesX;
+                    int o = ((s * tilesY + ty) * tilesX + tx) * 6;
+                    bounds[o] = Math.min(x0 * d0, x0 * d1) / m00;
+                    bounds[o + 1] = Math.min(y0 * d0, y0 * d1) / m11;
+                    bounds[o + 2] = -d1;
+                    bounds[o + 3] = Math.max(x1 * d0, x1 * d1) / m00;
+                    bounds[o + 4] = Math.max(y1 * d0, y1 * d1) / m11;
+                    bounds[o + 5] = -d0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Counts the lights of each cluster in a slice, keeping the pairs for {@link #writeSliceLights(int)}
+     */
+    private void findSliceLights(int s) {
+        IntArrayList hits = sliceHits[s];
+        hits.clear();
+        int firstCluster = s * tilesY * tilesX;
+        for (int c = firstCluster; c < firstCluster + tilesY * tilesX; c++)
+            clusterData[c * 2 + 1] = 0;
+
+        float d0 = sliceDepths[s], d1 = sliceDepths[s + 1];
+        for (int i = sliceLightOffsets[s]; i < sliceLightOffsets[s + 1]; i++) {
+            int l = sliceLights[i];
+            float x = viewLights[l * 4], y = viewLights[l * 4 + 1], z = viewLights[l * 4 + 2], r = viewLights[l * 4 + 3];
+            // The tiles under the sphere's bounding box, over the part of the slice it's in
+            float z0 = Math.max(d0, -z - r), z1 = Math.min(d1, -z + r);
+            int tx0 = tile(m00 * Math.min((x - r) / z0, (x - r) / z1), tilesX);
+            int tx1 = tile(m00 * Math.max((x + r) / z0, (x + r) / z1), tilesX);
+            int ty0 = tile(m11 * Math.min((y - r) / z0, (y - r) / z1), tilesY);
+            int ty1 = tile(m11 * Math.max((y + r) / z0, (y + r) / z1), tilesY);
+            for (int ty = ty0; ty <= ty1; ty++) {
+                for (int tx = tx0; tx <= tx1; tx++) {
+                    int c = firstCluster + ty * tilesX + tx;
+                    if (!touches(c, x, y, z, r))
+                        continue;
+                    clusterData[c * 2 + 1]++;
+                    hits.add(c);
+                    hits.add(l);
+                }
+            }
+        }
+    }
+
+    private static int tile(float ndc, int tiles) {
+        int t = (int) Math.floor((ndc + 1) * 0.5f * tiles);
+        return Math.max(0, Math.min(tiles - 1, t));
+    }
+
+    private boolean touches(int cluster, float x, float y, float z, float r) {
+        int o = cluster * 6;
+        float dx = Math.max(0, Math.max(bounds[o] - x, x - bounds[o + 3]));
+        float dy = Math.max(0, Math.max(bounds[o + 1] - y, y - bounds[o + 4]));
+        float dz = Math.max(0, Math.max(bounds[o + 2] - z, z - bounds[o + 5]));
+        return dx * dx + dy * dy + dz * dz <= r * r;
+    }
+
+    private void writeSliceLights(int s) {
+        int[] hits = sliceHits[s].elements();
+        int size = sliceHits[s].size();
+        // Each cluster's count counts down to fill its lights from the end, then is put back
+        for (int i = 0; i < size; i += 2) {
+            int c = hits[i];
+            lightIndices[clusterData[c * 2] + --clusterData[c * 2 + 1]] = hits[i + 1];
+        }
+        for (int i = 0; i < size; i += 2)
+            clusterData[hits[i] * 2 + 1]++;
+    }
+
+    private void upload() {
+        if (textureIds[0] == 0)
+            createTextures();
+        glBindBuffer(GL_TEXTURE_BUFFER, bufferIds[0]);
+        glBufferData(GL_TEXTURE_BUFFER, lightData, GL_STREAM_DRAW);
+        glBindBuffer(GL_TEXTURE_BUFFER, bufferIds[1]);
+        glBufferData(GL_TEXTURE_BUFFER, clusterData, GL_STREAM_DRAW);
+        glBindBuffer(GL_TEXTURE_BUFFER, bufferIds[2]);
+        glBufferData(GL_TEXTURE_BUFFER, lightIndices, GL_STREAM_DRAW);
+        glBindBuffer(GL_TEXTURE_BUFFER, 0);
+        for (int i = 0; i < 3; i++) {
+            glActiveTexture(GL_TEXTURE0 + TEXTURE_UNIT + i);
+            glBindTexture(GL_TEXTURE_BUFFER, textureIds[i]);
+        }
+        glActiveTexture(GL_TEXTURE0);
+    }
+
+    public int getLightCount() {
+        return lightCount;
+    }
+
+    /**
+     * How many lights went into a cluster, for a tile counted from the bottom left of the screen
+     */
+    public int getClusterLightCount(int tileX, int tileY, int slice) {
+        return clusterData[((slice * tilesY + tileY) * tilesX + tileX) * 2 + 1];
+    }
+
+    /**
+     * The cluster grid for the shaders: tiles across, tiles up, slices, and the light count
+     */
+    public Vector4f getGrid(Vector4f dest) {
+        return dest.set(tilesX, tilesY, slices, lightCount);
+    }
+
+    /**
+     * How the shaders find their cluster: the viewport width and height, then the scale and bias taking the log of
+     * a view depth to its slice
+     */
+    public Vector4f getMapping(Vector4f dest) {
+        return dest.set(viewportWidth, viewportHeight, sliceScale, sliceBias);
+    }
+
+    @Override
+    public void free() {
+        for (int i = 0; i < 3; i++) {
+            glDeleteTextures(textureIds[i]);
+            glDeleteBuffers(bufferIds[i]);
+        }
+    }
+
+}
@@ -3,7 +3,7 @@ package render.render3D.light;
 import org.joml.Vector3f;
 
 
-public abstract class PointLight {
+public class PointLight {
 
 
     private Vector3f color;
@@ -16,7 +16,7 @@ public abstract class PointLight {
         this.color = color;
         this.intensity = intensity;
         attenuation = new Attenuation(1, 0, 0);
-        this.position = position;
+        this.position = new Vector3f();
     }
 
     public Vector3f getColor() {
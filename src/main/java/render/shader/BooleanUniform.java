@@ -3,12 +3,19 @@ package render.shader;
 import org.lwjgl.opengl.GL20;
 
 public class BooleanUniform extends PrimitiveUniform<Boolean> {
+
+    private boolean value;
+
     public BooleanUniform(int location) {
         super(location);
     }
 
     @Override
     public void set(Boolean value) {
+        if (isSet && this.value == value)
+            return;
         GL20.glUniform1i(location, value ? 1 : 0);
+        this.value = value;
+        isSet = true;
     }
 }
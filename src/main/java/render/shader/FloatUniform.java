@@ -3,12 +3,19 @@ package render.shader;
 import org.lwjgl.opengl.GL20;
 
 public class FloatUniform extends PrimitiveUniform<Float> {
+
+    private float value;
+
     public FloatUniform(int location) {
         super(location);
     }
 
     @Override
     public void set(Float value) {
+        if (isSet && this.value == value)
+            return;
         GL20.glUniform1f(location, value);
+        this.value = value;
+        isSet = true;
     }
 }
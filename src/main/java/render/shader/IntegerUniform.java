@@ -4,12 +4,18 @@ import org.lwjgl.opengl.GL20;
 
 public class IntegerUniform extends PrimitiveUniform<Integer> {
 
+    private int value;
+
     public IntegerUniform(int location) {
         super(location);
     }
 
     @Override
     public void set(Integer value) {
+        if (isSet && this.value == value)
+            return;
         GL20.glUniform1i(location, value);
+        this.value = value;
+        isSet = true;
     }
 }
@@ -2,21 +2,27 @@ package render.shader;
 
 import org.joml.Matrix3f;
 import org.lwjgl.opengl.GL20;
-import org.lwjgl.system.MemoryStack;
 
-import java.nio.FloatBuffer;
+import java.util.Arrays;
 
 public class Matrix3fUniform extends PrimitiveUniform<Matrix3f> {
+
+    private float[] value = new float[9];
+    private float[] next = new float[9];
+
     public Matrix3fUniform(int location) {
         super(location);
     }
 
     @Override
     public void set(Matrix3f value) {
-        try (MemoryStack stack = MemoryStack.stackPush()) {
-            FloatBuffer buf = stack.mallocFloat(9);
-            value.get(buf);
-            GL20.glUniformMatrix3fv(location, false, buf);
-        }
+        value.get(next);
+        if (isSet && Arrays.equals(this.value, next))
+            return;
+        GL20.glUniformMatrix3fv(location, false, next);
+        float[] previous = this.value;
+        this.value = next;
+        next = previous;
+        isSet = true;
     }
 }
@@ -2,21 +2,27 @@ package render.shader;
 
 import org.joml.Matrix4f;
 import org.lwjgl.opengl.GL20;
-import org.lwjgl.system.MemoryStack;
 
-import java.nio.FloatBuffer;
+import java.util.Arrays;
 
 public class Matrix4fUniform extends PrimitiveUniform<Matrix4f> {
+
+    private float[] value = new float[16];
+    private float[] next = new float[16];
+
     public Matrix4fUniform(int location) {
         super(location);
     }
 
     @Override
     public void set(Matrix4f value) {
-        try (MemoryStack stack = MemoryStack.stackPush()) {
-            FloatBuffer buf = stack.mallocFloat(16);
-            value.get(buf);
-            GL20.glUniformMatrix4fv(location, false, buf);
-        }
+        value.get(next);
+        if (isSet && Arrays.equals(this.value, next))
+            return;
+        GL20.glUniformMatrix4fv(location, false, next);
+        float[] previous = this.value;
+        this.value = next;
+        next = previous;
+        isSet = true;
     }
 }
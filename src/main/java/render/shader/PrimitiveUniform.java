@@ -1,8 +1,16 @@
 package render.shader;
 
+/**
+ * A uniform set with a single GL call. Each remembers the last value it was set to, and skips setting it to the same
+ * again, as uniforms keep their values in their program between binds.
+ */
 public abstract class PrimitiveUniform<T> extends Uniform<T> {
 
     protected int location;
+    /**
+     * Whether it's been set yet, so whether its last value means anything
+     */
+    protected boolean isSet = false;
 
     public PrimitiveUniform(int location) {
         this.location = location;
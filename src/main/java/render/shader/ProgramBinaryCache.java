@@ -0,0 +1,246 @@
+package render.shader;
+
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
+import org.lwjgl.system.MemoryStack;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.lwjgl.opengl.GL11.GL_RENDERER;
+import static org.lwjgl.opengl.GL11.GL_TRUE;
+import static org.lwjgl.opengl.GL11.GL_VENDOR;
+import static org.lwjgl.opengl.GL11.GL_VERSION;
+import static org.lwjgl.opengl.GL11.glGetInteger;
+import static org.lwjgl.opengl.GL11.glGetString;
+import static org.lwjgl.opengl.GL20.GL_LINK_STATUS;
+import static org.lwjgl.opengl.GL20.glGetProgrami;
+import static org.lwjgl.opengl.GL41.GL_NUM_PROGRAM_BINARY_FORMATS;
+import static org.lwjgl.opengl.GL41.GL_PROGRAM_BINARY_LENGTH;
+import static org.lwjgl.opengl.GL41.GL_PROGRAM_BINARY_RETRIEVABLE_HINT;
+import static org.lwjgl.opengl.GL41.glGetProgramBinary;
+import static org.lwjgl.opengl.GL41.glProgramBinary;
+import static org.lwjgl.opengl.GL41.glProgramParameteri;
+
+/**
+ * Keeps linked programs on disk, so the next launch can load them rather than compile and link them again.
+ *
+ * <p>
+ * Programs are filed under a hash of everything that goes into them: the preprocessed sources and attribute
+ * locations, and the driver's vendor, renderer and version, since a binary is only good for the driver which made it.
+ * A binary the driver won't take any more (after an update which kept the version string, say) just fails to link,
+ * and the program is compiled as usual and cached again.
+ * </p>
+ *
+ * <p>
+ * The cache is in <tt>.softbody/shaders</tt> in the user's home directory, or wherever the
+ * <tt>physics.shaderCache</tt> system property says. An empty path turns it off. Since the driver will run whatever
+ * binary it's handed, the directory is made readable by its owner only, and the cache is turned off if it belongs to
+ * someone else or others can write to it. Binaries not loaded for {@link #MAX_AGE_DAYS} days, and leftover temporary
+ * files, are deleted when the cache is first used.
+ * </p>
+ */
+final class ProgramBinaryCache {
+
+    private static final Path DIRECTORY;
+    static {
+        String dir = System.getProperty("physics.shaderCache", Paths.get(System.getProperty("user.home"), ".softbody", "shaders").toString());
+        DIRECTORY = dir.isEmpty() ? null : Paths.get(dir);
+    }
+    static final int MAX_AGE_DAYS = 30;
+    private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rwx------");
+    /**
+     * Fixed for the context, so only found once
+     */
+    private static String driver;
+    private static Boolean supported;
+
+    private ProgramBinaryCache() {
+    }
+
+    static boolean isEnabled() {
+        if (supported == null) {
+            GLCapabilities caps = GL.getCapabilities();
+            supported = DIRECTORY != null && (caps.OpenGL41 || caps.GL_ARB_get_program_binary)
+                    && glGetInteger(GL_NUM_PROGRAM_BINARY_FORMATS) > 0 && prepareDirectory();
+            driver = glGetString(GL_VENDOR) + "\n" + glGetString(GL_RENDERER) + "\n" + glGetString(GL_VERSION);
+            if (supported)
+                prune();
+        }
+        return supported;
+    }
+
+    /**
+     * Creates the directory if need be, and checks nobody else could have put binaries in it
+     *
+     * @return Whether it's safe to use
+     */
+    private static boolean prepareDirectory() {
+        try {
+            boolean posix = DIRECTORY.getFileSystem().supportedFileAttributeViews().contains("posix");
+            if (!Files.isDirectory(DIRECTORY)) {
+                if (posix) {
+                    Files.createDirectories(DIRECTORY.toAbsolutePath().getParent());
+                    Files.createDirectory(DIRECTORY, PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+                } else {
+                    Files.createDirectories(DIRECTORY);
+                }
+            }
+            // Whoever made a file here just now is us, so the directory should be theirs too
+            Path probe = Files.createTempFile(DIRECTORY, "owner", ".tmp");
+            boolean ours;
+            try {
+                ours = Files.getOwner(probe).equals(Files.getOwner(DIRECTORY));
+            } finally {
+                Files.delete(probe);
+            }
+            if (!ours) {
+                System.err.println("Not caching shader programs: " + DIRECTORY + " belongs to another user");
+                return false;
+            }
+            if (posix) {
+                Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(DIRECTORY);
+                if (permissions.contains(PosixFilePermission.GROUP_WRITE) || permissions.contains(PosixFilePermission.OTHERS_WRITE)) {
+                    System.err.println("Not caching shader programs: others can write to " + DIRECTORY);
+                    return false;
+                }
+            }
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            System.err.println("Not caching shader programs in " + DIRECTORY + ": " + e);
+            return false;
+        }
+    }
+
+    /**
+     * Deletes binaries which haven't been loaded or saved for a while, as every edit to a shader leaves one behind,
+     * and temporary files left by a save which didn't finish
+     */
+    private static void prune() {
+        long now = System.currentTimeMillis();
+        long maxAge = TimeUnit.DAYS.toMillis(MAX_AGE_DAYS);
+        long maxTempAge = TimeUnit.HOURS.toMillis(1);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(DIRECTORY, "*.{bin,tmp}")) {
+            for (Path file : files) {
+                long age = now - Files.getLastModifiedTime(file).toMillis();
+                if (age > (file.toString().endsWith(".tmp") ? maxTempAge : maxAge))
+                    Files.deleteIfExists(file);
+            }
+        } catch (IOException e) {
+            System.err.println("Couldn't prune cached shader programs in " + DIRECTORY + ": " + e);
+        }
+    }
+
+    /**
+     * The name a program is filed under
+     *
+     * @param parts Everything the program is made from
+     */
+    static String key(String... parts) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+        digest.update(driver.getBytes(StandardCharsets.UTF_8));
+        for (String part : parts) {
+            // Separated, so moving text from one part to the next changes the hash
+            digest.update((byte) 0);
+            if (part != null)
+                digest.update(part.getBytes(StandardCharsets.UTF_8));
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest())
+            hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+
+    /**
+     * Loads a cached binary into the program
+     *
+     * @return Whether the program is now linked, rather than there being no binary or the driver refusing it
+     */
+    static boolean load(int programId, String key) {
+        Path file = DIRECTORY.resolve(key + ".bin");
+        if (!Files.isRegularFile(file))
+            return false;
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(file);
+        } catch (IOException e) {
+            System.err.println("Couldn't read cached shader program " + file + ": " + e);
+            return false;
+        }
+        if (bytes.length <= 4)
+            return false;
+
+        ByteBuffer binary = ByteBuffer.allocateDirect(bytes.length).put(bytes);
+        binary.flip();
+        int format = binary.getInt();
+        glProgramBinary(programId, format, binary.slice());
+        if (glGetProgrami(programId, GL_LINK_STATUS) == 0)
+            return false;
+        try {
+            // Marks it as still in use, so it isn't pruned
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException ignored) {
+        }
+        return true;
+    }
+
+    /**
+     * Asks for the program's binary to be kept once it's linked. Must be called before linking.
+     */
+    static void prepare(int programId) {
+        glProgramParameteri(programId, GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GL_TRUE);
+    }
+
+    /**
+     * Saves a linked program's binary. Failing to is only worth a warning.
+     */
+    static void save(int programId, String key) {
+        int length = glGetProgrami(programId, GL_PROGRAM_BINARY_LENGTH);
+        if (length <= 0)
+            return;
+        ByteBuffer binary = ByteBuffer.allocateDirect(4 + length);
+        int format;
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            IntBuffer lengthBuf = stack.mallocInt(1);
+            IntBuffer formatBuf = stack.mallocInt(1);
+            binary.position(4);
+            glGetProgramBinary(programId, lengthBuf, formatBuf, binary.slice());
+            format = formatBuf.get(0);
+            length = lengthBuf.get(0);
+        }
+        binary.putInt(0, format);
+        binary.position(0).limit(4 + length);
+        byte[] bytes = new byte[binary.remaining()];
+        binary.get(bytes);
+
+        Path file = DIRECTORY.resolve(key + ".bin");
+        try {
+            // Written whole then moved into place, so a half written file is never loaded
+            Path temp = Files.createTempFile(DIRECTORY, key, ".tmp");
+            Files.write(temp, bytes);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            System.err.println("Couldn't cache shader program " + file + ": " + e);
+        }
+    }
+
+}
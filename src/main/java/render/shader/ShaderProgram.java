@@ -1,8 +1,10 @@
 package render.shader;
 
 import render.util.Freeable;
+import render.util.GlState;
 import render.util.VertexFormat;
 import org.lwjgl.system.MemoryStack;
+import util.trace.Trace;
 
 import java.io.InputStream;
 import java.nio.IntBuffer;
@@ -11,9 +13,21 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL31.glGetUniformBlockIndex;
+import static org.lwjgl.opengl.GL31.glUniformBlockBinding;
 
 public class ShaderProgram implements Freeable {
 
+    private static final int TRACE_BIND = Trace.event("ShaderProgram.bind");
+    private static final int TRACE_COMPILE = Trace.event("ShaderProgram.compile");
+    private static final int TRACE_LOAD_BINARY = Trace.event("ShaderProgram.loadBinary");
+
+    /**
+     * Shader files and preprocessed shaders, kept for the next program which uses them
+     */
+    private static final Map<String, List<String>> SHADER_LINES = new HashMap<>();
+    private static final Map<String, Preprocessed> PREPROCESSED = new HashMap<>();
+
     private static ShaderProgram boundShader = null;
 
     private int programId;
@@ -26,6 +40,14 @@ public class ShaderProgram implements Freeable {
     private List<String> lines;
 
     public  ShaderProgram(String vertexShader, String fragmentShader, VertexFormat vertexFormat, String... attribNames) {
+        this(vertexShader, fragmentShader, vertexFormat, attribNames, new String[0]);
+    }
+
+    /**
+     * @param instanceAttribNames Attributes which aren't part of the vertex format, but come from an
+     *                            {@link render.util.InstanceBuffer}. They're numbered after the vertex format's.
+     */
+    public ShaderProgram(String vertexShader, String fragmentShader, VertexFormat vertexFormat, String[] attribNames, String[] instanceAttribNames) {
         if (vertexFormat.getAttributes().length != attribNames.length) {
             throw new IllegalArgumentException("Wrong number of attribute names for the vertex format");
         }
@@ -36,15 +58,40 @@ public class ShaderProgram implements Freeable {
             throw new IllegalStateException("Couldn't create program");
 
         bindAttribLocations(attribNames);
+        for (int i = 0; i < instanceAttribNames.length; i++)
+            glBindAttribLocation(programId, attribNames.length + i, instanceAttribNames[i]);
+
+        Preprocessed vertexSource = vertexShader == null ? null : preprocess(vertexShader);
+        Preprocessed fragmentSource = fragmentShader == null ? null : preprocess(fragmentShader);
+
+        String cacheKey = null;
+        if (ProgramBinaryCache.isEnabled()) {
+            cacheKey = ProgramBinaryCache.key(vertexSource == null ? null : vertexSource.source,
+                    fragmentSource == null ? null : fragmentSource.source,
+                    String.join(",", attribNames), String.join(",", instanceAttribNames));
+            Trace.begin(TRACE_LOAD_BINARY);
+            boolean loaded = ProgramBinaryCache.load(programId, cacheKey);
+            Trace.end(TRACE_LOAD_BINARY);
+            if (loaded)
+                return;
+            ProgramBinaryCache.prepare(programId);
+        }
 
-        if (vertexShader != null)
-            vertexShaderId = createShader(readShader(vertexShader), GL_VERTEX_SHADER);
-        if (fragmentShader != null)
-            fragmentShaderId = createShader(readShader(fragmentShader), GL_FRAGMENT_SHADER);
+        Trace.begin(TRACE_COMPILE);
+        try {
+            if (vertexSource != null)
+                vertexShaderId = createShader(vertexSource, GL_VERTEX_SHADER);
+            if (fragmentSource != null)
+                fragmentShaderId = createShader(fragmentSource, GL_FRAGMENT_SHADER);
 
-        link();
+            link();
+        } finally {
+            Trace.end(TRACE_COMPILE);
+        }
         lineNumberMap = null;
         lines = null;
+        if (cacheKey != null)
+            ProgramBinaryCache.save(programId, cacheKey);
     }
 
 
@@ -57,19 +104,42 @@ public class ShaderProgram implements Freeable {
 
     }
 
-    private String readShader(String shader) {
-        StringBuilder str = new StringBuilder();
-        LineNumberMap.Builder lnmb = new LineNumberMap.Builder();
-        lnmb.addEntry(1, 1, shader);
-        lines = new ArrayList<>();
-        readShader(shader, str, 1, new HashSet<>(), lnmb);
-        lineNumberMap = lnmb.build();
-        return str.toString();
+    /**
+     * A shader with its includes resolved, and what's needed to point compile errors back at the right files
+     */
+    private static final class Preprocessed {
+        final String source;
+        final LineNumberMap lineNumberMap;
+        final List<String> lines;
+
+        Preprocessed(String source, LineNumberMap lineNumberMap, List<String> lines) {
+            this.source = source;
+            this.lineNumberMap = lineNumberMap;
+            this.lines = lines;
+        }
     }
 
-    // returns the new global line number
-    private int readShader(String shader, StringBuilder str, int globalLine, Set<String> alreadyIncluded, LineNumberMap.Builder lnmb) {
-        alreadyIncluded.add(shader);
+    private static Preprocessed preprocess(String shader) {
+        Preprocessed preprocessed = PREPROCESSED.get(shader);
+        if (preprocessed == null) {
+            StringBuilder str = new StringBuilder();
+            LineNumberMap.Builder lnmb = new LineNumberMap.Builder();
+            lnmb.addEntry(1, 1, shader);
+            List<String> lines = new ArrayList<>();
+            readShader(shader, str, lines, 1, new HashSet<>(), lnmb);
+            preprocessed = new Preprocessed(str.toString(), lnmb.build(), Collections.unmodifiableList(lines));
+            PREPROCESSED.put(shader, preprocessed);
+        }
+        return preprocessed;
+    }
+
+    /**
+     * The lines of a shader file, read just once however many shaders include it
+     */
+    private static List<String> readLines(String shader) {
+        List<String> lines = SHADER_LINES.get(shader);
+        if (lines != null)
+            return lines;
 
         InputStream in = ShaderProgram.class.getResourceAsStream("/shaders/" + shader);
 
@@ -80,42 +150,55 @@ public class ShaderProgram implements Freeable {
         if (in == null)
             throw new IllegalArgumentException("Shader not found: " + shader);
 
+        lines = new ArrayList<>();
+        try (Scanner scan = new Scanner(in).useDelimiter("\r?\n")) {
+            while (scan.hasNext())
+                lines.add(scan.next());
+        }
+        lines = Collections.unmodifiableList(lines);
+        SHADER_LINES.put(shader, lines);
+        return lines;
+    }
+
+    // returns the new global line number
+    private static int readShader(String shader, StringBuilder str, List<String> lines, int globalLine, Set<String> alreadyIncluded, LineNumberMap.Builder lnmb) {
+        alreadyIncluded.add(shader);
+
         int localLine = 1;
 
-        try (Scanner scan = new Scanner(in).useDelimiter("\r?\n")) {
-            while (scan.hasNext()) {
-                String line = scan.next();
-                if (line.trim().startsWith("#include ")) {
-                    String newShader = line;
-                    if (newShader.contains("//"))
-                        newShader = newShader.substring(0, newShader.indexOf("//"));
-                    newShader = newShader.trim();
-                    newShader = newShader.substring("#include ".length());
-                    newShader = newShader.trim();
-
-                    if (!alreadyIncluded.contains(newShader)) {
-                        lnmb.addEntry(1, globalLine, newShader);
-                        globalLine = readShader(newShader, str, globalLine, alreadyIncluded, lnmb);
-                        lnmb.addEntry(localLine + 1, globalLine, shader);
-                    }
-                } else {
-                    lines.add(line);
-                    str.append(line).append("\n");
-                    globalLine++;
+        for (String line : readLines(shader)) {
+            if (line.trim().startsWith("#include ")) {
+                String newShader = line;
+                if (newShader.contains("//"))
+                    newShader = newShader.substring(0, newShader.indexOf("//"));
+                newShader = newShader.trim();
+                newShader = newShader.substring("#include ".length());
+                newShader = newShader.trim();
+
+                if (!alreadyIncluded.contains(newShader)) {
+                    lnmb.addEntry(1, globalLine, newShader);
+                    globalLine = readShader(newShader, str, lines, globalLine, alreadyIncluded, lnmb);
+                    lnmb.addEntry(localLine + 1, globalLine, shader);
                 }
-                localLine++;
+            } else {
+                lines.add(line);
+                str.append(line).append("\n");
+                globalLine++;
             }
+            localLine++;
         }
 
         return globalLine;
     }
 
-    private int createShader(String source, int type) {
+    private int createShader(Preprocessed source, int type) {
         int shaderId = glCreateShader(type);
         if (shaderId == 0)
             throw new IllegalStateException("Couldn't create shader");
 
-        glShaderSource(shaderId, source);
+        lineNumberMap = source.lineNumberMap;
+        lines = source.lines;
+        glShaderSource(shaderId, source.source);
         glCompileShader(shaderId);
 
         if (glGetShaderi(shaderId, GL_COMPILE_STATUS) == 0) {
@@ -209,6 +292,20 @@ public class ShaderProgram implements Freeable {
         return glGetUniformLocation(programId, name);
     }
 
+    /**
+     * The index of a uniform block, or <tt>GL_INVALID_INDEX</tt> if there's no such block in use
+     */
+    public int getUniformBlockIndex(String name) {
+        return glGetUniformBlockIndex(programId, name);
+    }
+
+    /**
+     * Makes a uniform block read from whichever uniform buffer is bound to this binding point
+     */
+    public void setUniformBlockBinding(int blockIndex, int binding) {
+        glUniformBlockBinding(programId, blockIndex, binding);
+    }
+
     public <T> Uniform<T> createUniform(String name, UniformType<T> type) {
         return type.createUniform(name, this);
     }
@@ -216,14 +313,16 @@ public class ShaderProgram implements Freeable {
 
     public void bind() {
         if(boundShader!=this) {
-            glUseProgram(programId);
+            Trace.begin(TRACE_BIND);
+            GlState.useProgram(programId);
             boundShader = this;
+            Trace.end(TRACE_BIND);
         }
     }
 
     public void unbind() {
         if(boundShader == this) {
-            glUseProgram(0);
+            GlState.useProgram(0);
             boundShader = null;
         }
     }
@@ -3,22 +3,84 @@ package render.shader;
 import org.joml.Matrix4f;
 import org.joml.Vector3f;
 import org.joml.Vector4f;
+import org.lwjgl.opengl.GL;
+import render.render3D.light.LightClusters;
+import render.util.InstanceBuffer;
 import render.util.VertexFormat;
 
 public class Shaders {
 
+    /**
+     * The values every shader shares, which change at most once per frame
+     */
+    public static FrameUniforms frameUniforms;
     public static SceneShader sceneShader;
+    /**
+     * Null if instancing isn't supported
+     */
+    public static InstancedSceneShader instancedSceneShader;
+    /**
+     * Null if instancing isn't supported
+     */
+    public static ImpostorShader impostorShader;
 
     public static void loadShaders(){
+        // For uniform buffers and the buffer textures of light clusters
+        if (!GL.getCapabilities().OpenGL31)
+            throw new IllegalStateException("The shaders need OpenGL 3.1");
+        frameUniforms = new FrameUniforms();
         sceneShader = new SceneShader();
+        if (InstanceBuffer.isSupported()) {
+            instancedSceneShader = new InstancedSceneShader();
+            impostorShader = new ImpostorShader();
+        }
+    }
+
+
+    /**
+     * Points the samplers of <tt>lights.glsl</tt> at the texture units {@link LightClusters} binds its buffers to. The
+     * program must be bound.
+     */
+    private static void setLightSamplers(ShaderProgram program) {
+        program.createUniform("lightData", UniformType.INTEGER).set(LightClusters.TEXTURE_UNIT);
+        program.createUniform("clusterLights", UniformType.INTEGER).set(LightClusters.TEXTURE_UNIT + 1);
+        program.createUniform("lightIndices", UniformType.INTEGER).set(LightClusters.TEXTURE_UNIT + 2);
     }
 
+    /**
+     * The <tt>Frame</tt> uniform block of <tt>frame.glsl</tt>. Set its members, then {@link UniformBuffer#upload()
+     * upload} them once before drawing.
+     */
+    public static class FrameUniforms {
+
+        public static final int BINDING = 0;
+
+        public final UniformBuffer buffer = new UniformBuffer(BINDING);
+        public final Uniform<Matrix4f> projViewMat = buffer.addMatrix4f();
+        public final Uniform<Matrix4f> viewMat = buffer.addMatrix4f();
+        public final Uniform<Vector3f> cameraPos = buffer.addVector3f();
+        public final Uniform<Vector3f> lightPos = buffer.addVector3f();
+        private final Uniform<Vector4f> clusterGrid = buffer.addVector4f();
+        private final Uniform<Vector4f> clusterMapping = buffer.addVector4f();
+        private final Vector4f clusterValue = new Vector4f();
+
+        /**
+         * Sets how the shaders find their cluster's point lights, after the clusters are updated for the frame
+         */
+        public void setLights(LightClusters lights) {
+            clusterGrid.set(lights.getGrid(clusterValue));
+            clusterMapping.set(lights.getMapping(clusterValue));
+        }
+
+        public void upload() {
+            buffer.upload();
+        }
+
+    }
 
     public static class SceneShader extends ShaderProgram {
 
         public final Uniform<Matrix4f> modelMat;
-        public final Uniform<Matrix4f> projViewMat;
-        public final Uniform<Vector3f> lightPos;
 
         public SceneShader() {
 
@@ -28,8 +90,54 @@ public class Shaders {
                     "pos", "norm");
             bind();
             modelMat = createUniform("modelMat", UniformType.MATRIX4F);
-            projViewMat = createUniform("projViewMat", UniformType.MATRIX4F);
-            lightPos = createUniform("lightPos", UniformType.VECTOR3F);
+            createUniform("Frame", UniformType.UNIFORM_BLOCK).set(frameUniforms.buffer);
+            setLightSamplers(this);
+            unbind();
+        }
+
+    }
+
+    /**
+     * The scene shader for meshes drawn with an {@link InstanceBuffer} of (x, y, z, scale), in place of the model
+     * matrix
+     */
+    public static class InstancedSceneShader extends ShaderProgram {
+
+        /**
+         * The attribute index of the instances
+         */
+        public static final int INSTANCE_ATTRIBUTE = 2;
+
+        public InstancedSceneShader() {
+            super("scene_instanced.vert", "scene.frag",
+                    VertexFormat.POS_NORM,
+                    new String[]{"pos", "norm"}, new String[]{"instance"});
+            bind();
+            createUniform("Frame", UniformType.UNIFORM_BLOCK).set(frameUniforms.buffer);
+            setLightSamplers(this);
+            unbind();
+        }
+
+    }
+
+    /**
+     * Draws spheres from an {@link InstanceBuffer} of (x, y, z, radius), each as a quad facing the camera which the
+     * fragment shader ray casts the sphere in, writing its true depth. Lit like the {@link SceneShader}.
+     */
+    public static class ImpostorShader extends ShaderProgram {
+
+        /**
+         * The attribute index of the instances
+         */
+        public static final int INSTANCE_ATTRIBUTE = 1;
+
+        public ImpostorShader() {
+            super("impostor.vert", "impostor.frag",
+                    VertexFormat.POS2,
+                    new String[]{"corner"}, new String[]{"instance"});
+            bind();
+            createUniform("Frame", UniformType.UNIFORM_BLOCK).set(frameUniforms.buffer);
+            setLightSamplers(this);
             unbind();
         }
 
@@ -0,0 +1,26 @@
+package render.shader;
+
+import static org.lwjgl.opengl.GL31.GL_INVALID_INDEX;
+
+public class UniformBlockUniform extends Uniform<UniformBuffer> {
+
+    private final ShaderProgram program;
+    private final int blockIndex;
+    private int binding = -1;
+
+    public UniformBlockUniform(ShaderProgram program, int blockIndex) {
+        this.program = program;
+        this.blockIndex = blockIndex;
+    }
+
+    /**
+     * Points the block at the buffer's binding point. The program needn't be bound.
+     */
+    @Override
+    public void set(UniformBuffer value) {
+        if (blockIndex == GL_INVALID_INDEX || value.getBinding() == binding)
+            return;
+        program.setUniformBlockBinding(blockIndex, value.getBinding());
+        binding = value.getBinding();
+    }
+}
@@ -0,0 +1,165 @@
+package render.shader;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.joml.Vector4f;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
+import render.util.Freeable;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.lwjgl.opengl.GL15.GL_DYNAMIC_DRAW;
+import static org.lwjgl.opengl.GL15.glBindBuffer;
+import static org.lwjgl.opengl.GL15.glBufferData;
+import static org.lwjgl.opengl.GL15.glDeleteBuffers;
+import static org.lwjgl.opengl.GL15.glGenBuffers;
+import static org.lwjgl.opengl.GL30.glBindBufferBase;
+import static org.lwjgl.opengl.GL31.GL_UNIFORM_BUFFER;
+
+/**
+ * The values of a <tt>std140</tt> uniform block, kept on the CPU and uploaded all at once, so values shared by every
+ * shader (such as the frame's camera) cost one upload per frame rather than one call per value per shader.
+ *
+ * <p>
+ * Members are added in the order the block declares them, each returning a {@link Uniform} which writes into the
+ * buffer at the member's <tt>std140</tt> offset. Nothing reaches the GPU until {@link #upload()}, which does nothing
+ * if no member has changed since the last. The buffer stays bound to its binding point, and shaders point their
+ * blocks at that with {@link UniformType#UNIFORM_BLOCK}.
+ * </p>
+ */
+public class UniformBuffer implements Freeable {
+
+    private final int binding;
+    private final int vboId;
+    private ByteBuffer data = allocate(256);
+    private int size = 0;
+    private boolean dirty = true;
+
+    /**
+     * Needs a GL context current, and {@link #isSupported()}
+     *
+     * @param binding The uniform buffer binding point it's bound to
+     */
+    public UniformBuffer(int binding) {
+        this.binding = binding;
+        vboId = glGenBuffers();
+    }
+
+    public static boolean isSupported() {
+        GLCapabilities caps = GL.getCapabilities();
+        return caps.OpenGL31 || caps.GL_ARB_uniform_buffer_object;
+    }
+
+    private static ByteBuffer allocate(int bytes) {
+        return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+    }
+
+    public int getBinding() {
+        return binding;
+    }
+
+    /**
+     * The size of the block in bytes so far
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Makes room for the next member, aligned as <tt>std140</tt> aligns it
+     *
+     * @return Its offset
+     */
+    private int place(int alignment, int bytes) {
+        int offset = (size + alignment - 1) / alignment * alignment;
+        size = offset + bytes;
+        if (size > data.capacity()) {
+            ByteBuffer grown = allocate(Math.max(size, data.capacity() * 2));
+            data.clear();
+            grown.put(data);
+            data = grown;
+        }
+        return offset;
+    }
+
+    public Uniform<Matrix4f> addMatrix4f() {
+        int offset = place(16, 64);
+        return new Uniform<Matrix4f>() {
+            @Override
+            public void set(Matrix4f value) {
+                value.get(offset, data);
+                dirty = true;
+            }
+        };
+    }
+
+    /**
+     * A <tt>vec3</tt>, which takes 16 bytes unless a float follows it
+     */
+    public Uniform<Vector3f> addVector3f() {
+        int offset = place(16, 12);
+        return new Uniform<Vector3f>() {
+            @Override
+            public void set(Vector3f value) {
+                value.get(offset, data);
+                dirty = true;
+            }
+        };
+    }
+
+    public Uniform<Vector4f> addVector4f() {
+        int offset = place(16, 16);
+        return new Uniform<Vector4f>() {
+            @Override
+            public void set(Vector4f value) {
+                value.get(offset, data);
+                dirty = true;
+            }
+        };
+    }
+
+    public Uniform<Float> addFloat() {
+        int offset = place(4, 4);
+        return new Uniform<Float>() {
+            @Override
+            public void set(Float value) {
+                data.putFloat(offset, value);
+                dirty = true;
+            }
+        };
+    }
+
+    public Uniform<Integer> addInteger() {
+        int offset = place(4, 4);
+        return new Uniform<Integer>() {
+            @Override
+            public void set(Integer value) {
+                data.putInt(offset, value);
+                dirty = true;
+            }
+        };
+    }
+
+    /**
+     * Uploads the whole block, if anything's changed, and binds it to its binding point
+     */
+    public void upload() {
+        if (!dirty)
+            return;
+        ByteBuffer block = data.duplicate();
+        block.position(0).limit(size);
+        glBindBuffer(GL_UNIFORM_BUFFER, vboId);
+        glBufferData(GL_UNIFORM_BUFFER, block, GL_DYNAMIC_DRAW);
+        glBindBuffer(GL_UNIFORM_BUFFER, 0);
+        glBindBufferBase(GL_UNIFORM_BUFFER, binding, vboId);
+        dirty = false;
+    }
+
+    @Override
+    public void free() {
+        glDeleteBuffers(vboId);
+    }
+
+}
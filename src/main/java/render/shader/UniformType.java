@@ -30,6 +30,12 @@ public interface UniformType<T> {
     );
 
 
+    /**
+     * A <tt>std140</tt> uniform block, set to the {@link UniformBuffer} it reads from
+     */
+    UniformType<UniformBuffer> UNIFORM_BLOCK = (name, program) -> new UniformBlockUniform(program, program.getUniformBlockIndex(name));
+
+
     UniformType<PointLight[]> POINT_LIGHT_ARRAY = (name, program) -> {
 
         Uniform<PointLight>[] uniforms = new Uniform[8];
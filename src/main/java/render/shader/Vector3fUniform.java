@@ -4,12 +4,19 @@ import org.joml.Vector3f;
 import org.lwjgl.opengl.GL20;
 
 public class Vector3fUniform extends PrimitiveUniform<Vector3f> {
+
+    private final Vector3f value = new Vector3f();
+
     public Vector3fUniform(int location) {
         super(location);
     }
 
     @Override
     public void set(Vector3f value) {
+        if (isSet && this.value.equals(value))
+            return;
         GL20.glUniform3f(location, value.x, value.y, value.z);
+        this.value.set(value);
+        isSet = true;
     }
 }
@@ -2,11 +2,15 @@ package render.util;
 
 import render.shader.ShaderProgram;
 
+import java.nio.ByteBuffer;
+
 import static org.lwjgl.opengl.GL11.GL_TRIANGLES;
 import static org.lwjgl.opengl.GL11.glDrawArrays;
+import static org.lwjgl.opengl.GL15.GL_ARRAY_BUFFER;
+import static org.lwjgl.opengl.GL15.glBufferSubData;
 import static org.lwjgl.opengl.GL15.glDeleteBuffers;
-import static org.lwjgl.opengl.GL30.glBindVertexArray;
 import static org.lwjgl.opengl.GL30.glDeleteVertexArrays;
+import static org.lwjgl.opengl.GL31.glDrawArraysInstanced;
 
 /**
  * Stores vertices, along with all their attributes, ready to be drawn. (As raw GL IDs).
@@ -34,6 +38,10 @@ public class BakedMesh {
     protected int vaoId;
     protected int vertexVboId;
     protected int vertexCount;
+    /**
+     * One vertex buffer per stream of the {@link VertexFormat}, the first being {@link #vertexVboId}
+     */
+    int[] streamVboIds;
 
     BakedMesh(int vaoId, int vertexVboId, int vertexCount) {
         this.id = nextId++;
@@ -68,18 +76,61 @@ public class BakedMesh {
 
     public void bind() {
         boundMesh = this;
-        glBindVertexArray(vaoId);
+        GlState.bindVertexArray(vaoId);
     }
 
     public void drawInBatch() {
         glDrawArrays(GL_TRIANGLES, 0, vertexCount);
+        GlState.countDraw();
+    }
+
+    /**
+     * Draws this mesh once per instance, while it's bound
+     *
+     * @see InstanceBuffer
+     */
+    public void drawInstancedInBatch(int instances) {
+        glDrawArraysInstanced(GL_TRIANGLES, 0, vertexCount, instances);
+        GlState.countDraw();
     }
 
     public void unbind() {
-        glBindVertexArray(0);
+        endBatch();
+        GlState.bindVertexArray(0);
         boundMesh = null;
     }
 
+    /**
+     * Called after the last draw from this mesh before another mesh is bound, whether or not it's unbound in between
+     */
+    void endBatch() {
+    }
+
+    /**
+     * Overwrites some of the vertex data in place, for meshes whose vertices move every frame but whose layout
+     * doesn't change. The new data must be in this mesh's vertex format, which must have a single stream.
+     *
+     * @param byteOffset Where in the vertex data to start writing
+     * @see #updateStream(int, long, ByteBuffer)
+     */
+    public void updateVertices(long byteOffset, ByteBuffer vertices) {
+        if (streamVboIds != null && streamVboIds.length > 1)
+            throw new IllegalStateException("Mesh has " + streamVboIds.length + " vertex streams, update them separately");
+        updateStream(0, byteOffset, vertices);
+    }
+
+    /**
+     * Overwrites some of one stream's vertex data in place. The new data must hold just that stream's attributes.
+     *
+     * @param byteOffset Where in the stream's data to start writing
+     * @see VertexFormat#withStreams(int...)
+     */
+    public void updateStream(int stream, long byteOffset, ByteBuffer vertices) {
+        GlState.bindBuffer(GL_ARRAY_BUFFER, streamVboIds == null ? vertexVboId : streamVboIds[stream]);
+        glBufferSubData(GL_ARRAY_BUFFER, byteOffset, vertices);
+        GlState.bindBuffer(GL_ARRAY_BUFFER, 0);
+    }
+
     public static BakedMesh getBoundMesh() {
         return boundMesh;
     }
@@ -90,6 +141,10 @@ public class BakedMesh {
     public void free() {
         glDeleteVertexArrays(vaoId);
         glDeleteBuffers(vertexVboId);
+        if (streamVboIds != null) {
+            for (int i = 1; i < streamVboIds.length; i++)
+                glDeleteBuffers(streamVboIds[i]);
+        }
     }
 
 }
@@ -0,0 +1,325 @@
+package render.util;
+
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
+import util.FloatArrayList;
+import util.IntArrayList;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.lwjgl.opengl.GL11.GL_TRIANGLES;
+import static org.lwjgl.opengl.GL11.GL_UNSIGNED_INT;
+import static org.lwjgl.opengl.GL15.GL_ARRAY_BUFFER;
+import static org.lwjgl.opengl.GL15.GL_ELEMENT_ARRAY_BUFFER;
+import static org.lwjgl.opengl.GL15.GL_STATIC_DRAW;
+import static org.lwjgl.opengl.GL15.GL_STREAM_DRAW;
+import static org.lwjgl.opengl.GL15.glBindBuffer;
+import static org.lwjgl.opengl.GL15.glBufferData;
+import static org.lwjgl.opengl.GL15.glBufferSubData;
+import static org.lwjgl.opengl.GL15.glDeleteBuffers;
+import static org.lwjgl.opengl.GL15.glGenBuffers;
+import static org.lwjgl.opengl.GL20.glEnableVertexAttribArray;
+import static org.lwjgl.opengl.GL30.glDeleteVertexArrays;
+import static org.lwjgl.opengl.GL30.glGenVertexArrays;
+import static org.lwjgl.opengl.GL31.GL_COPY_READ_BUFFER;
+import static org.lwjgl.opengl.GL31.GL_COPY_WRITE_BUFFER;
+import static org.lwjgl.opengl.GL31.glCopyBufferSubData;
+import static org.lwjgl.opengl.GL40.GL_DRAW_INDIRECT_BUFFER;
+import static org.lwjgl.opengl.GL43.glMultiDrawElementsIndirect;
+
+/**
+ * Shared vertex and index buffers for many meshes of one {@link VertexFormat}, so that any mix of them, each drawn
+ * any number of times, goes out as a single indirect draw call with a single vertex array bound.
+ *
+ * <p>
+ * Each {@link PooledMesh} is a range of the vertex buffer and a range of the index buffer, handed out by a
+ * {@link RangeAllocator} each, and given back when the mesh is freed. The buffers double (copying on the GPU) when a
+ * mesh doesn't fit. A mesh's indices count from its own first vertex, which each draw command gives as its base vertex.
+ * </p>
+ *
+ * <p>
+ * Each frame, instances are {@link #add(PooledMesh, float, float, float, float) added} one at a time with their
+ * (x, y, z, w) instance attribute, in any order. {@link #draw(int)} then sorts them by mesh into one instance buffer,
+ * builds one command per mesh on the CPU (index count, instance count, first index, base vertex, base instance) and
+ * draws the lot with <tt>glMultiDrawElementsIndirect</tt>. The base instance is what points each command at its own
+ * run of instances.
+ * </p>
+ */
+public class GeometryPool implements Freeable {
+
+    private static final int INITIAL_VERTICES = 1 << 16;
+    private static final int INITIAL_INDICES = 3 << 16;
+    /**
+     * Ints per draw command
+     */
+    private static final int COMMAND_INTS = 5;
+
+    private final VertexFormat format;
+    private final int vertexSize;
+    private final int vaoId;
+    private int vertexVboId;
+    private int indexVboId;
+    private final int commandVboId;
+    private final RangeAllocator vertexSpace = new RangeAllocator(INITIAL_VERTICES);
+    private final RangeAllocator indexSpace = new RangeAllocator(INITIAL_INDICES);
+
+    private final ArrayList<PooledMesh> commandMeshes = new ArrayList<>();
+    private int[] commandCounts = new int[16];
+    private final IntArrayList instanceCommands = new IntArrayList();
+    private final FloatArrayList instanceData = new FloatArrayList();
+    private final InstanceBuffer instances = new InstanceBuffer(4);
+    private IntBuffer commands = allocateCommands(16);
+
+    /**
+     * Must be created with a GL context current, and {@link #isSupported()}
+     *
+     * @param format The vertex format of every mesh in the pool, which must have a single stream
+     */
+    public GeometryPool(VertexFormat format) {
+        if (format.getStreamCount() != 1)
+            throw new IllegalArgumentException("Pooled vertex formats must have a single stream");
+        this.format = format;
+        vertexSize = format.getVertexSize();
+
+        vaoId = glGenVertexArrays();
+        vertexVboId = glGenBuffers();
+        indexVboId = glGenBuffers();
+        commandVboId = glGenBuffers();
+
+        GlState.bindVertexArray(vaoId);
+        GlState.bindBuffer(GL_ARRAY_BUFFER, vertexVboId);
+        glBufferData(GL_ARRAY_BUFFER, (long) INITIAL_VERTICES * vertexSize, GL_STATIC_DRAW);
+        for (int i = 0; i < format.getAttributes().length; i++)
+            glEnableVertexAttribArray(i);
+        format.setAttributePointers(0, 0);
+        GlState.bindBuffer(GL_ARRAY_BUFFER, 0);
+        GlState.bindBuffer(GL_ELEMENT_ARRAY_BUFFER, indexVboId);
+        glBufferData(GL_ELEMENT_ARRAY_BUFFER, (long) INITIAL_INDICES * 4, GL_STATIC_DRAW);
+        GlState.bindVertexArray(0);
+    }
+
+    /**
+     * Whether the current context can draw from a pool, which needs multi draw indirect with base instances
+     */
+    public static boolean isSupported() {
+        GLCapabilities caps = GL.getCapabilities();
+        return caps.OpenGL43 || caps.GL_ARB_multi_draw_indirect && caps.OpenGL42;
+    }
+
+    private static IntBuffer allocateCommands(int count) {
+        return ByteBuffer.allocateDirect(count * COMMAND_INTS * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+    }
+
+    public VertexFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * Copies a mesh into the pool. This is really an internal method, you should use
+     * {@link MeshBuilder#createPooledMesh(GeometryPool)}, which calls this, instead.
+     *
+     * @param vertexBufferSize The size of the vertices in bytes, from the start of the buffer
+     * @param indicesCount The number of indices, from the start of their buffer, or 0 to draw the vertices in order
+     */
+    public PooledMesh add(ByteBuffer vertexBuffer, int vertexBufferSize, ByteBuffer indicesBuffer, int indicesCount) {
+        if (vertexBufferSize % vertexSize != 0)
+            throw new IllegalArgumentException("Vertex data isn't a whole number of " + vertexSize + " byte vertices");
+        int vertexCount = vertexBufferSize / vertexSize;
+        if (vertexCount == 0)
+            throw new IllegalArgumentException("Can't pool an empty mesh");
+        ByteBuffer vertices = vertexBuffer.duplicate();
+        vertices.position(0).limit(vertexBufferSize);
+        IntBuffer indices;
+        if (indicesCount > 0) {
+            ByteBuffer indexBytes = indicesBuffer.duplicate().order(ByteOrder.nativeOrder());
+            indexBytes.position(0).limit(indicesCount * 4);
+            indices = indexBytes.asIntBuffer();
+        } else {
+            indicesCount = vertexCount;
+            indices = ByteBuffer.allocateDirect(vertexCount * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+            for (int i = 0; i < vertexCount; i++)
+                indices.put(i, i);
+        }
+
+        int firstVertex = vertexSpace.allocate(vertexCount);
+        if (firstVertex < 0) {
+            growVertices(vertexCount);
+            firstVertex = vertexSpace.allocate(vertexCount);
+        }
+        int firstIndex = indexSpace.allocate(indicesCount);
+        if (firstIndex < 0) {
+            growIndices(indicesCount);
+            firstIndex = indexSpace.allocate(indicesCount);
+        }
+
+        GlState.bindBuffer(GL_ARRAY_BUFFER, vertexVboId);
+        glBufferSubData(GL_ARRAY_BUFFER, (long) firstVertex * vertexSize, vertices);
+        GlState.bindBuffer(GL_ARRAY_BUFFER, 0);
+        // Through the copy target, as the element array binding belongs to whichever vertex array is bound
+        glBindBuffer(GL_COPY_WRITE_BUFFER, indexVboId);
+        glBufferSubData(GL_COPY_WRITE_BUFFER, (long) firstIndex * 4, indices);
+        glBindBuffer(GL_COPY_WRITE_BUFFER, 0);
+        return new PooledMesh(this, firstVertex, vertexCount, firstIndex, indicesCount);
+    }
+
+    /**
+     * How many vertices the pool has room for before it next grows
+     */
+    public int getVertexCapacity() {
+        return vertexSpace.getCapacity();
+    }
+
+    /**
+     * How many indices the pool has room for before it next grows
+     */
+    public int getIndexCapacity() {
+        return indexSpace.getCapacity();
+    }
+
+    void remove(PooledMesh mesh) {
+        vertexSpace.free(mesh.firstVertex, mesh.vertexCount);
+        indexSpace.free(mesh.firstIndex, mesh.indexCount);
+    }
+
+    private void growVertices(int needed) {
+        int capacity = vertexSpace.getCapacity();
+        int newCapacity = Math.max(capacity * 2, capacity + needed);
+        vertexVboId = grow(vertexVboId, (long) capacity * vertexSize, (long) newCapacity * vertexSize);
+        vertexSpace.grow(newCapacity);
+
+        GlState.bindVertexArray(vaoId);
+        GlState.bindBuffer(GL_ARRAY_BUFFER, vertexVboId);
+        format.setAttributePointers(0, 0);
+        GlState.bindBuffer(GL_ARRAY_BUFFER, 0);
+        GlState.bindVertexArray(0);
+    }
+
+    private void growIndices(int needed) {
+        int capacity = indexSpace.getCapacity();
+        int newCapacity = Math.max(capacity * 2, capacity + needed);
+        indexVboId = grow(indexVboId, (long) capacity * 4, (long) newCapacity * 4);
+        indexSpace.grow(newCapacity);
+
+        GlState.bindVertexArray(vaoId);
+        GlState.bindBuffer(GL_ELEMENT_ARRAY_BUFFER, indexVboId);
+        GlState.bindVertexArray(0);
+    }
+
+    /**
+     * Makes a bigger buffer with the old one's contents, copied on the GPU, and deletes the old one
+     */
+    private static int grow(int oldVboId, long oldBytes, long newBytes) {
+        int newVboId = glGenBuffers();
+        glBindBuffer(GL_COPY_WRITE_BUFFER, newVboId);
+        glBufferData(GL_COPY_WRITE_BUFFER, newBytes, GL_STATIC_DRAW);
+        glBindBuffer(GL_COPY_READ_BUFFER, oldVboId);
+        glCopyBufferSubData(GL_COPY_READ_BUFFER, GL_COPY_WRITE_BUFFER, 0, 0, oldBytes);
+        glBindBuffer(GL_COPY_READ_BUFFER, 0);
+        glBindBuffer(GL_COPY_WRITE_BUFFER, 0);
+        glDeleteBuffers(oldVboId);
+        return newVboId;
+    }
+
+    /**
+     * Starts a new frame's instances
+     */
+    public void begin() {
+        for (PooledMesh mesh : commandMeshes)
+            mesh.command = -1;
+        commandMeshes.clear();
+        instanceCommands.clear();
+        instanceData.clear();
+    }
+
+    /**
+     * Adds an instance of a mesh to this frame's draw
+     */
+    public void add(PooledMesh mesh, float x, float y, float z, float w) {
+        if (mesh.pool != this)
+            throw new IllegalArgumentException("Mesh belongs to another pool");
+        if (mesh.command < 0) {
+            mesh.command = commandMeshes.size();
+            commandMeshes.add(mesh);
+            if (mesh.command == commandCounts.length)
+                commandCounts = Arrays.copyOf(commandCounts, mesh.command * 2);
+            commandCounts[mesh.command] = 0;
+        }
+        commandCounts[mesh.command]++;
+        instanceCommands.add(mesh.command);
+        instanceData.add(x, y, z);
+        instanceData.add(w);
+    }
+
+    /**
+     * The number of draw commands this frame, one per distinct mesh added
+     */
+    public int getCommandCount() {
+        return commandMeshes.size();
+    }
+
+    /**
+     * Draws this frame's instances in one call. Doesn't bind the shader.
+     *
+     * @param attribute The shader's attribute index for the instance data
+     */
+    public void draw(int attribute) {
+        int commandCount = commandMeshes.size();
+        int instanceCount = instanceCommands.size();
+        if (commandCount == 0)
+            return;
+
+        // Counting sort the instances by command, each command's run starting at its base instance
+        if (commands.capacity() < commandCount * COMMAND_INTS)
+            commands = allocateCommands(commandCount * 2);
+        commands.clear();
+        int base = 0;
+        for (int c = 0; c < commandCount; c++) {
+            PooledMesh mesh = commandMeshes.get(c);
+            int count = commandCounts[c];
+            commands.put(mesh.indexCount).put(count).put(mesh.firstIndex).put(mesh.firstVertex).put(base);
+            // From here on, where the command's next instance goes
+            commandCounts[c] = base;
+            base += count;
+        }
+        commands.flip();
+
+        instances.clear();
+        instances.ensureCapacity(instanceCount);
+        FloatBuffer data = instances.getInstances();
+        int[] instanceCommand = instanceCommands.elements();
+        float[] values = instanceData.elements();
+        for (int i = 0; i < instanceCount; i++) {
+            int at = commandCounts[instanceCommand[i]]++ * 4;
+            int from = i * 4;
+            data.put(at, values[from]).put(at + 1, values[from + 1]).put(at + 2, values[from + 2]).put(at + 3, values[from + 3]);
+        }
+        instances.setCount(instanceCount);
+        instances.upload();
+
+        glBindBuffer(GL_DRAW_INDIRECT_BUFFER, commandVboId);
+        glBufferData(GL_DRAW_INDIRECT_BUFFER, commands, GL_STREAM_DRAW);
+
+        GlState.bindVertexArray(vaoId);
+        instances.attach(attribute);
+        glMultiDrawElementsIndirect(GL_TRIANGLES, GL_UNSIGNED_INT, 0, commandCount, 0);
+        GlState.countDraw();
+        instances.detach(attribute);
+        GlState.bindVertexArray(0);
+        glBindBuffer(GL_DRAW_INDIRECT_BUFFER, 0);
+    }
+
+    @Override
+    public void free() {
+        glDeleteVertexArrays(vaoId);
+        glDeleteBuffers(vertexVboId);
+        glDeleteBuffers(indexVboId);
+        glDeleteBuffers(commandVboId);
+        instances.free();
+    }
+
+}
@@ -0,0 +1,158 @@
+package render.util;
+
+import java.util.Arrays;
+
+import static org.lwjgl.opengl.GL11.glDisable;
+import static org.lwjgl.opengl.GL11.glEnable;
+import static org.lwjgl.opengl.GL15.GL_ARRAY_BUFFER;
+import static org.lwjgl.opengl.GL15.GL_ELEMENT_ARRAY_BUFFER;
+import static org.lwjgl.opengl.GL15.glBindBuffer;
+import static org.lwjgl.opengl.GL20.glUseProgram;
+import static org.lwjgl.opengl.GL30.glBindVertexArray;
+
+/**
+ * Remembers the GL state last set through it, so that setting it to what it already is costs nothing. Only state set
+ * through here is known about: anything which changes it behind its back must call {@link #invalidate()} afterwards.
+ *
+ * <p>
+ * The element array buffer belongs to the bound vertex array, so it's forgotten whenever the vertex array changes.
+ * Every call, issued or skipped, is counted, as is every draw, until {@link #resetCounters()}.
+ * </p>
+ */
+public final class GlState {
+
+    private static final int UNKNOWN = -1;
+    private static final int MAX_CAPABILITIES = 16;
+
+    private static int vertexArray = UNKNOWN;
+    private static int arrayBuffer = UNKNOWN;
+    private static int elementArrayBuffer = UNKNOWN;
+    private static int program = UNKNOWN;
+    private static final int[] capabilities = new int[MAX_CAPABILITIES];
+    private static final byte[] capabilityStates = new byte[MAX_CAPABILITIES];
+    private static int capabilityCount = 0;
+
+    private static int drawCalls = 0;
+    private static int stateChanges = 0;
+    private static int skippedChanges = 0;
+
+    private GlState() {
+    }
+
+    public static void bindVertexArray(int vao) {
+        if (vertexArray == vao) {
+            skippedChanges++;
+            return;
+        }
+        glBindVertexArray(vao);
+        vertexArray = vao;
+        elementArrayBuffer = UNKNOWN;
+        stateChanges++;
+    }
+
+    /**
+     * Binds a buffer, skipping the call if it's already bound. Only array and element array buffers are remembered.
+     */
+    public static void bindBuffer(int target, int buffer) {
+        if (target == GL_ARRAY_BUFFER) {
+            if (arrayBuffer == buffer) {
+                skippedChanges++;
+                return;
+            }
+            arrayBuffer = buffer;
+        } else if (target == GL_ELEMENT_ARRAY_BUFFER) {
+            if (elementArrayBuffer == buffer) {
+                skippedChanges++;
+                return;
+            }
+            elementArrayBuffer = buffer;
+        }
+        glBindBuffer(target, buffer);
+        stateChanges++;
+    }
+
+    public static void useProgram(int programId) {
+        if (program == programId) {
+            skippedChanges++;
+            return;
+        }
+        glUseProgram(programId);
+        program = programId;
+        stateChanges++;
+    }
+
+    public static void enable(int capability) {
+        setCapability(capability, true);
+    }
+
+    public static void disable(int capability) {
+        setCapability(capability, false);
+    }
+
+    private static void setCapability(int capability, boolean enabled) {
+        byte state = (byte) (enabled ? 1 : 0);
+        int i = 0;
+        while (i < capabilityCount && capabilities[i] != capability)
+            i++;
+        if (i < capabilityCount && capabilityStates[i] == state) {
+            skippedChanges++;
+            return;
+        }
+        if (enabled)
+            glEnable(capability);
+        else
+            glDisable(capability);
+        stateChanges++;
+        if (i == capabilityCount) {
+            // Too many to remember, so just never skip this one
+            if (capabilityCount == MAX_CAPABILITIES)
+                return;
+            capabilities[capabilityCount++] = capability;
+        }
+        capabilityStates[i] = state;
+    }
+
+    /**
+     * Counts a draw call, which every draw should do
+     */
+    public static void countDraw() {
+        drawCalls++;
+    }
+
+    /**
+     * Forgets all the state, so the next call of each kind is issued whatever it is
+     */
+    public static void invalidate() {
+        vertexArray = UNKNOWN;
+        arrayBuffer = UNKNOWN;
+        elementArrayBuffer = UNKNOWN;
+        program = UNKNOWN;
+        capabilityCount = 0;
+        Arrays.fill(capabilities, 0);
+    }
+
+    public static int getDrawCalls() {
+        return drawCalls;
+    }
+
+    /**
+     * The number of state changes actually issued
+     */
+    public static int getStateChanges() {
+        return stateChanges;
+    }
+
+    /**
+     * The number of state changes skipped for already being in place
+     */
+    public static int getSkippedChanges() {
+        return skippedChanges;
+    }
+
+    public static void resetCounters() {
+        drawCalls = 0;
+        stateChanges = 0;
+        skippedChanges = 0;
+    }
+
+}
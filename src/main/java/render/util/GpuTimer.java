@@ -0,0 +1,108 @@
+package render.util;
+
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
+import util.trace.Trace;
+
+import static org.lwjgl.opengl.GL15.GL_QUERY_RESULT;
+import static org.lwjgl.opengl.GL15.GL_QUERY_RESULT_AVAILABLE;
+import static org.lwjgl.opengl.GL15.glDeleteQueries;
+import static org.lwjgl.opengl.GL15.glGenQueries;
+import static org.lwjgl.opengl.GL15.glGetQueryObjecti;
+import static org.lwjgl.opengl.GL32.glGetInteger64;
+import static org.lwjgl.opengl.GL33.GL_TIMESTAMP;
+import static org.lwjgl.opengl.GL33.glGetQueryObjecti64;
+import static org.lwjgl.opengl.GL33.glQueryCounter;
+
+/**
+ * Measures how long the GPU spends on the commands between {@link #begin()} and {@link #end()}, using timestamp
+ * queries, and records it to the "GPU" track of the {@link Trace}.
+ *
+ * <p>
+ * Query results only arrive a frame or two later, so a few frames of queries are kept in flight and read back
+ * once they're ready, without ever waiting on the GPU. If they still aren't ready by the time their slot comes round
+ * again, that frame just isn't timed. Does nothing if tracing is off, or if timer queries aren't supported.
+ * </p>
+ */
+public class GpuTimer implements Freeable {
+
+    private static final int FRAMES = 4;
+    private static final String TRACK = "GPU";
+
+    private final int event;
+    private final boolean supported;
+    private int[] startQueries, endQueries;
+    private final boolean[] pending = new boolean[FRAMES];
+    private int frame = 0;
+    private boolean timing = false;
+
+    /**
+     * Added to GPU timestamps to put them on the same clock as {@link System#nanoTime()}
+     */
+    private long clockOffset;
+    private boolean calibrated = false;
+
+    /**
+     * Must be created with a GL context current
+     */
+    public GpuTimer(String name) {
+        event = Trace.event(name);
+        GLCapabilities caps = GL.getCapabilities();
+        supported = caps.OpenGL33 || caps.GL_ARB_timer_query;
+    }
+
+    public void begin() {
+        if (!supported || !Trace.isEnabled())
+            return;
+        if (startQueries == null) {
+            startQueries = new int[FRAMES];
+            endQueries = new int[FRAMES];
+            glGenQueries(startQueries);
+            glGenQueries(endQueries);
+        }
+        if (!calibrated) {
+            clockOffset = System.nanoTime() - glGetInteger64(GL_TIMESTAMP);
+            calibrated = true;
+        }
+
+        collect();
+        if (pending[frame])
+            return; // the GPU is more than FRAMES behind, so skip this one
+        glQueryCounter(startQueries[frame], GL_TIMESTAMP);
+        timing = true;
+    }
+
+    public void end() {
+        if (!timing)
+            return;
+        glQueryCounter(endQueries[frame], GL_TIMESTAMP);
+        pending[frame] = true;
+        frame = (frame + 1) % FRAMES;
+        timing = false;
+    }
+
+    /**
+     * Records every finished query
+     */
+    private void collect() {
+        for (int i = 0; i < FRAMES; i++) {
+            if (!pending[i] || glGetQueryObjecti(endQueries[i], GL_QUERY_RESULT_AVAILABLE) == 0)
+                continue;
+            long start = glGetQueryObjecti64(startQueries[i], GL_QUERY_RESULT);
+            long end = glGetQueryObjecti64(endQueries[i], GL_QUERY_RESULT);
+            Trace.complete(TRACK, event, start + clockOffset, end + clockOffset);
+            pending[i] = false;
+        }
+    }
+
+    @Override
+    public void free() {
+        if (startQueries != null) {
+            glDeleteQueries(startQueries);
+            glDeleteQueries(endQueries);
+            startQueries = null;
+            endQueries = null;
+        }
+    }
+
+}
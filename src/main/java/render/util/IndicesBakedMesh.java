@@ -4,6 +4,7 @@ import static org.lwjgl.opengl.GL11.GL_TRIANGLES;
 import static org.lwjgl.opengl.GL11.GL_UNSIGNED_INT;
 import static org.lwjgl.opengl.GL11.glDrawElements;
 import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL31.glDrawElementsInstanced;
 
 /**
  * A {@link BakedMesh} which has an index buffer too (created automatically by the engine if necesssary)
@@ -20,17 +21,24 @@ public class IndicesBakedMesh extends BakedMesh {
     @Override
     public void bind() {
         super.bind();
-        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, indicesVboId);
+        GlState.bindBuffer(GL_ELEMENT_ARRAY_BUFFER, indicesVboId);
     }
 
     @Override
     public void drawInBatch() {
         glDrawElements(GL_TRIANGLES, vertexCount, GL_UNSIGNED_INT, 0);
+        GlState.countDraw();
+    }
+
+    @Override
+    public void drawInstancedInBatch(int instances) {
+        glDrawElementsInstanced(GL_TRIANGLES, vertexCount, GL_UNSIGNED_INT, 0, instances);
+        GlState.countDraw();
     }
 
     @Override
     public void unbind() {
-        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, 0);
+        GlState.bindBuffer(GL_ELEMENT_ARRAY_BUFFER, 0);
         super.unbind();
     }
 
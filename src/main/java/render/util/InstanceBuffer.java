@@ -0,0 +1,166 @@
+package render.util;
+
+import org.lwjgl.opengl.GL;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import static org.lwjgl.opengl.GL11.GL_FLOAT;
+import static org.lwjgl.opengl.GL15.GL_ARRAY_BUFFER;
+import static org.lwjgl.opengl.GL15.GL_STREAM_DRAW;
+import static org.lwjgl.opengl.GL15.glBufferData;
+import static org.lwjgl.opengl.GL15.glBufferSubData;
+import static org.lwjgl.opengl.GL15.glDeleteBuffers;
+import static org.lwjgl.opengl.GL15.glGenBuffers;
+import static org.lwjgl.opengl.GL20.glDisableVertexAttribArray;
+import static org.lwjgl.opengl.GL20.glEnableVertexAttribArray;
+import static org.lwjgl.opengl.GL20.glVertexAttribPointer;
+import static org.lwjgl.opengl.GL33.glVertexAttribDivisor;
+
+/**
+ * Per-instance attributes for drawing many copies of one {@link BakedMesh} in a single call, each instance being a
+ * few floats (a position and a scale, say) which the shader reads as one extra vertex attribute.
+ *
+ * <p>
+ * Instances are written in bulk with {@link #put(float, float, float, float)} or straight into
+ * {@link #getInstances()}, then {@link #draw(BakedMesh, int)} uploads them into a fresh buffer (orphaning the
+ * previous frame's, so the GPU never has to finish with it first), and draws.
+ * </p>
+ */
+public class InstanceBuffer implements Freeable {
+
+    private final int floatsPerInstance;
+    private int vboId;
+    private int capacity = 0;
+    private FloatBuffer instances;
+    private int count = 0;
+
+    /**
+     * Must be created with a GL context current
+     *
+     * @param floatsPerInstance The size of the instance attribute, from 1 to 4
+     */
+    public InstanceBuffer(int floatsPerInstance) {
+        if (floatsPerInstance < 1 || floatsPerInstance > 4)
+            throw new IllegalArgumentException("Instance attributes must be 1 to 4 floats, got " + floatsPerInstance);
+        this.floatsPerInstance = floatsPerInstance;
+        vboId = glGenBuffers();
+        instances = allocate(1024);
+    }
+
+    /**
+     * Whether the current context can draw instanced with per-instance attributes
+     */
+    public static boolean isSupported() {
+        return GL.getCapabilities().OpenGL33;
+    }
+
+    private FloatBuffer allocate(int instanceCount) {
+        return ByteBuffer.allocateDirect(instanceCount * floatsPerInstance * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+
+    /**
+     * Forgets the instances, to start writing the next lot
+     */
+    public void clear() {
+        instances.clear();
+        count = 0;
+    }
+
+    /**
+     * Makes sure there's room for this many more instances
+     */
+    public void ensureCapacity(int extra) {
+        int needed = (count + extra) * floatsPerInstance;
+        if (needed <= instances.capacity())
+            return;
+        FloatBuffer grown = allocate(Math.max(needed / floatsPerInstance, instances.capacity() / floatsPerInstance * 2));
+        instances.flip();
+        grown.put(instances);
+        instances = grown;
+    }
+
+    public InstanceBuffer put(float x, float y, float z, float w) {
+        ensureCapacity(1);
+        instances.put(x);
+        if (floatsPerInstance > 1) instances.put(y);
+        if (floatsPerInstance > 2) instances.put(z);
+        if (floatsPerInstance > 3) instances.put(w);
+        count++;
+        return this;
+    }
+
+    /**
+     * The instance data, to write into directly after {@link #ensureCapacity(int)}. Call {@link #setCount(int)}
+     * afterwards.
+     */
+    public FloatBuffer getInstances() {
+        return instances;
+    }
+
+    public void setCount(int count) {
+        this.count = count;
+        instances.position(count * floatsPerInstance);
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Uploads the instances and draws the mesh once for each. Doesn't bind the shader.
+     *
+     * @param attribute The shader's attribute index for the instance data
+     */
+    public void draw(BakedMesh mesh, int attribute) {
+        if (count == 0)
+            return;
+        upload();
+        mesh.bind();
+        attach(attribute);
+        mesh.drawInstancedInBatch(count);
+        detach(attribute);
+        mesh.unbind();
+    }
+
+    /**
+     * Uploads the instances into a fresh buffer (growing it when needed), rather than waiting for the GPU to finish
+     * reading the old
+     */
+    void upload() {
+        FloatBuffer data = instances.duplicate();
+        data.flip();
+        GlState.bindBuffer(GL_ARRAY_BUFFER, vboId);
+        capacity = Math.max(capacity, instances.capacity());
+        glBufferData(GL_ARRAY_BUFFER, (long) capacity * 4, GL_STREAM_DRAW);
+        glBufferSubData(GL_ARRAY_BUFFER, 0, data);
+        GlState.bindBuffer(GL_ARRAY_BUFFER, 0);
+    }
+
+    /**
+     * Points an attribute of the bound vertex array at the instances, advancing once per instance
+     */
+    void attach(int attribute) {
+        GlState.bindBuffer(GL_ARRAY_BUFFER, vboId);
+        glEnableVertexAttribArray(attribute);
+        glVertexAttribPointer(attribute, floatsPerInstance, GL_FLOAT, false, floatsPerInstance * 4, 0);
+        glVertexAttribDivisor(attribute, 1);
+        GlState.bindBuffer(GL_ARRAY_BUFFER, 0);
+    }
+
+    /**
+     * Leaves the bound vertex array as it was, for ordinary draws
+     */
+    void detach(int attribute) {
+        glVertexAttribDivisor(attribute, 0);
+        glDisableVertexAttribArray(attribute);
+    }
+
+    @Override
+    public void free() {
+        glDeleteBuffers(vboId);
+        vboId = 0;
+    }
+
+}
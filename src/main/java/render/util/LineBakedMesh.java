@@ -2,6 +2,7 @@ package render.util;
 
 import static org.lwjgl.opengl.GL11.GL_LINES;
 import static org.lwjgl.opengl.GL11.glDrawArrays;
+import static org.lwjgl.opengl.GL31.glDrawArraysInstanced;
 
 public class LineBakedMesh extends BakedMesh {
     LineBakedMesh(int vaoId, int vertexVboId, int vertexCount) {
@@ -11,6 +12,13 @@ public class LineBakedMesh extends BakedMesh {
     @Override
     public void drawInBatch() {
         glDrawArrays(GL_LINES, 0, vertexCount);
+        GlState.countDraw();
+    }
+
+    @Override
+    public void drawInstancedInBatch(int instances) {
+        glDrawArraysInstanced(GL_LINES, 0, vertexCount, instances);
+        GlState.countDraw();
     }
 
 }
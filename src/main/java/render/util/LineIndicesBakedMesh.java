@@ -1,6 +1,7 @@
 package render.util;
 
 import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL31.glDrawElementsInstanced;
 
 public class LineIndicesBakedMesh extends IndicesBakedMesh {
     public LineIndicesBakedMesh(int vaoId, int vertexVboId, int indicesVboId, int vertexCount) {
@@ -10,5 +11,12 @@ public class LineIndicesBakedMesh extends IndicesBakedMesh {
     @Override
     public void drawInBatch() {
         glDrawElements(GL_LINES, vertexCount, GL_UNSIGNED_INT, 0);
+        GlState.countDraw();
+    }
+
+    @Override
+    public void drawInstancedInBatch(int instances) {
+        glDrawElementsInstanced(GL_LINES, vertexCount, GL_UNSIGNED_INT, 0, instances);
+        GlState.countDraw();
     }
 }
@@ -111,6 +111,43 @@ public class MeshBuilder {
         return vertexFormat.createMesh(vertexBuf.asByteBuffer(), verticesSize, indicesBuf.asByteBuffer(), indicesCount, primitiveDrawType);
     }
 
+    /**
+     * Creates a {@link StreamingBakedMesh} with the vertex data and potentially index data added via this builder,
+     * for meshes whose vertices are rewritten every frame. Only triangles are supported.
+     *
+     * @param regions How many copies of the vertices the GPU can be drawing from while the next is written, usually 3
+     * @param staticStreams Any streams of the vertex format which are never updated, so are uploaded just once
+     */
+    public StreamingBakedMesh createStreamingMesh(int regions, int... staticStreams) {
+        if (attributeIndex != 0)
+            throw new IllegalStateException("Cannot create mesh when part way through a vertex");
+        if (primitiveDrawType != GL_TRIANGLES)
+            throw new IllegalStateException("Streaming meshes must be made of triangles");
+
+        vertexBuf.rewind();
+        indicesBuf.rewind();
+
+        return vertexFormat.createStreamingMesh(vertexBuf.asByteBuffer(), verticesSize, indicesBuf.asByteBuffer(), indicesCount, regions, staticStreams);
+    }
+
+    /**
+     * Copies the vertex data and potentially index data added via this builder into a {@link GeometryPool}, whose
+     * vertex format must be this builder's. Only triangles are supported.
+     */
+    public PooledMesh createPooledMesh(GeometryPool pool) {
+        if (attributeIndex != 0)
+            throw new IllegalStateException("Cannot create mesh when part way through a vertex");
+        if (primitiveDrawType != GL_TRIANGLES)
+            throw new IllegalStateException("Pooled meshes must be made of triangles");
+        if (pool.getFormat() != vertexFormat)
+            throw new IllegalArgumentException("The pool is for a different vertex format");
+
+        vertexBuf.rewind();
+        indicesBuf.rewind();
+
+        return pool.add(vertexBuf.asByteBuffer(), verticesSize, indicesBuf.asByteBuffer(), indicesCount);
+    }
+
     /**
      * Adds index data
      */
@@ -0,0 +1,750 @@
+package render.util;
+
+import java.util.Arrays;
+
+/**
+ * Simplifies an indexed triangle mesh by collapsing edges in order of the quadric error they add (Garland and Heckbert,
+ * 1997), working on flat arrays throughout so it stays quick on meshes of millions of triangles.
+ *
+ * <p>
+ * Vertices which share a position are welded for the geometry, but each keeps its own attributes: wherever the mesh
+ * has been split to give the same position different normals or texture coordinates there's a seam, and edges along
+ * seams are treated like the mesh's open boundaries. Every collapse moves one vertex onto a neighbour (a half-edge
+ * collapse), so no new attributes ever have to be made up; the moved vertex's corners simply take on the neighbour's
+ * vertex on the same side of any seam. A vertex on a boundary or seam may only slide along it, extra planes through
+ * the boundary edges hold its shape, and vertices where more than two boundaries meet never move at all.
+ * </p>
+ *
+ * <p>
+ * Candidate collapses sit in a binary heap, cheapest first. Rather than finding and fixing the entries a collapse
+ * makes stale, each vertex has a version, bumped whenever it changes, which every entry records for its two ends;
+ * stale entries are dropped as they come off the heap, and the merged vertex's edges are pushed afresh. Collapses
+ * which would flip a triangle or pinch the surface into a non-manifold are refused when they're popped.
+ * </p>
+ *
+ * <p>
+ * {@link #decimate(int)} can be called again with a lower target to carry on from where it stopped, which is how a
+ * chain of levels of detail is best made.
+ * </p>
+ */
+public class MeshDecimator {
+
+    /**
+     * The most distinct vertices one vertex's corners can use along a collapsing edge
+     */
+    private static final int MAX_WEDGES = 8;
+
+    private final int vertexCount;
+    private final float[] vertexPositions;
+    private float[] normals;
+    private float[] texCoords;
+
+    /**
+     * Each vertex's welded position
+     */
+    private final int[] positionOf;
+    private final int positionCount;
+    private final double[] positions;
+    private final double[] quadrics;
+    private final int[] version;
+    private final boolean[] removed;
+    private final boolean[] border;
+    private final boolean[] locked;
+
+    /**
+     * Per triangle corner: the welded position, and the vertex for its attributes
+     */
+    private final int[] trianglePositions;
+    private final int[] triangleVertices;
+    private final boolean[] deleted;
+    private int triangleCount;
+
+    /**
+     * Each position's triangles are <tt>refs[refStart[p]]</tt> up to <tt>refs[refStart[p] + refCount[p]]</tt>, some of
+     * which may since have been deleted. A collapse appends the merged list to the end.
+     */
+    private int[] refs;
+    private int refSize;
+    private final int[] refStart;
+    private final int[] refCount;
+
+    private float[] heapCost = new float[1024];
+    private int[] heapFrom = new int[1024];
+    private int[] heapTo = new int[1024];
+    private int[] heapFromVersion = new int[1024];
+    private int[] heapToVersion = new int[1024];
+    private int heapSize = 0;
+
+    private final int[] mark;
+    private int markStamp = 0;
+    private final int[] wedgeFrom = new int[MAX_WEDGES];
+    private final int[] wedgeTo = new int[MAX_WEDGES];
+
+    private float borderWeight = 100;
+    private float maxError = Float.POSITIVE_INFINITY;
+    private boolean started = false;
+
+    /**
+     * @param positions The vertex positions, as (x, y, z) at <tt>3 * vertex</tt>
+     * @param triangles The triangles' vertex indices, 3 per triangle
+     */
+    public MeshDecimator(float[] positions, int[] triangles) {
+        if (triangles.length % 3 != 0)
+            throw new IllegalArgumentException("Triangle indices must come in threes, got " + triangles.length);
+        vertexCount = positions.length / 3;
+        vertexPositions = positions;
+
+        positionOf = new int[vertexCount];
+        positionCount = weld(positions, positionOf);
+        this.positions = new double[positionCount * 3];
+        for (int v = 0; v < vertexCount; v++) {
+            int p = positionOf[v] * 3;
+            this.positions[p] = positions[v * 3];
+            this.positions[p + 1] = positions[v * 3 + 1];
+            this.positions[p + 2] = positions[v * 3 + 2];
+        }
+
+        int triangles3 = triangles.length;
+        trianglePositions = new int[triangles3];
+        triangleVertices = triangles.clone();
+        deleted = new boolean[triangles3 / 3];
+        for (int i = 0; i < triangles3; i++) {
+            if (triangles[i] < 0 || triangles[i] >= vertexCount)
+                throw new IndexOutOfBoundsException("index " + triangles[i] + ", vertex count " + vertexCount);
+            trianglePositions[i] = positionOf[triangles[i]];
+        }
+        for (int t = 0; t < deleted.length; t++) {
+            int a = trianglePositions[t * 3], b = trianglePositions[t * 3 + 1], c = trianglePositions[t * 3 + 2];
+            // Already degenerate once welded
+            deleted[t] = a == b || b == c || c == a;
+            if (!deleted[t])
+                triangleCount++;
+        }
+
+        // Each position's triangles, in compressed sparse row form to begin with
+        refStart = new int[positionCount];
+        refCount = new int[positionCount];
+        for (int t = 0; t < deleted.length; t++) {
+            if (deleted[t])
+                continue;
+            for (int corner = 0; corner < 3; corner++)
+                refCount[trianglePositions[t * 3 + corner]]++;
+        }
+        for (int p = 1; p < positionCount; p++)
+            refStart[p] = refStart[p - 1] + refCount[p - 1];
+        refs = new int[triangleCount * 3 * 2 + 16];
+        refSize = triangleCount * 3;
+        int[] next = refStart.clone();
+        for (int t = 0; t < deleted.length; t++) {
+            if (deleted[t])
+                continue;
+            for (int corner = 0; corner < 3; corner++)
+                refs[next[trianglePositions[t * 3 + corner]]++] = t;
+        }
+
+        quadrics = new double[positionCount * 10];
+        version = new int[positionCount];
+        removed = new boolean[positionCount];
+        border = new boolean[positionCount];
+        locked = new boolean[positionCount];
+        mark = new int[positionCount];
+    }
+
+    /**
+     * Sets the vertex normals, as (x, y, z) at <tt>3 * vertex</tt>, to be written out with the simplified mesh
+     */
+    public MeshDecimator setNormals(float[] normals) {
+        this.normals = normals;
+        return this;
+    }
+
+    /**
+     * Sets the vertex texture coordinates, as (u, v) at <tt>2 * vertex</tt>, to be written out with the simplified
+     * mesh
+     */
+    public MeshDecimator setTexCoords(float[] texCoords) {
+        this.texCoords = texCoords;
+        return this;
+    }
+
+    /**
+     * Sets how strongly boundaries and seams hold their shape, relative to the surface. Must be set before the first
+     * {@link #decimate(int)}.
+     */
+    public MeshDecimator setBorderWeight(float borderWeight) {
+        this.borderWeight = borderWeight;
+        return this;
+    }
+
+    /**
+     * Sets the largest error, in squared distance from the original surface, any collapse may add. Decimating stops
+     * early rather than go past it.
+     */
+    public MeshDecimator setMaxError(float maxError) {
+        this.maxError = maxError;
+        return this;
+    }
+
+    /**
+     * Collapses edges until there are no more than this many triangles left, or nothing more can be collapsed
+     * within the error limit
+     *
+     * @return The number of triangles left
+     */
+    public int decimate(int targetTriangles) {
+        if (!started) {
+            start();
+            started = true;
+        }
+        while (triangleCount > targetTriangles && heapSize > 0) {
+            if (heapCost[0] > maxError)
+                break;
+            int from = heapFrom[0], to = heapTo[0];
+            boolean current = !removed[from] && !removed[to]
+                    && version[from] == heapFromVersion[0] && version[to] == heapToVersion[0];
+            pop();
+            if (current)
+                collapse(from, to);
+        }
+        return triangleCount;
+    }
+
+    public int getTriangleCount() {
+        return triangleCount;
+    }
+
+    /**
+     * The remaining triangles, indexing the vertices in {@link #getVertexMap()}
+     */
+    public int[] getTriangles() {
+        int[] remap = new int[vertexCount];
+        Arrays.fill(remap, -1);
+        int[] triangles = new int[triangleCount * 3];
+        int i = 0, used = 0;
+        for (int t = 0; t < deleted.length; t++) {
+            if (deleted[t])
+                continue;
+            for (int corner = 0; corner < 3; corner++) {
+                int v = triangleVertices[t * 3 + corner];
+                if (remap[v] < 0)
+                    remap[v] = used++;
+                triangles[i++] = remap[v];
+            }
+        }
+        return triangles;
+    }
+
+    /**
+     * The original vertex each vertex of the simplified mesh is, in the order {@link #getTriangles()} uses them
+     */
+    public int[] getVertexMap() {
+        boolean[] seen = new boolean[vertexCount];
+        int[] map = new int[vertexCount];
+        int used = 0;
+        for (int t = 0; t < deleted.length; t++) {
+            if (deleted[t])
+                continue;
+            for (int corner = 0; corner < 3; corner++) {
+                int v = triangleVertices[t * 3 + corner];
+                if (!seen[v]) {
+                    seen[v] = true;
+                    map[used++] = v;
+                }
+            }
+        }
+        return Arrays.copyOf(map, used);
+    }
+
+    /**
+     * Writes the simplified mesh into a builder, with whichever of positions, normals and texture coordinates the
+     * vertex format has
+     */
+    public MeshBuilder build(VertexFormat format) {
+        VertexAttribute[] attributes = format.getAttributes();
+        for (VertexAttribute attribute : attributes) {
+            switch (attribute.getType()) {
+                case POSITION:
+                    break;
+                case NORMAL:
+                    if (normals == null)
+                        throw new IllegalStateException("The vertex format needs normals, but none were given");
+                    break;
+                case TEXTURE:
+                    if (texCoords == null)
+                        throw new IllegalStateException("The vertex format needs texture coordinates, but none were given");
+                    break;
+                default:
+                    throw new IllegalArgumentException("Can't write " + attribute.name() + " for a decimated mesh");
+            }
+        }
+
+        MeshBuilder builder = BakedMesh.builder(format);
+        for (int v : getVertexMap()) {
+            for (VertexAttribute attribute : attributes) {
+                switch (attribute.getType()) {
+                    case POSITION:
+                        builder.pos(vertexPositions[v * 3], vertexPositions[v * 3 + 1], vertexPositions[v * 3 + 2]);
+                        break;
+                    case NORMAL:
+                        builder.norm(normals[v * 3], normals[v * 3 + 1], normals[v * 3 + 2]);
+                        break;
+                    case TEXTURE:
+                        builder.tex(texCoords[v * 2], texCoords[v * 2 + 1]);
+                        break;
+                }
+            }
+        }
+        builder.indices(getTriangles());
+        return builder;
+    }
+
+    // ===== SETUP ===== //
+
+    /**
+     * Gives each distinct position one index, by hashing the coordinates' bits
+     *
+     * @return The number of distinct positions
+     */
+    private static int weld(float[] positions, int[] positionOf) {
+        int n = positionOf.length;
+        int capacity = Integer.highestOneBit(Math.max(n * 2, 2) - 1) << 1;
+        int[] table = new int[capacity];
+        Arrays.fill(table, -1);
+        int[] firstVertex = new int[n];
+        int count = 0;
+        for (int v = 0; v < n; v++) {
+            int x = Float.floatToIntBits(positions[v * 3] + 0f);
+            int y = Float.floatToIntBits(positions[v * 3 + 1] + 0f);
+            int z = Float.floatToIntBits(positions[v * 3 + 2] + 0f);
+            int hash = (x * 73856093) ^ (y * 19349663) ^ (z * 83492791);
+            int slot = (hash ^ (hash >>> 16)) & (capacity - 1);
+            while (true) {
+                int p = table[slot];
+                if (p < 0) {
+                    table[slot] = count;
+                    firstVertex[count] = v;
+                    positionOf[v] = count++;
+                    break;
+                }
+                int w = firstVertex[p] * 3;
+                // Adding 0 turns -0 into 0, so they weld
+                if (Float.floatToIntBits(positions[w] + 0f) == x && Float.floatToIntBits(positions[w + 1] + 0f) == y
+                        && Float.floatToIntBits(positions[w + 2] + 0f) == z) {
+                    positionOf[v] = p;
+                    break;
+                }
+                slot = (slot + 1) & (capacity - 1);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Builds the quadrics, finds the boundaries and seams, and fills the heap with every edge
+     */
+    private void start() {
+        for (int t = 0; t < deleted.length; t++) {
+            if (deleted[t])
+                continue;
+            int a = trianglePositions[t * 3] * 3, b = trianglePositions[t * 3 + 1] * 3, c = trianglePositions[t * 3 + 2] * 3;
+            double ux = positions[b] - positions[a], uy = positions[b + 1] - positions[a + 1], uz = positions[b + 2] - positions[a + 2];
+            double vx = positions[c] - positions[a], vy = positions[c + 1] - positions[a + 1], vz = positions[c + 2] - positions[a + 2];
+            double nx = uy * vz - uz * vy, ny = uz * vx - ux * vz, nz = ux * vy - uy * vx;
+            double length = Math.sqrt(nx * nx + ny * ny + nz * nz);
+            if (length == 0)
+                continue;
+            // Weighted by area, so big triangles count for more than slivers
+            double area = length / 2;
+            nx /= length;
+            ny /= length;
+            nz /= length;
+            double d = -(nx * positions[a] + ny * positions[a + 1] + nz * positions[a + 2]);
+            for (int corner = 0; corner < 3; corner++)
+                addPlane(trianglePositions[t * 3 + corner], nx, ny, nz, d, area);
+        }
+
+        int[] borderEdges = new int[positionCount];
+        for (int a = 0; a < positionCount; a++) {
+            int stamp = ++markStamp;
+            for (int r = refStart[a]; r < refStart[a] + refCount[a]; r++) {
+                int t = refs[r];
+                for (int corner = 0; corner < 3; corner++) {
+                    int b = trianglePositions[t * 3 + corner];
+                    if (b <= a || mark[b] == stamp)
+                        continue;
+                    mark[b] = stamp;
+                    if (isBorderEdge(a, b)) {
+                        borderEdges[a]++;
+                        borderEdges[b]++;
+                        addBorderPlanes(a, b);
+                    }
+                }
+            }
+        }
+        for (int p = 0; p < positionCount; p++) {
+            border[p] = borderEdges[p] > 0;
+            locked[p] = borderEdges[p] > 2;
+        }
+
+        for (int a = 0; a < positionCount; a++) {
+            int stamp = ++markStamp;
+            for (int r = refStart[a]; r < refStart[a] + refCount[a]; r++) {
+                int t = refs[r];
+                for (int corner = 0; corner < 3; corner++) {
+                    int b = trianglePositions[t * 3 + corner];
+                    if (b <= a || mark[b] == stamp)
+                        continue;
+                    mark[b] = stamp;
+                    pushEdge(a, b);
+                }
+            }
+        }
+    }
+
+    private void addPlane(int p, double nx, double ny, double nz, double d, double weight) {
+        int q = p * 10;
+        quadrics[q] += weight * nx * nx;
+        quadrics[q + 1] += weight * nx * ny;
+        quadrics[q + 2] += weight * nx * nz;
+        quadrics[q + 3] += weight * nx * d;
+        quadrics[q + 4] += weight * ny * ny;
+        quadrics[q + 5] += weight * ny * nz;
+        quadrics[q + 6] += weight * ny * d;
+        quadrics[q + 7] += weight * nz * nz;
+        quadrics[q + 8] += weight * nz * d;
+        quadrics[q + 9] += weight * d * d;
+    }
+
+    /**
+     * Adds a plane through a boundary or seam edge, at right angles to each triangle along it, to both ends
+     */
+    private void addBorderPlanes(int a, int b) {
+        for (int r = refStart[a]; r < refStart[a] + refCount[a]; r++) {
+            int t = refs[r];
+            if (deleted[t] || cornerOf(t, b) < 0)
+                continue;
+            int i = trianglePositions[t * 3] * 3, j = trianglePositions[t * 3 + 1] * 3, k = trianglePositions[t * 3 + 2] * 3;
+            double ux = positions[j] - positions[i], uy = positions[j + 1] - positions[i + 1], uz = positions[j + 2] - positions[i + 2];
+            double vx = positions[k] - positions[i], vy = positions[k + 1] - positions[i + 1], vz = positions[k + 2] - positions[i + 2];
+            double nx = uy * vz - uz * vy, ny = uz * vx - ux * vz, nz = ux * vy - uy * vx;
+
+            double ex = positions[b * 3] - positions[a * 3], ey = positions[b * 3 + 1] - positions[a * 3 + 1], ez = positions[b * 3 + 2] - positions[a * 3 + 2];
+            double px = ey * nz - ez * ny, py = ez * nx - ex * nz, pz = ex * ny - ey * nx;
+            double length = Math.sqrt(px * px + py * py + pz * pz);
+            if (length == 0)
+                continue;
+            px /= length;
+            py /= length;
+            pz /= length;
+            double d = -(px * positions[a * 3] + py * positions[a * 3 + 1] + pz * positions[a * 3 + 2]);
+            // Weighted by the edge's length squared, to match the area weighting of the surface
+            double weight = borderWeight * (ex * ex + ey * ey + ez * ez);
+            addPlane(a, px, py, pz, d, weight);
+            addPlane(b, px, py, pz, d, weight);
+        }
+    }
+
+    // ===== COLLAPSING ===== //
+
+    private int cornerOf(int triangle, int position) {
+        int t = triangle * 3;
+        if (trianglePositions[t] == position) return 0;
+        if (trianglePositions[t + 1] == position) return 1;
+        if (trianglePositions[t + 2] == position) return 2;
+        return -1;
+    }
+
+    /**
+     * Whether an edge is open, shared by more than two triangles, or a seam, where its triangles don't agree on which
+     * vertices its ends are
+     */
+    private boolean isBorderEdge(int a, int b) {
+        int shared = 0, vertexA = -1, vertexB = -1;
+        boolean seam = false;
+        for (int r = refStart[a]; r < refStart[a] + refCount[a]; r++) {
+            int t = refs[r];
+            if (deleted[t])
+                continue;
+            int cornerB = cornerOf(t, b);
+            if (cornerB < 0)
+                continue;
+            int va = triangleVertices[t * 3 + cornerOf(t, a)], vb = triangleVertices[t * 3 + cornerB];
+            if (shared == 0) {
+                vertexA = va;
+                vertexB = vb;
+            } else if (va != vertexA || vb != vertexB) {
+                seam = true;
+            }
+            shared++;
+        }
+        return shared != 2 || seam;
+    }
+
+    /**
+     * The error of moving <tt>from</tt> onto <tt>to</tt>: their summed quadrics at <tt>to</tt>'s position
+     */
+    private double cost(int from, int to) {
+        int f = from * 10, t = to * 10;
+        double x = positions[to * 3], y = positions[to * 3 + 1], z = positions[to * 3 + 2];
+        double a2 = quadrics[f] + quadrics[t], ab = quadrics[f + 1] + quadrics[t + 1], ac = quadrics[f + 2] + quadrics[t + 2];
+        double ad = quadrics[f + 3] + quadrics[t + 3], b2 = quadrics[f + 4] + quadrics[t + 4], bc = quadrics[f + 5] + quadrics[t + 5];
+        double bd = quadrics[f + 6] + quadrics[t + 6], c2 = quadrics[f + 7] + quadrics[t + 7], cd = quadrics[f + 8] + quadrics[t + 8];
+        double d2 = quadrics[f + 9] + quadrics[t + 9];
+        double error = a2 * x * x + 2 * ab * x * y + 2 * ac * x * z + 2 * ad * x
+                + b2 * y * y + 2 * bc * y * z + 2 * bd * y
+                + c2 * z * z + 2 * cd * z + d2;
+        return Math.max(0, error);
+    }
+
+    /**
+     * Whether <tt>from</tt> is allowed to move onto <tt>to</tt> at all: locked vertices never move, and boundary
+     * vertices only move along the boundary
+     */
+    private boolean canMove(int from, int to) {
+        if (locked[from])
+            return false;
+        return !border[from] || isBorderEdge(from, to);
+    }
+
+    /**
+     * Queues the cheaper direction of collapsing an edge, if either is allowed
+     */
+    private void pushEdge(int a, int b) {
+        boolean ab = canMove(a, b), ba = canMove(b, a);
+        if (!ab && !ba)
+            return;
+        double costAB = ab ? cost(a, b) : Double.POSITIVE_INFINITY;
+        double costBA = ba ? cost(b, a) : Double.POSITIVE_INFINITY;
+        if (costAB <= costBA)
+            push((float) costAB, a, b);
+        else
+            push((float) costBA, b, a);
+    }
+
+    /**
+     * Moves <tt>from</tt> onto <tt>to</tt>, unless that would fold or pinch the surface
+     */
+    private void collapse(int from, int to) {
+        if (!canMove(from, to))
+            return;
+
+        // Which of to's vertices each of from's vertices becomes, from the triangles along the edge
+        int wedges = 0, shared = 0;
+        for (int r = refStart[from]; r < refStart[from] + refCount[from]; r++) {
+            int t = refs[r];
+            if (deleted[t])
+                continue;
+            int cornerTo = cornerOf(t, to);
+            if (cornerTo < 0)
+                continue;
+            shared++;
+            int vf = triangleVertices[t * 3 + cornerOf(t, from)], vt = triangleVertices[t * 3 + cornerTo];
+            int w = 0;
+            while (w < wedges && wedgeFrom[w] != vf)
+                w++;
+            if (w == wedges) {
+                if (wedges == MAX_WEDGES)
+                    return;
+                wedgeFrom[w] = vf;
+                wedgeTo[w] = vt;
+                wedges++;
+            } else if (wedgeTo[w] != vt) {
+                return;
+            }
+        }
+        if (shared == 0)
+            return;
+
+        // Every other triangle must keep facing the same way, and have a vertex to take on
+        double tx = positions[to * 3], ty = positions[to * 3 + 1], tz = positions[to * 3 + 2];
+        int stamp = ++markStamp;
+        for (int r = refStart[from]; r < refStart[from] + refCount[from]; r++) {
+            int t = refs[r];
+            if (deleted[t] || cornerOf(t, to) >= 0)
+                continue;
+            int corner = cornerOf(t, from);
+            int vf = triangleVertices[t * 3 + corner];
+            int w = 0;
+            while (w < wedges && wedgeFrom[w] != vf)
+                w++;
+            if (w == wedges)
+                return;
+
+            int b = trianglePositions[t * 3 + (corner + 1) % 3] * 3, c = trianglePositions[t * 3 + (corner + 2) % 3] * 3;
+            mark[b / 3] = stamp;
+            mark[c / 3] = stamp;
+            double bx = positions[b], by = positions[b + 1], bz = positions[b + 2];
+            double cx = positions[c], cy = positions[c + 1], cz = positions[c + 2];
+            double ax = positions[from * 3], ay = positions[from * 3 + 1], az = positions[from * 3 + 2];
+            double ux = bx - ax, uy = by - ay, uz = bz - az, vx = cx - ax, vy = cy - ay, vz = cz - az;
+            double nx = uy * vz - uz * vy, ny = uz * vx - ux * vz, nz = ux * vy - uy * vx;
+            ux = bx - tx;
+            uy = by - ty;
+            uz = bz - tz;
+            vx = cx - tx;
+            vy = cy - ty;
+            vz = cz - tz;
+            double mx = uy * vz - uz * vy, my = uz * vx - ux * vz, mz = ux * vy - uy * vx;
+            double dot = nx * mx + ny * my + nz * mz;
+            if (dot <= 0 || dot * dot < 0.0625 * (nx * nx + ny * ny + nz * nz) * (mx * mx + my * my + mz * mz))
+                return;
+        }
+
+        // The link condition: the ends may only share the neighbours across the triangles being removed
+        int common = 0;
+        int commonStamp = ++markStamp;
+        for (int r = refStart[to]; r < refStart[to] + refCount[to]; r++) {
+            int t = refs[r];
+            if (deleted[t] || cornerOf(t, from) >= 0)
+                continue;
+            for (int corner = 0; corner < 3; corner++) {
+                int p = trianglePositions[t * 3 + corner];
+                if (mark[p] == stamp) {
+                    mark[p] = commonStamp;
+                    common++;
+                }
+            }
+        }
+        // Neighbours across the shared triangles are reached from from's other triangles too
+        int expected = 0;
+        for (int r = refStart[from]; r < refStart[from] + refCount[from]; r++) {
+            int t = refs[r];
+            if (deleted[t] || cornerOf(t, to) < 0)
+                continue;
+            for (int corner = 0; corner < 3; corner++) {
+                int p = trianglePositions[t * 3 + corner];
+                if (p != from && p != to && mark[p] == commonStamp) {
+                    mark[p] = 0;
+                    expected++;
+                }
+            }
+        }
+        if (common > expected)
+            return;
+
+        // It's safe, so delete the triangles along the edge and hand the rest over to to
+        ensureRefs(refSize + refCount[from] + refCount[to]);
+        int start = refSize;
+        for (int r = refStart[to]; r < refStart[to] + refCount[to]; r++) {
+            int t = refs[r];
+            if (deleted[t])
+                continue;
+            if (cornerOf(t, from) >= 0) {
+                deleted[t] = true;
+                triangleCount--;
+                continue;
+            }
+            refs[refSize++] = t;
+        }
+        for (int r = refStart[from]; r < refStart[from] + refCount[from]; r++) {
+            int t = refs[r];
+            if (deleted[t])
+                continue;
+            int corner = cornerOf(t, from);
+            int vf = triangleVertices[t * 3 + corner];
+            int w = 0;
+            while (wedgeFrom[w] != vf)
+                w++;
+            trianglePositions[t * 3 + corner] = to;
+            triangleVertices[t * 3 + corner] = wedgeTo[w];
+            refs[refSize++] = t;
+        }
+        refStart[to] = start;
+        refCount[to] = refSize - start;
+        refCount[from] = 0;
+        removed[from] = true;
+        version[from]++;
+        version[to]++;
+        for (int i = 0; i < 10; i++)
+            quadrics[to * 10 + i] += quadrics[from * 10 + i];
+
+        int pushStamp = ++markStamp;
+        mark[to] = pushStamp;
+        for (int r = refStart[to]; r < refStart[to] + refCount[to]; r++) {
+            int t = refs[r];
+            for (int corner = 0; corner < 3; corner++) {
+                int p = trianglePositions[t * 3 + corner];
+                if (mark[p] != pushStamp) {
+                    mark[p] = pushStamp;
+                    pushEdge(to, p);
+                }
+            }
+        }
+    }
+
+    /**
+     * Makes room for more references, first squeezing out the lists which are no longer used
+     */
+    private void ensureRefs(int size) {
+        if (size <= refs.length)
+            return;
+        int used = 0;
+        for (int p = 0; p < positionCount; p++)
+            used += refCount[p];
+        int[] compacted = new int[Math.max(size - refSize + used, used * 2) + 16];
+        int n = 0;
+        for (int p = 0; p < positionCount; p++) {
+            System.arraycopy(refs, refStart[p], compacted, n, refCount[p]);
+            refStart[p] = n;
+            n += refCount[p];
+        }
+        refs = compacted;
+        refSize = n;
+    }
+
+    // ===== HEAP ===== //
+
+    private void push(float cost, int from, int to) {
+        if (heapSize == heapCost.length) {
+            int capacity = heapSize * 2;
+            heapCost = Arrays.copyOf(heapCost, capacity);
+            heapFrom = Arrays.copyOf(heapFrom, capacity);
+            heapTo = Arrays.copyOf(heapTo, capacity);
+            heapFromVersion = Arrays.copyOf(heapFromVersion, capacity);
+            heapToVersion = Arrays.copyOf(heapToVersion, capacity);
+        }
+        int i = heapSize++;
+        while (i > 0) {
+            int parent = (i - 1) >> 1;
+            if (heapCost[parent] <= cost)
+                break;
+            move(parent, i);
+            i = parent;
+        }
+        heapCost[i] = cost;
+        heapFrom[i] = from;
+        heapTo[i] = to;
+        heapFromVersion[i] = version[from];
+        heapToVersion[i] = version[to];
+    }
+
+    private void pop() {
+        heapSize--;
+        if (heapSize == 0)
+            return;
+        int last = heapSize;
+        float cost = heapCost[last];
+        int i = 0;
+        while (true) {
+            int child = i * 2 + 1;
+            if (child >= heapSize)
+                break;
+            if (child + 1 < heapSize && heapCost[child + 1] < heapCost[child])
+                child++;
+            if (heapCost[child] >= cost)
+                break;
+            move(child, i);
+            i = child;
+        }
+        move(last, i);
+    }
+
+    private void move(int from, int to) {
+        heapCost[to] = heapCost[from];
+        heapFrom[to] = heapFrom[from];
+        heapTo[to] = heapTo[from];
+        heapFromVersion[to] = heapFromVersion[from];
+        heapToVersion[to] = heapToVersion[from];
+    }
+
+}
@@ -0,0 +1,180 @@
+package render.util;
+
+import org.joml.Matrix4fc;
+import org.joml.Vector3f;
+import org.joml.Vector3fc;
+
+/**
+ * Several versions of one mesh at decreasing detail, picked between by how big each instance looks on screen.
+ *
+ * <p>
+ * Instances are {@link #add(float, float, float, float) added} one at a time with their centre and bounding radius,
+ * which sorts each into its level's own {@link InstanceBuffer}, so {@link #draw(int)} still costs one instanced draw
+ * call per level however many instances there are. An instance's size on screen is its bounding radius in pixels:
+ * <tt>radius * pixelScale / distance</tt>, where the pixel scale comes from the projection matrix and the viewport
+ * height (see {@link #pixelScale(Matrix4fc, int)}).
+ * </p>
+ *
+ * <p>
+ * The levels can also be copied into a {@link GeometryPool}, in which case each instance is added to the pool's draw
+ * instead, alongside the instances of every other pooled mesh, as {@link #getPooledLevel(int) the level}
+ * {@link #select(float, float, float, float, Vector3fc, float)} picks for it.
+ * </p>
+ */
+public class MeshLod implements Freeable {
+
+    private final BakedMesh[] levels;
+    private final PooledMesh[] pooledLevels;
+    private final float[] minPixelRadius;
+    private final InstanceBuffer[] buckets;
+
+    private final Vector3f cameraPos = new Vector3f();
+    private float pixelScale = 1;
+
+    /**
+     * @param levels The meshes, most detailed first
+     * @param minPixelRadius The smallest on-screen radius, in pixels, at which each level is used, decreasing. The last
+     *                       level is used for anything smaller than the others allow, whatever its own value.
+     */
+    public MeshLod(BakedMesh[] levels, float[] minPixelRadius) {
+        this(levels, null, minPixelRadius);
+    }
+
+    /**
+     * @param pooledLevels The same meshes in a geometry pool, or null if they aren't pooled
+     */
+    public MeshLod(BakedMesh[] levels, PooledMesh[] pooledLevels, float[] minPixelRadius) {
+        if (levels.length == 0)
+            throw new IllegalArgumentException("A LOD needs at least one level");
+        if (levels.length != minPixelRadius.length)
+            throw new IllegalArgumentException("Got " + levels.length + " levels but " + minPixelRadius.length + " thresholds");
+        for (int i = 1; i < minPixelRadius.length; i++) {
+            if (minPixelRadius[i] > minPixelRadius[i - 1])
+                throw new IllegalArgumentException("LOD thresholds must decrease, got " + minPixelRadius[i] + " after " + minPixelRadius[i - 1]);
+        }
+        if (pooledLevels != null && pooledLevels.length != levels.length)
+            throw new IllegalArgumentException("Got " + levels.length + " levels but " + pooledLevels.length + " pooled levels");
+        this.levels = levels.clone();
+        this.pooledLevels = pooledLevels == null ? null : pooledLevels.clone();
+        this.minPixelRadius = minPixelRadius.clone();
+        buckets = new InstanceBuffer[levels.length];
+    }
+
+    /**
+     * How many pixels one unit at a distance of one unit covers, from a perspective projection
+     */
+    public static float pixelScale(Matrix4fc projMat, int viewportHeight) {
+        // m11 is cot(fov / 2), which maps half the viewport's height to 1
+        return projMat.m11() * viewportHeight * 0.5f;
+    }
+
+    /**
+     * The on-screen radius, in pixels, of a sphere
+     */
+    public static float pixelRadius(float x, float y, float z, float radius, Vector3fc cameraPos, float pixelScale) {
+        float dx = x - cameraPos.x(), dy = y - cameraPos.y(), dz = z - cameraPos.z();
+        float distance = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+        // Close enough to be inside it, so as big as it gets
+        if (distance <= radius)
+            return Float.MAX_VALUE;
+        return radius * pixelScale / distance;
+    }
+
+    public int getLevelCount() {
+        return levels.length;
+    }
+
+    public BakedMesh getLevel(int level) {
+        return levels[level];
+    }
+
+    public boolean isPooled() {
+        return pooledLevels != null;
+    }
+
+    public PooledMesh getPooledLevel(int level) {
+        return pooledLevels[level];
+    }
+
+    /**
+     * The level to draw an instance at, by its size on screen
+     *
+     * @param radius The instance's bounding radius
+     * @param pixelScale See {@link #pixelScale(Matrix4fc, int)}
+     */
+    public int select(float x, float y, float z, float radius, Vector3fc cameraPos, float pixelScale) {
+        return select(pixelRadius(x, y, z, radius, cameraPos, pixelScale));
+    }
+
+    /**
+     * The level to draw something this many pixels across in radius
+     */
+    private int select(float pixelRadius) {
+        for (int level = 0; level < levels.length - 1; level++) {
+            if (pixelRadius >= minPixelRadius[level])
+                return level;
+        }
+        return levels.length - 1;
+    }
+
+    /**
+     * Starts a new lot of instances, seen from this camera. Needs a GL context current.
+     */
+    public void begin(Vector3fc cameraPos, float pixelScale) {
+        this.cameraPos.set(cameraPos);
+        this.pixelScale = pixelScale;
+        for (int level = 0; level < buckets.length; level++) {
+            if (buckets[level] == null)
+                buckets[level] = new InstanceBuffer(4);
+            buckets[level].clear();
+        }
+    }
+
+    /**
+     * Adds an instance to the level its size calls for
+     *
+     * @param radius The instance's bounding radius, which is also passed to the shader as its scale
+     * @return The level it went into
+     */
+    public int add(float x, float y, float z, float radius) {
+        int level = select(x, y, z, radius, cameraPos, pixelScale);
+        buckets[level].put(x, y, z, radius);
+        return level;
+    }
+
+    /**
+     * How many instances went into a level since {@link #begin(Vector3fc, float)}
+     */
+    public int getCount(int level) {
+        return buckets[level] == null ? 0 : buckets[level].getCount();
+    }
+
+    /**
+     * Draws each level's instances in one call each. Doesn't bind the shader.
+     *
+     * @param attribute The shader's attribute index for the instance data
+     */
+    public void draw(int attribute) {
+        for (int level = 0; level < levels.length; level++) {
+            if (buckets[level] != null)
+                buckets[level].draw(levels[level], attribute);
+        }
+    }
+
+    /**
+     * Frees the instance buffers and every level's mesh
+     */
+    @Override
+    public void free() {
+        for (int level = 0; level < levels.length; level++) {
+            levels[level].free();
+            if (pooledLevels != null)
+                pooledLevels[level].free();
+            if (buckets[level] != null) {
+                buckets[level].free();
+                buckets[level] = null;
+            }
+        }
+    }
+
+}
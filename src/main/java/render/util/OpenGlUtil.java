@@ -34,12 +34,12 @@ public class OpenGlUtil {
     }
 
     public static void enableTransparency() {
-        glEnable(GL_BLEND);
+        GlState.enable(GL_BLEND);
         glBlendFunc(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA);
     }
 
     public static void disableTransparency() {
-        glDisable(GL_BLEND);
+        GlState.disable(GL_BLEND);
     }
 
 }
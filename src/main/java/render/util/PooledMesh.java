@@ -0,0 +1,55 @@
+package render.util;
+
+/**
+ * A mesh living in a {@link GeometryPool}: just where its vertices and indices are in the pool's shared buffers.
+ * Drawn through the pool, with {@link GeometryPool#add(PooledMesh, float, float, float, float)}.
+ */
+public class PooledMesh implements Freeable {
+
+    final GeometryPool pool;
+    final int firstVertex;
+    final int vertexCount;
+    final int firstIndex;
+    final int indexCount;
+    /**
+     * Which of the pool's draw commands it's in this frame, or -1 if none yet
+     */
+    int command = -1;
+    private boolean freed = false;
+
+    PooledMesh(GeometryPool pool, int firstVertex, int vertexCount, int firstIndex, int indexCount) {
+        this.pool = pool;
+        this.firstVertex = firstVertex;
+        this.vertexCount = vertexCount;
+        this.firstIndex = firstIndex;
+        this.indexCount = indexCount;
+    }
+
+    public GeometryPool getPool() {
+        return pool;
+    }
+
+    public int getVertexCount() {
+        return vertexCount;
+    }
+
+    public int getIndexCount() {
+        return indexCount;
+    }
+
+    public boolean isFreed() {
+        return freed;
+    }
+
+    /**
+     * Gives the mesh's space back to the pool
+     */
+    @Override
+    public void free() {
+        if (freed)
+            return;
+        freed = true;
+        pool.remove(this);
+    }
+
+}
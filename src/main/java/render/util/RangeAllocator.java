@@ -0,0 +1,135 @@
+package render.util;
+
+import java.util.Arrays;
+
+/**
+ * Hands out ranges of a fixed-size space, such as the elements of one big GL buffer, and takes them back.
+ *
+ * <p>
+ * The free ranges are kept sorted by start, so a freed range is merged with any free neighbours straight away and
+ * the free space never splinters more than the allocations themselves do. Allocation takes the first free range which
+ * fits.
+ * </p>
+ */
+public class RangeAllocator {
+
+    private int capacity;
+    private int[] freeStart = new int[16];
+    private int[] freeSize = new int[16];
+    private int freeCount = 0;
+    private int freeTotal = 0;
+
+    public RangeAllocator(int capacity) {
+        if (capacity < 0)
+            throw new IllegalArgumentException("Capacity can't be negative, got " + capacity);
+        this.capacity = capacity;
+        if (capacity > 0)
+            insert(0, 0, capacity);
+        freeTotal = capacity;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * The total size of all the free ranges
+     */
+    public int getFreeSpace() {
+        return freeTotal;
+    }
+
+    /**
+     * The number of separate free ranges, 1 when the free space is all in one piece
+     */
+    public int getFreeRangeCount() {
+        return freeCount;
+    }
+
+    /**
+     * Takes a range of this size
+     *
+     * @return Where it starts, or -1 if there's no free range big enough
+     */
+    public int allocate(int size) {
+        if (size <= 0)
+            throw new IllegalArgumentException("Can only allocate a positive size, got " + size);
+        for (int i = 0; i < freeCount; i++) {
+            if (freeSize[i] < size)
+                continue;
+            int start = freeStart[i];
+            if (freeSize[i] == size) {
+                remove(i);
+            } else {
+                freeStart[i] += size;
+                freeSize[i] -= size;
+            }
+            freeTotal -= size;
+            return start;
+        }
+        return -1;
+    }
+
+    /**
+     * Gives back a range from {@link #allocate(int)}
+     */
+    public void free(int start, int size) {
+        if (start < 0 || size <= 0 || start + size > capacity)
+            throw new IllegalArgumentException("Range " + start + "+" + size + " isn't in 0+" + capacity);
+        int i = Arrays.binarySearch(freeStart, 0, freeCount, start);
+        if (i >= 0)
+            throw new IllegalStateException("Range starting at " + start + " is already free");
+        i = -i - 1;
+        if (i > 0 && freeStart[i - 1] + freeSize[i - 1] > start || i < freeCount && start + size > freeStart[i])
+            throw new IllegalStateException("Range " + start + "+" + size + " overlaps free space");
+
+        boolean joinsPrevious = i > 0 && freeStart[i - 1] + freeSize[i - 1] == start;
+        boolean joinsNext = i < freeCount && start + size == freeStart[i];
+        if (joinsPrevious && joinsNext) {
+            freeSize[i - 1] += size + freeSize[i];
+            remove(i);
+        } else if (joinsPrevious) {
+            freeSize[i - 1] += size;
+        } else if (joinsNext) {
+            freeStart[i] = start;
+            freeSize[i] += size;
+        } else {
+            insert(i, start, size);
+        }
+        freeTotal += size;
+    }
+
+    /**
+     * Makes the space bigger, adding the new room on the end
+     */
+    public void grow(int newCapacity) {
+        if (newCapacity <= capacity)
+            return;
+        int extra = newCapacity - capacity;
+        if (freeCount > 0 && freeStart[freeCount - 1] + freeSize[freeCount - 1] == capacity)
+            freeSize[freeCount - 1] += extra;
+        else
+            insert(freeCount, capacity, extra);
+        freeTotal += extra;
+        capacity = newCapacity;
+    }
+
+    private void insert(int i, int start, int size) {
+        if (freeCount == freeStart.length) {
+            freeStart = Arrays.copyOf(freeStart, freeCount * 2);
+            freeSize = Arrays.copyOf(freeSize, freeCount * 2);
+        }
+        System.arraycopy(freeStart, i, freeStart, i + 1, freeCount - i);
+        System.arraycopy(freeSize, i, freeSize, i + 1, freeCount - i);
+        freeStart[i] = start;
+        freeSize[i] = size;
+        freeCount++;
+    }
+
+    private void remove(int i) {
+        System.arraycopy(freeStart, i + 1, freeStart, i, freeCount - i - 1);
+        System.arraycopy(freeSize, i + 1, freeSize, i, freeCount - i - 1);
+        freeCount--;
+    }
+
+}
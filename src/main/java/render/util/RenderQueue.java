@@ -0,0 +1,158 @@
+package render.util;
+
+import org.joml.Matrix4f;
+import render.shader.ShaderProgram;
+import render.shader.Uniform;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+/**
+ * Collects a frame's draws and then makes them sorted by shader, then material, then mesh, so each shader is bound
+ * once, each material set up once per shader, and consecutive draws of the same mesh share one bind.
+ *
+ * <p>
+ * Each draw is one mesh with its own model matrix, set through the given uniform when it's drawn. The matrix is read
+ * when the queue is {@link #flush() flushed}, not when it's submitted. Materials are small numbers, each with an
+ * optional action which sets its uniforms and state, run whenever drawing moves on to that material.
+ * </p>
+ *
+ * <p>
+ * Sorting is on a single <tt>long</tt> per draw: the shader's rank in the top 12 bits, then 12 bits of material, 20
+ * bits of mesh ID, and the draw's index in the bottom 20, so the sort needs no comparator and keeps submission order
+ * for otherwise equal draws.
+ * </p>
+ */
+public class RenderQueue {
+
+    private static final int INDEX_BITS = 20;
+    private static final int MESH_BITS = 20;
+    private static final int MATERIAL_BITS = 12;
+    /**
+     * The most draws held before the queue flushes itself
+     */
+    public static final int MAX_DRAWS = 1 << INDEX_BITS;
+    public static final int MAX_MATERIALS = 1 << MATERIAL_BITS;
+
+    private final IdentityHashMap<ShaderProgram, Integer> shaderRanks = new IdentityHashMap<>();
+    private final Runnable[] materials = new Runnable[MAX_MATERIALS];
+
+    private long[] keys = new long[256];
+    private ShaderProgram[] shaders = new ShaderProgram[256];
+    private BakedMesh[] meshes = new BakedMesh[256];
+    private int[] itemMaterials = new int[256];
+    private Uniform<Matrix4f>[] modelUniforms = newUniformArray(256);
+    private Matrix4f[] modelMats = new Matrix4f[256];
+    private int size = 0;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Uniform<Matrix4f>[] newUniformArray(int length) {
+        return (Uniform<Matrix4f>[]) new Uniform[length];
+    }
+
+    /**
+     * Sets what to do when drawing moves on to a material, such as setting its uniforms. Null does nothing.
+     */
+    public void setMaterial(int material, Runnable apply) {
+        checkMaterial(material);
+        materials[material] = apply;
+    }
+
+    private static void checkMaterial(int material) {
+        if (material < 0 || material >= MAX_MATERIALS)
+            throw new IllegalArgumentException("Material must be from 0 to " + (MAX_MATERIALS - 1) + ", got " + material);
+    }
+
+    /**
+     * Queues a draw
+     *
+     * @param modelUniform Set to the model matrix before drawing, or null if the shader has none
+     */
+    public void submit(ShaderProgram shader, int material, BakedMesh mesh, Uniform<Matrix4f> modelUniform, Matrix4f modelMat) {
+        checkMaterial(material);
+        if (size == MAX_DRAWS)
+            flush();
+        if (size == keys.length)
+            grow();
+
+        Integer rank = shaderRanks.get(shader);
+        if (rank == null) {
+            rank = shaderRanks.size() & 0xFFF;
+            shaderRanks.put(shader, rank);
+        }
+        keys[size] = (long) rank << (MATERIAL_BITS + MESH_BITS + INDEX_BITS)
+                | (long) material << (MESH_BITS + INDEX_BITS)
+                | (mesh.getId() & ((1L << MESH_BITS) - 1)) << INDEX_BITS
+                | size;
+        shaders[size] = shader;
+        meshes[size] = mesh;
+        itemMaterials[size] = material;
+        modelUniforms[size] = modelUniform;
+        modelMats[size] = modelMat;
+        size++;
+    }
+
+    private void grow() {
+        int capacity = Math.min(keys.length * 2, MAX_DRAWS);
+        keys = Arrays.copyOf(keys, capacity);
+        shaders = Arrays.copyOf(shaders, capacity);
+        meshes = Arrays.copyOf(meshes, capacity);
+        itemMaterials = Arrays.copyOf(itemMaterials, capacity);
+        modelUniforms = Arrays.copyOf(modelUniforms, capacity);
+        modelMats = Arrays.copyOf(modelMats, capacity);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Draws everything queued, in sorted order, and empties the queue. Leaves no mesh bound, and rebinds whichever
+     * shader was bound before, if any.
+     */
+    public void flush() {
+        if (size == 0)
+            return;
+        ShaderProgram previous = ShaderProgram.getBoundShader();
+        Arrays.sort(keys, 0, size);
+
+        ShaderProgram shader = null;
+        int material = -1;
+        BakedMesh mesh = null;
+        int indexMask = (1 << INDEX_BITS) - 1;
+        for (int k = 0; k < size; k++) {
+            int i = (int) (keys[k] & indexMask);
+            if (shaders[i] != shader) {
+                shader = shaders[i];
+                shader.bind();
+                // Materials set uniforms, which belong to the shader
+                material = -1;
+            }
+            if (itemMaterials[i] != material) {
+                material = itemMaterials[i];
+                if (materials[material] != null)
+                    materials[material].run();
+            }
+            if (meshes[i] != mesh) {
+                if (mesh != null)
+                    mesh.endBatch();
+                mesh = meshes[i];
+                mesh.bind();
+            }
+            if (modelUniforms[i] != null)
+                modelUniforms[i].set(modelMats[i]);
+            mesh.drawInBatch();
+        }
+        mesh.unbind();
+        if (previous != null)
+            previous.bind();
+
+        // Don't hold on to anything until next time
+        Arrays.fill(shaders, 0, size, null);
+        Arrays.fill(meshes, 0, size, null);
+        Arrays.fill(modelUniforms, 0, size, null);
+        Arrays.fill(modelMats, 0, size, null);
+        size = 0;
+    }
+
+}
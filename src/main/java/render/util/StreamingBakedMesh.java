@@ -0,0 +1,402 @@
+package render.util;
+
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
+import util.trace.Trace;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.lwjgl.opengl.GL11.GL_TRIANGLES;
+import static org.lwjgl.opengl.GL11.GL_UNSIGNED_INT;
+import static org.lwjgl.opengl.GL11.glDrawArrays;
+import static org.lwjgl.opengl.GL11.glDrawElements;
+import static org.lwjgl.opengl.GL15.GL_ARRAY_BUFFER;
+import static org.lwjgl.opengl.GL15.GL_ELEMENT_ARRAY_BUFFER;
+import static org.lwjgl.opengl.GL15.GL_STATIC_DRAW;
+import static org.lwjgl.opengl.GL15.GL_STREAM_DRAW;
+import static org.lwjgl.opengl.GL15.glBufferData;
+import static org.lwjgl.opengl.GL15.glBufferSubData;
+import static org.lwjgl.opengl.GL15.glDeleteBuffers;
+import static org.lwjgl.opengl.GL15.glGenBuffers;
+import static org.lwjgl.opengl.GL20.glDisableVertexAttribArray;
+import static org.lwjgl.opengl.GL20.glEnableVertexAttribArray;
+import static org.lwjgl.opengl.GL30.GL_MAP_WRITE_BIT;
+import static org.lwjgl.opengl.GL30.glDeleteVertexArrays;
+import static org.lwjgl.opengl.GL30.glGenVertexArrays;
+import static org.lwjgl.opengl.GL30.glMapBufferRange;
+import static org.lwjgl.opengl.GL31.glDrawArraysInstanced;
+import static org.lwjgl.opengl.GL31.glDrawElementsInstanced;
+import static org.lwjgl.opengl.GL32.GL_ALREADY_SIGNALED;
+import static org.lwjgl.opengl.GL32.GL_CONDITION_SATISFIED;
+import static org.lwjgl.opengl.GL32.GL_SYNC_FLUSH_COMMANDS_BIT;
+import static org.lwjgl.opengl.GL32.GL_SYNC_GPU_COMMANDS_COMPLETE;
+import static org.lwjgl.opengl.GL32.GL_WAIT_FAILED;
+import static org.lwjgl.opengl.GL32.glClientWaitSync;
+import static org.lwjgl.opengl.GL32.glDeleteSync;
+import static org.lwjgl.opengl.GL32.glFenceSync;
+import static org.lwjgl.opengl.GL44.GL_MAP_COHERENT_BIT;
+import static org.lwjgl.opengl.GL44.GL_MAP_PERSISTENT_BIT;
+import static org.lwjgl.opengl.GL44.glBufferStorage;
+
+/**
+ * A {@link BakedMesh} whose vertices can be rewritten every frame without creating any new GL objects, for meshes
+ * which deform.
+ *
+ * <p>
+ * Each dynamic stream of the {@link VertexFormat} has a vertex buffer holding several copies ("regions") of its
+ * vertices, with a VAO per region. Changes are made to a copy kept in memory, either through
+ * {@link #updateStream(int, long, ByteBuffer)} or by writing to {@link #getStreamVertices(int)} and calling
+ * {@link #markDirty(int, int, int)}. When the mesh is next bound, only the bytes changed since the next region was
+ * last written are copied into it, and that region is drawn from, while the GPU may still be reading the ones
+ * before. A fence is placed after each region's draws, and waited on before the region is written again, which only
+ * blocks if the GPU is more than <tt>regions - 1</tt> frames behind. Static streams are uploaded once, and shared by
+ * every region.
+ * </p><p>
+ * With OpenGL 4.4 the buffers are mapped persistently and written directly. Otherwise the regions are written with
+ * <tt>glBufferSubData</tt>, and without OpenGL 3.2 (for fences) there is just one region.
+ * </p>
+ */
+public class StreamingBakedMesh extends BakedMesh {
+
+    /**
+     * Enough for the GPU to be drawing two frames behind without ever waiting
+     */
+    public static final int DEFAULT_REGIONS = 3;
+
+    private static final int TRACE_WAIT = Trace.event("StreamingBakedMesh.wait");
+    /**
+     * How long to wait for a fence at a time before trying again, in nanoseconds
+     */
+    private static final long WAIT_TIMEOUT = 1_000_000;
+
+    private final VertexFormat format;
+    private final int[] vaoIds;
+    private final int indicesVboId;
+    private final int regions;
+    private final boolean fenced;
+    private final Stream[] streams;
+    private final long[] fences;
+    private int region = 0;
+
+    /**
+     * One of the format's streams
+     */
+    private static class Stream {
+        final int vboId;
+        final int bytes;
+        final boolean dynamic;
+        final ByteBuffer shadow;
+        /**
+         * The whole vertex buffer, mapped persistently, or null if it's written with <tt>glBufferSubData</tt>
+         */
+        ByteBuffer mapped;
+        /**
+         * Per region, the range of bytes which changed since it was last written
+         */
+        final int[] dirtyStart, dirtyEnd;
+
+        Stream(int vboId, int bytes, boolean dynamic, ByteBuffer shadow, int regions) {
+            this.vboId = vboId;
+            this.bytes = bytes;
+            this.dynamic = dynamic;
+            this.shadow = shadow;
+            dirtyStart = new int[regions];
+            dirtyEnd = new int[regions];
+            for (int r = 0; r < regions; r++)
+                dirtyStart[r] = bytes;
+        }
+
+        boolean isDirty(int region) {
+            return dynamic && dirtyStart[region] < dirtyEnd[region];
+        }
+    }
+
+    private StreamingBakedMesh(VertexFormat format, int[] vaoIds, int indicesVboId, int drawCount, int regions,
+                               boolean fenced, Stream[] streams) {
+        super(vaoIds[0], streams[0].vboId, drawCount);
+        this.format = format;
+        this.vaoIds = vaoIds;
+        this.indicesVboId = indicesVboId;
+        this.regions = regions;
+        this.fenced = fenced;
+        this.streams = streams;
+        fences = new long[regions];
+        streamVboIds = new int[streams.length];
+        for (int s = 0; s < streams.length; s++)
+            streamVboIds[s] = streams[s].vboId;
+    }
+
+    /**
+     * Does the GL calls to create the mesh. Use {@link MeshBuilder#createStreamingMesh(int, int...)} instead.
+     *
+     * @param staticStreams The streams which are never updated
+     */
+    static StreamingBakedMesh create(VertexFormat format, ByteBuffer vertexBuffer, int vertexBufferSize,
+                                     ByteBuffer indicesBuffer, int indicesCount, int regions, int... staticStreams) {
+        GLCapabilities caps = GL.getCapabilities();
+        boolean fenced = caps.OpenGL32;
+        boolean persistent = caps.OpenGL44 && fenced;
+        regions = fenced ? Math.max(regions, 1) : 1;
+        int vertices = vertexBufferSize / format.getVertexSize();
+        ByteBuffer interleaved = vertexBuffer.duplicate();
+        interleaved.position(0).limit(vertexBufferSize);
+
+        Stream[] streams = new Stream[format.getStreamCount()];
+        for (int s = 0; s < streams.length; s++) {
+            boolean dynamic = true;
+            for (int staticStream : staticStreams)
+                dynamic &= staticStream != s;
+
+            int bytes = vertices * format.getStreamStride(s);
+            ByteBuffer shadow = ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+            format.copyStream(interleaved.duplicate(), s, shadow);
+            shadow.clear();
+
+            int vboId = glGenBuffers();
+            GlState.bindBuffer(GL_ARRAY_BUFFER, vboId);
+            Stream stream = new Stream(vboId, bytes, dynamic, dynamic ? shadow : null, regions);
+            if (!dynamic) {
+                glBufferData(GL_ARRAY_BUFFER, shadow, GL_STATIC_DRAW);
+            } else if (persistent) {
+                long totalBytes = (long) bytes * regions;
+                int flags = GL_MAP_WRITE_BIT | GL_MAP_PERSISTENT_BIT | GL_MAP_COHERENT_BIT;
+                glBufferStorage(GL_ARRAY_BUFFER, totalBytes, flags);
+                stream.mapped = glMapBufferRange(GL_ARRAY_BUFFER, 0, totalBytes, flags);
+                if (stream.mapped == null)
+                    throw new IllegalStateException("Couldn't map streaming vertex buffer");
+                stream.mapped.order(ByteOrder.nativeOrder());
+                for (int r = 0; r < regions; r++) {
+                    stream.mapped.position(r * bytes);
+                    stream.mapped.put(shadow.duplicate());
+                }
+                stream.mapped.clear();
+            } else {
+                glBufferData(GL_ARRAY_BUFFER, (long) bytes * regions, GL_STREAM_DRAW);
+                for (int r = 0; r < regions; r++)
+                    glBufferSubData(GL_ARRAY_BUFFER, (long) r * bytes, shadow.duplicate());
+            }
+            streams[s] = stream;
+        }
+
+        int attributes = format.getAttributes().length;
+        int[] vaoIds = new int[regions];
+        for (int r = 0; r < regions; r++) {
+            vaoIds[r] = glGenVertexArrays();
+            GlState.bindVertexArray(vaoIds[r]);
+            for (int i = 0; i < attributes; i++)
+                glEnableVertexAttribArray(i);
+            for (int s = 0; s < streams.length; s++) {
+                GlState.bindBuffer(GL_ARRAY_BUFFER, streams[s].vboId);
+                format.setAttributePointers(s, streams[s].dynamic ? (long) r * streams[s].bytes : 0);
+            }
+        }
+        GlState.bindBuffer(GL_ARRAY_BUFFER, 0);
+
+        int indicesVboId = 0;
+        if (indicesCount > 0) {
+            ByteBuffer indices = indicesBuffer.duplicate();
+            indices.position(0).limit(indicesCount * 4);
+            indicesVboId = glGenBuffers();
+            GlState.bindBuffer(GL_ARRAY_BUFFER, indicesVboId);
+            glBufferData(GL_ARRAY_BUFFER, indices, GL_STATIC_DRAW);
+            GlState.bindBuffer(GL_ARRAY_BUFFER, 0);
+        }
+
+        GlState.bindVertexArray(0);
+        for (int i = 0; i < attributes; i++)
+            glDisableVertexAttribArray(i);
+
+        int drawCount = indicesCount > 0 ? indicesCount : vertices;
+        return new StreamingBakedMesh(format, vaoIds, indicesVboId, drawCount, regions, fenced, streams);
+    }
+
+    /**
+     * The copy of the first stream's vertices in memory. Call {@link #markDirty(int, int)} after changing it.
+     */
+    public ByteBuffer getVertices() {
+        return getStreamVertices(0);
+    }
+
+    /**
+     * The copy of a dynamic stream's vertices in memory. Call {@link #markDirty(int, int, int)} after changing it.
+     */
+    public ByteBuffer getStreamVertices(int stream) {
+        checkDynamic(stream);
+        return streams[stream].shadow;
+    }
+
+    public int getRegionCount() {
+        return regions;
+    }
+
+    /**
+     * Marks some of the first stream's vertex data as changed, so it's uploaded before the next draw
+     */
+    public void markDirty(int byteOffset, int byteLength) {
+        markDirty(0, byteOffset, byteLength);
+    }
+
+    /**
+     * Marks some of a stream's vertex data as changed, so it's uploaded before the next draw
+     */
+    public void markDirty(int stream, int byteOffset, int byteLength) {
+        checkDynamic(stream);
+        Stream s = streams[stream];
+        int end = Math.min(byteOffset + byteLength, s.bytes);
+        for (int r = 0; r < regions; r++) {
+            s.dirtyStart[r] = Math.min(s.dirtyStart[r], byteOffset);
+            s.dirtyEnd[r] = Math.max(s.dirtyEnd[r], end);
+        }
+    }
+
+    /**
+     * Copies new interleaved vertices into the in-memory copies of the dynamic streams and marks them dirty. Static
+     * attributes in the data are ignored. Nothing is uploaded until the next draw.
+     *
+     * @param byteOffset Where in the interleaved vertex data to start writing, which must be at the start of a vertex
+     */
+    @Override
+    public void updateVertices(long byteOffset, ByteBuffer vertices) {
+        if (streams.length == 1) {
+            updateStream(0, byteOffset, vertices);
+            return;
+        }
+        int firstVertex = (int) (byteOffset / format.getVertexSize());
+        for (int s = 0; s < streams.length; s++) {
+            if (!streams[s].dynamic)
+                continue;
+            int start = firstVertex * format.getStreamStride(s);
+            ByteBuffer target = streams[s].shadow.duplicate();
+            target.position(start);
+            format.copyStream(vertices.duplicate(), s, target);
+            markDirty(s, start, target.position() - start);
+        }
+    }
+
+    /**
+     * Copies new data for one stream into its in-memory copy and marks it dirty. Nothing is uploaded until the next
+     * draw.
+     */
+    @Override
+    public void updateStream(int stream, long byteOffset, ByteBuffer vertices) {
+        int length = vertices.remaining();
+        ByteBuffer target = getStreamVertices(stream).duplicate();
+        target.position((int) byteOffset);
+        target.put(vertices.duplicate());
+        markDirty(stream, (int) byteOffset, length);
+    }
+
+    private void checkDynamic(int stream) {
+        if (!streams[stream].dynamic)
+            throw new IllegalStateException("Stream " + stream + " is static");
+    }
+
+    /**
+     * Moves on to the next region and brings it up to date, if anything changed since the current one was written
+     */
+    private void commit() {
+        boolean changed = false;
+        for (Stream stream : streams)
+            changed |= stream.isDirty(region);
+        if (!changed)
+            return;
+
+        int next = (region + 1) % regions;
+        waitFor(next);
+        for (Stream stream : streams) {
+            if (!stream.isDirty(next))
+                continue;
+            int start = stream.dirtyStart[next], end = stream.dirtyEnd[next];
+            ByteBuffer data = stream.shadow.duplicate();
+            data.position(start).limit(end);
+            if (stream.mapped != null) {
+                ByteBuffer target = stream.mapped.duplicate();
+                target.position(next * stream.bytes + start);
+                target.put(data);
+            } else {
+                GlState.bindBuffer(GL_ARRAY_BUFFER, stream.vboId);
+                glBufferSubData(GL_ARRAY_BUFFER, (long) next * stream.bytes + start, data);
+                GlState.bindBuffer(GL_ARRAY_BUFFER, 0);
+            }
+            stream.dirtyStart[next] = stream.bytes;
+            stream.dirtyEnd[next] = 0;
+        }
+        region = next;
+    }
+
+    private void waitFor(int r) {
+        if (fences[r] == 0)
+            return;
+        Trace.begin(TRACE_WAIT);
+        int result;
+        do {
+            result = glClientWaitSync(fences[r], GL_SYNC_FLUSH_COMMANDS_BIT, WAIT_TIMEOUT);
+        } while (result != GL_ALREADY_SIGNALED && result != GL_CONDITION_SATISFIED && result != GL_WAIT_FAILED);
+        Trace.end(TRACE_WAIT);
+        glDeleteSync(fences[r]);
+        fences[r] = 0;
+    }
+
+    @Override
+    public void bind() {
+        commit();
+        vaoId = vaoIds[region];
+        super.bind();
+        if (indicesVboId != 0)
+            GlState.bindBuffer(GL_ELEMENT_ARRAY_BUFFER, indicesVboId);
+    }
+
+    @Override
+    public void drawInBatch() {
+        if (indicesVboId == 0)
+            glDrawArrays(GL_TRIANGLES, 0, vertexCount);
+        else
+            glDrawElements(GL_TRIANGLES, vertexCount, GL_UNSIGNED_INT, 0);
+        GlState.countDraw();
+    }
+
+    @Override
+    public void drawInstancedInBatch(int instances) {
+        if (indicesVboId == 0)
+            glDrawArraysInstanced(GL_TRIANGLES, 0, vertexCount, instances);
+        else
+            glDrawElementsInstanced(GL_TRIANGLES, vertexCount, GL_UNSIGNED_INT, 0, instances);
+        GlState.countDraw();
+    }
+
+    /**
+     * Fences the current region after all the draws from it
+     */
+    @Override
+    void endBatch() {
+        if (fenced) {
+            if (fences[region] != 0)
+                glDeleteSync(fences[region]);
+            fences[region] = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        }
+    }
+
+    @Override
+    public void unbind() {
+        if (indicesVboId != 0)
+            GlState.bindBuffer(GL_ELEMENT_ARRAY_BUFFER, 0);
+        super.unbind();
+    }
+
+    @Override
+    public void free() {
+        for (int r = 0; r < regions; r++) {
+            if (fences[r] != 0)
+                glDeleteSync(fences[r]);
+            fences[r] = 0;
+            if (vaoIds[r] != vaoId)
+                glDeleteVertexArrays(vaoIds[r]);
+        }
+        // Deleting the buffers unmaps them
+        super.free();
+        if (indicesVboId != 0)
+            glDeleteBuffers(indicesVboId);
+    }
+
+}
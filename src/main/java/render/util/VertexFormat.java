@@ -1,30 +1,39 @@
 package render.util;
 
 import render.shader.ShaderProgram;
+import util.trace.Trace;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import static render.util.VertexAttribute.*;
 import static org.lwjgl.opengl.GL11.GL_LINES;
 import static org.lwjgl.opengl.GL11.GL_TRIANGLES;
 import static org.lwjgl.opengl.GL15.GL_ARRAY_BUFFER;
 import static org.lwjgl.opengl.GL15.GL_STATIC_DRAW;
-import static org.lwjgl.opengl.GL15.glBindBuffer;
 import static org.lwjgl.opengl.GL15.glBufferData;
 import static org.lwjgl.opengl.GL15.glGenBuffers;
 import static org.lwjgl.opengl.GL20.*;
-import static org.lwjgl.opengl.GL30.glBindVertexArray;
 import static org.lwjgl.opengl.GL30.glGenVertexArrays;
 
 /**
  * Specifies which attributes of a vertex will be specified to the shader. These are essentially lists of
  * {@link VertexAttribute}. It is specified when building a {@link BakedMesh}.
  *
+ * <p>
+ * By default every attribute is interleaved in one vertex buffer. {@link #withStreams(int...)} splits the
+ * attributes between several buffers ("streams") instead, so attributes which change every frame can be uploaded
+ * without rewriting the ones which don't. Vertices are still added to a {@link MeshBuilder} interleaved, and split up
+ * when the mesh is created.
+ * </p>
+ *
  * @see VertexAttribute
  * @see MeshBuilder
  */
 public class VertexFormat {
 
+    private static final int TRACE_UPLOAD = Trace.event("VertexFormat.createMesh");
+
 
     public static final VertexFormat POS2_COL = new VertexFormat(POSITION2_FLOAT, COLOR_FLOAT);
 
@@ -53,18 +62,81 @@ public class VertexFormat {
 
     public static final VertexFormat POS_TEX_COL4_NORM_TANG_BITANG = new VertexFormat(POSITION_FLOAT, TEXTURE_FLOAT, COLOR4_FLOAT, NORMAL_FLOAT, TANGENT_FLOAT, BITANGENT_FLOAT);
 
+    /**
+     * POS_NORM with positions and normals in separate streams
+     */
+    public static final VertexFormat POS_NORM_STREAMS = POS_NORM.withStreams(0, 1);
+
     private VertexAttribute[] attribs;
     /**
      * The number of bytes per vertex
      */
     private int vertexSize;
+    /**
+     * Which stream each attribute is in, and where it starts in its interleaved vertex and in its stream's vertex
+     */
+    private final int[] streams, offsets, streamOffsets;
+    /**
+     * The number of bytes per vertex in each stream
+     */
+    private final int[] streamStrides;
 
     public VertexFormat(VertexAttribute... attribs) {
+        this(attribs, new int[attribs.length]);
+    }
+
+    private VertexFormat(VertexAttribute[] attribs, int[] streams) {
         this.attribs = attribs;
+        this.streams = streams;
+
+        int streamCount = 0;
+        for (int stream : streams)
+            streamCount = Math.max(streamCount, stream + 1);
+        streamStrides = new int[streamCount];
+        offsets = new int[attribs.length];
+        streamOffsets = new int[attribs.length];
 
         this.vertexSize = 0;
-        for (VertexAttribute attrib : attribs)
-            this.vertexSize += attrib.getSize();
+        for (int i = 0; i < attribs.length; i++) {
+            offsets[i] = vertexSize;
+            streamOffsets[i] = streamStrides[streams[i]];
+            this.vertexSize += attribs[i].getSize();
+            streamStrides[streams[i]] += attribs[i].getSize();
+        }
+    }
+
+    /**
+     * Gets a format with the same attributes, but split between several vertex buffers
+     *
+     * @param streams Which stream each attribute goes in. Every stream from 0 up to the highest must be used.
+     */
+    public VertexFormat withStreams(int... streams) {
+        if (streams.length != attribs.length)
+            throw new IllegalArgumentException("Expected a stream for each of the " + attribs.length + " attributes, got " + streams.length);
+        VertexFormat format = new VertexFormat(attribs, streams.clone());
+        for (int stride : format.streamStrides) {
+            if (stride == 0)
+                throw new IllegalArgumentException("Streams must be numbered from 0 without gaps: " + Arrays.toString(streams));
+        }
+        return format;
+    }
+
+    public int getStreamCount() {
+        return streamStrides.length;
+    }
+
+    /**
+     * The number of bytes per vertex in the given stream
+     */
+    public int getStreamStride(int stream) {
+        return streamStrides[stream];
+    }
+
+    /**
+     * Which stream the attribute at the given index is in
+     */
+    public int getStream(int attribute) {
+        return streams[attribute];
     }
 
     /**
@@ -175,52 +247,120 @@ public class VertexFormat {
      * @see MeshBuilder
      */
     public BakedMesh createMesh(ByteBuffer vertexBuffer, int vertexBufferSize, ByteBuffer indicesBuffer, int indicesCount, int primitiveDrawType) {
+        Trace.begin(TRACE_UPLOAD);
+        try {
+            return upload(vertexBuffer, vertexBufferSize, indicesBuffer, indicesCount, primitiveDrawType);
+        } finally {
+            Trace.end(TRACE_UPLOAD);
+        }
+    }
+
+    /**
+     * Creates a {@link StreamingBakedMesh}, whose vertices can be rewritten every frame. This is really an internal
+     * method, you should use {@link MeshBuilder#createStreamingMesh(int, int...)}, which calls this, instead.
+     */
+    public StreamingBakedMesh createStreamingMesh(ByteBuffer vertexBuffer, int vertexBufferSize, ByteBuffer indicesBuffer, int indicesCount, int regions, int... staticStreams) {
+        Trace.begin(TRACE_UPLOAD);
+        try {
+            return StreamingBakedMesh.create(this, vertexBuffer, vertexBufferSize, indicesBuffer, indicesCount, regions, staticStreams);
+        } finally {
+            Trace.end(TRACE_UPLOAD);
+        }
+    }
+
+    /**
+     * Points the attributes of the bound VAO which are in the given stream at their places in the bound vertex buffer
+     *
+     * @param baseOffset Where in the buffer the stream's first vertex is
+     */
+    void setAttributePointers(int stream, long baseOffset) {
+        for (int i = 0; i < attribs.length; i++) {
+            if (streams[i] == stream)
+                glVertexAttribPointer(i, attribs[i].getCount(), attribs[i].getDataType(), false, streamStrides[stream], baseOffset + streamOffsets[i]);
+        }
+    }
+
+    /**
+     * Copies one stream's attributes out of interleaved vertices
+     *
+     * @param interleaved Whole vertices in this format, from its position up to its limit
+     * @param out Receives the stream's vertices, from its position
+     */
+    void copyStream(ByteBuffer interleaved, int stream, ByteBuffer out) {
+        int start = interleaved.position();
+        int vertexCount = interleaved.remaining() / vertexSize;
+        int at = out.position();
+        for (int v = 0; v < vertexCount; v++) {
+            for (int i = 0; i < attribs.length; i++) {
+                if (streams[i] != stream)
+                    continue;
+                int from = start + v * vertexSize + offsets[i];
+                int to = at + v * streamStrides[stream] + streamOffsets[i];
+                for (int b = 0; b < attribs[i].getSize(); b++)
+                    out.put(to + b, interleaved.get(from + b));
+            }
+        }
+        out.position(at + vertexCount * streamStrides[stream]);
+    }
+
+    private BakedMesh upload(ByteBuffer vertexBuffer, int vertexBufferSize, ByteBuffer indicesBuffer, int indicesCount, int primitiveDrawType) {
         int vaoId = glGenVertexArrays();
-        glBindVertexArray(vaoId); // so operations apply to this VAO
+        GlState.bindVertexArray(vaoId); // so operations apply to this VAO
 
         for (int i = 0; i < attribs.length; i++)
             glEnableVertexAttribArray(i);
 
-        int vertexVboId = glGenBuffers();
-        glBindBuffer(GL_ARRAY_BUFFER, vertexVboId); // so operations apply to this VBO
-        glBufferData(GL_ARRAY_BUFFER, vertexBuffer, GL_STATIC_DRAW);
-
-        int ptr = 0;
-        for (int i = 0; i < attribs.length; i++) {
-            glVertexAttribPointer(i, attribs[i].getCount(), attribs[i].getDataType(), false, vertexSize, ptr);
-            ptr += attribs[i].getSize();
+        int[] streamVboIds = new int[streamStrides.length];
+        for (int stream = 0; stream < streamStrides.length; stream++) {
+            streamVboIds[stream] = glGenBuffers();
+            GlState.bindBuffer(GL_ARRAY_BUFFER, streamVboIds[stream]); // so operations apply to this VBO
+            if (streamStrides.length == 1) {
+                glBufferData(GL_ARRAY_BUFFER, vertexBuffer, GL_STATIC_DRAW);
+            } else {
+                ByteBuffer vertices = vertexBuffer.duplicate();
+                vertices.position(0).limit(vertexBufferSize);
+                ByteBuffer streamBuffer = ByteBuffer.allocateDirect(vertexBufferSize / vertexSize * streamStrides[stream]);
+                copyStream(vertices, stream, streamBuffer);
+                streamBuffer.flip();
+                glBufferData(GL_ARRAY_BUFFER, streamBuffer, GL_STATIC_DRAW);
+            }
+            setAttributePointers(stream, 0);
         }
+        int vertexVboId = streamVboIds[0];
 
-        glBindBuffer(GL_ARRAY_BUFFER, 0);
+        GlState.bindBuffer(GL_ARRAY_BUFFER, 0);
         int indicesVboId = 0;
         if (indicesCount > 0) {
             indicesVboId = glGenBuffers();
-            glBindBuffer(GL_ARRAY_BUFFER, indicesVboId);
+            GlState.bindBuffer(GL_ARRAY_BUFFER, indicesVboId);
             glBufferData(GL_ARRAY_BUFFER, indicesBuffer, GL_STATIC_DRAW);
-            glBindBuffer(GL_ARRAY_BUFFER, 0);
+            GlState.bindBuffer(GL_ARRAY_BUFFER, 0);
         }
 
-        glBindVertexArray(0);
+        GlState.bindVertexArray(0);
 
         for (int i = 0; i < attribs.length; i++)
             glDisableVertexAttribArray(i);
 
+        BakedMesh mesh;
         if(primitiveDrawType == GL_TRIANGLES) {
             if (indicesVboId != 0) {
-                return new IndicesBakedMesh(vaoId, vertexVboId, indicesVboId, indicesCount);
+                mesh = new IndicesBakedMesh(vaoId, vertexVboId, indicesVboId, indicesCount);
             } else {
-                return new BakedMesh(vaoId, vertexVboId, vertexBufferSize / vertexSize);
+                mesh = new BakedMesh(vaoId, vertexVboId, vertexBufferSize / vertexSize);
             }
         } else if(primitiveDrawType == GL_LINES) {
             if (indicesVboId != 0) {
-                return new LineIndicesBakedMesh(vaoId, vertexVboId, indicesVboId, indicesCount);
+                mesh = new LineIndicesBakedMesh(vaoId, vertexVboId, indicesVboId, indicesCount);
             } else {
-                return new LineBakedMesh(vaoId, vertexVboId, vertexBufferSize / vertexSize);
+                mesh = new LineBakedMesh(vaoId, vertexVboId, vertexBufferSize / vertexSize);
             }
 
         } else {
             throw new IllegalArgumentException("The Primitive Draw type must be either GL_TRIANGLES or GL_LINES");
         }
+        mesh.streamVboIds = streamVboIds;
+        return mesh;
     }
 
 }
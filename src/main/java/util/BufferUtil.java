@@ -0,0 +1,146 @@
+package util;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+
+public class BufferUtil {
+
+    /**
+     * <tt>Unsafe.invokeCleaner(ByteBuffer)</tt> on Java 9+, or null
+     */
+    private static final Method INVOKE_CLEANER;
+    private static final Object UNSAFE;
+    /**
+     * <tt>Unsafe.getLongVolatile(Object, long)</tt> and <tt>Unsafe.putOrderedLong(Object, long, long)</tt>, bound to
+     * the Unsafe instance, or null if they aren't available
+     */
+    private static final MethodHandle GET_LONG_VOLATILE, PUT_ORDERED_LONG;
+    /**
+     * Where a direct buffer keeps its address, as an Unsafe field offset into <tt>java.nio.Buffer</tt>
+     */
+    private static final long ADDRESS_OFFSET;
+    static {
+        Object unsafe = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = theUnsafe.get(null);
+        } catch (Exception e) {
+            // Not there, or not allowed, so buffers are left to the garbage collector
+        }
+        UNSAFE = unsafe;
+
+        Method invokeCleaner = null;
+        if (unsafe != null) {
+            try {
+                invokeCleaner = unsafe.getClass().getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (NoSuchMethodException e) {
+                // Java 8, which uses DirectBuffer.cleaner() instead
+            }
+        }
+        INVOKE_CLEANER = invokeCleaner;
+
+        MethodHandle getLongVolatile = null, putOrderedLong = null;
+        long addressOffset = -1;
+        if (unsafe != null) {
+            try {
+                MethodHandles.Lookup lookup = MethodHandles.lookup();
+                Class<?> unsafeClass = unsafe.getClass();
+                getLongVolatile = lookup.findVirtual(unsafeClass, "getLongVolatile",
+                        MethodType.methodType(long.class, Object.class, long.class)).bindTo(unsafe);
+                putOrderedLong = lookup.findVirtual(unsafeClass, "putOrderedLong",
+                        MethodType.methodType(void.class, Object.class, long.class, long.class)).bindTo(unsafe);
+                addressOffset = (long) unsafeClass.getMethod("objectFieldOffset", Field.class)
+                        .invoke(unsafe, Buffer.class.getDeclaredField("address"));
+            } catch (Exception e) {
+                getLongVolatile = putOrderedLong = null;
+            }
+        }
+        GET_LONG_VOLATILE = getLongVolatile;
+        PUT_ORDERED_LONG = putOrderedLong;
+        ADDRESS_OFFSET = addressOffset;
+    }
+
+    /**
+     * Reads a long with acquire semantics: it's read afresh every time, even in a loop, and nothing after it is
+     * reordered before it, including reads of memory shared with other processes. The index must be 8-byte aligned,
+     * and the value is in native byte order.
+     */
+    public static long getLongVolatile(ByteBuffer buffer, int index) {
+        checkIndex(buffer, index);
+        if (GET_LONG_VOLATILE != null && buffer.isDirect()) {
+            try {
+                return (long) GET_LONG_VOLATILE.invokeExact((Object) null, address(buffer, index));
+            } catch (Throwable t) {
+                throw new AssertionError(t);
+            }
+        }
+        // Without Unsafe, the lock at least stops the JIT caching the value or moving other accesses past it
+        synchronized (BufferUtil.class) {
+            long value = buffer.getLong(index);
+            return buffer.order() == ByteOrder.nativeOrder() ? value : Long.reverseBytes(value);
+        }
+    }
+
+    /**
+     * Writes a long with release semantics: nothing before it is reordered after it, including writes to memory
+     * shared with other processes. The index must be 8-byte aligned, and the value is in native byte order.
+     */
+    public static void putLongOrdered(ByteBuffer buffer, int index, long value) {
+        checkIndex(buffer, index);
+        if (PUT_ORDERED_LONG != null && buffer.isDirect()) {
+            try {
+                PUT_ORDERED_LONG.invokeExact((Object) null, address(buffer, index), value);
+            } catch (Throwable t) {
+                throw new AssertionError(t);
+            }
+            return;
+        }
+        synchronized (BufferUtil.class) {
+            buffer.putLong(index, buffer.order() == ByteOrder.nativeOrder() ? value : Long.reverseBytes(value));
+        }
+    }
+
+    private static void checkIndex(ByteBuffer buffer, int index) {
+        if (index < 0 || index > buffer.limit() - 8)
+            throw new IndexOutOfBoundsException("index " + index + ", limit " + buffer.limit());
+    }
+
+    private static long address(ByteBuffer buffer, int index) throws Throwable {
+        return (long) GET_LONG_VOLATILE.invokeExact((Object) buffer, ADDRESS_OFFSET) + index;
+    }
+
+    /**
+     * Unmaps a memory-mapped buffer straight away, rather than whenever it's garbage collected, which matters when
+     * mapping more files than fit in the address space or file handle limit over time. The buffer, and any views of
+     * it, must never be touched again, or the JVM will crash.
+     *
+     * @return Whether the buffer was unmapped. If not, it's left to the garbage collector.
+     */
+    public static boolean unmap(MappedByteBuffer buffer) {
+        try {
+            if (INVOKE_CLEANER != null) {
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+            } else {
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner == null)
+                    return false;
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+}
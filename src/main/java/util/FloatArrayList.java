@@ -0,0 +1,82 @@
+package util;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of primitive floats, to avoid boxing every element into a {@link Float} or a vector.
+ * The backing array is exposed through {@link #elements()} for tight loops.
+ */
+public class FloatArrayList {
+
+    private float[] data;
+    private int size;
+
+    public FloatArrayList() {
+        this(16);
+    }
+
+    public FloatArrayList(int initialCapacity) {
+        data = new float[Math.max(initialCapacity, 1)];
+    }
+
+    public void add(float value) {
+        if (size == data.length)
+            grow(size + 1);
+        data[size++] = value;
+    }
+
+    public void add(float x, float y, float z) {
+        ensureCapacity(size + 3);
+        data[size++] = x;
+        data[size++] = y;
+        data[size++] = z;
+    }
+
+    public float get(int index) {
+        if (index >= size)
+            throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+        return data[index];
+    }
+
+    public void set(int index, float value) {
+        if (index >= size)
+            throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+        data[index] = value;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public void ensureCapacity(int capacity) {
+        if (capacity > data.length)
+            grow(capacity);
+    }
+
+    /**
+     * The backing array. Only the first {@link #size()} elements are valid, and the array is replaced when the list grows.
+     */
+    public float[] elements() {
+        return data;
+    }
+
+    public float[] toArray() {
+        return Arrays.copyOf(data, size);
+    }
+
+    private void grow(int minCapacity) {
+        int capacity = data.length;
+        do {
+            capacity *= 2;
+        } while (capacity < minCapacity);
+        data = Arrays.copyOf(data, capacity);
+    }
+}
@@ -0,0 +1,91 @@
+package util;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of primitive ints, to avoid boxing every element into an {@link Integer}.
+ * The backing array is exposed through {@link #elements()} for tight loops.
+ */
+public class IntArrayList {
+
+    private int[] data;
+    private int size;
+
+    public IntArrayList() {
+        this(16);
+    }
+
+    public IntArrayList(int initialCapacity) {
+        data = new int[Math.max(initialCapacity, 1)];
+    }
+
+    public void add(int value) {
+        if (size == data.length)
+            grow(size + 1);
+        data[size++] = value;
+    }
+
+    public void add(int a, int b, int c) {
+        ensureCapacity(size + 3);
+        data[size++] = a;
+        data[size++] = b;
+        data[size++] = c;
+    }
+
+    public int get(int index) {
+        if (index >= size)
+            throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+        return data[index];
+    }
+
+    public void set(int index, int value) {
+        if (index >= size)
+            throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+        data[index] = value;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Sets the size after writing straight into {@link #elements()}, which must already have room
+     */
+    public void setSize(int size) {
+        if (size > data.length)
+            throw new IndexOutOfBoundsException("size " + size + ", capacity " + data.length);
+        this.size = size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public void ensureCapacity(int capacity) {
+        if (capacity > data.length)
+            grow(capacity);
+    }
+
+    /**
+     * The backing array. Only the first {@link #size()} elements are valid, and the array is replaced when the list grows.
+     */
+    public int[] elements() {
+        return data;
+    }
+
+    public int[] toArray() {
+        return Arrays.copyOf(data, size);
+    }
+
+    private void grow(int minCapacity) {
+        int capacity = data.length;
+        do {
+            capacity *= 2;
+        } while (capacity < minCapacity);
+        data = Arrays.copyOf(data, capacity);
+    }
+}
@@ -2,10 +2,13 @@ package util;
 
 import render.objLoader.ObjFormatException;
 import render.objLoader.ObjLoader;
+import render.objLoader.ObjTokenizer;
 import render.util.BakedMesh;
 import render.util.VertexFormat;
 
-import java.io.InputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URL;
 
 import static org.lwjgl.opengl.GL11.GL_TRIANGLES;
 
@@ -13,16 +16,18 @@ public  class MeshHandler {
 
     public static BakedMesh loadMesh(String location) {
 
-        InputStream is = MeshHandler.class.getResourceAsStream("/models/" + location);
+        URL url = MeshHandler.class.getResource("/models/" + location);
 
-        if (is == null) {
+        if (url == null) {
             throw new IllegalStateException("Model not found: " + location);
         }
         BakedMesh mesh;
         try {
-            mesh = new ObjLoader(is).load(VertexFormat.POS_NORM, GL_TRIANGLES);
+            mesh = new ObjLoader(ObjTokenizer.read(url)).load(VertexFormat.POS_NORM, GL_TRIANGLES);
         } catch (ObjFormatException e) {
             throw new IllegalStateException("OBJ format error in " + location, e);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read model " + location, e);
         }
         return mesh;
     }
@@ -0,0 +1,56 @@
+package util.metrics;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * The summary of a {@link Histogram} at one moment, as exposed over JMX
+ */
+public class HistogramSnapshot {
+
+    private final long count;
+    private final double mean;
+    private final long p50;
+    private final long p99;
+    private final long max;
+    private final long last;
+
+    @ConstructorProperties({"count", "mean", "p50", "p99", "max", "last"})
+    public HistogramSnapshot(long count, double mean, long p50, long p99, long max, long last) {
+        this.count = count;
+        this.mean = mean;
+        this.p50 = p50;
+        this.p99 = p99;
+        this.max = max;
+        this.last = last;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    public long getP50() {
+        return p50;
+    }
+
+    public long getP99() {
+        return p99;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public long getLast() {
+        return last;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d mean=%.1f p50=%d p99=%d max=%d last=%d", count, mean, p50, p99, max, last);
+    }
+
+}
@@ -0,0 +1,21 @@
+package util.metrics;
+
+import java.util.Map;
+
+/**
+ * The JMX view of a {@link MetricsRegistry}
+ */
+public interface MetricsMXBean {
+
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    /**
+     * Every histogram in the registry, by name
+     */
+    Map<String, HistogramSnapshot> getHistograms();
+
+    void reset();
+
+}
@@ -0,0 +1,163 @@
+package util.metrics;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A named set of {@link Histogram histograms}, for timings and per-tick counts.
+ *
+ * <p>
+ * The registry starts disabled, and code recording to it is expected to check {@link #isEnabled()} first, so that
+ * when it's off the only cost is that check. Nothing is pushed anywhere; the histograms can be read over JMX once
+ * {@link #registerMBean(String) registered}, or written to a file every so often with
+ * {@link #startFileExport(Path, long)}.
+ * </p>
+ */
+public class MetricsRegistry implements MetricsMXBean {
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final boolean ALLOCATIONS_SUPPORTED;
+    static {
+        boolean supported = false;
+        if (THREADS instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+            if (threads.isThreadAllocatedMemorySupported()) {
+                threads.setThreadAllocatedMemoryEnabled(true);
+                supported = threads.isThreadAllocatedMemoryEnabled();
+            }
+        }
+        ALLOCATIONS_SUPPORTED = supported;
+    }
+
+    private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private volatile boolean enabled = false;
+
+    private ScheduledExecutorService exporter;
+    private ScheduledFuture<?> export;
+
+    /**
+     * The total number of bytes the current thread has allocated so far, or -1 if the JVM can't tell
+     */
+    public static long threadAllocatedBytes() {
+        if (!ALLOCATIONS_SUPPORTED)
+            return -1;
+        return ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Gets the histogram with the given name, creating it if it doesn't exist yet
+     */
+    public Histogram histogram(String name) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null)
+            histogram = histograms.computeIfAbsent(name, Histogram::new);
+        return histogram;
+    }
+
+    /**
+     * Records a value to the named histogram, if the registry is enabled
+     */
+    public void record(String name, long value) {
+        if (enabled)
+            histogram(name).record(value);
+    }
+
+    @Override
+    public Map<String, HistogramSnapshot> getHistograms() {
+        Map<String, HistogramSnapshot> snapshots = new TreeMap<>();
+        for (Histogram histogram : histograms.values())
+            snapshots.put(histogram.getName(), histogram.snapshot());
+        return snapshots;
+    }
+
+    @Override
+    public void reset() {
+        for (Histogram histogram : histograms.values())
+            histogram.reset();
+    }
+
+    /**
+     * Makes the registry readable over JMX, under a name like <tt>"physics:type=Metrics"</tt>
+     */
+    public void registerMBean(String objectName) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(objectName);
+            if (server.isRegistered(name))
+                server.unregisterMBean(name);
+            server.registerMBean(this, name);
+        } catch (JMException e) {
+            throw new IllegalStateException("Could not register metrics as " + objectName, e);
+        }
+    }
+
+    /**
+     * Starts writing every histogram to the given file, replacing its contents, at a fixed interval on a background
+     * thread. Replaces any export already running.
+     */
+    public synchronized void startFileExport(Path file, long periodMillis) {
+        stopFileExport();
+        if (exporter == null) {
+            exporter = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "Metrics export");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        export = exporter.scheduleAtFixedRate(() -> {
+            try {
+                writeTo(file);
+            } catch (IOException e) {
+                System.err.println("Could not export metrics to " + file + ": " + e);
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopFileExport() {
+        if (export != null) {
+            export.cancel(false);
+            export = null;
+        }
+    }
+
+    /**
+     * Writes every histogram to the given file, one per line. The file is written next to the target and moved into
+     * place, so readers never see it half written.
+     */
+    public void writeTo(Path file) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            writer.write("# " + System.currentTimeMillis() + "\n");
+            for (Map.Entry<String, HistogramSnapshot> entry : getHistograms().entrySet())
+                writer.write(entry.getKey() + " " + entry.getValue() + "\n");
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+}
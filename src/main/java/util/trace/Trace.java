@@ -0,0 +1,164 @@
+package util.trace;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Records begin/end events into per-thread ring buffers, which can be dumped as a Chrome trace (for
+ * <tt>chrome://tracing</tt> or <a href="https://ui.perfetto.dev">Perfetto</a>) to see where the time in a frame went.
+ *
+ * <p>
+ * Event names are registered once with {@link #event(String)}, typically into a static final field, and recorded
+ * by ID. Recording is a volatile read when disabled, and a thread-local lookup plus two array writes when enabled,
+ * with no allocation or locking. Each thread only ever writes to its own buffer, which overwrites its oldest events
+ * once full. Dumping while other threads are still recording may cut their last few events short.
+ * </p>
+ *
+ * <blockquote><pre>
+ *     private static final int TRACE_TICK = Trace.event("tick");
+ *     ...
+ *     Trace.begin(TRACE_TICK);
+ *     tick();
+ *     Trace.end(TRACE_TICK);
+ * </pre></blockquote>
+ */
+public class Trace {
+
+    /**
+     * Events per thread. Must be a power of two.
+     */
+    public static int BUFFER_SIZE = 1 << 16;
+
+    private static volatile boolean enabled = false;
+
+    private static final List<String> eventNames = new ArrayList<>();
+    private static volatile String[] eventNameArray = new String[0];
+    private static final List<TraceBuffer> buffers = new CopyOnWriteArrayList<>();
+    private static final ThreadLocal<TraceBuffer> BUFFER = ThreadLocal.withInitial(() -> {
+        TraceBuffer buffer = new TraceBuffer(Thread.currentThread().getName(), BUFFER_SIZE);
+        buffers.add(buffer);
+        return buffer;
+    });
+
+    /**
+     * Gets the ID of the event with the given name, registering it if it's new
+     */
+    public static synchronized int event(String name) {
+        int id = eventNames.indexOf(name);
+        if (id < 0) {
+            id = eventNames.size();
+            eventNames.add(name);
+            eventNameArray = eventNames.toArray(new String[0]);
+        }
+        return id;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        Trace.enabled = enabled;
+    }
+
+    public static void begin(int event) {
+        if (enabled)
+            BUFFER.get().add(System.nanoTime(), event, TraceBuffer.BEGIN);
+    }
+
+    public static void end(int event) {
+        if (enabled)
+            BUFFER.get().add(System.nanoTime(), event, TraceBuffer.END);
+    }
+
+    /**
+     * Records a complete event which already happened, on a named track rather than the current thread's. Used for
+     * timings which aren't measured on a CPU thread, such as GPU timer queries.
+     */
+    public static void complete(String track, int event, long startNanos, long endNanos) {
+        if (!enabled)
+            return;
+        TraceBuffer buffer = trackBuffer(track);
+        synchronized (buffer) {
+            buffer.add(startNanos, event, TraceBuffer.BEGIN);
+            buffer.add(endNanos, event, TraceBuffer.END);
+        }
+    }
+
+    /**
+     * Throws away every recorded event. Nothing should be recording at the same time.
+     */
+    public static void clear() {
+        for (TraceBuffer buffer : buffers)
+            buffer.clear();
+    }
+
+    /**
+     * Writes every recorded event as Chrome trace event JSON
+     */
+    public static void dump(Path file) throws IOException {
+        String[] names = eventNameArray;
+        try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write("{\"traceEvents\":[\n");
+            boolean first = true;
+            for (int tid = 0; tid < buffers.size(); tid++) {
+                TraceBuffer buffer = buffers.get(tid);
+                writer.write(first ? "" : ",\n");
+                first = false;
+                writer.write("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":" + tid
+                        + ",\"args\":{\"name\":\"" + escape(buffer.getName()) + "\"}}");
+                long head = buffer.getHead();
+                for (long i = Math.max(0, head - buffer.getCapacity()); i < head; i++) {
+                    int event = buffer.getEvent(i);
+                    writer.write(",\n{\"name\":\"" + escape(event < names.length ? names[event] : "#" + event)
+                            + "\",\"ph\":\"" + (buffer.getPhase(i) == TraceBuffer.BEGIN ? 'B' : 'E')
+                            + "\",\"ts\":" + micros(buffer.getTime(i))
+                            + ",\"pid\":1,\"tid\":" + tid + "}");
+                }
+            }
+            writer.write("\n]}\n");
+        }
+    }
+
+    /**
+     * Formats nanoseconds as microseconds, without losing precision to a double
+     */
+    private static String micros(long nanos) {
+        return String.format("%d.%03d", nanos / 1000, Math.abs(nanos % 1000));
+    }
+
+    private static TraceBuffer trackBuffer(String track) {
+        TraceBuffer buffer = findTrack(track);
+        if (buffer != null)
+            return buffer;
+        synchronized (buffers) {
+            buffer = findTrack(track);
+            if (buffer != null)
+                return buffer;
+            buffer = new TraceBuffer(track, BUFFER_SIZE);
+            buffer.setTrack(true);
+            buffers.add(buffer);
+            return buffer;
+        }
+    }
+
+    private static TraceBuffer findTrack(String track) {
+        for (int i = 0; i < buffers.size(); i++) {
+            TraceBuffer buffer = buffers.get(i);
+            if (buffer.isTrack() && buffer.getName().equals(track))
+                return buffer;
+        }
+        return null;
+    }
+
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+}
@@ -0,0 +1,80 @@
+package util.trace;
+
+/**
+ * A ring buffer of trace events written by a single thread. Old events are overwritten once it's full.
+ */
+class TraceBuffer {
+
+    static final int BEGIN = 0;
+    static final int END = 1;
+
+    private final String name;
+    private final int mask;
+    private final long[] times;
+    /**
+     * Event ID shifted left by one, with the phase in the lowest bit
+     */
+    private final int[] events;
+    /**
+     * The total number of events ever added. Only written by the owning thread.
+     */
+    private volatile long head = 0;
+    /**
+     * Whether this is a named track rather than a thread
+     */
+    private boolean track = false;
+
+    TraceBuffer(String name, int capacity) {
+        if (Integer.bitCount(capacity) != 1)
+            throw new IllegalArgumentException("Trace buffer size must be a power of two: " + capacity);
+        this.name = name;
+        this.mask = capacity - 1;
+        this.times = new long[capacity];
+        this.events = new int[capacity];
+    }
+
+    void add(long time, int event, int phase) {
+        long h = head;
+        int slot = (int) h & mask;
+        times[slot] = time;
+        events[slot] = event << 1 | phase;
+        head = h + 1;
+    }
+
+    void clear() {
+        head = 0;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    int getCapacity() {
+        return mask + 1;
+    }
+
+    long getHead() {
+        return head;
+    }
+
+    long getTime(long index) {
+        return times[(int) index & mask];
+    }
+
+    int getEvent(long index) {
+        return events[(int) index & mask] >>> 1;
+    }
+
+    int getPhase(long index) {
+        return events[(int) index & mask] & 1;
+    }
+
+    boolean isTrack() {
+        return track;
+    }
+
+    void setTrack(boolean track) {
+        this.track = track;
+    }
+
+}
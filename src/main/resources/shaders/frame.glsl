@@ -0,0 +1,11 @@
+// Must match the members Shaders.FrameUniforms adds, in order
+layout(std140) uniform Frame {
+	mat4 projViewMat;
+	mat4 viewMat;
+	vec3 cameraPos;
+	vec3 lightPos;
+	// Tiles across, tiles up, depth slices and the light count, from LightClusters
+	vec4 clusterGrid;
+	// The viewport's width and height, then the scale and bias taking the log of a view depth to its slice
+	vec4 clusterMapping;
+};
@@ -0,0 +1,33 @@
+#version 140
+#include lights.glsl
+
+
+
+in vec3 worldPos;
+in vec3 sphereCentre;
+in float sphereRadius;
+out vec4 fragColour;
+
+
+void main() {
+    // Cast a ray from the camera through this fragment of the quad at the sphere
+    vec3 dir = normalize(worldPos - cameraPos);
+    vec3 toCamera = cameraPos - sphereCentre;
+    float b = dot(dir, toCamera);
+    float c = dot(toCamera, toCamera) - sphereRadius * sphereRadius;
+    float discriminant = b * b - c;
+    if (discriminant < 0.0)
+        discard;
+    vec3 hit = cameraPos + dir * (-b - sqrt(discriminant));
+
+    vec4 clip = projViewMat * vec4(hit, 1.0);
+    gl_FragDepth = (clip.z / clip.w) * (gl_DepthRange.far - gl_DepthRange.near) * 0.5 + (gl_DepthRange.far + gl_DepthRange.near) * 0.5;
+
+    // Lit as scene.frag lights the sphere mesh, whose normals are scaled by the radius
+    vec3 worldNorm = hit - sphereCentre;
+    vec3 toLightDir = lightPos - hit;
+    toLightDir = normalize(toLightDir);
+    float brightness = dot(toLightDir, worldNorm);
+    brightness = 0.5 + brightness*0.5;
+	fragColour = vec4(vec3(brightness) + pointLighting(hit, worldNorm), 1);
+}
@@ -0,0 +1,32 @@
+#version 140
+#include frame.glsl
+
+// A corner of the quad, from (-1, -1) to (1, 1)
+in vec2 corner;
+// xyz: the sphere's centre, w: its radius
+in vec4 instance;
+
+out vec3 worldPos;
+out vec3 sphereCentre;
+out float sphereRadius;
+
+
+
+
+void main() {
+	sphereCentre = instance.xyz;
+	sphereRadius = instance.w;
+
+	// A quad facing the camera, just big enough to cover the sphere's outline
+	vec3 toSphere = sphereCentre - cameraPos;
+	float dist = length(toSphere);
+	vec3 forwards = toSphere / dist;
+	vec3 up = abs(forwards.y) < 0.99 ? vec3(0, 1, 0) : vec3(1, 0, 0);
+	vec3 right = normalize(cross(forwards, up));
+	up = cross(right, forwards);
+	float halfSize = sphereRadius * dist / sqrt(max(dist * dist - sphereRadius * sphereRadius, 1e-6));
+
+	worldPos = sphereCentre + (right * corner.x + up * corner.y) * halfSize;
+	gl_Position = projViewMat * vec4(worldPos, 1.0);
+
+}
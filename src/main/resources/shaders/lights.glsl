@@ -0,0 +1,31 @@
+#include frame.glsl
+
+// Three texels per light: position and range, colour and intensity, then attenuation
+uniform samplerBuffer lightData;
+// The offset and count of each cluster's lights in lightIndices
+uniform usamplerBuffer clusterLights;
+uniform usamplerBuffer lightIndices;
+
+// The light falling on a fragment from the point lights which reach its cluster
+vec3 pointLighting(vec3 worldPos, vec3 worldNorm) {
+	vec3 normal = normalize(worldNorm);
+	float depth = -(viewMat * vec4(worldPos, 1.0)).z;
+	ivec2 tile = clamp(ivec2(gl_FragCoord.xy / clusterMapping.xy * clusterGrid.xy), ivec2(0), ivec2(clusterGrid.xy) - 1);
+	int slice = int(clamp(floor(log(depth) * clusterMapping.z + clusterMapping.w), 0.0, clusterGrid.z - 1.0));
+	uvec2 lights = texelFetch(clusterLights, (slice * int(clusterGrid.y) + tile.y) * int(clusterGrid.x) + tile.x).xy;
+
+	vec3 total = vec3(0.0);
+	for (uint i = 0u; i < lights.y; i++) {
+		int light = int(texelFetch(lightIndices, int(lights.x + i)).r) * 3;
+		vec4 posRange = texelFetch(lightData, light);
+		vec4 colourIntensity = texelFetch(lightData, light + 1);
+		vec3 att = texelFetch(lightData, light + 2).xyz;
+		vec3 toLight = posRange.xyz - worldPos;
+		float dist = length(toLight);
+		if (dist >= posRange.w)
+			continue;
+		float brightness = colourIntensity.w / (att.x + att.y * dist + att.z * dist * dist);
+		total += colourIntensity.rgb * brightness * max(dot(normal, toLight / dist), 0.0);
+	}
+	return total;
+}
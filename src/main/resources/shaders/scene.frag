@@ -1,10 +1,11 @@
-#version 120
+#version 140
+#include lights.glsl
 
 
 
-varying vec3 worldPos;
-varying vec3 worldNorm;
-uniform vec3 lightPos;
+in vec3 worldPos;
+in vec3 worldNorm;
+out vec4 fragColour;
 
 
 void main() {
@@ -12,5 +13,5 @@ void main() {
     toLightDir = normalize(toLightDir);
     float brightness = dot(toLightDir, worldNorm);
     brightness = 0.5 + brightness*0.5;
-	gl_FragColor =  vec4(brightness, brightness, brightness,1);
+	fragColour = vec4(vec3(brightness) + pointLighting(worldPos, worldNorm), 1);
 }
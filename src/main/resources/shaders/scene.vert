@@ -1,13 +1,13 @@
-#version 120
+#version 140
+#include frame.glsl
 
-attribute vec3 pos;
-attribute vec3 norm;
+in vec3 pos;
+in vec3 norm;
 
 uniform mat4 modelMat;
-uniform mat4 projViewMat;
 
-varying vec3 worldPos;
-varying vec3 worldNorm;
+out vec3 worldPos;
+out vec3 worldNorm;
 
 
 
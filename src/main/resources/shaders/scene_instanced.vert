@@ -0,0 +1,21 @@
+#version 140
+#include frame.glsl
+
+in vec3 pos;
+in vec3 norm;
+// xyz: where the instance is, w: its scale
+in vec4 instance;
+
+out vec3 worldPos;
+out vec3 worldNorm;
+
+
+
+
+void main() {
+	worldPos = pos * instance.w + instance.xyz;
+	// Scaled like the model matrix scales it in scene.vert
+	worldNorm = norm * instance.w;
+	gl_Position = projViewMat * vec4(worldPos, 1.0);
+
+}
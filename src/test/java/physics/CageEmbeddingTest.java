@@ -0,0 +1,153 @@
+package physics;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.junit.Test;
+import util.FloatArrayList;
+import util.IntArrayList;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class CageEmbeddingTest {
+
+    /**
+     * An icosahedron subdivided once, about 1 across, as (positions, triangles), wound outwards
+     */
+    private static Object[] cage() {
+        float t = (float) ((1 + Math.sqrt(5)) / 2);
+        float[][] corners = {
+                {-1, t, 0}, {1, t, 0}, {-1, -t, 0}, {1, -t, 0}, {0, -1, t}, {0, 1, t},
+                {0, -1, -t}, {0, 1, -t}, {t, 0, -1}, {t, 0, 1}, {-t, 0, -1}, {-t, 0, 1}
+        };
+        int[] triangles = {
+                0, 11, 5, 0, 5, 1, 0, 1, 7, 0, 7, 10, 0, 10, 11, 1, 5, 9, 5, 11, 4, 11, 10, 2, 10, 7, 6, 7, 1, 8,
+                3, 9, 4, 3, 4, 2, 3, 2, 6, 3, 6, 8, 3, 8, 9, 4, 9, 5, 2, 4, 11, 6, 2, 10, 8, 6, 7, 9, 8, 1
+        };
+        FloatArrayList positions = new FloatArrayList();
+        for (float[] corner : corners)
+            addOnSphere(positions, corner[0], corner[1], corner[2]);
+        IntArrayList finer = new IntArrayList();
+        Map<Long, Integer> midpoints = new HashMap<>();
+        for (int i = 0; i < triangles.length; i += 3) {
+            int a = triangles[i], b = triangles[i + 1], c = triangles[i + 2];
+            int ab = midpoint(positions, midpoints, a, b);
+            int bc = midpoint(positions, midpoints, b, c);
+            int ca = midpoint(positions, midpoints, c, a);
+            finer.add(a, ab, ca);
+            finer.add(b, bc, ab);
+            finer.add(c, ca, bc);
+            finer.add(ab, bc, ca);
+        }
+        return new Object[]{positions.toArray(), finer.toArray()};
+    }
+
+    private static int midpoint(FloatArrayList positions, Map<Long, Integer> midpoints, int a, int b) {
+        long key = ((long) Math.min(a, b) << 32) | Math.max(a, b);
+        Integer existing = midpoints.get(key);
+        if (existing != null)
+            return existing;
+        float[] p = positions.elements();
+        addOnSphere(positions, p[a * 3] + p[b * 3], p[a * 3 + 1] + p[b * 3 + 1], p[a * 3 + 2] + p[b * 3 + 2]);
+        midpoints.put(key, positions.size() / 3 - 1);
+        return positions.size() / 3 - 1;
+    }
+
+    private static void addOnSphere(FloatArrayList positions, float x, float y, float z) {
+        float length = (float) Math.sqrt(x * x + y * y + z * z);
+        positions.add(x / length, y / length, z / length);
+    }
+
+    /**
+     * Random points inside a sphere of this radius
+     */
+    private static float[] points(int count, float radius, long seed) {
+        Random random = new Random(seed);
+        float[] points = new float[count * 3];
+        for (int p = 0; p < count; p++) {
+            float x, y, z;
+            do {
+                x = random.nextFloat() * 2 - 1;
+                y = random.nextFloat() * 2 - 1;
+                z = random.nextFloat() * 2 - 1;
+            } while (x * x + y * y + z * z > 1);
+            points[p * 3] = x * radius;
+            points[p * 3 + 1] = y * radius;
+            points[p * 3 + 2] = z * radius;
+        }
+        return points;
+    }
+
+    private static float[] transform(Matrix4f matrix, float[] positions) {
+        float[] out = new float[positions.length];
+        Vector3f v = new Vector3f();
+        for (int i = 0; i < positions.length; i += 3) {
+            matrix.transformPosition(v.set(positions[i], positions[i + 1], positions[i + 2]));
+            out[i] = v.x;
+            out[i + 1] = v.y;
+            out[i + 2] = v.z;
+        }
+        return out;
+    }
+
+    private static void assertPositions(float[] expected, float[] actual, float tolerance) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++)
+            assertEquals("coordinate " + i, expected[i], actual[i], tolerance);
+    }
+
+    @Test
+    public void reproducesTheRestPose() {
+        Object[] cage = cage();
+        float[] rest = (float[]) cage[0];
+        float[] points = points(2000, 0.9f, 36);
+        // Far fewer weights than cage vertices, so the correction has to make up for the ones dropped
+        CageEmbedding embedding = new CageEmbedding(rest, (int[]) cage[1], points, 6);
+        assertEquals(6, embedding.getWeightsPerPoint());
+
+        float[] out = new float[points.length];
+        embedding.deform(rest, out);
+        assertPositions(points, out, 1e-5f);
+    }
+
+    @Test
+    public void followsAffineMotionsOfTheCage() {
+        Object[] cage = cage();
+        float[] rest = (float[]) cage[0];
+        float[] points = points(2000, 0.9f, 37);
+        CageEmbedding embedding = new CageEmbedding(rest, (int[]) cage[1], points, 8);
+
+        Matrix4f[] motions = {
+                new Matrix4f().translate(3, -2, 5),
+                new Matrix4f().rotateXYZ(0.3f, -1.2f, 2.0f).translate(0.5f, 0, 0),
+                new Matrix4f().scale(2, 0.5f, 1.5f),
+                // A shear
+                new Matrix4f().m10(0.4f).m21(-0.3f).translate(1, 1, 1)
+        };
+        float[] out = new float[points.length];
+        for (Matrix4f motion : motions) {
+            embedding.deform(transform(motion, rest), out);
+            assertPositions(transform(motion, points), out, 1e-4f);
+        }
+    }
+
+    @Test
+    public void embedsInADecimatedProxy() {
+        // The detailed mesh is the cage's own finer version, shrunk to sit inside a coarse copy of it
+        Object[] cage = cage();
+        float[] positions = (float[]) cage[0];
+        Mesh detail = new Mesh("sphere", positions, positions, (int[]) cage[1]);
+        SoftBody proxy = new SoftBody(detail.decimate(40), new Matrix4f());
+        Matrix4f shrink = new Matrix4f().scale(0.7f);
+        CagedSoftBody body = new CagedSoftBody(proxy, detail, shrink);
+        assertEquals(detail.getPositionCount(), body.getVertexCount());
+
+        float[] out = new float[body.getVertexCount() * 3];
+        body.getEmbedding().deform(proxy.getPositions(), out);
+        assertPositions(transform(shrink, positions), out, 1e-5f);
+    }
+
+}
@@ -0,0 +1,119 @@
+package physics;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ContactCacheTest {
+
+    @Test
+    public void pairKeyIgnoresOrder() {
+        assertEquals(ContactCache.pairKey(3, 7), ContactCache.pairKey(7, 3));
+        assertNotEquals(ContactCache.pairKey(3, 7), ContactCache.pairKey(3, 8));
+    }
+
+    @Test
+    public void staticKeysNeverClashWithPairKeys() {
+        assertTrue(ContactCache.staticKey(0, 0) < 0);
+        assertTrue(ContactCache.pairKey(Integer.MAX_VALUE, Integer.MAX_VALUE - 1) > 0);
+        assertNotEquals(ContactCache.staticKey(1, 0), ContactCache.staticKey(1, 1));
+    }
+
+    @Test
+    public void newPairsStartAtZeroAndKeepTheirImpulse() {
+        ContactCache cache = new ContactCache(16);
+        int slot = cache.acquire(ContactCache.pairKey(1, 2), 0);
+        assertEquals(0, cache.getImpulse(slot), 0);
+        cache.setImpulse(slot, 2.5f);
+
+        int again = cache.acquire(ContactCache.pairKey(2, 1), 1);
+        assertEquals(slot, again);
+        assertEquals(2.5f, cache.getImpulse(again), 0);
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void keepsImpulsesThroughGrowing() {
+        ContactCache cache = new ContactCache(16);
+        for (int i = 0; i < 1000; i++)
+            cache.setImpulse(cache.acquire(ContactCache.pairKey(i, i + 1), 0), i);
+        assertEquals(1000, cache.size());
+        for (int i = 0; i < 1000; i++)
+            assertEquals(i, cache.getImpulse(cache.acquire(ContactCache.pairKey(i, i + 1), 0)), 0);
+        assertEquals(1000, cache.size());
+    }
+
+    @Test
+    public void evictsOnlyPairsNotTouchedSinceTheGivenTick() {
+        ContactCache cache = new ContactCache(16);
+        for (int i = 0; i < 10; i++)
+            cache.setImpulse(cache.acquire(ContactCache.pairKey(i, 100), 0), i);
+        // Only the even ones are still in contact
+        for (int i = 0; i < 10; i += 2)
+            cache.acquire(ContactCache.pairKey(i, 100), 1);
+
+        assertEquals(5, cache.evictStale(1));
+        assertEquals(5, cache.size());
+        for (int i = 0; i < 10; i += 2)
+            assertEquals(i, cache.getImpulse(cache.acquire(ContactCache.pairKey(i, 100), 2)), 0);
+        assertEquals(5, cache.size());
+        for (int i = 1; i < 10; i += 2)
+            assertEquals(0, cache.getImpulse(cache.acquire(ContactCache.pairKey(i, 100), 2)), 0);
+    }
+
+    @Test
+    public void evictsNothingWhileEverythingIsTouched() {
+        ContactCache cache = new ContactCache(16);
+        for (int tick = 0; tick < 5; tick++) {
+            for (int i = 0; i < 20; i++)
+                cache.acquire(ContactCache.pairKey(i, 100), tick);
+            assertEquals(0, cache.evictStale(tick));
+            assertEquals(20, cache.size());
+        }
+        assertEquals(20, cache.evictStale(5));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void matchesAMapOverRandomTicks() {
+        Random random = new Random(28);
+        ContactCache cache = new ContactCache(16);
+        Map<Long, Float> impulses = new HashMap<>();
+        Map<Long, Integer> touched = new HashMap<>();
+        for (int tick = 0; tick < 200; tick++) {
+            int contacts = random.nextInt(300);
+            for (int c = 0; c < contacts; c++) {
+                long key = random.nextBoolean()
+                        ? ContactCache.pairKey(random.nextInt(50), 50 + random.nextInt(50))
+                        : ContactCache.staticKey(random.nextInt(50), random.nextInt(4));
+                int slot = cache.acquire(key, tick);
+                assertEquals(impulses.getOrDefault(key, 0f), cache.getImpulse(slot), 0);
+                float impulse = random.nextFloat();
+                cache.setImpulse(slot, impulse);
+                impulses.put(key, impulse);
+                touched.put(key, tick);
+            }
+
+            int oldest = tick - random.nextInt(3);
+            int stale = 0;
+            for (Iterator<Map.Entry<Long, Integer>> it = touched.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<Long, Integer> entry = it.next();
+                if (entry.getValue() < oldest) {
+                    impulses.remove(entry.getKey());
+                    it.remove();
+                    stale++;
+                }
+            }
+            assertEquals(stale, cache.evictStale(oldest));
+            assertEquals(impulses.size(), cache.size());
+        }
+    }
+
+}
@@ -0,0 +1,87 @@
+package physics;
+
+import org.joml.Matrix4f;
+import org.junit.Test;
+import util.FloatArrayList;
+import util.IntArrayList;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MeshTest {
+
+    /**
+     * A UV sphere with the seam and poles split, as it would be for texturing, so several vertices share a position
+     */
+    private static Mesh uvSphere(int rings, int segments) {
+        FloatArrayList positions = new FloatArrayList();
+        for (int r = 0; r <= rings; r++) {
+            double theta = Math.PI * r / rings;
+            for (int s = 0; s <= segments; s++) {
+                double phi = 2 * Math.PI * (s % segments) / segments;
+                float y = r == 0 ? 1 : r == rings ? -1 : (float) Math.cos(theta);
+                float radius = r == 0 || r == rings ? 0 : (float) Math.sin(theta);
+                positions.add(radius * (float) Math.cos(phi), y, radius * (float) Math.sin(phi));
+            }
+        }
+        IntArrayList triangles = new IntArrayList();
+        for (int r = 0; r < rings; r++) {
+            for (int s = 0; s < segments; s++) {
+                int a = r * (segments + 1) + s, b = a + 1, c = a + segments + 1, d = c + 1;
+                if (r != 0)
+                    triangles.add(a, b, c);
+                if (r != rings - 1)
+                    triangles.add(b, d, c);
+            }
+        }
+        // On a unit sphere, the normals are the positions
+        return new Mesh("sphere", positions.toArray(), positions.toArray(), triangles.toArray());
+    }
+
+    /**
+     * Checks the mesh's triangles close into a surface by index alone, so it has no seams left: none degenerate, and
+     * every edge shared by exactly two triangles, running opposite ways
+     */
+    private static void assertClosedManifold(Mesh mesh) {
+        Map<Long, Integer> directedEdges = new HashMap<>();
+        for (int t = 0; t < mesh.getTriangleCount(); t++) {
+            for (int corner = 0; corner < 3; corner++) {
+                int from = mesh.getTriangleVertex(t, corner), to = mesh.getTriangleVertex(t, (corner + 1) % 3);
+                assertNotEquals("degenerate triangle " + t, from, to);
+                if (directedEdges.put(((long) from << 32) | to, t) != null)
+                    fail("edge " + from + "-" + to + " is used the same way by more than one triangle");
+            }
+        }
+        for (long edge : directedEdges.keySet()) {
+            if (!directedEdges.containsKey((edge << 32) | (edge >>> 32)))
+                fail("edge " + (edge >>> 32) + "-" + (int) edge + " has only one triangle");
+        }
+    }
+
+    @Test
+    public void decimatesIntoOneWeldedPiece() {
+        Mesh detail = uvSphere(24, 48);
+        Mesh coarse = detail.decimate(200);
+        assertTrue(coarse.getTriangleCount() + " triangles", coarse.getTriangleCount() <= 200);
+        assertClosedManifold(coarse);
+        for (int v = 0; v < coarse.getPositionCount(); v++)
+            assertEquals(1, coarse.getPosition(v).length(), 1e-5);
+    }
+
+    @Test
+    public void decimatedMeshMakesAConnectedSoftBody() {
+        Mesh coarse = uvSphere(24, 48).decimate(200);
+        SoftBody body = new SoftBody(coarse, new Matrix4f().translate(0, 2, 0));
+        assertEquals(coarse.getPositionCount(), body.getVertexCount());
+        // One distance constraint per edge, and a closed surface of genus 0 keeps V - E + F = 2
+        int triangles = coarse.getTriangleCount();
+        assertEquals(triangles * 3 / 2, body.getConstraintCount());
+        assertEquals(2, body.getVertexCount() - body.getConstraintCount() + triangles);
+    }
+
+}
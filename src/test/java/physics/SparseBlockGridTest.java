@@ -0,0 +1,91 @@
+package physics;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SparseBlockGridTest {
+
+    @Test
+    public void activatingTwiceGivesTheSameBlock() {
+        SparseBlockGrid grid = new SparseBlockGrid();
+        assertEquals(-1, grid.find(1, -2, 3));
+        int block = grid.activate(1, -2, 3);
+        assertEquals(block, grid.activate(1, -2, 3));
+        assertEquals(block, grid.find(1, -2, 3));
+        assertEquals(1, grid.getBlockCount());
+        assertEquals(1, grid.getBlockX(block));
+        assertEquals(-2, grid.getBlockY(block));
+        assertEquals(3, grid.getBlockZ(block));
+    }
+
+    @Test
+    public void reusedBlocksStartEmpty() {
+        SparseBlockGrid grid = new SparseBlockGrid();
+        int block = grid.activate(0, 0, 0);
+        int cell = block * SparseBlockGrid.CELLS + SparseBlockGrid.cellIndex(1, 2, 3);
+        grid.getMass()[cell] = 1;
+        grid.getMomentumY()[cell] = 2;
+
+        grid.clear();
+        assertEquals(0, grid.getBlockCount());
+        assertEquals(-1, grid.find(0, 0, 0));
+        block = grid.activate(5, 5, 5);
+        cell = block * SparseBlockGrid.CELLS + SparseBlockGrid.cellIndex(1, 2, 3);
+        assertEquals(0, grid.getMass()[cell], 0);
+        assertEquals(0, grid.getMomentumY()[cell], 0);
+    }
+
+    @Test
+    public void matchesAMapOverRandomSteps() {
+        Random random = new Random(34);
+        SparseBlockGrid grid = new SparseBlockGrid();
+        Map<List<Integer>, Integer> blocks = new HashMap<>();
+        for (int step = 0; step < 30; step++) {
+            // Enough blocks some steps to grow the table and arrays several times over
+            int activations = random.nextInt(5000);
+            for (int a = 0; a < activations; a++) {
+                int bx = random.nextInt(64) - 32, by = random.nextInt(64) - 32, bz = random.nextInt(64) - 32;
+                List<Integer> key = Arrays.asList(bx, by, bz);
+                Integer expected = blocks.get(key);
+                if (random.nextBoolean()) {
+                    assertEquals(expected == null ? -1 : expected, grid.find(bx, by, bz));
+                    continue;
+                }
+                int block = grid.activate(bx, by, bz);
+                if (expected == null) {
+                    assertEquals(blocks.size(), block);
+                    blocks.put(key, block);
+                } else {
+                    assertEquals((int) expected, block);
+                }
+            }
+
+            // Every block is still found after any rehashing, with its coordinates intact
+            assertEquals(blocks.size(), grid.getBlockCount());
+            for (Map.Entry<List<Integer>, Integer> entry : blocks.entrySet()) {
+                List<Integer> key = entry.getKey();
+                int block = entry.getValue();
+                assertEquals(block, grid.find(key.get(0), key.get(1), key.get(2)));
+                assertEquals((int) key.get(0), grid.getBlockX(block));
+                assertEquals((int) key.get(1), grid.getBlockY(block));
+                assertEquals((int) key.get(2), grid.getBlockZ(block));
+            }
+            assertTrue(grid.getMass().length >= blocks.size() * SparseBlockGrid.CELLS);
+
+            // Sometimes carry on from a full grid, sometimes start over in the grown table
+            if (random.nextBoolean()) {
+                grid.clear();
+                blocks.clear();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,139 @@
+package physics.domain;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import util.FloatArrayList;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Launches real worker processes on this machine, talking through rings in a temporary directory
+ */
+public class DomainCoordinatorTest {
+
+    private static final float DT = 1 / 60f;
+    private static final float G = -9.8f;
+
+    private Path directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("domain");
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        // The coordinator deletes its rings when closed, leaving the directory empty
+        Files.deleteIfExists(directory);
+    }
+
+    @Test
+    public void migratesParticlesToTheWorkerWhoseSlabTheyAreIn() throws IOException {
+        int particles = 60;
+        int ticks = 40;
+        Random random = new Random(33);
+        // Spaced out in z so none touch, which leaves their motion easy to follow
+        float[] start = new float[particles * 6];
+        for (int i = 0; i < particles; i++) {
+            start[i * 6] = random.nextFloat() * 12 - 6;
+            start[i * 6 + 2] = i;
+            start[i * 6 + 3] = random.nextFloat() * 6 - 3;
+        }
+
+        try (DomainCoordinator coordinator = new DomainCoordinator(directory, 3)) {
+            coordinator.setWorldRadius(100);
+            coordinator.setCollectingPositions(true);
+            coordinator.start();
+            for (int i = 0; i < particles; i++) {
+                int o = i * 6;
+                coordinator.addParticle(start[o], start[o + 1], start[o + 2], start[o + 3], start[o + 4], start[o + 5]);
+            }
+
+            int migrated = 0;
+            int[] previousOwner = new int[particles];
+            for (int t = 1; t <= ticks; t++) {
+                float[] boundaries = coordinator.getBoundaries();
+                coordinator.tick();
+                assertEquals(particles, coordinator.getParticleCount());
+
+                float[] expected = freeFall(start, t);
+                FloatArrayList positions = coordinator.getPositions();
+                assertEquals(particles * 3, positions.size());
+                int[] counts = coordinator.getParticleCounts();
+                int worker = 0, end = counts[0];
+                for (int p = 0; p < particles; p++) {
+                    while (p >= end)
+                        end += counts[++worker];
+                    float x = positions.get(p * 3), y = positions.get(p * 3 + 1), z = positions.get(p * 3 + 2);
+                    int id = Math.round(z);
+                    assertEquals(expected[id * 3], x, 1e-4);
+                    assertEquals(expected[id * 3 + 1], y, 1e-4);
+                    assertEquals(id, z, 0);
+                    assertTrue("particle at " + x + " is outside worker " + worker + "'s slab",
+                            x >= boundaries[worker] && x < boundaries[worker + 1]);
+                    if (t > 1 && previousOwner[id] != worker)
+                        migrated++;
+                    previousOwner[id] = worker;
+                }
+            }
+            assertTrue("no particles moved between workers", migrated > 0);
+
+            // The boundaries started at +-33, and have been moved towards a third of the particles each
+            int[] counts = coordinator.getParticleCounts();
+            for (int count : counts)
+                assertTrue(count > 0);
+        }
+    }
+
+    /**
+     * Where each particle should be after this many ticks with nothing in its way, integrated as the workers do
+     */
+    private static float[] freeFall(float[] start, int ticks) {
+        int particles = start.length / 6;
+        float[] positions = new float[particles * 3];
+        for (int i = 0; i < particles; i++) {
+            float x = start[i * 6], y = start[i * 6 + 1], z = start[i * 6 + 2];
+            float vx = start[i * 6 + 3], vy = start[i * 6 + 4], vz = start[i * 6 + 5];
+            for (int t = 0; t < ticks; t++) {
+                vy += G * DT;
+                x += vx * DT;
+                y += vy * DT;
+                z += vz * DT;
+            }
+            positions[i * 3] = x;
+            positions[i * 3 + 1] = y;
+            positions[i * 3 + 2] = z;
+        }
+        return positions;
+    }
+
+    @Test
+    public void pushesApartParticlesTouchingAcrossABoundary() throws IOException {
+        float radius = 0.05f;
+        try (DomainCoordinator coordinator = new DomainCoordinator(directory, 2)) {
+            coordinator.setRadius(radius);
+            coordinator.setWorldRadius(10);
+            coordinator.setCollectingPositions(true);
+            coordinator.start();
+            // Overlapping by 0.04 across the boundary at x = 0, so each only sees the other as a ghost
+            coordinator.addParticle(-0.03f, 0, 0, 0, 0, 0);
+            coordinator.addParticle(0.03f, 0, 0, 0, 0, 0);
+            coordinator.tick();
+
+            assertEquals(1, coordinator.getParticleCounts()[0]);
+            assertEquals(1, coordinator.getParticleCounts()[1]);
+            FloatArrayList positions = coordinator.getPositions();
+            float west = positions.get(0), east = positions.get(3);
+            assertEquals(-radius, west, 1e-5);
+            assertEquals(radius, east, 1e-5);
+        }
+    }
+
+}
@@ -0,0 +1,86 @@
+package physics.domain;
+
+import org.junit.Test;
+import util.FloatArrayList;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class SharedRingTest {
+
+    private static final long TIMEOUT = 10_000;
+
+    @Test
+    public void passesMessagesBetweenThreadsInOrder() throws Exception {
+        Path file = Files.createTempFile("ring", ".ring");
+        int messages = 200_000;
+        try (SharedRing writer = SharedRing.create(file, 4096); SharedRing reader = SharedRing.open(file)) {
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            Thread thread = new Thread(() -> {
+                try {
+                    float[] data = new float[64];
+                    for (int i = 0; i < messages; i++) {
+                        int count = i % data.length;
+                        for (int j = 0; j < count; j++)
+                            data[j] = i + j;
+                        writer.write(i % 3, i, data, 0, count, TIMEOUT);
+                    }
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            });
+            thread.start();
+
+            FloatArrayList out = new FloatArrayList();
+            for (int i = 0; i < messages; i++) {
+                out.clear();
+                assertEquals(i % 3, reader.read(out, TIMEOUT));
+                assertEquals(i, reader.getLastTick());
+                assertEquals(i % 64, out.size());
+                for (int j = 0; j < out.size(); j++)
+                    assertEquals(i + j, out.get(j), 0);
+            }
+            thread.join();
+            assertNull(failure.get());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void splitsDataTooBigForTheRing() throws Exception {
+        Path file = Files.createTempFile("ring", ".ring");
+        try (SharedRing writer = SharedRing.create(file, 1024); SharedRing reader = SharedRing.open(file)) {
+            FloatArrayList data = new FloatArrayList();
+            for (int i = 0; i < 10_000; i++)
+                data.add(i);
+            Thread thread = new Thread(() -> writer.writeAll(7, 3, data, TIMEOUT));
+            thread.start();
+
+            FloatArrayList out = new FloatArrayList();
+            reader.readAll(7, 3, out, TIMEOUT);
+            thread.join();
+            assertEquals(data.size(), out.size());
+            for (int i = 0; i < data.size(); i++)
+                assertEquals(i, out.get(i), 0);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void timesOutWithNothingToRead() throws IOException {
+        Path file = Files.createTempFile("ring", ".ring");
+        try (SharedRing ring = SharedRing.create(file, 1024)) {
+            ring.read(new FloatArrayList(), 50);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+}
@@ -0,0 +1,143 @@
+package render.objLoader;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ObjTokenizerTest {
+
+    private static final String[] EDGE_CASES = {
+            "0", "-0", "+0", "0.0", "-0.0", ".5", "-.5", "5.", "1e0", "1E+2", "1e-2", "1.5f", "2.5D",
+            "3.4028235E38", "-3.4028235E38", "3.4028236E38", "1e39", "-1e39", "1.17549435E-38", "1.4E-45", "7e-46",
+            "1e-50", "NaN", "-NaN", "Infinity", "-Infinity", "+Infinity", "0x1p3", "-0X1.8p1", "0x0.0p0",
+            "16777216", "16777217", "16777219", "9007199254740993", "123456789012345678901234567890",
+            "0.000000000000000000000000000000000000000000001", "4.999999999588667e-07", "0.44721999999999995",
+            // Exactly halfway between two floats, and a hair either side
+            "1.000000059604644775390625", "1.0000000596046447753906249", "1.0000000596046447753906251",
+            "1.000000178813934326171875", "1.0000001788139343261718749", "1.0000001788139343261718751",
+    };
+
+    private static float read(String text) throws ObjFormatException {
+        ObjTokenizer tokenizer = new ObjTokenizer(ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII)));
+        assertTrue(tokenizer.nextLine());
+        assertTrue(tokenizer.next());
+        float value = tokenizer.readFloat();
+        assertTrue("didn't read all of " + text, tokenizer.atEnd());
+        return value;
+    }
+
+    private static void assertSameAsParseFloat(String text) throws ObjFormatException {
+        float expected = Float.parseFloat(text);
+        float actual = read(text);
+        if (Float.floatToIntBits(expected) != Float.floatToIntBits(actual))
+            fail(text + ": expected " + expected + " but read " + actual);
+    }
+
+    @Test
+    public void edgeCasesMatchParseFloat() throws ObjFormatException {
+        for (String text : EDGE_CASES)
+            assertSameAsParseFloat(text);
+    }
+
+    @Test
+    public void randomNumbersMatchParseFloat() throws ObjFormatException {
+        Random random = new Random(50);
+        for (int i = 0; i < 200000; i++) {
+            String text;
+            switch (i % 6) {
+                case 0:
+                    text = Float.toString(Float.intBitsToFloat(random.nextInt()));
+                    break;
+                case 1:
+                    text = Double.toString(random.nextGaussian() * Math.pow(10, random.nextInt(20) - 10));
+                    break;
+                case 2:
+                    text = String.format(Locale.ROOT, "%." + random.nextInt(10) + "f", random.nextGaussian() * 100);
+                    break;
+                case 3:
+                    text = String.format(Locale.ROOT, "%." + random.nextInt(20) + "e", random.nextGaussian() * Math.pow(10, random.nextInt(80) - 40));
+                    break;
+                case 4: {
+                    // Halfway between two neighbouring floats, written out exactly, then cut short or nudged
+                    float f = Math.abs(Float.intBitsToFloat(random.nextInt()));
+                    if (Float.isNaN(f) || Float.isInfinite(f))
+                        continue;
+                    BigDecimal halfway = new BigDecimal(f).add(new BigDecimal(Math.ulp(f)).divide(BigDecimal.valueOf(2)));
+                    text = halfway.toPlainString();
+                    if (random.nextBoolean())
+                        text = halfway.toString();
+                    if (random.nextBoolean() && text.indexOf('E') < 0 && text.indexOf('.') >= 0)
+                        text = text + (random.nextBoolean() ? "1" : "");
+                    break;
+                }
+                default: {
+                    StringBuilder digits = new StringBuilder();
+                    if (random.nextBoolean())
+                        digits.append('-');
+                    int length = 1 + random.nextInt(30);
+                    for (int d = 0; d < length; d++)
+                        digits.append((char) ('0' + random.nextInt(10)));
+                    digits.insert(random.nextInt(digits.length()) + 1, '.');
+                    text = digits.toString();
+                    break;
+                }
+            }
+            assertSameAsParseFloat(text);
+        }
+    }
+
+    @Test
+    public void readsParts() throws ObjFormatException {
+        ObjTokenizer tokenizer = new ObjTokenizer(ByteBuffer.wrap("f 1/-2//3 # comment\r\n\tv  1.5 \n".getBytes(StandardCharsets.US_ASCII)));
+        assertTrue(tokenizer.nextLine());
+        assertTrue(tokenizer.next());
+        assertTrue(tokenizer.is("f"));
+        assertTrue(tokenizer.next());
+        assertEquals(1, tokenizer.readInt());
+        assertTrue(tokenizer.skip('/'));
+        assertEquals(-2, tokenizer.readInt());
+        assertTrue(tokenizer.skip('/'));
+        assertTrue(tokenizer.skip('/'));
+        assertEquals(3, tokenizer.readInt());
+        assertTrue(tokenizer.atEnd());
+        assertFalse(tokenizer.next());
+
+        assertTrue(tokenizer.nextLine());
+        assertEquals(2, tokenizer.getLineNo());
+        assertTrue(tokenizer.next());
+        assertTrue(tokenizer.is("v"));
+        assertEquals(1.5f, tokenizer.nextFloat(), 0);
+        assertFalse(tokenizer.next());
+        assertTrue(tokenizer.nextLine());
+        assertFalse(tokenizer.next());
+        assertFalse(tokenizer.nextLine());
+    }
+
+    @Test
+    public void rejectsWhatParseFloatRejects() {
+        for (String text : new String[]{"x", "-", ".", "1e", "1.2.3", "--1", "1e+"}) {
+            try {
+                Float.parseFloat(text);
+                fail(text + " should be invalid");
+            } catch (NumberFormatException expected) {
+            }
+            try {
+                ObjTokenizer tokenizer = new ObjTokenizer(ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII)));
+                tokenizer.nextLine();
+                tokenizer.nextFloat();
+                fail(text + " should be invalid");
+            } catch (ObjFormatException expected) {
+            }
+        }
+    }
+
+}
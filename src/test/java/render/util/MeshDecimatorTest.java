@@ -0,0 +1,212 @@
+package render.util;
+
+import org.junit.Test;
+import util.FloatArrayList;
+import util.IntArrayList;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MeshDecimatorTest {
+
+    /**
+     * An icosahedron subdivided this many times and pushed out onto the unit sphere, with positions then triangles
+     */
+    private static Object[] icosphere(int subdivisions) {
+        float t = (float) ((1 + Math.sqrt(5)) / 2);
+        FloatArrayList positions = new FloatArrayList();
+        float[][] corners = {
+                {-1, t, 0}, {1, t, 0}, {-1, -t, 0}, {1, -t, 0}, {0, -1, t}, {0, 1, t},
+                {0, -1, -t}, {0, 1, -t}, {t, 0, -1}, {t, 0, 1}, {-t, 0, -1}, {-t, 0, 1}
+        };
+        for (float[] corner : corners)
+            addNormalised(positions, corner[0], corner[1], corner[2]);
+        int[] triangles = {
+                0, 11, 5, 0, 5, 1, 0, 1, 7, 0, 7, 10, 0, 10, 11, 1, 5, 9, 5, 11, 4, 11, 10, 2, 10, 7, 6, 7, 1, 8,
+                3, 9, 4, 3, 4, 2, 3, 2, 6, 3, 6, 8, 3, 8, 9, 4, 9, 5, 2, 4, 11, 6, 2, 10, 8, 6, 7, 9, 8, 1
+        };
+        for (int s = 0; s < subdivisions; s++) {
+            Map<Long, Integer> midpoints = new HashMap<>();
+            IntArrayList finer = new IntArrayList();
+            for (int i = 0; i < triangles.length; i += 3) {
+                int a = triangles[i], b = triangles[i + 1], c = triangles[i + 2];
+                int ab = midpoint(positions, midpoints, a, b);
+                int bc = midpoint(positions, midpoints, b, c);
+                int ca = midpoint(positions, midpoints, c, a);
+                finer.add(a, ab, ca);
+                finer.add(b, bc, ab);
+                finer.add(c, ca, bc);
+                finer.add(ab, bc, ca);
+            }
+            triangles = finer.toArray();
+        }
+        return new Object[]{positions.toArray(), triangles};
+    }
+
+    private static int midpoint(FloatArrayList positions, Map<Long, Integer> midpoints, int a, int b) {
+        long key = ((long) Math.min(a, b) << 32) | Math.max(a, b);
+        Integer existing = midpoints.get(key);
+        if (existing != null)
+            return existing;
+        float[] p = positions.elements();
+        addNormalised(positions, p[a * 3] + p[b * 3], p[a * 3 + 1] + p[b * 3 + 1], p[a * 3 + 2] + p[b * 3 + 2]);
+        int index = positions.size() / 3 - 1;
+        midpoints.put(key, index);
+        return index;
+    }
+
+    private static void addNormalised(FloatArrayList positions, float x, float y, float z) {
+        float length = (float) Math.sqrt(x * x + y * y + z * z);
+        positions.add(x / length, y / length, z / length);
+    }
+
+    /**
+     * A UV sphere with the seam and poles split, as it would be for texturing, so every ring's first and last vertex
+     * share a position, as does every vertex of each pole
+     */
+    private static Object[] uvSphere(int rings, int segments) {
+        FloatArrayList positions = new FloatArrayList();
+        FloatArrayList texCoords = new FloatArrayList();
+        for (int r = 0; r <= rings; r++) {
+            double theta = Math.PI * r / rings;
+            for (int s = 0; s <= segments; s++) {
+                double phi = 2 * Math.PI * (s % segments) / segments;
+                float y = r == 0 ? 1 : r == rings ? -1 : (float) Math.cos(theta);
+                float radius = r == 0 || r == rings ? 0 : (float) Math.sin(theta);
+                positions.add(radius * (float) Math.cos(phi), y, radius * (float) Math.sin(phi));
+                texCoords.add((float) s / segments);
+                texCoords.add((float) r / rings);
+            }
+        }
+        IntArrayList triangles = new IntArrayList();
+        for (int r = 0; r < rings; r++) {
+            for (int s = 0; s < segments; s++) {
+                int a = r * (segments + 1) + s, b = a + 1, c = a + segments + 1, d = c + 1;
+                if (r != 0)
+                    triangles.add(a, b, c);
+                if (r != rings - 1)
+                    triangles.add(b, d, c);
+            }
+        }
+        return new Object[]{positions.toArray(), triangles.toArray(), texCoords.toArray()};
+    }
+
+    /**
+     * Checks the triangles, with their vertices welded by position, close into a surface: none degenerate, and every
+     * edge shared by exactly two triangles, running opposite ways
+     */
+    private static void assertClosedManifold(float[] positions, int[] triangles, int[] vertexMap) {
+        Map<String, Integer> positionIds = new HashMap<>();
+        int[] welded = new int[triangles.length];
+        for (int i = 0; i < triangles.length; i++) {
+            int v = vertexMap[triangles[i]];
+            // Adding 0 turns -0 into 0, as the decimator welds them
+            String key = (positions[v * 3] + 0f) + "," + (positions[v * 3 + 1] + 0f) + "," + (positions[v * 3 + 2] + 0f);
+            Integer id = positionIds.get(key);
+            if (id == null)
+                positionIds.put(key, id = positionIds.size());
+            welded[i] = id;
+        }
+
+        Map<Long, Integer> directedEdges = new HashMap<>();
+        for (int i = 0; i < welded.length; i += 3) {
+            for (int corner = 0; corner < 3; corner++) {
+                int from = welded[i + corner], to = welded[i + (corner + 1) % 3];
+                assertNotEquals("degenerate triangle " + i / 3, from, to);
+                long edge = ((long) from << 32) | to;
+                if (directedEdges.put(edge, i / 3) != null)
+                    fail("edge " + from + "-" + to + " is used the same way by more than one triangle");
+            }
+        }
+        for (long edge : directedEdges.keySet()) {
+            long reverse = (edge << 32) | (edge >>> 32);
+            if (!directedEdges.containsKey(reverse))
+                fail("edge " + (edge >>> 32) + "-" + (int) edge + " has only one triangle");
+        }
+
+        // A closed surface of genus 0 keeps V - E + F = 2
+        int faces = welded.length / 3;
+        int edges = directedEdges.size() / 2;
+        assertEquals(2, positionIds.size() - edges + faces);
+    }
+
+    @Test
+    public void meetsTheTargetOnAClosedMesh() {
+        Object[] sphere = icosphere(4);
+        float[] positions = (float[]) sphere[0];
+        int[] triangles = (int[]) sphere[1];
+        assertEquals(5120, triangles.length / 3);
+
+        MeshDecimator decimator = new MeshDecimator(positions, triangles);
+        for (int target : new int[]{2000, 500, 100}) {
+            int left = decimator.decimate(target);
+            assertTrue(left + " triangles left, wanted " + target, left <= target);
+            assertEquals(left, decimator.getTriangleCount());
+            int[] result = decimator.getTriangles();
+            assertEquals(left * 3, result.length);
+            assertClosedManifold(positions, result, decimator.getVertexMap());
+        }
+    }
+
+    @Test
+    public void staysManifoldAcrossSeams() {
+        Object[] sphere = uvSphere(24, 48);
+        float[] positions = (float[]) sphere[0];
+        int[] triangles = (int[]) sphere[1];
+        assertClosedManifold(positions, triangles, identity(positions.length / 3));
+
+        MeshDecimator decimator = new MeshDecimator(positions, triangles).setTexCoords((float[]) sphere[2]);
+        int target = triangles.length / 3 / 4;
+        int left = decimator.decimate(target);
+        assertTrue(left + " triangles left, wanted " + target, left <= target);
+        assertClosedManifold(positions, decimator.getTriangles(), decimator.getVertexMap());
+    }
+
+    @Test
+    public void keepsAFlatPlaneFlatAndItsCornersInPlace() {
+        int size = 20;
+        FloatArrayList positions = new FloatArrayList();
+        for (int y = 0; y <= size; y++) {
+            for (int x = 0; x <= size; x++)
+                positions.add(x, y, 0);
+        }
+        IntArrayList triangles = new IntArrayList();
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                int a = y * (size + 1) + x, b = a + 1, c = a + size + 1, d = c + 1;
+                triangles.add(a, b, d);
+                triangles.add(a, d, c);
+            }
+        }
+
+        MeshDecimator decimator = new MeshDecimator(positions.toArray(), triangles.toArray());
+        int left = decimator.decimate(50);
+        assertTrue(left <= 50);
+
+        float[] p = positions.toArray();
+        int[] map = decimator.getVertexMap();
+        double area = 0;
+        int[] result = decimator.getTriangles();
+        for (int i = 0; i < result.length; i += 3) {
+            int a = map[result[i]] * 3, b = map[result[i + 1]] * 3, c = map[result[i + 2]] * 3;
+            // Each triangle keeps facing +z, so none has folded over
+            double z = (p[b] - p[a]) * (p[c + 1] - p[a + 1]) - (p[b + 1] - p[a + 1]) * (p[c] - p[a]);
+            assertTrue(z > 0);
+            area += z / 2;
+        }
+        assertEquals(size * size, area, 1e-3);
+    }
+
+    private static int[] identity(int n) {
+        int[] map = new int[n];
+        for (int i = 0; i < n; i++)
+            map[i] = i;
+        return map;
+    }
+
+}
@@ -0,0 +1,136 @@
+package render.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class RangeAllocatorTest {
+
+    @Test
+    public void allocatesFirstFitFromTheStart() {
+        RangeAllocator allocator = new RangeAllocator(100);
+        assertEquals(0, allocator.allocate(10));
+        assertEquals(10, allocator.allocate(20));
+        assertEquals(30, allocator.allocate(70));
+        assertEquals(-1, allocator.allocate(1));
+        assertEquals(0, allocator.getFreeSpace());
+        assertEquals(0, allocator.getFreeRangeCount());
+    }
+
+    @Test
+    public void reusesFreedRanges() {
+        RangeAllocator allocator = new RangeAllocator(100);
+        allocator.allocate(10);
+        int middle = allocator.allocate(20);
+        allocator.allocate(10);
+        allocator.free(middle, 20);
+        assertEquals(middle, allocator.allocate(15));
+        assertEquals(middle + 15, allocator.allocate(5));
+    }
+
+    @Test
+    public void coalescesWithBothNeighbours() {
+        RangeAllocator allocator = new RangeAllocator(30);
+        int a = allocator.allocate(10);
+        int b = allocator.allocate(10);
+        int c = allocator.allocate(10);
+        allocator.free(a, 10);
+        allocator.free(c, 10);
+        assertEquals(2, allocator.getFreeRangeCount());
+        allocator.free(b, 10);
+        assertEquals(1, allocator.getFreeRangeCount());
+        assertEquals(30, allocator.getFreeSpace());
+        assertEquals(0, allocator.allocate(30));
+    }
+
+    @Test
+    public void growExtendsTheLastFreeRange() {
+        RangeAllocator allocator = new RangeAllocator(10);
+        allocator.allocate(4);
+        allocator.grow(20);
+        assertEquals(1, allocator.getFreeRangeCount());
+        assertEquals(4, allocator.allocate(16));
+
+        allocator.grow(30);
+        assertEquals(1, allocator.getFreeRangeCount());
+        assertEquals(20, allocator.allocate(10));
+    }
+
+    @Test
+    public void refusesDoubleFrees() {
+        RangeAllocator allocator = new RangeAllocator(20);
+        int start = allocator.allocate(10);
+        allocator.free(start, 10);
+        try {
+            allocator.free(start, 10);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            allocator.free(5, 10);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void matchesASimpleModel() {
+        Random random = new Random(46);
+        int capacity = 500;
+        RangeAllocator allocator = new RangeAllocator(capacity);
+        // Which units are taken, with first fit found by scanning
+        boolean[] used = new boolean[2000];
+        List<int[]> live = new ArrayList<>();
+
+        for (int step = 0; step < 20000; step++) {
+            int choice = random.nextInt(10);
+            if (choice < 5) {
+                int size = 1 + random.nextInt(40);
+                int expected = firstFit(used, capacity, size);
+                assertEquals(expected, allocator.allocate(size));
+                if (expected >= 0) {
+                    for (int i = expected; i < expected + size; i++)
+                        used[i] = true;
+                    live.add(new int[]{expected, size});
+                }
+            } else if (choice < 9 && !live.isEmpty()) {
+                int[] range = live.remove(random.nextInt(live.size()));
+                allocator.free(range[0], range[1]);
+                for (int i = range[0]; i < range[0] + range[1]; i++)
+                    used[i] = false;
+            } else if (capacity < used.length) {
+                capacity = Math.min(used.length, capacity + random.nextInt(50));
+                allocator.grow(capacity);
+            }
+
+            assertEquals(capacity, allocator.getCapacity());
+            int free = 0;
+            int runs = 0;
+            for (int i = 0; i < capacity; i++) {
+                if (!used[i]) {
+                    free++;
+                    if (i == 0 || used[i - 1])
+                        runs++;
+                }
+            }
+            assertEquals(free, allocator.getFreeSpace());
+            assertEquals(runs, allocator.getFreeRangeCount());
+        }
+    }
+
+    private static int firstFit(boolean[] used, int capacity, int size) {
+        int run = 0;
+        for (int i = 0; i < capacity; i++) {
+            run = used[i] ? 0 : run + 1;
+            if (run == size)
+                return i - size + 1;
+        }
+        return -1;
+    }
+
+}
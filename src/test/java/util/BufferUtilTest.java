@@ -0,0 +1,29 @@
+package util;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertEquals;
+
+public class BufferUtilTest {
+
+    @Test
+    public void orderedAccessesRoundTripInNativeOrder() {
+        ByteOrder other = ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+        for (ByteBuffer buffer : new ByteBuffer[]{ByteBuffer.allocateDirect(64).order(ByteOrder.nativeOrder()),
+                ByteBuffer.allocateDirect(64).order(other), ByteBuffer.allocate(64).order(other)}) {
+            BufferUtil.putLongOrdered(buffer, 8, 0x0102030405060708L);
+            assertEquals(0x0102030405060708L, BufferUtil.getLongVolatile(buffer, 8));
+            long expected = buffer.order() == ByteOrder.nativeOrder() ? 0x0102030405060708L : 0x0807060504030201L;
+            assertEquals(expected, buffer.getLong(8));
+        }
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void checksBounds() {
+        BufferUtil.getLongVolatile(ByteBuffer.allocateDirect(16), 12);
+    }
+
+}